@@ -0,0 +1,426 @@
+package image;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Arbitrary angle rotation and general affine warps.
+ *
+ * Each destination pixel center is mapped back into the source with the
+ * inverse transform and sampled with nearest, bilinear or bicubic
+ * interpolation. Per scanline the range of destination pixels that land
+ * inside the source is solved up front, so pixels outside it are never
+ * touched (the new destination is already zero, i.e. black or transparent).
+ * Nearest and bilinear rows step through the source in 16.16 fixed point.
+ * Row bands run on the shared pool.
+ *
+ * @author Justin Le
+ */
+public final class AffineWarp {
+
+    private static final int MIN_BAND_ROWS = 16;
+
+    /**
+     * Sampling used when reading the source.
+     */
+    public enum Interpolation {
+        NEAREST,
+        BILINEAR,
+        BICUBIC;
+
+        /**
+         * @param value Interpolation name or null.
+         * @return The matching interpolation, BILINEAR if value is null or empty.
+         */
+        public static Interpolation parse(Object value) {
+            if (value == null || value.toString().isEmpty()) {
+                return BILINEAR;
+            }
+            return valueOf(value.toString().trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * What to do with the parts of the warped image outside the source frame.
+     */
+    public enum Canvas {
+        /**
+         * Grow the output to the bounding box of the warped source.
+         */
+        EXPAND,
+        /**
+         * Keep the source dimensions and clip whatever falls outside.
+         */
+        CROP;
+
+        /**
+         * @param value Canvas name or null.
+         * @return The matching canvas mode, EXPAND if value is null or empty.
+         */
+        public static Canvas parse(Object value) {
+            if (value == null || value.toString().isEmpty()) {
+                return EXPAND;
+            }
+            return valueOf(value.toString().trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private AffineWarp() {
+    }
+
+    /**
+     * Parse a transform from a request parameter.
+     *
+     * @param value List of 6 numbers in AffineTransform flat matrix order
+     *              (m00, m10, m01, m11, m02, m12), or 4 numbers without the
+     *              translation.
+     * @return The transform.
+     */
+    public static AffineTransform parseMatrix(Object value) {
+        if (!(value instanceof List<?> list) || (list.size() != 4 && list.size() != 6)) {
+            throw new IllegalArgumentException("matrix must be a list of 4 or 6 numbers");
+        }
+        double[] m = new double[list.size()];
+        for (int i = 0; i < m.length; i++) {
+            m[i] = Double.parseDouble(list.get(i).toString());
+        }
+        return new AffineTransform(m);
+    }
+
+    /**
+     * Rotate an image by an arbitrary clockwise angle about its center.
+     *
+     * @param src Source image.
+     * @param degrees Clockwise angle in degrees.
+     * @param interpolation Sampling.
+     * @param canvas EXPAND to fit the whole rotated image, CROP to keep the
+     *               source size.
+     * @return New image.
+     */
+    public static BufferedImage rotate(BufferedImage src, double degrees, Interpolation interpolation, Canvas canvas) {
+        AffineTransform t = AffineTransform.getRotateInstance(Math.toRadians(degrees),
+                src.getWidth() / 2.0, src.getHeight() / 2.0);
+        return warp(src, t, interpolation, canvas);
+    }
+
+    /**
+     * Warp an image with a forward affine transform (source to destination
+     * coordinates).
+     *
+     * @param src Source image.
+     * @param forward Transform from source to destination space.
+     * @param interpolation Sampling.
+     * @param canvas EXPAND to translate the result into a canvas holding the
+     *               whole warped image, CROP to keep the source size.
+     * @return New image. Compact byte and packed int sources keep their type,
+     *         other layouts come back as INT_ARGB / INT_RGB.
+     */
+    public static BufferedImage warp(BufferedImage src, AffineTransform forward,
+            Interpolation interpolation, Canvas canvas) {
+        AffineTransform t = new AffineTransform(forward);
+        int dstWidth = src.getWidth();
+        int dstHeight = src.getHeight();
+        if (canvas == Canvas.EXPAND) {
+            Rectangle bounds = bounds(t, dstWidth, dstHeight);
+            dstWidth = bounds.width;
+            dstHeight = bounds.height;
+            t.preConcatenate(AffineTransform.getTranslateInstance(-bounds.x, -bounds.y));
+        }
+        return warp(src, t, interpolation, dstWidth, dstHeight);
+    }
+
+    /**
+     * Bounding box of a width x height image after a transform, snapped to
+     * whole pixels so right angles do not grow a 1px border.
+     *
+     * @param t Transform.
+     * @param width Image width.
+     * @param height Image height.
+     * @return The destination pixels covered by the transformed image.
+     */
+    static Rectangle bounds(AffineTransform t, int width, int height) {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        double[] corners = {0, 0, width, 0, 0, height, width, height};
+        t.transform(corners, 0, corners, 0, 4);
+        for (int i = 0; i < 8; i += 2) {
+            minX = Math.min(minX, corners[i]);
+            maxX = Math.max(maxX, corners[i]);
+            minY = Math.min(minY, corners[i + 1]);
+            maxY = Math.max(maxY, corners[i + 1]);
+        }
+        minX = Math.floor(minX + 1e-6);
+        minY = Math.floor(minY + 1e-6);
+        return new Rectangle((int) minX, (int) minY,
+                (int) Math.ceil(maxX - minX - 1e-6), (int) Math.ceil(maxY - minY - 1e-6));
+    }
+
+    /**
+     * Warp an image into a destination of the given size.
+     *
+     * @param src Source image.
+     * @param forward Transform from source to destination space.
+     * @param interpolation Sampling.
+     * @param dstWidth Destination width.
+     * @param dstHeight Destination height.
+     * @return New image. Compact byte and packed int sources keep their type,
+     *         other layouts come back as INT_ARGB / INT_RGB.
+     */
+    public static BufferedImage warp(BufferedImage src, AffineTransform forward,
+            Interpolation interpolation, int dstWidth, int dstHeight) {
+        src = Normalizer.normalize(src);
+        if (dstWidth <= 0 || dstHeight <= 0) {
+            throw new IllegalArgumentException("Transform collapses the image");
+        }
+
+        AffineTransform inverse;
+        try {
+            inverse = forward.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            throw new IllegalArgumentException("Transform is not invertible", e);
+        }
+
+        BufferedImage dst = PixelPool.image(dstWidth, dstHeight, src.getType());
+        Plane in = new Plane(src);
+        Plane out = new Plane(dst);
+        final int outWidth = dstWidth;
+        Parallel.forEachBand(dstHeight, MIN_BAND_ROWS, (start, end) -> {
+            int[] weights = new int[8];
+            Point2D.Double p = new Point2D.Double();
+            for (int y = start; y < end; y++) {
+                // Source position of the center of destination pixel (0, y),
+                // shifted so that source pixel i has its center at i.
+                p.setLocation(0.5, y + 0.5);
+                inverse.transform(p, p);
+                double u0 = p.x - 0.5;
+                double v0 = p.y - 0.5;
+                double du = inverse.getScaleX();
+                double dv = inverse.getShearY();
+
+                int xStart = 0;
+                int xEnd = outWidth;
+                xStart = Math.max(xStart, lowerBound(u0, du, -0.5, in.width - 0.5));
+                xEnd = Math.min(xEnd, upperBound(u0, du, -0.5, in.width - 0.5));
+                xStart = Math.max(xStart, lowerBound(v0, dv, -0.5, in.height - 0.5));
+                xEnd = Math.min(xEnd, upperBound(v0, dv, -0.5, in.height - 0.5));
+
+                int d = y * outWidth;
+                // Pooled pixels are not cleared; the part outside the source stays transparent black.
+                if (xStart >= xEnd) {
+                    out.clear(d, d + outWidth);
+                    continue;
+                }
+                out.clear(d, d + xStart);
+                out.clear(d + xEnd, d + outWidth);
+                switch (interpolation) {
+                    case NEAREST:
+                        nearestRow(in, out, d, xStart, xEnd, fixed(u0 + 0.5 + xStart * du),
+                                fixed(v0 + 0.5 + xStart * dv), fixed(du), fixed(dv));
+                        break;
+                    case BILINEAR:
+                        bilinearRow(in, out, d, xStart, xEnd, fixed(u0 + xStart * du),
+                                fixed(v0 + xStart * dv), fixed(du), fixed(dv));
+                        break;
+                    default:
+                        for (int x = xStart; x < xEnd; x++) {
+                            bicubic(in, out, d + x, u0 + x * du, v0 + x * dv, weights);
+                        }
+                        break;
+                }
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * 48.16 fixed point, so the inner loops can step with one add.
+     */
+    private static long fixed(double value) {
+        return Math.round(value * 65536);
+    }
+
+    /**
+     * First integer x with lo <= a + x * d < hi (assuming the range is
+     * contiguous), or Integer.MAX_VALUE if there is none.
+     */
+    private static int lowerBound(double a, double d, double lo, double hi) {
+        if (d == 0) {
+            return (a >= lo && a < hi) ? 0 : Integer.MAX_VALUE;
+        }
+        double bound = d > 0 ? (lo - a) / d : (hi - a) / d;
+        return (int) Math.max(0, Math.ceil(bound - 1e-9));
+    }
+
+    /**
+     * One past the last integer x with lo <= a + x * d < hi, or 0 if there
+     * is none.
+     */
+    private static int upperBound(double a, double d, double lo, double hi) {
+        if (d == 0) {
+            return (a >= lo && a < hi) ? Integer.MAX_VALUE : 0;
+        }
+        double bound = d > 0 ? (hi - a) / d : (lo - a) / d;
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, Math.ceil(bound - 1e-9)));
+    }
+
+    private static int clamp(int i, int size) {
+        return i < 0 ? 0 : (i >= size ? size - 1 : i);
+    }
+
+    private static void nearestRow(Plane in, Plane out, int d, int xStart, int xEnd,
+            long u, long v, long du, long dv) {
+        for (int x = xStart; x < xEnd; x++, u += du, v += dv) {
+            int sx = clamp((int) (u >> 16), in.width);
+            int sy = clamp((int) (v >> 16), in.height);
+            out.copy(d + x, in, sy * in.width + sx);
+        }
+    }
+
+    private static void bilinearRow(Plane in, Plane out, int d, int xStart, int xEnd,
+            long u, long v, long du, long dv) {
+        int width = in.width;
+        int n = in.channels;
+        for (int x = xStart; x < xEnd; x++, u += du, v += dv) {
+            int x0 = (int) (u >> 16);
+            int y0 = (int) (v >> 16);
+            int fx = (int) (u >> 8) & 0xFF;
+            int fy = (int) (v >> 8) & 0xFF;
+            int xa = clamp(x0, width);
+            int xb = clamp(x0 + 1, width);
+            int r0 = clamp(y0, in.height) * width;
+            int r1 = clamp(y0 + 1, in.height) * width;
+            if (in.bytes != null) {
+                byte[] src = in.bytes;
+                int i00 = (r0 + xa) * n;
+                int i01 = (r0 + xb) * n;
+                int i10 = (r1 + xa) * n;
+                int i11 = (r1 + xb) * n;
+                int o = (d + x) * n;
+                for (int c = 0; c < n; c++) {
+                    int top = (src[i00 + c] & 0xFF) * (256 - fx) + (src[i01 + c] & 0xFF) * fx;
+                    int bottom = (src[i10 + c] & 0xFF) * (256 - fx) + (src[i11 + c] & 0xFF) * fx;
+                    out.bytes[o + c] = (byte) ((top * (256 - fy) + bottom * fy + 32768) >> 16);
+                }
+            } else {
+                int[] src = in.ints;
+                out.ints[d + x] = lerp(lerp(src[r0 + xa], src[r0 + xb], fx),
+                        lerp(src[r1 + xa], src[r1 + xb], fx), fy);
+            }
+        }
+    }
+
+    /**
+     * Blend two packed pixels, two channels at a time.
+     */
+    private static int lerp(int a, int b, int f) {
+        int g = 256 - f;
+        int rb = (((a & 0x00FF00FF) * g + (b & 0x00FF00FF) * f) >>> 8) & 0x00FF00FF;
+        int ag = ((((a >>> 8) & 0x00FF00FF) * g + ((b >>> 8) & 0x00FF00FF) * f)) & 0xFF00FF00;
+        return ag | rb;
+    }
+
+    private static void bicubic(Plane in, Plane out, int d, double u, double v, int[] w) {
+        int x0 = (int) Math.floor(u);
+        int y0 = (int) Math.floor(v);
+        cubicWeights(u - x0, w, 0);
+        cubicWeights(v - y0, w, 4);
+        for (int c = 0; c < in.channels; c++) {
+            long sum = 0;
+            for (int j = 0; j < 4; j++) {
+                int yy = clamp(y0 - 1 + j, in.height);
+                long row = 0;
+                for (int i = 0; i < 4; i++) {
+                    row += (long) w[i] * in.get(in.index(clamp(x0 - 1 + i, in.width), yy), c);
+                }
+                sum += row * w[4 + j];
+            }
+            int value = (int) ((sum + (1L << 23)) >> 24);
+            out.set(d, c, value < 0 ? 0 : (value > 255 ? 255 : value));
+        }
+    }
+
+    /**
+     * Catmull-Rom weights for the four taps around fraction t, scaled by 2^12.
+     */
+    private static void cubicWeights(double t, int[] w, int off) {
+        double t2 = t * t;
+        double t3 = t2 * t;
+        w[off] = (int) Math.round((-0.5 * t3 + t2 - 0.5 * t) * 4096);
+        w[off + 1] = (int) Math.round((1.5 * t3 - 2.5 * t2 + 1) * 4096);
+        w[off + 2] = (int) Math.round((-1.5 * t3 + 2 * t2 + 0.5 * t) * 4096);
+        w[off + 3] = 4096 - w[off] - w[off + 1] - w[off + 2];
+    }
+
+    /**
+     * Uniform per channel view of a compact byte or packed int image. Packed
+     * ints are treated as four independent 8 bit channels, which is all
+     * interpolation needs.
+     */
+    private static final class Plane {
+
+        final byte[] bytes;
+        final int[] ints;
+        final int channels;
+        final int width;
+        final int height;
+
+        Plane(BufferedImage img) {
+            width = img.getWidth();
+            height = img.getHeight();
+            int n = Rasters.byteChannels(img);
+            if (n > 0) {
+                bytes = Rasters.bytes(img);
+                ints = null;
+                channels = n;
+            } else {
+                bytes = null;
+                ints = Rasters.ints(img);
+                channels = 4;
+            }
+        }
+
+        int index(int x, int y) {
+            return y * width + x;
+        }
+
+        void clear(int from, int to) {
+            if (bytes != null) {
+                Arrays.fill(bytes, from * channels, to * channels, (byte) 0);
+            } else {
+                Arrays.fill(ints, from, to, 0);
+            }
+        }
+
+        int get(int pixel, int c) {
+            if (bytes != null) {
+                return bytes[pixel * channels + c] & 0xFF;
+            }
+            return (ints[pixel] >>> (c << 3)) & 0xFF;
+        }
+
+        void set(int pixel, int c, int value) {
+            if (bytes != null) {
+                bytes[pixel * channels + c] = (byte) value;
+            } else {
+                int shift = c << 3;
+                ints[pixel] = (ints[pixel] & ~(0xFF << shift)) | (value << shift);
+            }
+        }
+
+        void copy(int pixel, Plane from, int fromPixel) {
+            if (bytes != null) {
+                System.arraycopy(from.bytes, fromPixel * channels, bytes, pixel * channels, channels);
+            } else {
+                ints[pixel] = from.ints[fromPixel];
+            }
+        }
+    }
+}
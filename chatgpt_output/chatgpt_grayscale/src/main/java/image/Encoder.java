@@ -0,0 +1,220 @@
+package image;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Encoding counterpart of {@link Decoder}: hands ImageIO an image whose
+ * layout matches what the format can store, so the writer does not have to
+ * convert it (or silently refuse it).
+ *
+ * Grayscale results are written with one channel: TYPE_BYTE_GRAY becomes a
+ * 1-component JPEG and a gray (color type 0) PNG. A gray image that still
+ * carries alpha becomes an 8 bit gray + alpha (color type 4) PNG instead of
+ * 4 channel RGBA. JPEG cannot hold alpha, so it is dropped before writing,
+ * since ImageIO would otherwise write nothing at all.
+ *
+ * @author Justin Le
+ */
+public final class Encoder {
+
+    private static final int MIN_BAND_ROWS = 64;
+
+    private Encoder() {
+    }
+
+    /**
+     * @param format ImageIO format name.
+     * @return True for jpg / jpeg.
+     */
+    public static boolean isJpeg(String format) {
+        String f = format.toLowerCase(Locale.ROOT);
+        return f.equals("jpg") || f.equals("jpeg");
+    }
+
+    /**
+     * Bring an image into the layout the format should be written with.
+     *
+     * @param img Image to encode.
+     * @param format ImageIO format name.
+     * @param gray True if every pixel has equal red, green and blue, e.g. the
+     *             result of a grayscale conversion.
+     * @return img itself, or a converted copy.
+     */
+    public static BufferedImage prepare(BufferedImage img, String format, boolean gray) {
+        boolean alpha = img.getColorModel().hasAlpha();
+        if (gray && img.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+            if (alpha && format.equalsIgnoreCase("png")) {
+                return toGrayAlpha(img);
+            }
+            return toGray(img);
+        }
+        if (alpha && isJpeg(format)) {
+            return dropAlpha(img);
+        }
+        return img;
+    }
+
+    /**
+     * {@link #prepare} and write.
+     *
+     * @param img Image to encode.
+     * @param format ImageIO format name.
+     * @param gray True if the image is known to be gray.
+     * @param out Destination stream.
+     * @throws IOException If writing fails or there is no writer for the format.
+     */
+    public static void write(BufferedImage img, String format, boolean gray, OutputStream out) throws IOException {
+        Codecs.Format f = Codecs.Format.parse(format);
+        if (f == null) {
+            throw new IOException("No image writer for format " + format);
+        }
+        write(img, f, gray, out);
+    }
+
+    /**
+     * {@link #prepare} and write with the preset parameters of {@link Codecs}.
+     *
+     * @param img Image to encode.
+     * @param format Output format.
+     * @param gray True if the image is known to be gray.
+     * @param out Destination stream.
+     * @throws IOException If writing fails or the format cannot store the image.
+     */
+    public static void write(BufferedImage img, Codecs.Format format, boolean gray, OutputStream out)
+            throws IOException {
+        write(img, format, gray, PngEncoder.Settings.DEFAULT, out);
+    }
+
+    /**
+     * {@link #prepare} and write. PNG goes through the parallel
+     * {@link PngEncoder} with the given settings when it can store the
+     * layout; everything else uses the preset parameters of {@link Codecs}.
+     *
+     * @param img Image to encode.
+     * @param format Output format.
+     * @param gray True if the image is known to be gray.
+     * @param png Deflate level and strategy for PNG output.
+     * @param out Destination stream.
+     * @throws IOException If writing fails or the format cannot store the image.
+     */
+    public static void write(BufferedImage img, Codecs.Format format, boolean gray, PngEncoder.Settings png,
+            OutputStream out) throws IOException {
+        write(img, format, gray, png, TurboJpeg.Backend.IMAGEIO, out);
+    }
+
+    /**
+     * {@link #prepare} and write. PNG goes through the parallel
+     * {@link PngEncoder} with the given settings when it can store the
+     * layout, JPEG through libjpeg-turbo when that backend is requested and
+     * available (same quality and 4:2:0 chroma as the ImageIO writer);
+     * everything else uses the preset parameters of {@link Codecs}.
+     *
+     * @param img Image to encode.
+     * @param format Output format.
+     * @param gray True if the image is known to be gray.
+     * @param png Deflate level and strategy for PNG output.
+     * @param jpeg Requested JPEG backend.
+     * @param out Destination stream.
+     * @throws IOException If writing fails or the format cannot store the image.
+     */
+    public static void write(BufferedImage img, Codecs.Format format, boolean gray, PngEncoder.Settings png,
+            TurboJpeg.Backend jpeg, OutputStream out) throws IOException {
+        BufferedImage prepared = prepare(img, format.formatName(), gray);
+        try {
+            if (format == Codecs.Format.JPEG && TurboJpeg.effective(jpeg) == TurboJpeg.Backend.TURBOJPEG
+                    && TurboJpeg.encode(prepared, out)) {
+                return;
+            }
+            if (format == Codecs.Format.PNG && PngEncoder.canEncode(prepared)) {
+                PngEncoder.write(prepared, png, out);
+                return;
+            }
+            Codecs.write(prepared, format, out);
+        } finally {
+            if (prepared != img) {
+                // A conversion made for this write only
+                PixelPool.release(prepared);
+            }
+        }
+    }
+
+    /**
+     * Take the green channel of a gray valued color image (all channels
+     * equal) into a TYPE_BYTE_GRAY image.
+     */
+    private static BufferedImage toGray(BufferedImage img) {
+        img = Normalizer.normalize(img);
+        int width = img.getWidth();
+        int height = img.getHeight();
+        BufferedImage dst = PixelPool.image(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] out = Rasters.bytes(dst);
+        if (img.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            byte[] in = Rasters.bytes(img);
+            Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+                // Green is the middle byte of B, G, R.
+                for (int i = start * width, s = 3 * i + 1; i < end * width; i++, s += 3) {
+                    out[i] = in[s];
+                }
+            });
+        } else {
+            int[] in = Rasters.ints(img);
+            Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+                for (int i = start * width; i < end * width; i++) {
+                    out[i] = (byte) (in[i] >> 8);
+                }
+            });
+        }
+        return dst;
+    }
+
+    /**
+     * Pack a gray valued image with alpha into two interleaved bytes per
+     * pixel (gray, alpha) with a gray color space, which the PNG writer
+     * stores as color type 4. Images with alpha are INT_ARGB once normalised.
+     */
+    private static BufferedImage toGrayAlpha(BufferedImage img) {
+        img = Normalizer.normalize(img);
+        int width = img.getWidth();
+        int height = img.getHeight();
+        ColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), true,
+                img.isAlphaPremultiplied(), Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+        WritableRaster raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, width, height,
+                2 * width, 2, new int[] {0, 1}, null);
+        byte[] out = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int[] in = Rasters.ints(img);
+        Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+            for (int i = start * width; i < end * width; i++) {
+                out[2 * i] = (byte) (in[i] >> 8);
+                out[2 * i + 1] = (byte) (in[i] >>> 24);
+            }
+        });
+        return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Copy the color channels of an image with alpha (INT_ARGB once
+     * normalised) into 3BYTE_BGR.
+     */
+    private static BufferedImage dropAlpha(BufferedImage img) {
+        img = Normalizer.normalize(img);
+        int width = img.getWidth();
+        int height = img.getHeight();
+        BufferedImage dst = PixelPool.image(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] out = Rasters.bytes(dst);
+        int[] in = Rasters.ints(img);
+        Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) ->
+                Kernels.packBgr(in, start * width, out, start * width * 3, (end - start) * width));
+        return dst;
+    }
+}
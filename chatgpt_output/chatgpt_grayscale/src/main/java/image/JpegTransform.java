@@ -0,0 +1,1153 @@
+package image;
+
+import image.RotationEngine.Orientation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Lossless right-angle rotation and flipping of baseline JPEG files, the
+ * way jpegtran does it.
+ *
+ * The entropy coded data is Huffman decoded to quantised DCT coefficients
+ * and written back in the new orientation without an inverse DCT, colour
+ * conversion or requantisation, so there is no generation loss and no
+ * pixel work at all. A flip mirrors the order of the 8x8 blocks and negates
+ * the odd horizontal (or vertical) frequencies of each block; a transpose
+ * swaps the block grid, transposes each block, and transposes the
+ * quantisation tables and sampling factors with it. Every orientation is a
+ * combination of these. The output uses optimal Huffman tables computed
+ * from the transformed coefficients, so the same input always gives the
+ * same bytes.
+ *
+ * Mirroring an axis only works if the image is a whole number of iMCUs
+ * (8 pixels times the largest sampling factor) along it, since a partial
+ * iMCU at the right or bottom edge would end up at the left or top with
+ * the block grid out of step. For such images {@link #supports} is false
+ * unless the caller accepts {@link Edges#TRIM}, which drops the partial
+ * iMCU column or row before transforming (jpegtran -trim); otherwise the
+ * caller should go through pixels.
+ *
+ * Only Huffman coded sequential 8-bit files (SOF0 and SOF1) are handled;
+ * {@link #parse} returns null for progressive, arithmetic coded, lossless
+ * or 12-bit files. JFIF, ICC profile and Adobe segments are kept; EXIF is
+ * dropped, as its orientation tag and thumbnail would no longer match.
+ *
+ * @author Justin Le
+ */
+public final class JpegTransform {
+
+    /**
+     * What to do with a partial iMCU on an axis that has to be mirrored.
+     */
+    public enum Edges {
+        /**
+         * Do not transform losslessly; the caller decodes to pixels.
+         */
+        PIXELS,
+        /**
+         * Drop the partial iMCU, making the result up to 15 pixels smaller.
+         */
+        TRIM;
+
+        /**
+         * @param value Mode name, case insensitive.
+         * @return The matching mode, PIXELS if value is null or empty.
+         */
+        public static Edges parse(Object value) {
+            if (value == null || value.toString().isEmpty()) {
+                return PIXELS;
+            }
+            return valueOf(value.toString().trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Natural (row-major) index of each zigzag position.
+     */
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    private static final int SOF0 = 0xC0;
+    private static final int SOF1 = 0xC1;
+    private static final int DHT = 0xC4;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int DQT = 0xDB;
+    private static final int DRI = 0xDD;
+    private static final int APP0 = 0xE0;
+    private static final int APP2 = 0xE2;
+    private static final int APP14 = 0xEE;
+
+    /**
+     * One colour component and, once decoded, its coefficients.
+     */
+    private static final class Component {
+        final int id;
+        final int h;
+        final int v;
+        final int tq;
+        int td;
+        int ta;
+        /**
+         * Blocks per row and column, padded to whole MCUs.
+         */
+        int blocksWide;
+        int blocksHigh;
+        /**
+         * 64 coefficients per block in natural order, blocks row by row.
+         */
+        short[] coefficients;
+
+        Component(int id, int h, int v, int tq) {
+            this.id = id;
+            this.h = h;
+            this.v = v;
+            this.tq = tq;
+        }
+    }
+
+    private final ByteBuffer data;
+    private final int sofMarker;
+    private final int width;
+    private final int height;
+    private final Component[] components;
+    private final int maxH;
+    private final int maxV;
+
+    private JpegTransform(ByteBuffer data, int sofMarker, int width, int height, Component[] components) {
+        this.data = data;
+        this.sofMarker = sofMarker;
+        this.width = width;
+        this.height = height;
+        this.components = components;
+        int h = 1;
+        int v = 1;
+        for (Component c : components) {
+            h = Math.max(h, c.h);
+            v = Math.max(v, c.v);
+        }
+        this.maxH = h;
+        this.maxV = v;
+    }
+
+    /**
+     * Read the frame header of a JPEG file.
+     *
+     * @param jpeg File from its position to its limit; neither is changed.
+     * @return A transform for the file, or null if it is not a JPEG this
+     *         class can transform.
+     */
+    public static JpegTransform parse(ByteBuffer jpeg) {
+        ByteBuffer data = jpeg.slice();
+        int limit = data.limit();
+        if (limit < 4 || (data.get(0) & 0xFF) != 0xFF || (data.get(1) & 0xFF) != SOI) {
+            return null;
+        }
+        int pos = 2;
+        while (pos + 4 <= limit) {
+            if ((data.get(pos) & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = data.get(pos + 1) & 0xFF;
+            if (marker == 0xFF) {
+                pos++;
+                continue;
+            }
+            int length = u16(data, pos + 2);
+            if (marker == SOF0 || marker == SOF1) {
+                if (pos + 2 + length > limit || length < 8) {
+                    return null;
+                }
+                int precision = data.get(pos + 4) & 0xFF;
+                int height = u16(data, pos + 5);
+                int width = u16(data, pos + 7);
+                int count = data.get(pos + 9) & 0xFF;
+                if (precision != 8 || width == 0 || height == 0 || count < 1 || count > 4
+                        || length != 8 + 3 * count) {
+                    return null;
+                }
+                Component[] components = new Component[count];
+                int blocksPerMcu = 0;
+                for (int i = 0; i < count; i++) {
+                    int at = pos + 10 + 3 * i;
+                    int sampling = data.get(at + 1) & 0xFF;
+                    int h = sampling >> 4;
+                    int v = sampling & 15;
+                    int tq = data.get(at + 2) & 0xFF;
+                    if (h < 1 || h > 4 || v < 1 || v > 4 || tq > 3) {
+                        return null;
+                    }
+                    components[i] = new Component(data.get(at) & 0xFF, h, v, tq);
+                    blocksPerMcu += h * v;
+                }
+                if (count > 1 && blocksPerMcu > 10) {
+                    return null;
+                }
+                return new JpegTransform(data, marker, width, height, components);
+            }
+            if (marker >= 0xC2 && marker <= 0xCF && marker != DHT && marker != 0xC8 && marker != 0xCC) {
+                // Progressive, lossless, hierarchical or arithmetic coded
+                return null;
+            }
+            if (marker == SOS || marker == EOI) {
+                return null;
+            }
+            pos += 2 + length;
+        }
+        return null;
+    }
+
+    /**
+     * @return Width stored in the file.
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * @return Height stored in the file.
+     */
+    public int height() {
+        return height;
+    }
+
+    /**
+     * @param orientation Transform to apply.
+     * @param edges How partial edge iMCUs may be handled.
+     * @return True if {@link #transform} can apply the orientation.
+     */
+    public boolean supports(Orientation orientation, Edges edges) {
+        int[] size = croppedSize(orientation, edges);
+        return size != null && size[0] > 0 && size[1] > 0;
+    }
+
+    /**
+     * @param orientation Transform to apply.
+     * @param edges How partial edge iMCUs are handled.
+     * @return Width and height of the result, or null if not supported.
+     */
+    public int[] outputSize(Orientation orientation, Edges edges) {
+        int[] size = croppedSize(orientation, edges);
+        if (size == null) {
+            return null;
+        }
+        return orientation.swapsAxes() ? new int[] {size[1], size[0]} : size;
+    }
+
+    /**
+     * Write the transformed file.
+     *
+     * @param orientation Transform to apply.
+     * @param edges How partial edge iMCUs are handled.
+     * @param out Destination, left open.
+     * @throws IOException If the file is corrupt, the orientation is not
+     *                     supported for it, or writing fails.
+     */
+    public void transform(Orientation orientation, Edges edges, OutputStream out) throws IOException {
+        int[] size = croppedSize(orientation, edges);
+        if (size == null || size[0] == 0 || size[1] == 0) {
+            throw new IOException("JPEG cannot be transformed losslessly: " + orientation);
+        }
+        Tables tables = decode();
+        new Writer(tables, orientation, size[0], size[1], out).write();
+    }
+
+    /**
+     * Source region that is transformed, in source pixels: the whole image,
+     * or without the partial iMCU on each mirrored axis when trimming.
+     */
+    private int[] croppedSize(Orientation orientation, Edges edges) {
+        boolean mirrorX = false;
+        boolean mirrorY = false;
+        switch (orientation) {
+            case FLIP_HORIZONTAL -> mirrorX = true;
+            case FLIP_VERTICAL -> mirrorY = true;
+            case ROTATE_90 -> mirrorY = true;
+            case ROTATE_270 -> mirrorX = true;
+            case ROTATE_180, TRANSVERSE -> {
+                mirrorX = true;
+                mirrorY = true;
+            }
+            default -> {
+            }
+        }
+        int w = width;
+        int h = height;
+        int unitX = 8 * maxH;
+        int unitY = 8 * maxV;
+        if (mirrorX && w % unitX != 0) {
+            if (edges != Edges.TRIM) {
+                return null;
+            }
+            w -= w % unitX;
+        }
+        if (mirrorY && h % unitY != 0) {
+            if (edges != Edges.TRIM) {
+                return null;
+            }
+            h -= h % unitY;
+        }
+        return new int[] {w, h};
+    }
+
+    // ---------------------------------------------------------------- decoding
+
+    /**
+     * Tables and segments collected while decoding.
+     */
+    private static final class Tables {
+        final int[][] quant = new int[4][];
+        final int[] quantPrecision = new int[4];
+        final Huffman[] dc = new Huffman[4];
+        final Huffman[] ac = new Huffman[4];
+        final List<int[]> kept = new ArrayList<>();
+    }
+
+    private Tables decode() throws IOException {
+        Tables tables = new Tables();
+        int mcusWide = ceilDiv(width, 8 * maxH);
+        int mcusHigh = ceilDiv(height, 8 * maxV);
+        for (Component c : components) {
+            c.blocksWide = mcusWide * c.h;
+            c.blocksHigh = mcusHigh * c.v;
+            c.coefficients = new short[c.blocksWide * c.blocksHigh * 64];
+            c.td = -1;
+        }
+        int restartInterval = 0;
+        int limit = data.limit();
+        int pos = 2;
+        while (pos + 2 <= limit) {
+            if ((data.get(pos) & 0xFF) != 0xFF) {
+                throw new IOException("Corrupt JPEG: expected marker at " + pos);
+            }
+            int marker = data.get(pos + 1) & 0xFF;
+            if (marker == 0xFF) {
+                pos++;
+                continue;
+            }
+            if (marker == EOI) {
+                break;
+            }
+            if (pos + 4 > limit) {
+                throw new IOException("Corrupt JPEG: truncated segment");
+            }
+            int length = u16(data, pos + 2);
+            int body = pos + 4;
+            int end = pos + 2 + length;
+            if (end > limit) {
+                throw new IOException("Corrupt JPEG: truncated segment");
+            }
+            switch (marker) {
+                case DQT -> readQuantTables(tables, body, end);
+                case DHT -> readHuffmanTables(tables, body, end);
+                case DRI -> restartInterval = u16(data, body);
+                case SOS -> {
+                    pos = readScan(tables, body, end, restartInterval);
+                    continue;
+                }
+                default -> {
+                    if (isKept(marker, body, end)) {
+                        tables.kept.add(new int[] {pos, end});
+                    }
+                }
+            }
+            pos = end;
+        }
+        for (Component c : components) {
+            if (c.td < 0) {
+                throw new IOException("Corrupt JPEG: component " + c.id + " has no scan");
+            }
+            if (tables.quant[c.tq] == null) {
+                throw new IOException("Corrupt JPEG: missing quantisation table " + c.tq);
+            }
+        }
+        return tables;
+    }
+
+    private boolean isKept(int marker, int body, int end) {
+        if (marker == APP0) {
+            return startsWith(body, end, "JFIF\0");
+        }
+        if (marker == APP2) {
+            return startsWith(body, end, "ICC_PROFILE\0");
+        }
+        if (marker == APP14) {
+            return startsWith(body, end, "Adobe");
+        }
+        return false;
+    }
+
+    private boolean startsWith(int body, int end, String signature) {
+        if (end - body < signature.length()) {
+            return false;
+        }
+        for (int i = 0; i < signature.length(); i++) {
+            if ((data.get(body + i) & 0xFF) != signature.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readQuantTables(Tables tables, int pos, int end) throws IOException {
+        while (pos < end) {
+            int pq = (data.get(pos) & 0xFF) >> 4;
+            int tq = data.get(pos) & 15;
+            pos++;
+            if (tq > 3 || pq > 1 || pos + 64 * (pq + 1) > end) {
+                throw new IOException("Corrupt JPEG: bad quantisation table");
+            }
+            int[] table = new int[64];
+            for (int k = 0; k < 64; k++) {
+                table[ZIGZAG[k]] = pq == 0 ? data.get(pos + k) & 0xFF : u16(data, pos + 2 * k);
+            }
+            pos += 64 * (pq + 1);
+            tables.quant[tq] = table;
+            tables.quantPrecision[tq] = pq;
+        }
+    }
+
+    private void readHuffmanTables(Tables tables, int pos, int end) throws IOException {
+        while (pos < end) {
+            int tc = (data.get(pos) & 0xFF) >> 4;
+            int th = data.get(pos) & 15;
+            if (tc > 1 || th > 3 || pos + 17 > end) {
+                throw new IOException("Corrupt JPEG: bad Huffman table");
+            }
+            int[] bits = new int[17];
+            int total = 0;
+            for (int i = 1; i <= 16; i++) {
+                bits[i] = data.get(pos + i) & 0xFF;
+                total += bits[i];
+            }
+            pos += 17;
+            if (total > 256 || pos + total > end) {
+                throw new IOException("Corrupt JPEG: bad Huffman table");
+            }
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = data.get(pos + i) & 0xFF;
+            }
+            pos += total;
+            (tc == 0 ? tables.dc : tables.ac)[th] = new Huffman(bits, values);
+        }
+    }
+
+    /**
+     * Decode one scan.
+     *
+     * @return Position of the marker after the entropy coded data.
+     */
+    private int readScan(Tables tables, int pos, int end, int restartInterval) throws IOException {
+        int count = data.get(pos) & 0xFF;
+        if (count < 1 || count > 4 || end - pos != 4 + 2 * count) {
+            throw new IOException("Corrupt JPEG: bad scan header");
+        }
+        Component[] scan = new Component[count];
+        for (int i = 0; i < count; i++) {
+            int id = data.get(pos + 1 + 2 * i) & 0xFF;
+            int tables2 = data.get(pos + 2 + 2 * i) & 0xFF;
+            Component c = component(id);
+            c.td = tables2 >> 4;
+            c.ta = tables2 & 15;
+            if (c.td > 3 || c.ta > 3 || tables.dc[c.td] == null || tables.ac[c.ta] == null) {
+                throw new IOException("Corrupt JPEG: missing Huffman table");
+            }
+            scan[i] = c;
+        }
+        int spectralStart = data.get(end - 3) & 0xFF;
+        int spectralEnd = data.get(end - 2) & 0xFF;
+        if (spectralStart != 0 || spectralEnd != 63 || data.get(end - 1) != 0) {
+            throw new IOException("Corrupt JPEG: not a sequential scan");
+        }
+
+        BitReader in = new BitReader(data, end);
+        int[] predictors = new int[count];
+        int mcus;
+        int mcusWide;
+        if (count == 1) {
+            Component c = scan[0];
+            mcusWide = ceilDiv(ceilDiv(width * c.h, maxH), 8);
+            mcus = mcusWide * ceilDiv(ceilDiv(height * c.v, maxV), 8);
+        } else {
+            mcusWide = ceilDiv(width, 8 * maxH);
+            mcus = mcusWide * ceilDiv(height, 8 * maxV);
+        }
+        for (int mcu = 0; mcu < mcus; mcu++) {
+            if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                in.restart();
+                Arrays.fill(predictors, 0);
+            }
+            int mcuX = mcu % mcusWide;
+            int mcuY = mcu / mcusWide;
+            if (count == 1) {
+                Component c = scan[0];
+                predictors[0] = readBlock(in, tables, c, (mcuY * c.blocksWide + mcuX) * 64, predictors[0]);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    Component c = scan[i];
+                    for (int y = 0; y < c.v; y++) {
+                        for (int x = 0; x < c.h; x++) {
+                            int block = (mcuY * c.v + y) * c.blocksWide + mcuX * c.h + x;
+                            predictors[i] = readBlock(in, tables, c, block * 64, predictors[i]);
+                        }
+                    }
+                }
+            }
+        }
+        return in.nextMarker();
+    }
+
+    private static int readBlock(BitReader in, Tables tables, Component c, int offset, int predictor)
+            throws IOException {
+        short[] out = c.coefficients;
+        int size = in.decode(tables.dc[c.td]);
+        if (size > 0) {
+            predictor += extend(in.bits(size), size);
+        }
+        out[offset] = (short) predictor;
+        Huffman ac = tables.ac[c.ta];
+        for (int k = 1; k < 64; ) {
+            int rs = in.decode(ac);
+            int run = rs >> 4;
+            size = rs & 15;
+            if (size == 0) {
+                if (run != 15) {
+                    break;
+                }
+                k += 16;
+                continue;
+            }
+            k += run;
+            if (k > 63) {
+                throw new IOException("Corrupt JPEG: coefficient index out of range");
+            }
+            out[offset + ZIGZAG[k]] = (short) extend(in.bits(size), size);
+            k++;
+        }
+        return predictor;
+    }
+
+    private Component component(int id) throws IOException {
+        for (Component c : components) {
+            if (c.id == id) {
+                return c;
+            }
+        }
+        throw new IOException("Corrupt JPEG: unknown component " + id);
+    }
+
+    private static int extend(int value, int size) {
+        return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+    }
+
+    /**
+     * Huffman decoding table with a 9-bit lookahead.
+     */
+    private static final class Huffman {
+        private static final int LOOKAHEAD = 9;
+
+        final int[] lookup = new int[1 << LOOKAHEAD];
+        final int[] maxCode = new int[18];
+        final int[] valueOffset = new int[17];
+        final int[] values;
+
+        Huffman(int[] bits, int[] values) {
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                valueOffset[length] = k - code;
+                for (int i = 0; i < bits[length]; i++) {
+                    if (length <= LOOKAHEAD) {
+                        int shift = LOOKAHEAD - length;
+                        for (int fill = 0; fill < 1 << shift; fill++) {
+                            lookup[(code << shift) | fill] = (length << 8) | values[k];
+                        }
+                    }
+                    code++;
+                    k++;
+                }
+                maxCode[length] = bits[length] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Reads entropy coded bits, removing stuffed zero bytes and stopping at
+     * the next marker.
+     */
+    private static final class BitReader {
+        private final ByteBuffer data;
+        private final int limit;
+        private int pos;
+        private long buffer;
+        private int count;
+        private boolean atMarker;
+
+        BitReader(ByteBuffer data, int pos) {
+            this.data = data;
+            this.limit = data.limit();
+            this.pos = pos;
+        }
+
+        private void fill() {
+            while (count <= 56) {
+                int b = 0;
+                if (!atMarker && pos < limit) {
+                    b = data.get(pos) & 0xFF;
+                    if (b == 0xFF) {
+                        int next = pos + 1 < limit ? data.get(pos + 1) & 0xFF : 0xD9;
+                        if (next == 0) {
+                            pos += 2;
+                        } else {
+                            atMarker = true;
+                            b = 0;
+                        }
+                    } else {
+                        pos++;
+                    }
+                }
+                buffer = (buffer << 8) | b;
+                count += 8;
+            }
+        }
+
+        int bits(int n) {
+            if (count < n) {
+                fill();
+            }
+            count -= n;
+            return (int) (buffer >>> count) & ((1 << n) - 1);
+        }
+
+        int decode(Huffman table) throws IOException {
+            if (count < 16) {
+                fill();
+            }
+            int peek = (int) (buffer >>> (count - Huffman.LOOKAHEAD)) & ((1 << Huffman.LOOKAHEAD) - 1);
+            int entry = table.lookup[peek];
+            if (entry != 0) {
+                count -= entry >> 8;
+                return entry & 0xFF;
+            }
+            for (int length = Huffman.LOOKAHEAD + 1; length <= 16; length++) {
+                int code = (int) (buffer >>> (count - length)) & ((1 << length) - 1);
+                if (code <= table.maxCode[length]) {
+                    count -= length;
+                    return table.values[table.valueOffset[length] + code];
+                }
+            }
+            throw new IOException("Corrupt JPEG: bad Huffman code");
+        }
+
+        /**
+         * Skip to and past the restart marker that ends an interval.
+         */
+        void restart() throws IOException {
+            int marker = nextMarker();
+            if (marker + 1 >= limit || (data.get(marker + 1) & 0xF8) != 0xD0) {
+                throw new IOException("Corrupt JPEG: missing restart marker");
+            }
+            pos = marker + 2;
+            buffer = 0;
+            count = 0;
+            atMarker = false;
+        }
+
+        /**
+         * @return Position of the next marker after the bits consumed so far.
+         */
+        int nextMarker() {
+            int at = atMarker ? pos : Math.max(0, pos - count / 8);
+            while (at + 1 < limit) {
+                if ((data.get(at) & 0xFF) == 0xFF) {
+                    int next = data.get(at + 1) & 0xFF;
+                    if (next != 0 && next != 0xFF) {
+                        return at;
+                    }
+                }
+                at++;
+            }
+            return limit;
+        }
+    }
+
+    // ---------------------------------------------------------------- encoding
+
+    /**
+     * Writes the transformed file: headers, then one interleaved scan
+     * (or one scan per component when there is a single component) coded
+     * with optimal Huffman tables, gathered in a first pass over the
+     * coefficients.
+     */
+    private final class Writer {
+        private final Tables tables;
+        private final Orientation orientation;
+        private final boolean swap;
+        private final int outWidth;
+        private final int outHeight;
+        /**
+         * Source region in valid blocks per component, after trimming.
+         */
+        private final int[] sourceBlocksWide;
+        private final int[] sourceBlocksHigh;
+        private final int[] coefficientSource = new int[64];
+        private final int[] coefficientSign = new int[64];
+        private final OutputStream out;
+
+        private final long[][] dcFrequencies = new long[4][257];
+        private final long[][] acFrequencies = new long[4][257];
+        private final int[][] dcCodes = new int[4][];
+        private final int[][] dcSizes = new int[4][];
+        private final int[][] acCodes = new int[4][];
+        private final int[][] acSizes = new int[4][];
+
+        private final byte[] buffer = new byte[64 * 1024];
+        private int length;
+        private long bitBuffer;
+        private int bitCount;
+
+        Writer(Tables tables, Orientation orientation, int sourceWidth, int sourceHeight, OutputStream out) {
+            this.tables = tables;
+            this.orientation = orientation;
+            this.swap = orientation.swapsAxes();
+            this.outWidth = swap ? sourceHeight : sourceWidth;
+            this.outHeight = swap ? sourceWidth : sourceHeight;
+            this.out = out;
+            sourceBlocksWide = new int[components.length];
+            sourceBlocksHigh = new int[components.length];
+            for (int i = 0; i < components.length; i++) {
+                Component c = components[i];
+                sourceBlocksWide[i] = ceilDiv(ceilDiv(sourceWidth * c.h, maxH), 8);
+                sourceBlocksHigh[i] = ceilDiv(ceilDiv(sourceHeight * c.v, maxV), 8);
+            }
+            for (int v = 0; v < 8; v++) {
+                for (int u = 0; u < 8; u++) {
+                    int sign = switch (orientation) {
+                        case FLIP_HORIZONTAL, ROTATE_90 -> (u & 1) == 0 ? 1 : -1;
+                        case FLIP_VERTICAL, ROTATE_270 -> (v & 1) == 0 ? 1 : -1;
+                        case ROTATE_180, TRANSVERSE -> ((u + v) & 1) == 0 ? 1 : -1;
+                        default -> 1;
+                    };
+                    coefficientSource[v * 8 + u] = swap ? u * 8 + v : v * 8 + u;
+                    coefficientSign[v * 8 + u] = sign;
+                }
+            }
+        }
+
+        void write() throws IOException {
+            scan(false);
+            for (int t = 0; t < 4; t++) {
+                if (dcFrequencies[t][256] > 0) {
+                    int[][] code = codes(dcFrequencies[t]);
+                    dcCodes[t] = code[0];
+                    dcSizes[t] = code[1];
+                }
+                if (acFrequencies[t][256] > 0) {
+                    int[][] code = codes(acFrequencies[t]);
+                    acCodes[t] = code[0];
+                    acSizes[t] = code[1];
+                }
+            }
+            writeHeaders();
+            scan(true);
+            flushBits();
+            put(0xFF);
+            put(EOI);
+            out.write(buffer, 0, length);
+            length = 0;
+        }
+
+        private void writeHeaders() throws IOException {
+            put(0xFF);
+            put(SOI);
+            for (int[] segment : tables.kept) {
+                for (int i = segment[0]; i < segment[1]; i++) {
+                    put(data.get(i) & 0xFF);
+                }
+            }
+            boolean[] used = new boolean[4];
+            for (Component c : components) {
+                used[c.tq] = true;
+            }
+            for (int t = 0; t < 4; t++) {
+                if (!used[t]) {
+                    continue;
+                }
+                int precision = tables.quantPrecision[t];
+                marker(DQT, 1 + 64 * (precision + 1));
+                put((precision << 4) | t);
+                int[] table = tables.quant[t];
+                for (int k = 0; k < 64; k++) {
+                    int natural = ZIGZAG[k];
+                    int value = swap ? table[(natural & 7) * 8 + (natural >> 3)] : table[natural];
+                    if (precision == 1) {
+                        put(value >> 8);
+                    }
+                    put(value & 0xFF);
+                }
+            }
+            marker(sofMarker, 6 + 3 * components.length);
+            put(8);
+            put(outHeight >> 8);
+            put(outHeight & 0xFF);
+            put(outWidth >> 8);
+            put(outWidth & 0xFF);
+            put(components.length);
+            for (Component c : components) {
+                put(c.id);
+                put(swap ? (c.v << 4) | c.h : (c.h << 4) | c.v);
+                put(c.tq);
+            }
+            for (int t = 0; t < 4; t++) {
+                if (dcCodes[t] != null) {
+                    writeHuffmanTable(0, t, dcSizes[t]);
+                }
+                if (acCodes[t] != null) {
+                    writeHuffmanTable(1, t, acSizes[t]);
+                }
+            }
+            marker(SOS, 4 + 2 * components.length);
+            put(components.length);
+            for (Component c : components) {
+                put(c.id);
+                put((c.td << 4) | c.ta);
+            }
+            put(0);
+            put(63);
+            put(0);
+        }
+
+        private void writeHuffmanTable(int tableClass, int id, int[] sizes) throws IOException {
+            int[] bits = new int[17];
+            int total = 0;
+            for (int symbol = 0; symbol < 256; symbol++) {
+                if (sizes[symbol] > 0) {
+                    bits[sizes[symbol]]++;
+                    total++;
+                }
+            }
+            marker(DHT, 1 + 16 + total);
+            put((tableClass << 4) | id);
+            for (int i = 1; i <= 16; i++) {
+                put(bits[i]);
+            }
+            for (int size = 1; size <= 16; size++) {
+                for (int symbol = 0; symbol < 256; symbol++) {
+                    if (sizes[symbol] == size) {
+                        put(symbol);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Walk the output blocks in scan order, counting symbols or emitting them.
+         */
+        private void scan(boolean emit) throws IOException {
+            int count = components.length;
+            int outMaxH = swap ? maxV : maxH;
+            int outMaxV = swap ? maxH : maxV;
+            int[] predictors = new int[count];
+            short[] block = new short[64];
+            if (count == 1) {
+                Component c = components[0];
+                int blocksWide = ceilDiv(ceilDiv(outWidth * (swap ? c.v : c.h), outMaxH), 8);
+                int blocksHigh = ceilDiv(ceilDiv(outHeight * (swap ? c.h : c.v), outMaxV), 8);
+                for (int y = 0; y < blocksHigh; y++) {
+                    for (int x = 0; x < blocksWide; x++) {
+                        sourceBlock(0, x, y, block);
+                        predictors[0] = codeBlock(c, block, predictors[0], emit);
+                    }
+                }
+                return;
+            }
+            int mcusWide = ceilDiv(outWidth, 8 * outMaxH);
+            int mcusHigh = ceilDiv(outHeight, 8 * outMaxV);
+            for (int mcuY = 0; mcuY < mcusHigh; mcuY++) {
+                for (int mcuX = 0; mcuX < mcusWide; mcuX++) {
+                    for (int i = 0; i < count; i++) {
+                        Component c = components[i];
+                        int h = swap ? c.v : c.h;
+                        int v = swap ? c.h : c.v;
+                        for (int y = 0; y < v; y++) {
+                            for (int x = 0; x < h; x++) {
+                                sourceBlock(i, mcuX * h + x, mcuY * v + y, block);
+                                predictors[i] = codeBlock(c, block, predictors[i], emit);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Fill block with the transformed coefficients of output block
+         * (x, y) of a component; blocks outside the image are zero.
+         */
+        private void sourceBlock(int index, int x, int y, short[] block) {
+            int bw = sourceBlocksWide[index];
+            int bh = sourceBlocksHigh[index];
+            int sx;
+            int sy;
+            switch (orientation) {
+                case FLIP_HORIZONTAL -> {
+                    sx = bw - 1 - x;
+                    sy = y;
+                }
+                case FLIP_VERTICAL -> {
+                    sx = x;
+                    sy = bh - 1 - y;
+                }
+                case TRANSPOSE -> {
+                    sx = y;
+                    sy = x;
+                }
+                case ROTATE_90 -> {
+                    sx = y;
+                    sy = bh - 1 - x;
+                }
+                case ROTATE_270 -> {
+                    sx = bw - 1 - y;
+                    sy = x;
+                }
+                case ROTATE_180 -> {
+                    sx = bw - 1 - x;
+                    sy = bh - 1 - y;
+                }
+                case TRANSVERSE -> {
+                    sx = bw - 1 - y;
+                    sy = bh - 1 - x;
+                }
+                default -> {
+                    sx = x;
+                    sy = y;
+                }
+            }
+            if (sx < 0 || sy < 0 || sx >= bw || sy >= bh) {
+                Arrays.fill(block, (short) 0);
+                return;
+            }
+            Component c = components[index];
+            short[] source = c.coefficients;
+            int offset = (sy * c.blocksWide + sx) * 64;
+            for (int i = 0; i < 64; i++) {
+                block[i] = (short) (coefficientSign[i] * source[offset + coefficientSource[i]]);
+            }
+        }
+
+        private int codeBlock(Component c, short[] block, int predictor, boolean emit) throws IOException {
+            int diff = block[0] - predictor;
+            int size = category(diff);
+            if (emit) {
+                putBits(dcCodes[c.td][size], dcSizes[c.td][size]);
+                if (size > 0) {
+                    putBits(diff < 0 ? diff - 1 : diff, size);
+                }
+            } else {
+                dcFrequencies[c.td][size]++;
+                dcFrequencies[c.td][256] = 1;
+            }
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                int value = block[ZIGZAG[k]];
+                if (value == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15) {
+                    acSymbol(c, 0xF0, emit);
+                    run -= 16;
+                }
+                size = category(value);
+                acSymbol(c, (run << 4) | size, emit);
+                if (emit) {
+                    putBits(value < 0 ? value - 1 : value, size);
+                }
+                run = 0;
+            }
+            if (run > 0) {
+                acSymbol(c, 0x00, emit);
+            }
+            return block[0];
+        }
+
+        private void acSymbol(Component c, int symbol, boolean emit) throws IOException {
+            if (emit) {
+                putBits(acCodes[c.ta][symbol], acSizes[c.ta][symbol]);
+            } else {
+                acFrequencies[c.ta][symbol]++;
+                acFrequencies[c.ta][256] = 1;
+            }
+        }
+
+        private void putBits(int value, int size) throws IOException {
+            bitBuffer = (bitBuffer << size) | (value & ((1L << size) - 1));
+            bitCount += size;
+            while (bitCount >= 8) {
+                bitCount -= 8;
+                int b = (int) (bitBuffer >>> bitCount) & 0xFF;
+                put(b);
+                if (b == 0xFF) {
+                    put(0);
+                }
+            }
+        }
+
+        private void flushBits() throws IOException {
+            if (bitCount > 0) {
+                putBits(0x7F, 8 - bitCount);
+            }
+        }
+
+        private void marker(int marker, int bodyLength) throws IOException {
+            put(0xFF);
+            put(marker);
+            put((bodyLength + 2) >> 8);
+            put((bodyLength + 2) & 0xFF);
+        }
+
+        private void put(int b) throws IOException {
+            if (length == buffer.length) {
+                out.write(buffer, 0, length);
+                length = 0;
+            }
+            buffer[length++] = (byte) b;
+        }
+    }
+
+    private static int category(int value) {
+        return value == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /**
+     * Optimal length-limited Huffman code for symbol frequencies, as in
+     * JPEG Annex K.2 (the libjpeg jpeg_gen_optimal_table procedure).
+     *
+     * @param counts Frequencies of symbols 0-255; entry 256 is ignored.
+     * @return Codes and code lengths indexed by symbol.
+     */
+    private static int[][] codes(long[] counts) {
+        long[] freq = new long[257];
+        System.arraycopy(counts, 0, freq, 0, 256);
+        // Reserved symbol, so that no real code is all one bits
+        freq[256] = 1;
+        int[] codeSize = new int[257];
+        int[] others = new int[257];
+        Arrays.fill(others, -1);
+        while (true) {
+            int c1 = -1;
+            long v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+                if (freq[i] != 0 && freq[i] <= v) {
+                    v = freq[i];
+                    c1 = i;
+                }
+            }
+            int c2 = -1;
+            v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+                if (freq[i] != 0 && freq[i] <= v && i != c1) {
+                    v = freq[i];
+                    c2 = i;
+                }
+            }
+            if (c2 < 0) {
+                break;
+            }
+            freq[c1] += freq[c2];
+            freq[c2] = 0;
+            codeSize[c1]++;
+            while (others[c1] >= 0) {
+                c1 = others[c1];
+                codeSize[c1]++;
+            }
+            others[c1] = c2;
+            codeSize[c2]++;
+            while (others[c2] >= 0) {
+                c2 = others[c2];
+                codeSize[c2]++;
+            }
+        }
+        int[] bits = new int[33 + 257];
+        for (int i = 0; i <= 256; i++) {
+            if (codeSize[i] > 0) {
+                bits[codeSize[i]]++;
+            }
+        }
+        // Limit code lengths to 16 bits
+        int top = bits.length - 1;
+        for (int i = top; i > 16; i--) {
+            while (bits[i] > 0) {
+                int j = i - 2;
+                while (bits[j] == 0) {
+                    j--;
+                }
+                bits[i] -= 2;
+                bits[i - 1]++;
+                bits[j + 1] += 2;
+                bits[j]--;
+            }
+        }
+        int longest = 16;
+        while (bits[longest] == 0) {
+            longest--;
+        }
+        bits[longest]--;
+
+        // Symbols sorted by original code length get the limited lengths in order
+        int[] sizes = new int[256];
+        int length = 1;
+        int remaining = bits[1];
+        for (int size = 1; size <= top; size++) {
+            for (int symbol = 0; symbol < 256; symbol++) {
+                if (codeSize[symbol] != size) {
+                    continue;
+                }
+                while (remaining == 0) {
+                    remaining = bits[++length];
+                }
+                sizes[symbol] = length;
+                remaining--;
+            }
+        }
+        // Canonical codes in the order the DHT segment lists the symbols
+        int[] codes = new int[256];
+        int code = 0;
+        for (length = 1; length <= 16; length++) {
+            for (int symbol = 0; symbol < 256; symbol++) {
+                if (sizes[symbol] == length) {
+                    codes[symbol] = code++;
+                }
+            }
+            code <<= 1;
+        }
+        return new int[][] {codes, sizes};
+    }
+
+    private static int u16(ByteBuffer data, int pos) {
+        return ((data.get(pos) & 0xFF) << 8) | (data.get(pos + 1) & 0xFF);
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+}
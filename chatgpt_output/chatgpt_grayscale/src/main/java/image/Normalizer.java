@@ -0,0 +1,456 @@
+package image;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+/**
+ * Brings decoded images into one of three canonical layouts, so the engines
+ * only ever see pixels they have array loops for:
+ * <ul>
+ * <li>TYPE_BYTE_GRAY for gray images without alpha,</li>
+ * <li>TYPE_3BYTE_BGR for color images without alpha,</li>
+ * <li>TYPE_INT_ARGB (not premultiplied) for everything with alpha.</li>
+ * </ul>
+ * All three are compact, see {@link Rasters#isCompact}.
+ *
+ * ImageIO hands out many other layouts: 16 bit PNGs, gray + alpha PNGs
+ * (TYPE_CUSTOM, which {@code new BufferedImage(w, h, type)} rejects),
+ * 4BYTE_ABGR for RGBA PNGs, palette GIFs and PNGs, and a CMYK color space
+ * for CMYK and YCCK JPEGs. Java2D handles those with per pixel color model
+ * calls; the converters here are plain loops over the backing arrays, run
+ * in parallel bands. 16 bit samples are rounded to 8
+ * bits, gray samples are taken as stored (no linear to sRGB step, which is
+ * what PNG and JPEG mean by gray), and CMYK is converted without a profile
+ * using the same formula as the JDK.
+ * Layouts with no converter (other color spaces, odd bit masks) go through
+ * getRGB, which is slow but exact.
+ *
+ * @author Justin Le
+ */
+public final class Normalizer {
+
+    private static final int MIN_BAND_ROWS = 64;
+
+    /**
+     * CMYK to sRGB the way the JDK CMYK color space does it: the uncovered
+     * paper (255 - ink) * (255 - black) is taken as linear light and gamma
+     * encoded. Indexed by that product, 0 to 255 * 255.
+     */
+    private static final byte[] PAPER_TO_SRGB = paperToSrgb();
+
+    private Normalizer() {
+    }
+
+    /**
+     * @param img Image to check.
+     * @return True if the image is in a canonical layout already.
+     */
+    public static boolean isCanonical(BufferedImage img) {
+        switch (img.getType()) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_INT_ARGB:
+                return Rasters.isCompact(img);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Short name of an image layout for logs and SAAF output, e.g.
+     * "3BYTE_BGR", "USHORT_GRAY" or "CUSTOM(GRAY+A,2x16bit)".
+     *
+     * @param img Image to describe.
+     * @return Layout name.
+     */
+    public static String describe(BufferedImage img) {
+        switch (img.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+                return "INT_RGB";
+            case BufferedImage.TYPE_INT_ARGB:
+                return "INT_ARGB";
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+                return "INT_ARGB_PRE";
+            case BufferedImage.TYPE_INT_BGR:
+                return "INT_BGR";
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return "3BYTE_BGR";
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return "4BYTE_ABGR";
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                return "4BYTE_ABGR_PRE";
+            case BufferedImage.TYPE_USHORT_565_RGB:
+                return "USHORT_565_RGB";
+            case BufferedImage.TYPE_USHORT_555_RGB:
+                return "USHORT_555_RGB";
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return "BYTE_GRAY";
+            case BufferedImage.TYPE_USHORT_GRAY:
+                return "USHORT_GRAY";
+            case BufferedImage.TYPE_BYTE_BINARY:
+                return "BYTE_BINARY";
+            case BufferedImage.TYPE_BYTE_INDEXED:
+                return "BYTE_INDEXED";
+            default:
+                ColorModel cm = img.getColorModel();
+                return "CUSTOM(" + colorSpaceName(cm.getColorSpace()) + (cm.hasAlpha() ? "+A" : "") + ","
+                        + cm.getNumComponents() + "x" + cm.getComponentSize(0) + "bit)";
+        }
+    }
+
+    /**
+     * Convert an image into a canonical layout.
+     *
+     * @param src Image of any layout, not modified.
+     * @return src itself if it is canonical already, otherwise a new image.
+     */
+    public static BufferedImage normalize(BufferedImage src) {
+        if (isCanonical(src)) {
+            return src;
+        }
+        ColorModel cm = src.getColorModel();
+        if (Rasters.isCompact(src)) {
+            switch (src.getType()) {
+                case BufferedImage.TYPE_4BYTE_ABGR:
+                case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                    return fromAbgr(src);
+                case BufferedImage.TYPE_INT_RGB:
+                case BufferedImage.TYPE_INT_BGR:
+                case BufferedImage.TYPE_INT_ARGB_PRE:
+                    return fromPackedInt(src);
+                default:
+                    break;
+            }
+        }
+        if (cm instanceof IndexColorModel icm) {
+            return fromIndexed(src, icm);
+        }
+        if (cm instanceof ComponentColorModel && src.getRaster().getSampleModel() instanceof ComponentSampleModel
+                && hasComponentConverter(src)) {
+            return fromComponents(src);
+        }
+        return fromRgb(src);
+    }
+
+    /**
+     * Copy a BYTE_GRAY image into 3BYTE_BGR, for color operations that treat
+     * the channels differently.
+     *
+     * @param gray Compact TYPE_BYTE_GRAY image.
+     * @return New 3BYTE_BGR image.
+     */
+    static BufferedImage grayToBgr(BufferedImage gray) {
+        int width = gray.getWidth();
+        int height = gray.getHeight();
+        BufferedImage dst = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] in = Rasters.bytes(gray);
+        byte[] out = Rasters.bytes(dst);
+        Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+            for (int i = start * width, o = 3 * i; i < end * width; i++, o += 3) {
+                out[o] = in[i];
+                out[o + 1] = in[i];
+                out[o + 2] = in[i];
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * 4BYTE_ABGR(_PRE): bytes A, B, G, R into one int each.
+     */
+    private static BufferedImage fromAbgr(BufferedImage src) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        boolean premultiplied = src.isAlphaPremultiplied();
+        BufferedImage dst = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        byte[] in = Rasters.bytes(src);
+        int[] out = Rasters.ints(dst);
+        Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+            for (int i = start * width, s = 4 * i; i < end * width; i++, s += 4) {
+                int p = (in[s] & 0xFF) << 24 | (in[s + 3] & 0xFF) << 16 | (in[s + 2] & 0xFF) << 8 | (in[s + 1] & 0xFF);
+                out[i] = premultiplied ? unpremultiply(p) : p;
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * INT_RGB and INT_BGR into 3BYTE_BGR, INT_ARGB_PRE into INT_ARGB.
+     */
+    private static BufferedImage fromPackedInt(BufferedImage src) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int[] in = Rasters.ints(src);
+        if (src.getType() == BufferedImage.TYPE_INT_ARGB_PRE) {
+            BufferedImage dst = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            int[] out = Rasters.ints(dst);
+            Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+                for (int i = start * width; i < end * width; i++) {
+                    out[i] = unpremultiply(in[i]);
+                }
+            });
+            return dst;
+        }
+        BufferedImage dst = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] out = Rasters.bytes(dst);
+        if (src.getType() == BufferedImage.TYPE_INT_RGB) {
+            Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) ->
+                    Kernels.packBgr(in, start * width, out, 3 * start * width, (end - start) * width));
+        } else {
+            // INT_BGR holds red in the low byte.
+            Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+                for (int i = start * width, o = 3 * i; i < end * width; i++, o += 3) {
+                    int p = in[i];
+                    out[o] = (byte) (p >> 16);
+                    out[o + 1] = (byte) (p >> 8);
+                    out[o + 2] = (byte) p;
+                }
+            });
+        }
+        return dst;
+    }
+
+    /**
+     * Palette images: look every index up once in an ARGB table. Gray
+     * opaque palettes (including 1 bit black and white) become BYTE_GRAY.
+     */
+    private static BufferedImage fromIndexed(BufferedImage src, IndexColorModel icm) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int[] palette = new int[Math.max(icm.getMapSize(), 1 << Math.min(icm.getPixelSize(), 16))];
+        Arrays.fill(palette, 0xFF000000);
+        icm.getRGBs(palette);
+        boolean alpha = icm.getTransparency() != Transparency.OPAQUE;
+        boolean gray = !alpha && isGray(palette, icm.getMapSize());
+        int type = alpha ? BufferedImage.TYPE_INT_ARGB
+                : gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR;
+        BufferedImage dst = new BufferedImage(width, height, type);
+        Raster raster = src.getRaster();
+        boolean direct = src.getType() == BufferedImage.TYPE_BYTE_INDEXED && Rasters.isCompact(src);
+        byte[] indices = direct ? Rasters.bytes(src) : null;
+        Object out = alpha ? Rasters.ints(dst) : Rasters.bytes(dst);
+        Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+            int[] row = direct ? null : new int[width];
+            for (int y = start; y < end; y++) {
+                if (!direct) {
+                    raster.getSamples(raster.getMinX(), raster.getMinY() + y, width, 1, 0, row);
+                }
+                int base = y * width;
+                for (int x = 0; x < width; x++) {
+                    int p = palette[direct ? indices[base + x] & 0xFF : row[x]];
+                    if (alpha) {
+                        ((int[]) out)[base + x] = p;
+                    } else if (gray) {
+                        ((byte[]) out)[base + x] = (byte) p;
+                    } else {
+                        byte[] bgr = (byte[]) out;
+                        int o = 3 * (base + x);
+                        bgr[o] = (byte) p;
+                        bgr[o + 1] = (byte) (p >> 8);
+                        bgr[o + 2] = (byte) (p >> 16);
+                    }
+                }
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * @return True if {@link #fromComponents} understands the raster: 8 or
+     *         16 bit samples of gray, sRGB or CMYK, optionally with alpha.
+     */
+    private static boolean hasComponentConverter(BufferedImage src) {
+        ColorModel cm = src.getColorModel();
+        int transfer = src.getRaster().getDataBuffer().getDataType();
+        if (transfer != DataBuffer.TYPE_BYTE && transfer != DataBuffer.TYPE_USHORT) {
+            return false;
+        }
+        ColorSpace cs = cm.getColorSpace();
+        switch (cs.getType()) {
+            case ColorSpace.TYPE_GRAY:
+                return true;
+            case ColorSpace.TYPE_RGB:
+                return cs.isCS_sRGB();
+            case ColorSpace.TYPE_CMYK:
+                return !cm.hasAlpha();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Interleaved or banded 8 / 16 bit components, read straight from the
+     * data buffer arrays one row at a time.
+     */
+    private static BufferedImage fromComponents(BufferedImage src) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        ColorModel cm = src.getColorModel();
+        Raster raster = src.getRaster();
+        ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+        DataBuffer buffer = raster.getDataBuffer();
+        int bands = raster.getNumBands();
+        int colors = cm.getNumColorComponents();
+        boolean alpha = cm.hasAlpha();
+        boolean premultiplied = cm.isAlphaPremultiplied();
+        int csType = cm.getColorSpace().getType();
+        boolean shorts = buffer.getDataType() == DataBuffer.TYPE_USHORT;
+
+        // Where band b of pixel (x, y) lives: banks[b][base[b] + y * scan + x * stride].
+        Object[] banks = new Object[bands];
+        int[] base = new int[bands];
+        int[] maxValue = new int[bands];
+        int tx = raster.getSampleModelTranslateX();
+        int ty = raster.getSampleModelTranslateY();
+        for (int b = 0; b < bands; b++) {
+            int bank = sm.getBankIndices()[b];
+            banks[b] = shorts ? ((DataBufferUShort) buffer).getData(bank) : ((DataBufferByte) buffer).getData(bank);
+            base[b] = buffer.getOffsets()[bank] + sm.getBandOffsets()[b]
+                    - ty * sm.getScanlineStride() - tx * sm.getPixelStride();
+            maxValue[b] = (1 << cm.getComponentSize(b)) - 1;
+        }
+        int scan = sm.getScanlineStride();
+        int stride = sm.getPixelStride();
+        int minX = raster.getMinX();
+        int minY = raster.getMinY();
+
+        int type = alpha ? BufferedImage.TYPE_INT_ARGB
+                : colors == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR;
+        BufferedImage dst = new BufferedImage(width, height, type);
+        Object out = alpha ? Rasters.ints(dst) : Rasters.bytes(dst);
+
+        Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+            int[][] row = new int[bands][width];
+            for (int y = start; y < end; y++) {
+                for (int b = 0; b < bands; b++) {
+                    int s = base[b] + (minY + y) * scan + minX * stride;
+                    int[] r = row[b];
+                    if (shorts) {
+                        short[] data = (short[]) banks[b];
+                        int max = maxValue[b];
+                        for (int x = 0; x < width; x++, s += stride) {
+                            r[x] = ((data[s] & 0xFFFF) * 255 + (max >> 1)) / max;
+                        }
+                    } else {
+                        byte[] data = (byte[]) banks[b];
+                        for (int x = 0; x < width; x++, s += stride) {
+                            r[x] = data[s] & 0xFF;
+                        }
+                    }
+                }
+                int o = y * width;
+                if (alpha) {
+                    int[] argb = (int[]) out;
+                    int[] a = row[bands - 1];
+                    for (int x = 0; x < width; x++) {
+                        int p = colors == 1
+                                ? a[x] << 24 | row[0][x] * 0x010101
+                                : a[x] << 24 | row[0][x] << 16 | row[1][x] << 8 | row[2][x];
+                        argb[o + x] = premultiplied ? unpremultiply(p) : p;
+                    }
+                } else if (colors == 1) {
+                    byte[] g = (byte[]) out;
+                    for (int x = 0; x < width; x++) {
+                        g[o + x] = (byte) row[0][x];
+                    }
+                } else if (csType == ColorSpace.TYPE_CMYK) {
+                    byte[] bgr = (byte[]) out;
+                    for (int x = 0, d = 3 * o; x < width; x++, d += 3) {
+                        int paper = 255 - row[3][x];
+                        bgr[d] = PAPER_TO_SRGB[(255 - row[2][x]) * paper];
+                        bgr[d + 1] = PAPER_TO_SRGB[(255 - row[1][x]) * paper];
+                        bgr[d + 2] = PAPER_TO_SRGB[(255 - row[0][x]) * paper];
+                    }
+                } else {
+                    byte[] bgr = (byte[]) out;
+                    for (int x = 0, d = 3 * o; x < width; x++, d += 3) {
+                        bgr[d] = (byte) row[2][x];
+                        bgr[d + 1] = (byte) row[1][x];
+                        bgr[d + 2] = (byte) row[0][x];
+                    }
+                }
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * Fallback for layouts without a converter: let the color model produce
+     * sRGB through getRGB, a row band at a time.
+     */
+    private static BufferedImage fromRgb(BufferedImage src) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        if (src.getColorModel().hasAlpha()) {
+            BufferedImage dst = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            int[] out = Rasters.ints(dst);
+            Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) ->
+                    src.getRGB(0, start, width, end - start, out, start * width, width));
+            return dst;
+        }
+        BufferedImage dst = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] out = Rasters.bytes(dst);
+        Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+            int[] row = new int[width];
+            for (int y = start; y < end; y++) {
+                src.getRGB(0, y, width, 1, row, 0, width);
+                Kernels.packBgr(row, 0, out, 3 * y * width, width);
+            }
+        });
+        return dst;
+    }
+
+    private static int unpremultiply(int p) {
+        int a = p >>> 24;
+        if (a == 255 || a == 0) {
+            return a == 0 ? 0 : p;
+        }
+        int r = Math.min(255, (((p >> 16) & 0xFF) * 255 + (a >> 1)) / a);
+        int g = Math.min(255, (((p >> 8) & 0xFF) * 255 + (a >> 1)) / a);
+        int b = Math.min(255, ((p & 0xFF) * 255 + (a >> 1)) / a);
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    private static boolean isGray(int[] palette, int size) {
+        for (int i = 0; i < size; i++) {
+            int p = palette[i];
+            if (((p >> 16) & 0xFF) != (p & 0xFF) || ((p >> 8) & 0xFF) != (p & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] paperToSrgb() {
+        byte[] table = new byte[255 * 255 + 1];
+        for (int i = 0; i < table.length; i++) {
+            double v = i / (255.0 * 255.0);
+            v = v < 0.0031308 ? 12.92 * v : 1.055 * Math.pow(v, 1 / 2.4) - 0.055;
+            table[i] = (byte) Math.round(v * 255);
+        }
+        return table;
+    }
+
+    private static String colorSpaceName(ColorSpace cs) {
+        switch (cs.getType()) {
+            case ColorSpace.TYPE_GRAY:
+                return "GRAY";
+            case ColorSpace.TYPE_RGB:
+                return cs.isCS_sRGB() ? "RGB" : "RGB(ICC)";
+            case ColorSpace.TYPE_CMYK:
+                return "CMYK";
+            default:
+                return "TYPE" + cs.getType();
+        }
+    }
+}
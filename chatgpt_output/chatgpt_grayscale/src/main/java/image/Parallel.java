@@ -0,0 +1,84 @@
+package image;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Shared fork/join pool used by the pixel engines.
+ *
+ * The pool is sized to the vCPUs the container exposes, so on Lambda it
+ * grows with the memory setting.
+ * Work is split into horizontal row bands which keeps every task streaming
+ * through contiguous memory.
+ *
+ * @author Justin Le
+ */
+public final class Parallel {
+
+    /**
+     * Number of worker threads, one per available vCPU.
+     */
+    public static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(THREADS);
+
+    private Parallel() {
+    }
+
+    /**
+     * Work performed on the half open row range [start, end).
+     */
+    @FunctionalInterface
+    public interface BandTask {
+
+        void run(int start, int end);
+    }
+
+    /**
+     * Split [0, rows) into bands and run them on the shared pool. Small
+     * inputs, and single vCPU containers, run inline on the calling thread.
+     *
+     * @param rows Total number of rows (or any other unit of work).
+     * @param minBand Smallest band worth handing to another thread.
+     * @param task Work to perform for each band.
+     */
+    public static void forEachBand(int rows, int minBand, BandTask task) {
+        int bands = Math.min(THREADS * 4, rows / Math.max(1, minBand));
+        if (bands <= 1 || THREADS == 1) {
+            task.run(0, rows);
+            return;
+        }
+        int bandSize = (rows + bands - 1) / bands;
+        POOL.invoke(new BandAction(task, 0, rows, bandSize));
+    }
+
+    /**
+     * Recursively halves a row range until it fits in a single band.
+     */
+    private static final class BandAction extends RecursiveAction {
+
+        private final BandTask task;
+        private final int start;
+        private final int end;
+        private final int bandSize;
+
+        BandAction(BandTask task, int start, int end, int bandSize) {
+            this.task = task;
+            this.start = start;
+            this.end = end;
+            this.bandSize = bandSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= bandSize) {
+                task.run(start, end);
+                return;
+            }
+            int bands = (end - start + bandSize - 1) / bandSize;
+            int mid = start + (bands / 2) * bandSize;
+            invokeAll(new BandAction(task, start, mid, bandSize),
+                    new BandAction(task, mid, end, bandSize));
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package image;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pixel arrays reused across the images of an invocation and across warm
+ * invocations.
+ *
+ * Destination images and intermediates of a few megabytes are allocated
+ * by every request, and arrays that large go straight into G1 humongous
+ * regions. The engines take them from here instead ({@link #image},
+ * {@link #bytes}, {@link #ints}), and {@link LazyImage} and the handlers
+ * give them back once the pixels have been consumed ({@link #release}).
+ * Since traffic is mostly a few standard camera resolutions, a warm
+ * container ends up with the arrays it needs and allocates almost none.
+ *
+ * Arrays are keyed by element type and capacity class: lengths are
+ * rounded up to eight steps per power of two, so an array serves every
+ * image within 12.5% below its size, whatever the channel count. Images
+ * are wrapped around a longer array with {@link Rasters#view}; the pixels
+ * still start at 0 and are packed, only the array may be longer than
+ * width * height * channels. Reused arrays are not cleared, so callers
+ * must write every pixel. Arrays below {@link #MIN_POOLED} bytes are
+ * plain allocations.
+ *
+ * The pool holds at most IMAGE_PIXEL_POOL_FRACTION of the maximum heap
+ * (default 0.125, 0 turns it off); past that the arrays of the least
+ * recently used class are dropped first. An image must not be released
+ * while anything still reads it, in particular a decoded source that
+ * {@code storage.RasterCache} may hold; those are never released.
+ *
+ * @author Justin Le
+ */
+public final class PixelPool {
+
+    /**
+     * Smallest array, in bytes, worth keeping.
+     */
+    public static final int MIN_POOLED = 256 * 1024;
+
+    /**
+     * Counters since the last {@link #takeStats()}, and the current content.
+     *
+     * @param hits Arrays served from the pool.
+     * @param misses Arrays of at least {@link #MIN_POOLED} bytes allocated.
+     * @param bytes Bytes held now.
+     * @param arrays Arrays held now.
+     */
+    public record Stats(long hits, long misses, long bytes, int arrays) {
+    }
+
+    private record Key(boolean ints, int length) {
+    }
+
+    static final long CAPACITY = capacity();
+
+    private static final Map<Key, ArrayDeque<Object>> FREE = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Set<Object> HELD = Collections.newSetFromMap(new IdentityHashMap<>());
+    private static final Map<Integer, BufferedImage> TEMPLATES = new LinkedHashMap<>();
+    private static long bytes;
+    private static long hits;
+    private static long misses;
+
+    private PixelPool() {
+    }
+
+    /**
+     * A compact image for the engines to write every pixel of. Types
+     * other than the byte and packed int layouts are created directly.
+     *
+     * @param width Image width.
+     * @param height Image height.
+     * @param type BufferedImage type.
+     * @return Image backed by a pooled or new array; contents undefined.
+     */
+    public static BufferedImage image(int width, int height, int type) {
+        BufferedImage template = template(type);
+        if (template == null) {
+            return new BufferedImage(width, height, type);
+        }
+        int n = Rasters.byteChannels(template);
+        long length = (long) width * height * Math.max(n, 1);
+        if (length > Integer.MAX_VALUE - 8) {
+            return new BufferedImage(width, height, type);
+        }
+        Object array = n > 0 ? bytes((int) length) : ints((int) length);
+        return Rasters.view(template, array, width, height);
+    }
+
+    /**
+     * @param length Number of elements needed.
+     * @return A byte array of at least that length; contents undefined.
+     */
+    public static byte[] bytes(int length) {
+        byte[] array = (byte[]) take(false, length);
+        return array != null ? array : new byte[allocation(length, length)];
+    }
+
+    /**
+     * @param length Number of elements needed.
+     * @return An int array of at least that length; contents undefined.
+     */
+    public static int[] ints(int length) {
+        int[] array = (int[]) take(true, length);
+        return array != null ? array : new int[allocation(length, 4L * length)];
+    }
+
+    /**
+     * Give back the array behind a compact byte or packed int image. Other
+     * images are ignored.
+     *
+     * @param img Image nothing reads any more; null is ignored.
+     */
+    public static void release(BufferedImage img) {
+        if (img == null || !Rasters.isFastLayout(img)) {
+            return;
+        }
+        release(Rasters.byteChannels(img) > 0 ? Rasters.bytes(img) : Rasters.ints(img));
+    }
+
+    /**
+     * Give back a byte[] or int[] that nothing reads any more. Arrays below
+     * {@link #MIN_POOLED} bytes, and arrays already held, are ignored.
+     *
+     * @param array Array from {@link #bytes}, {@link #ints} or elsewhere.
+     */
+    public static synchronized void release(Object array) {
+        boolean ints = array instanceof int[];
+        if (CAPACITY == 0 || !(ints || array instanceof byte[])) {
+            return;
+        }
+        int length = ints ? ((int[]) array).length : ((byte[]) array).length;
+        long size = ints ? 4L * length : length;
+        if (size < MIN_POOLED || size > CAPACITY || !HELD.add(array)) {
+            return;
+        }
+        // Filed under the largest class it covers, so any request for that class fits.
+        Key key = new Key(ints, floorClass(length));
+        FREE.computeIfAbsent(key, k -> new ArrayDeque<>()).addLast(array);
+        bytes += size;
+        Iterator<Map.Entry<Key, ArrayDeque<Object>>> eldest = FREE.entrySet().iterator();
+        while (bytes > CAPACITY && eldest.hasNext()) {
+            Map.Entry<Key, ArrayDeque<Object>> entry = eldest.next();
+            while (bytes > CAPACITY && !entry.getValue().isEmpty()) {
+                Object dropped = entry.getValue().pollFirst();
+                HELD.remove(dropped);
+                bytes -= sizeOf(dropped);
+            }
+            if (entry.getValue().isEmpty()) {
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * @return Counters since the last call, which resets them.
+     */
+    public static synchronized Stats takeStats() {
+        Stats stats = new Stats(hits, misses, bytes, HELD.size());
+        hits = 0;
+        misses = 0;
+        return stats;
+    }
+
+    private static synchronized Object take(boolean ints, int length) {
+        long size = ints ? 4L * length : length;
+        if (size < MIN_POOLED) {
+            return null;
+        }
+        ArrayDeque<Object> free = CAPACITY == 0 ? null : FREE.get(new Key(ints, classOf(length)));
+        if (free == null || free.isEmpty()) {
+            misses++;
+            return null;
+        }
+        Object array = free.pollLast();
+        HELD.remove(array);
+        bytes -= sizeOf(array);
+        hits++;
+        return array;
+    }
+
+    /**
+     * Length to allocate on a miss: the full class, so the array can be
+     * pooled afterwards, unless it is too small to be kept.
+     */
+    private static int allocation(int length, long size) {
+        return CAPACITY > 0 && size >= MIN_POOLED ? classOf(length) : length;
+    }
+
+    /**
+     * Length rounded up to the next of eight steps per power of two.
+     */
+    static int classOf(int length) {
+        if (length <= 8) {
+            return length;
+        }
+        int step = Integer.highestOneBit(length - 1) >> 3;
+        long rounded = ((long) length + step - 1) / step * step;
+        return rounded > Integer.MAX_VALUE - 8 ? length : (int) rounded;
+    }
+
+    /**
+     * Largest class not above length.
+     */
+    static int floorClass(int length) {
+        if (length <= 8) {
+            return length;
+        }
+        int step = Integer.highestOneBit(length) >> 3;
+        int floor = length / step * step;
+        return classOf(floor) == floor ? floor : floor - step;
+    }
+
+    private static long sizeOf(Object array) {
+        return array instanceof int[] ints ? 4L * ints.length : ((byte[]) array).length;
+    }
+
+    private static synchronized BufferedImage template(int type) {
+        switch (type) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_INT_BGR:
+                return TEMPLATES.computeIfAbsent(type, t -> new BufferedImage(1, 1, t));
+            default:
+                return null;
+        }
+    }
+
+    private static long capacity() {
+        double fraction = 0.125;
+        String value = System.getenv("IMAGE_PIXEL_POOL_FRACTION");
+        if (value != null && !value.isBlank()) {
+            try {
+                fraction = Math.max(0, Math.min(0.5, Double.parseDouble(value.trim())));
+            } catch (NumberFormatException e) {
+                // Keep the default.
+            }
+        }
+        return (long) (Runtime.getRuntime().maxMemory() * fraction);
+    }
+}
@@ -0,0 +1,214 @@
+package image;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API implementations of the hot pixel loops.
+ *
+ * Only reached through {@link Kernels}, which checks that the incubator
+ * module is present before this class is ever loaded. Every method handles
+ * as many pixels as fit in whole vectors and returns how many it did; the
+ * caller finishes the tail with the scalar code, so results are bit-exact
+ * with the scalar kernels. Stores never reach past the range the caller
+ * passed in, since neighbouring rows may belong to another band.
+ *
+ * Species are picked at class load from the preferred (widest) int species:
+ * INTS has L lanes, BYTES has the same bit size (4L lanes) and QUARTER holds
+ * L bytes for widening to and narrowing from INTS.
+ *
+ * @author Justin Le
+ */
+final class SimdKernels {
+
+    static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class, INTS.vectorShape());
+    static final VectorSpecies<Byte> QUARTER = VectorSpecies.of(byte.class,
+            VectorShape.forBitSize(Math.max(64, INTS.vectorBitSize() / 4)));
+
+    private static final int L = INTS.length();
+    private static final int V = BYTES.length();
+
+    // BGR bytes -> B, G, R, 0 per int (the fourth lane is fixed up with OR).
+    private static final VectorShuffle<Byte> BGR_TO_INTS = VectorShuffle.fromOp(BYTES,
+            j -> (j & 3) == 3 ? 0 : 3 * (j >> 2) + (j & 3));
+    // Ints -> BGR bytes, dropping every fourth byte; tail lanes are don't-care.
+    private static final VectorShuffle<Byte> INTS_TO_BGR = VectorShuffle.fromOp(BYTES,
+            j -> j < 3 * L ? 4 * (j / 3) + j % 3 : 0);
+    @SuppressWarnings("unchecked")
+    private static final VectorShuffle<Byte>[] EVEN_BYTES = new VectorShuffle[5];
+    @SuppressWarnings("unchecked")
+    private static final VectorShuffle<Byte>[] ODD_BYTES = new VectorShuffle[5];
+
+    static {
+        for (int n = 1; n <= 4; n++) {
+            final int c = n;
+            int valid = (V / c) * c;
+            EVEN_BYTES[n] = VectorShuffle.fromOp(BYTES, j -> j < valid ? 2 * c * (j / c) + j % c : 0);
+            ODD_BYTES[n] = VectorShuffle.fromOp(BYTES, j -> j < valid ? 2 * c * (j / c) + j % c + c : 0);
+        }
+    }
+
+    private SimdKernels() {
+    }
+
+    /**
+     * @return Bit size of the int species the kernels use.
+     */
+    static int bitSize() {
+        return INTS.vectorBitSize();
+    }
+
+    private static IntVector luma(IntVector p, int shiftR, int shiftG, int shiftB, int wr, int wg, int wb) {
+        IntVector r = p.lanewise(VectorOperators.LSHR, shiftR).and(0xFF);
+        IntVector g = p.lanewise(VectorOperators.LSHR, shiftG).and(0xFF);
+        IntVector b = p.lanewise(VectorOperators.LSHR, shiftB).and(0xFF);
+        return r.mul(wr).add(g.mul(wg)).add(b.mul(wb)).add(32768).lanewise(VectorOperators.LSHR, 16);
+    }
+
+    private static void storeLuma(IntVector l, byte[] dst, int off) {
+        ((ByteVector) l.convertShape(VectorOperators.I2B, QUARTER, 0)).intoArray(dst, off);
+    }
+
+    static int lumaPacked(int[] src, int sOff, byte[] dst, int dOff, int len,
+            int shiftR, int shiftG, int shiftB, int wr, int wg, int wb) {
+        int i = 0;
+        for (; i + L <= len && dOff + i + QUARTER.length() <= dst.length; i += L) {
+            IntVector p = IntVector.fromArray(INTS, src, sOff + i);
+            storeLuma(luma(p, shiftR, shiftG, shiftB, wr, wg, wb), dst, dOff + i);
+        }
+        return i;
+    }
+
+    static int lumaBgr(byte[] src, int sOff, byte[] dst, int dOff, int len, int wr, int wg, int wb) {
+        int i = 0;
+        for (; i + L <= len && sOff + 3 * i + V <= src.length && dOff + i + QUARTER.length() <= dst.length;
+                i += L) {
+            IntVector p = ByteVector.fromArray(BYTES, src, sOff + 3 * i).rearrange(BGR_TO_INTS)
+                    .reinterpretAsInts();
+            storeLuma(luma(p, 16, 8, 0, wr, wg, wb), dst, dOff + i);
+        }
+        return i;
+    }
+
+    static int lumaAbgr(byte[] src, int sOff, byte[] dst, int dOff, int len, int wr, int wg, int wb) {
+        int i = 0;
+        for (; i + L <= len && dOff + i + QUARTER.length() <= dst.length; i += L) {
+            IntVector p = ByteVector.fromArray(BYTES, src, sOff + 4 * i).reinterpretAsInts();
+            storeLuma(luma(p, 24, 16, 8, wr, wg, wb), dst, dOff + i);
+        }
+        return i;
+    }
+
+    static int unpackBgr(byte[] src, int sOff, int[] dst, int dOff, int len) {
+        int i = 0;
+        for (; i + L <= len && sOff + 3 * i + V <= src.length; i += L) {
+            ByteVector.fromArray(BYTES, src, sOff + 3 * i).rearrange(BGR_TO_INTS).reinterpretAsInts()
+                    .and(0x00FFFFFF).or(0xFF000000).intoArray(dst, dOff + i);
+        }
+        return i;
+    }
+
+    static int packBgr(int[] src, int sOff, byte[] dst, int dOff, int len) {
+        int i = 0;
+        for (; i + L <= len && 3 * i + V <= 3 * len; i += L) {
+            IntVector.fromArray(INTS, src, sOff + i).reinterpretAsBytes().rearrange(INTS_TO_BGR)
+                    .intoArray(dst, dOff + 3 * i);
+        }
+        return i;
+    }
+
+    private static ByteVector ceilAverage(ByteVector x, ByteVector y) {
+        return x.or(y).sub(x.lanewise(VectorOperators.XOR, y).lanewise(VectorOperators.LSHR, 1));
+    }
+
+    private static ByteVector floorAverage(ByteVector x, ByteVector y) {
+        return x.and(y).add(x.lanewise(VectorOperators.XOR, y).lanewise(VectorOperators.LSHR, 1));
+    }
+
+    static int halveBytes(byte[] in, int top, int bottom, byte[] out, int o, int len, int n) {
+        int step = (V / n) * n;
+        int i = 0;
+        for (; i + V <= len && bottom + 2 * i + 2 * V <= in.length; i += step) {
+            ByteVector v0 = ceilAverage(ByteVector.fromArray(BYTES, in, top + 2 * i),
+                    ByteVector.fromArray(BYTES, in, bottom + 2 * i));
+            ByteVector v1 = ceilAverage(ByteVector.fromArray(BYTES, in, top + 2 * i + V),
+                    ByteVector.fromArray(BYTES, in, bottom + 2 * i + V));
+            floorAverage(v0.rearrange(EVEN_BYTES[n], v1), v0.rearrange(ODD_BYTES[n], v1))
+                    .intoArray(out, o + i);
+        }
+        return i;
+    }
+
+    // Horizontal step of halveInts: each long holds a pixel pair, average its
+    // two halves and narrow the longs to their low int.
+    private static IntVector pairAverage(ByteVector v, int part) {
+        ByteVector high = v.reinterpretAsLongs().lanewise(VectorOperators.LSHR, 32).reinterpretAsBytes();
+        return (IntVector) floorAverage(v, high).reinterpretAsLongs().convertShape(VectorOperators.L2I, INTS, part);
+    }
+
+    static int halveInts(int[] in, int top, int bottom, int[] out, int o, int len) {
+        int i = 0;
+        for (; i + L <= len && bottom + 2 * i + 2 * L <= in.length; i += L) {
+            ByteVector v0 = ceilAverage(IntVector.fromArray(INTS, in, top + 2 * i).reinterpretAsBytes(),
+                    IntVector.fromArray(INTS, in, bottom + 2 * i).reinterpretAsBytes());
+            ByteVector v1 = ceilAverage(IntVector.fromArray(INTS, in, top + 2 * i + L).reinterpretAsBytes(),
+                    IntVector.fromArray(INTS, in, bottom + 2 * i + L).reinterpretAsBytes());
+            pairAverage(v0, 0).or(pairAverage(v1, -1)).intoArray(out, o + i);
+        }
+        return i;
+    }
+
+    static int accumulateBytes(int[] acc, byte[] src, int off, int len, int weight) {
+        int i = 0;
+        for (; i + L <= len && off + i + QUARTER.length() <= src.length; i += L) {
+            IntVector p = ((IntVector) ByteVector.fromArray(QUARTER, src, off + i)
+                    .convertShape(VectorOperators.B2I, INTS, 0)).and(0xFF);
+            IntVector.fromArray(INTS, acc, i).add(p.mul(weight)).intoArray(acc, i);
+        }
+        return i;
+    }
+
+    static int accumulateInts(int[] acc, int[] src, int off, int pixels, int weight) {
+        int x = 0;
+        for (; x + L <= pixels; x += L) {
+            ByteVector bytes = IntVector.fromArray(INTS, src, off + x).reinterpretAsBytes();
+            for (int part = 0; part < 4; part++) {
+                IntVector p = ((IntVector) bytes.convertShape(VectorOperators.B2I, INTS, part)).and(0xFF);
+                int a = 4 * x + part * L;
+                IntVector.fromArray(INTS, acc, a).add(p.mul(weight)).intoArray(acc, a);
+            }
+        }
+        return x;
+    }
+
+    private static IntVector clamp(IntVector acc, int precision) {
+        return acc.add(1 << (precision - 1)).lanewise(VectorOperators.ASHR, precision).max(0).min(255);
+    }
+
+    static int storeBytes(int[] acc, byte[] dst, int off, int len, int precision) {
+        int i = 0;
+        for (; i + L <= len && off + i + QUARTER.length() <= dst.length; i += L) {
+            ((ByteVector) clamp(IntVector.fromArray(INTS, acc, i), precision)
+                    .convertShape(VectorOperators.I2B, QUARTER, 0)).intoArray(dst, off + i);
+        }
+        return i;
+    }
+
+    static int storeInts(int[] acc, int[] dst, int off, int pixels, int precision) {
+        int x = 0;
+        for (; x + L <= pixels; x += L) {
+            ByteVector bytes = ByteVector.zero(BYTES);
+            for (int part = 0; part < 4; part++) {
+                IntVector v = clamp(IntVector.fromArray(INTS, acc, 4 * x + part * L), precision);
+                bytes = bytes.or((ByteVector) v.convertShape(VectorOperators.I2B, BYTES, -part));
+            }
+            bytes.reinterpretAsInts().intoArray(dst, off + x);
+        }
+        return x;
+    }
+}
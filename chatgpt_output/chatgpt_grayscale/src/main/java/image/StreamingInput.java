@@ -0,0 +1,107 @@
+package image;
+
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Memory cached ImageIO stream over a network stream that can drop what the
+ * decoder has consumed.
+ *
+ * A plain MemoryCacheImageInputStream keeps every byte it has read until the
+ * reader flushes it, and the JDK JPEG and PNG readers only flush up to the
+ * start of the image, so the whole compressed file stays on the heap until
+ * decoding ends. Both readers go back in the stream while parsing headers,
+ * but once they report imageStarted they only read forward (apart from the
+ * JPEG decoder pushing back the few bytes left in its 4 KB buffer). From
+ * that point this stream discards everything more than {@link #LAG} bytes
+ * behind the read position, so the compressed data held is bounded while
+ * the entropy decoder works through bytes as they arrive.
+ *
+ * @author Justin Le
+ */
+final class StreamingInput extends MemoryCacheImageInputStream {
+
+    private static final int LAG = 64 * 1024;
+    private static final int BLOCK = 8192;
+
+    private boolean forwardOnly;
+
+    StreamingInput(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Start discarding consumed bytes when reader begins decoding pixels.
+     * The listener is removed again by reader.reset() or dispose().
+     *
+     * @param reader Reader that has this stream as its input.
+     */
+    void trimWhileDecoding(ImageReader reader) {
+        reader.addIIOReadProgressListener(new IIOReadProgressListener() {
+            @Override
+            public void imageStarted(ImageReader source, int imageIndex) {
+                forwardOnly = true;
+            }
+
+            @Override
+            public void sequenceStarted(ImageReader source, int minIndex) {
+            }
+
+            @Override
+            public void sequenceComplete(ImageReader source) {
+            }
+
+            @Override
+            public void imageProgress(ImageReader source, float percentageDone) {
+            }
+
+            @Override
+            public void imageComplete(ImageReader source) {
+                forwardOnly = false;
+            }
+
+            @Override
+            public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+            }
+
+            @Override
+            public void thumbnailProgress(ImageReader source, float percentageDone) {
+            }
+
+            @Override
+            public void thumbnailComplete(ImageReader source) {
+            }
+
+            @Override
+            public void readAborted(ImageReader source) {
+                forwardOnly = false;
+            }
+        });
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        trim();
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        trim();
+        return n;
+    }
+
+    private void trim() throws IOException {
+        if (forwardOnly) {
+            long keep = getStreamPosition() - LAG;
+            if (keep - getFlushedPosition() >= BLOCK) {
+                flushBefore(keep);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package image;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Optional native JPEG backend: libjpeg-turbo through its TurboJPEG API.
+ *
+ * The binding ({@link TurboJpegBinding}) uses the Foreign Function &
+ * Memory API, a preview API in Java 21, so it is only usable when the JVM
+ * runs with --enable-preview (JAVA_TOOL_OPTIONS="--enable-preview
+ * --enable-native-access=ALL-UNNAMED" on Lambda) and the library can be
+ * loaded, e.g. from a layer. Both are checked once at class load, the way
+ * {@link Kernels} checks for the vector module; when either is missing, or
+ * IMAGE_JPEG_BACKEND=imageio-only is set, every request quietly uses the
+ * ImageIO codecs. {@link #status()} says which case applies so it can be
+ * added to the SAAF output.
+ *
+ * @author Justin Le
+ */
+public final class TurboJpeg {
+
+    /**
+     * JPEG codec a request asks for.
+     */
+    public enum Backend {
+        /**
+         * The JDK's ImageIO reader and writer.
+         */
+        IMAGEIO,
+        /**
+         * libjpeg-turbo, with DCT scaled decoding.
+         */
+        TURBOJPEG;
+
+        /**
+         * @param value Backend name, case insensitive.
+         * @return The matching backend; IMAGE_JPEG_BACKEND (default IMAGEIO)
+         *         if value is null or empty.
+         */
+        public static Backend parse(Object value) {
+            if (value == null || value.toString().isEmpty()) {
+                return DEFAULT_BACKEND;
+            }
+            return valueOf(value.toString().trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final Backend DEFAULT_BACKEND;
+    private static final boolean AVAILABLE;
+    private static final String STATUS;
+
+    static {
+        String configured = System.getenv("IMAGE_JPEG_BACKEND");
+        boolean disabled = "imageio-only".equalsIgnoreCase(configured);
+        Backend backend = Backend.IMAGEIO;
+        if (!disabled && configured != null && !configured.isBlank()) {
+            try {
+                backend = Backend.valueOf(configured.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                // Unknown name; keep ImageIO.
+            }
+        }
+        DEFAULT_BACKEND = backend;
+
+        boolean available = false;
+        String status = "disabled";
+        if (!disabled) {
+            try {
+                TurboJpegBinding.load();
+                available = true;
+                status = "available";
+            } catch (UnsupportedClassVersionError e) {
+                status = "unavailable: --enable-preview not set";
+            } catch (LinkageError | RuntimeException e) {
+                Throwable cause = e instanceof ExceptionInInitializerError && e.getCause() != null ? e.getCause() : e;
+                status = "unavailable: " + cause.getMessage();
+            }
+        }
+        AVAILABLE = available;
+        STATUS = status;
+    }
+
+    private TurboJpeg() {
+    }
+
+    /**
+     * @return True if libjpeg-turbo was loaded.
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * @return "available", "disabled", or "unavailable: " and the reason.
+     */
+    public static String status() {
+        return STATUS;
+    }
+
+    /**
+     * @param requested Backend a request asked for.
+     * @return The backend that will run: IMAGEIO unless TURBOJPEG was
+     *         requested and the library is available.
+     */
+    public static Backend effective(Backend requested) {
+        return requested == Backend.TURBOJPEG && AVAILABLE ? Backend.TURBOJPEG : Backend.IMAGEIO;
+    }
+
+    /**
+     * Decode a whole JPEG natively, DCT scaled by the largest of 1/2, 1/4
+     * and 1/8 that keeps the width at or above targetWidth. The result is
+     * BYTE_GRAY or 3BYTE_BGR, as {@link Normalizer} would leave it.
+     *
+     * @param data JPEG from its position to its limit.
+     * @param targetWidth Width the caller will resize to, 0 for full size.
+     * @return The image, or null if the file is CMYK or YCCK.
+     * @throws IOException If the library cannot decode the data.
+     */
+    static Decoder.Decoded decode(ByteBuffer data, int targetWidth) throws IOException {
+        return TurboJpegBinding.decode(data, targetWidth);
+    }
+
+    /**
+     * Encode at the IMAGE_JPEG_QUALITY of {@link Codecs}.
+     *
+     * @param img Prepared image.
+     * @param out Destination, left open.
+     * @return False, without writing anything, if the layout is not one the
+     *         binding takes (BYTE_GRAY, 3BYTE_BGR, INT_RGB).
+     * @throws IOException If encoding or writing fails.
+     */
+    static boolean encode(BufferedImage img, OutputStream out) throws IOException {
+        int quality = Math.max(1, Math.round(Codecs.JPEG_QUALITY * 100));
+        return TurboJpegBinding.encode(img, quality, out);
+    }
+}
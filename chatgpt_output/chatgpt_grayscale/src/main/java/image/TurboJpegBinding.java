@@ -0,0 +1,276 @@
+package image;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * libjpeg-turbo's TurboJPEG API bound with the Foreign Function & Memory API.
+ *
+ * Only reached through {@link TurboJpeg}, which loads this class inside a
+ * try block: it uses a preview API of Java 21, so it fails to load unless
+ * the JVM runs with --enable-preview, and its static initialiser fails if
+ * the library cannot be found. The library is IMAGE_TURBOJPEG_LIB if that
+ * is set (a path or a name), otherwise libturbojpeg.so.0 or
+ * libturbojpeg.so from the system library path, e.g. /opt/lib of a Lambda
+ * layer. The TurboJPEG 2 functions are used, which libjpeg-turbo 3 still
+ * exports.
+ *
+ * Each thread keeps one decompressor and one compressor handle for its
+ * lifetime, like the warm ImageIO readers in {@link Codecs}. Pixels are
+ * produced in a native buffer of a confined arena and copied into the
+ * image's array in one bulk copy; the compressed input is used in place
+ * when it is a direct (memory mapped) buffer.
+ *
+ * @author Justin Le
+ */
+final class TurboJpegBinding {
+
+    private static final int TJPF_BGR = 1;
+    private static final int TJPF_BGRX = 3;
+    private static final int TJPF_GRAY = 6;
+    private static final int TJSAMP_420 = 2;
+    private static final int TJSAMP_GRAY = 3;
+    private static final int TJCS_CMYK = 3;
+    private static final int TJCS_YCCK = 4;
+
+    private static final MethodHandle INIT_DECOMPRESS;
+    private static final MethodHandle DECOMPRESS_HEADER;
+    private static final MethodHandle DECOMPRESS;
+    private static final MethodHandle INIT_COMPRESS;
+    private static final MethodHandle COMPRESS;
+    private static final MethodHandle FREE;
+    private static final MethodHandle ERROR_STRING;
+
+    static {
+        Linker linker = Linker.nativeLinker();
+        SymbolLookup library = library();
+        INIT_DECOMPRESS = linker.downcallHandle(symbol(library, "tjInitDecompress"),
+                FunctionDescriptor.of(ADDRESS));
+        DECOMPRESS_HEADER = linker.downcallHandle(symbol(library, "tjDecompressHeader3"),
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_LONG, ADDRESS, ADDRESS, ADDRESS, ADDRESS));
+        DECOMPRESS = linker.downcallHandle(symbol(library, "tjDecompress2"),
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_LONG, ADDRESS, JAVA_INT, JAVA_INT, JAVA_INT,
+                        JAVA_INT, JAVA_INT));
+        INIT_COMPRESS = linker.downcallHandle(symbol(library, "tjInitCompress"),
+                FunctionDescriptor.of(ADDRESS));
+        COMPRESS = linker.downcallHandle(symbol(library, "tjCompress2"),
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS,
+                        ADDRESS, JAVA_INT, JAVA_INT, JAVA_INT));
+        FREE = linker.downcallHandle(symbol(library, "tjFree"), FunctionDescriptor.ofVoid(ADDRESS));
+        ERROR_STRING = linker.downcallHandle(symbol(library, "tjGetErrorStr2"),
+                FunctionDescriptor.of(ADDRESS, ADDRESS));
+    }
+
+    private static final ThreadLocal<MemorySegment> DECOMPRESSORS = ThreadLocal.withInitial(
+            () -> handle(INIT_DECOMPRESS));
+    private static final ThreadLocal<MemorySegment> COMPRESSORS = ThreadLocal.withInitial(
+            () -> handle(INIT_COMPRESS));
+
+    private TurboJpegBinding() {
+    }
+
+    /**
+     * Make sure the library is bound; called once by {@link TurboJpeg}.
+     */
+    static void load() {
+        DECOMPRESSORS.get();
+    }
+
+    /**
+     * Decode a JPEG at full size or DCT scaled by 1/2, 1/4 or 1/8.
+     *
+     * @param data JPEG from its position to its limit; neither is changed.
+     * @param targetWidth Width the caller will resize to, 0 for full size.
+     * @return The image, or null for CMYK and YCCK files.
+     * @throws IOException If the data is not a JPEG the library can decode.
+     */
+    static Decoder.Decoded decode(ByteBuffer data, int targetWidth) throws IOException {
+        MemorySegment handle = DECOMPRESSORS.get();
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment jpeg = MemorySegment.ofBuffer(data);
+            if (!jpeg.isNative()) {
+                jpeg = arena.allocate(jpeg.byteSize()).copyFrom(jpeg);
+            }
+            MemorySegment header = arena.allocate(16, 4);
+            int rc = (int) DECOMPRESS_HEADER.invokeExact(handle, jpeg, jpeg.byteSize(), header, header.asSlice(4),
+                    header.asSlice(8), header.asSlice(12));
+            check(rc, handle);
+            int width = header.get(JAVA_INT, 0);
+            int height = header.get(JAVA_INT, 4);
+            int subsampling = header.get(JAVA_INT, 8);
+            int colorspace = header.get(JAVA_INT, 12);
+            if (colorspace == TJCS_CMYK || colorspace == TJCS_YCCK) {
+                return null;
+            }
+
+            int scale = scale(width, targetWidth);
+            int scaledWidth = (width + scale - 1) / scale;
+            int scaledHeight = (height + scale - 1) / scale;
+            boolean gray = subsampling == TJSAMP_GRAY;
+            BufferedImage image = new BufferedImage(scaledWidth, scaledHeight,
+                    gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
+            byte[] pixels = Rasters.bytes(image);
+            MemorySegment out = arena.allocate(pixels.length);
+            rc = (int) DECOMPRESS.invokeExact(handle, jpeg, jpeg.byteSize(), out, scaledWidth, 0, scaledHeight,
+                    gray ? TJPF_GRAY : TJPF_BGR, 0);
+            check(rc, handle);
+            MemorySegment.copy(out, JAVA_BYTE, 0, pixels, 0, pixels.length);
+            return new Decoder.Decoded(image, width, height, scale, Normalizer.describe(image), Codecs.Format.JPEG,
+                    TurboJpeg.Backend.TURBOJPEG, gray);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException("TurboJPEG decode failed", e);
+        }
+    }
+
+    /**
+     * Encode a gray, BGR or INT_RGB image with 4:2:0 chroma subsampling
+     * (gray images without chroma), as the ImageIO writer does.
+     *
+     * @param img Compact image.
+     * @param quality Quality 1 to 100.
+     * @param out Destination, left open.
+     * @return False, without writing anything, if the layout is not supported.
+     * @throws IOException If encoding or writing fails.
+     */
+    static boolean encode(BufferedImage img, int quality, OutputStream out) throws IOException {
+        if (!Rasters.isCompact(img)) {
+            return false;
+        }
+        int pixelFormat;
+        int subsampling = TJSAMP_420;
+        int pixelSize;
+        MemorySegment heap;
+        switch (img.getType()) {
+            case BufferedImage.TYPE_BYTE_GRAY -> {
+                pixelFormat = TJPF_GRAY;
+                subsampling = TJSAMP_GRAY;
+                pixelSize = 1;
+                heap = MemorySegment.ofArray(Rasters.bytes(img));
+            }
+            case BufferedImage.TYPE_3BYTE_BGR -> {
+                pixelFormat = TJPF_BGR;
+                pixelSize = 3;
+                heap = MemorySegment.ofArray(Rasters.bytes(img));
+            }
+            case BufferedImage.TYPE_INT_RGB -> {
+                // 0x00RRGGBB is B, G, R, X in little-endian memory
+                if (java.nio.ByteOrder.nativeOrder() != java.nio.ByteOrder.LITTLE_ENDIAN) {
+                    return false;
+                }
+                pixelFormat = TJPF_BGRX;
+                pixelSize = 4;
+                heap = MemorySegment.ofArray(Rasters.ints(img));
+            }
+            default -> {
+                return false;
+            }
+        }
+        MemorySegment handle = COMPRESSORS.get();
+        try (Arena arena = Arena.ofConfined()) {
+            // Pooled arrays can be longer than the image.
+            long length = (long) img.getWidth() * img.getHeight() * pixelSize;
+            MemorySegment pixels = arena.allocate(length).copyFrom(heap.asSlice(0, length));
+            MemorySegment jpegBuffer = arena.allocate(ADDRESS);
+            MemorySegment jpegSize = arena.allocate(JAVA_LONG);
+            jpegBuffer.set(ADDRESS, 0, MemorySegment.NULL);
+            jpegSize.set(JAVA_LONG, 0, 0);
+            int rc = (int) COMPRESS.invokeExact(handle, pixels, img.getWidth(), 0, img.getHeight(), pixelFormat,
+                    jpegBuffer, jpegSize, subsampling, quality, 0);
+            MemorySegment result = jpegBuffer.get(ADDRESS, 0);
+            try {
+                check(rc, handle);
+                long size = jpegSize.get(JAVA_LONG, 0);
+                MemorySegment jpeg = result.reinterpret(size);
+                byte[] chunk = new byte[(int) Math.min(size, 64 * 1024)];
+                for (long offset = 0; offset < size; offset += chunk.length) {
+                    int n = (int) Math.min(chunk.length, size - offset);
+                    MemorySegment.copy(jpeg, JAVA_BYTE, offset, chunk, 0, n);
+                    out.write(chunk, 0, n);
+                }
+            } finally {
+                if (!result.equals(MemorySegment.NULL)) {
+                    FREE.invokeExact(result);
+                }
+            }
+            return true;
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException("TurboJPEG encode failed", e);
+        }
+    }
+
+    /**
+     * Largest DCT scaling denominator (8, 4, 2 or 1) that keeps the decoded
+     * width at or above the target width.
+     */
+    private static int scale(int width, int targetWidth) {
+        if (targetWidth <= 0) {
+            return 1;
+        }
+        for (int denominator = 8; denominator > 1; denominator /= 2) {
+            if ((width + denominator - 1) / denominator >= targetWidth) {
+                return denominator;
+            }
+        }
+        return 1;
+    }
+
+    private static void check(int rc, MemorySegment handle) throws Throwable {
+        if (rc != 0) {
+            MemorySegment message = (MemorySegment) ERROR_STRING.invokeExact(handle);
+            String text = message.equals(MemorySegment.NULL) ? "unknown error"
+                    : message.reinterpret(1024).getUtf8String(0);
+            throw new IOException("TurboJPEG: " + text);
+        }
+    }
+
+    private static MemorySegment handle(MethodHandle init) {
+        try {
+            MemorySegment handle = (MemorySegment) init.invokeExact();
+            if (handle.equals(MemorySegment.NULL)) {
+                throw new IllegalStateException("TurboJPEG could not create a handle");
+            }
+            return handle;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static SymbolLookup library() {
+        String configured = System.getenv("IMAGE_TURBOJPEG_LIB");
+        String[] names = configured != null && !configured.isBlank()
+                ? new String[] {configured.trim()}
+                : new String[] {"libturbojpeg.so.0", "libturbojpeg.so"};
+        IllegalArgumentException failure = null;
+        for (String name : names) {
+            try {
+                return SymbolLookup.libraryLookup(name, Arena.global());
+            } catch (IllegalArgumentException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private static MemorySegment symbol(SymbolLookup library, String name) {
+        return library.find(name).orElseThrow(() -> new IllegalStateException("TurboJPEG lacks " + name));
+    }
+}
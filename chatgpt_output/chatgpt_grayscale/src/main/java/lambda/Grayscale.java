@@ -2,21 +2,27 @@ package lambda;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
-import java.awt.color.ColorSpace;
+import image.Codecs;
+import image.Decoder;
+import image.Encoder;
+import image.GrayscaleEngine;
+import image.Kernels;
+import image.LazyImage;
+import image.OutputBuffer;
+import image.PixelPool;
+import image.PngEncoder;
+import image.TurboJpeg;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorConvertOp;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.util.HashMap;
-import javax.imageio.ImageIO;
-import software.amazon.awssdk.core.ResponseBytes;
-import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import saaf.Inspector;
 import saaf.Response;
+import storage.DiskCache;
+import storage.RasterCache;
+import storage.ResultCache;
+import storage.S3Input;
+import storage.S3Output;
+import storage.SingleFlight;
 
 public class Grayscale implements RequestHandler<HashMap<String, Object>, HashMap<String, Object>> {
 
@@ -26,48 +32,143 @@ public class Grayscale implements RequestHandler<HashMap<String, Object>, HashMa
         Inspector inspector = new Inspector();
         inspector.inspectAll();
 
+        SingleFlight.Flight flight = null;
         try {
             String bucket = (String) request.get("bucket");
             String key = (String) request.get("key");
+            GrayscaleEngine.Formula formula = GrayscaleEngine.Formula.parse(request.get("formula"));
 
             inspector.addAttribute("bucket", bucket);
             inspector.addAttribute("key", key);
+            inspector.addAttribute("formula", formula.name());
+            inspector.addAttribute("kernelVariant", Kernels.variant());
             context.getLogger().log("Processing: " + bucket + "/" + key);
 
-            ResponseBytes<GetObjectResponse> objectBytes = s3Client.getObjectAsBytes(
-                    GetObjectRequest.builder().bucket(bucket).key(key).build());
-            byte[] inputBytes = objectBytes.asByteArray();
-            String contentType = objectBytes.response().contentType();
-            String format = detectFormat(contentType, key);
+            // Decode while the object streams in (inputMode "buffer" downloads it first)
+            S3Input.Mode inputMode = S3Input.Mode.parse(request.get("inputMode"));
+            inspector.addAttribute("inputMode", inputMode.name());
+            PngEncoder.Settings png = PngEncoder.Settings.parse(request.get("pngLevel"), request.get("pngStrategy"));
+            inspector.addAttribute("pngLevel", png.level());
+            inspector.addAttribute("pngStrategy", png.strategy().name());
+            TurboJpeg.Backend jpegCodec = TurboJpeg.Backend.parse(request.get("jpegCodec"));
+            inspector.addAttribute("jpegCodec", jpegCodec.name());
+            inspector.addAttribute("jpegBackend", TurboJpeg.effective(jpegCodec).name());
+            inspector.addAttribute("turboJpeg", TurboJpeg.status());
+
+            // Stored result of the same source version and parameters: nothing to do
+            String outKey = "chatgpt_grayscale/" + key;
+            ResultCache.Lookup cached = ResultCache.lookup(s3Client, bucket, key, outKey, "grayscale", request);
+            inspector.addAttribute("cache", cached.status().name());
+            if (cached.hit()) {
+                inspector.addAttribute("bucket", bucket);
+                inspector.addAttribute("key", outKey);
+                inspector.addAttribute("outputSize", cached.outputSize());
+                inspector.addAttribute("message", "Result already stored");
+
+                Response response = new Response();
+                response.setValue("Grayscale completed successfully!");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
+
+            // Identical requests running concurrently wait for the first one
+            flight = SingleFlight.join("grayscale", bucket, outKey, cached);
+            inspector.addAttribute("coalesced", flight.leader() ? 0 : 1);  // Use 0/1 instead of boolean for faas_runner compatibility
+            if (!flight.leader()) {
+                SingleFlight.Outcome shared = flight.await();
+                inspector.addAttribute("bucket", bucket);
+                inspector.addAttribute("key", outKey);
+                inspector.addAttribute("outputSize", shared.outputSize());
+                inspector.addAttribute("outputStored", shared.stored() ? 1 : 0);  // Use 0/1 instead of boolean for faas_runner compatibility
+                inspector.addAttribute("message", "Coalesced with concurrent request");
+
+                Response response = new Response();
+                response.setValue("Grayscale completed successfully!");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
 
-            BufferedImage src = ImageIO.read(new ByteArrayInputStream(inputBytes));
-            if (src == null) {
-                throw new RuntimeException("Failed to read image from S3 object");
+            // 8-bit gray input is unchanged by every formula; with no operations, the header at the
+            // start of the download decides, and the object is copied within S3 instead
+            S3Input.Fetched fetched = S3Input.read(s3Client, bucket, key, inputMode, 0, jpegCodec,
+                    request.get("operations") == null ? Decoder.Header::gray : null);
+            if (fetched.decoded() == null) {
+                Decoder.Header header = fetched.header();
+                S3Output.copy(s3Client, bucket, key, outKey, cached.sourceContentType(), cached.condition());
+                flight.complete(fetched.size(), true);
+                context.getLogger().log("Gray image copied to: " + bucket + "/" + outKey);
+
+                inspector.addAttribute("inputSize", fetched.size());
+                inspector.addAttribute("originalWidth", header.width());
+                inspector.addAttribute("originalHeight", header.height());
+                inspector.addAttribute("format", header.format().formatName());
+                inspector.addAttribute("passthrough", 1);  // Use 0/1 instead of boolean for faas_runner compatibility
+                inspector.addAttribute("codecSetupTime", Codecs.takeSetupTime());
+                inspector.addAttribute("bucket", bucket);
+                inspector.addAttribute("key", outKey);
+                inspector.addAttribute("message", "Image already grayscale");
+
+                Response response = new Response();
+                response.setValue("Grayscale completed successfully!");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
             }
+            inspector.addAttribute("inputSize", fetched.size());
+            inspector.addAttribute("downloadParts", fetched.parts());
+            Decoder.Decoded decoded = fetched.decoded();
+            BufferedImage src = decoded.image();
+            Codecs.Format format = decoded.format();
 
             int w = src.getWidth();
             int h = src.getHeight();
             inspector.addAttribute("originalWidth", w);
             inspector.addAttribute("originalHeight", h);
-
-            BufferedImage dst = new BufferedImage(w, h,
-                    src.getType() == 0 ? BufferedImage.TYPE_INT_ARGB : src.getType());
-            ColorConvertOp op = new ColorConvertOp(
-                    ColorSpace.getInstance(ColorSpace.CS_GRAY), null);
-            op.filter(src, dst);
-
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(dst, format, baos);
-            byte[] outputBytes = baos.toByteArray();
-
-            String outKey = "chatgpt_grayscale/" + key;
-            s3Client.putObject(
-                    PutObjectRequest.builder()
-                            .bucket(bucket)
-                            .key(outKey)
-                            .contentType(contentType != null ? contentType : "application/octet-stream")
-                            .build(),
-                    RequestBody.fromBytes(outputBytes));
+            inspector.addAttribute("inputLayout", decoded.layout());
+            inspector.addAttribute("decoder", decoded.decoder().name());
+            RasterCache.Stats rasters = RasterCache.takeStats();
+            inspector.addAttribute("rasterCacheHits", rasters.hits());
+            inspector.addAttribute("rasterCacheMisses", rasters.misses());
+            inspector.addAttribute("rasterCacheEvictions", rasters.evictions());
+            inspector.addAttribute("rasterCacheBytes", rasters.bytes());
+            DiskCache.Stats disk = DiskCache.takeStats();
+            inspector.addAttribute("diskCacheHits", disk.hits());
+            inspector.addAttribute("diskCacheMisses", disk.misses());
+            inspector.addAttribute("diskCacheEvictions", disk.evictions());
+            inspector.addAttribute("diskCacheBytes", disk.bytes());
+            inspector.addAttribute("format", format.formatName());
+
+            // Single channel result: TYPE_BYTE_GRAY in, 1-component JPEG / gray PNG out
+            LazyImage pending = LazyImage.of(src)
+                    .grayscale(formula)
+                    .withOperations(request.get("operations"));
+            inspector.addAttribute("plan", pending.plan());
+            BufferedImage dst = pending.render();
+            inspector.addAttribute("outputType", dst.getType());
+
+            // Encode straight into the S3 upload: a pooled buffer and one PUT, or a
+            // multipart upload that overlaps with encoding for large results
+            boolean gray = pending.isGray();
+            S3Output.Uploaded uploaded = S3Output.upload(s3Client, bucket, outKey, format.mimeType(),
+                    OutputBuffer.estimate(fetched.size(), (long) w * h, (long) dst.getWidth() * dst.getHeight(), gray),
+                    cached.condition(),
+                    out -> Encoder.write(dst, format, gray, png, jpegCodec, out));
+            flight.complete(uploaded.size(), uploaded.stored());
+            inspector.addAttribute("codecSetupTime", Codecs.takeSetupTime());
+            inspector.addAttribute("uploadRequests", uploaded.requests());
+            inspector.addAttribute("outputStored", uploaded.stored() ? 1 : 0);  // Use 0/1 instead of boolean for faas_runner compatibility
+            OutputBuffer.Stats pool = OutputBuffer.takeStats();
+            inspector.addAttribute("outputPoolHits", pool.hits());
+            inspector.addAttribute("outputPoolMisses", pool.misses());
+            inspector.addAttribute("outputBytesCopied", pool.bytesCopied());
+            // Hand the result's pixels back for the next invocation
+            pending.recycle(dst);
+            PixelPool.Stats pixels = PixelPool.takeStats();
+            inspector.addAttribute("pixelPoolHits", pixels.hits());
+            inspector.addAttribute("pixelPoolMisses", pixels.misses());
+            inspector.addAttribute("pixelPoolBytes", pixels.bytes());
 
             context.getLogger().log("Grayscale image uploaded to: " + bucket + "/" + outKey);
 
@@ -81,31 +182,19 @@ public class Grayscale implements RequestHandler<HashMap<String, Object>, HashMa
             inspector.consumeResponse(response);
 
         } catch (Exception e) {
+            if (flight != null) {
+                flight.fail(e);
+            }
             context.getLogger().log("Error: " + e.getMessage());
             inspector.addAttribute("error", e.getMessage());
             throw new RuntimeException(e);
+        } finally {
+            if (flight != null) {
+                flight.finish();
+            }
         }
 
         inspector.inspectAllDeltas();
         return inspector.finish();
     }
-
-    private String detectFormat(String contentType, String key) {
-        if (contentType != null) {
-            String ct = contentType.toLowerCase();
-            if (ct.equals("image/jpeg") || ct.equals("image/jpg")) return "jpeg";
-            if (ct.equals("image/png")) return "png";
-            if (ct.equals("image/gif")) return "gif";
-            if (ct.equals("image/bmp")) return "bmp";
-        }
-        if (key != null) {
-            int idx = key.lastIndexOf('.');
-            if (idx >= 0 && idx < key.length() - 1) {
-                String ext = key.substring(idx + 1).toLowerCase();
-                if (ext.equals("jpg")) return "jpeg";
-                return ext;
-            }
-        }
-        return "jpeg";
-    }
 }
@@ -0,0 +1,258 @@
+package storage;
+
+import image.TurboJpeg;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Skips work whose result is already stored.
+ *
+ * Every output object is written with two pieces of user metadata: the
+ * ETag of the source it was made from and a hash of the request
+ * parameters that shape it ({@link #hash}). A repeated request (a retry,
+ * or the same benchmark input sent again) first HEADs the source and the
+ * output key concurrently, so the check costs one round trip; if the
+ * output's metadata matches the source's current ETag and the request's
+ * hash, the stored object is the result and nothing is downloaded,
+ * decoded or uploaded.
+ *
+ * Otherwise the result is written conditionally (see
+ * {@link S3Output.Conditional}): If-None-Match when there was no output,
+ * If-Match on the ETag the HEAD saw when there was a stale one. Of two
+ * duplicate invocations racing on a key only the first write lands; the
+ * other is reported as not stored. The source ETag recorded is the one
+ * seen by the HEAD, so a source replaced before the download only makes
+ * the next request redo the work, never keep an outdated result.
+ *
+ * Requests with "cache": false or LOCAL input mode, and requests whose
+ * source does not exist in S3, skip the check and write without metadata
+ * or condition, as before. A LOCAL request reads a file whose version S3
+ * knows nothing about, so it neither reuses a result made from the S3
+ * object nor labels its own with that object's ETag, and LOCAL
+ * benchmark runs always do the work.
+ *
+ * @author Justin Le
+ */
+public final class ResultCache {
+
+    /**
+     * Outcome of a lookup.
+     */
+    public enum Status {
+        /**
+         * Not checked: turned off for the request, or the source has no ETag.
+         */
+        DISABLED,
+        /**
+         * No output object yet.
+         */
+        MISS,
+        /**
+         * The output object was made from another source version or with
+         * other parameters.
+         */
+        STALE,
+        /**
+         * The output object is the result.
+         */
+        HIT
+    }
+
+    /**
+     * What the HEADs found.
+     *
+     * @param status Outcome.
+     * @param sourceETag Current ETag of the source, null if DISABLED.
+     * @param sourceContentType Stored content type of the source, null if DISABLED;
+     *                          a copy of the unchanged source keeps it.
+     * @param opHash Hash of the request parameters.
+     * @param outputETag ETag of the existing output, null if there is none.
+     * @param outputSize Size of the existing output, -1 if there is none.
+     */
+    public record Lookup(Status status, String sourceETag, String sourceContentType, String opHash,
+            String outputETag, long outputSize) {
+
+        /**
+         * @return True if the stored output can be returned as it is.
+         */
+        public boolean hit() {
+            return status == Status.HIT;
+        }
+
+        /**
+         * @return Metadata and write condition for the result, null if DISABLED.
+         */
+        public S3Output.Conditional condition() {
+            if (status == Status.DISABLED) {
+                return null;
+            }
+            return new S3Output.Conditional(Map.of(SOURCE_ETAG, sourceETag, OP_HASH, opHash), outputETag);
+        }
+    }
+
+    static final String SOURCE_ETAG = "source-etag";
+    static final String OP_HASH = "op-hash";
+
+    /**
+     * Request attributes the handlers read that change the result. Any
+     * other attribute (bucket, key, inputMode, cache, or payload a
+     * benchmark runner passes along) is left out of the hash.
+     */
+    private static final List<String> SHAPING = List.of("angle", "canvas", "filter", "formula", "interpolation",
+            "jpegEdges", "lossless", "matrix", "operations", "orientation", "pngLevel", "pngStrategy");
+
+    /**
+     * Settings that change the encoded bytes, hashed along with the request.
+     */
+    private static final List<String> SETTINGS = List.of("IMAGE_JPEG_QUALITY", "IMAGE_PNG_LEVEL");
+
+    private static final ExecutorService HEADS = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "s3-head");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ResultCache() {
+    }
+
+    /**
+     * Look up the stored result of a request.
+     *
+     * @param s3 Client.
+     * @param bucket Bucket of source and output.
+     * @param key Source key.
+     * @param outputKey Output key.
+     * @param function Name of the transformation, part of the hash.
+     * @param request Request attributes; "cache": false or LOCAL input mode
+     *                skips the lookup without any request to S3.
+     * @return What was found.
+     * @throws IOException If a HEAD fails for another reason than a missing object.
+     */
+    public static Lookup lookup(S3Client s3, String bucket, String key, String outputKey, String function,
+            Map<String, Object> request) throws IOException {
+        String opHash = hash(function, request);
+        if ("false".equalsIgnoreCase(String.valueOf(request.get("cache")))
+                || S3Input.Mode.parse(request.get("inputMode")) == S3Input.Mode.LOCAL) {
+            return new Lookup(Status.DISABLED, null, null, opHash, null, -1);
+        }
+        Future<HeadObjectResponse> pending = HEADS.submit(() -> head(s3, bucket, outputKey));
+        HeadObjectResponse output;
+        HeadObjectResponse source;
+        try {
+            source = head(s3, bucket, key);
+            output = pending.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to check " + outputKey, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while checking " + outputKey);
+        } finally {
+            pending.cancel(true);
+        }
+        if (source == null || source.eTag() == null) {
+            return new Lookup(Status.DISABLED, null, null, opHash, null, -1);
+        }
+        if (output == null) {
+            return new Lookup(Status.MISS, source.eTag(), source.contentType(), opHash, null, -1);
+        }
+        Map<String, String> metadata = output.metadata();
+        boolean current = source.eTag().equals(metadata.get(SOURCE_ETAG)) && opHash.equals(metadata.get(OP_HASH));
+        Long length = output.contentLength();
+        return new Lookup(current ? Status.HIT : Status.STALE, source.eTag(), source.contentType(), opHash,
+                output.eTag(), length != null ? length : -1);
+    }
+
+    /**
+     * Hash of everything that shapes the result: the function name, the
+     * {@link #SHAPING} request attributes, the JPEG backend that will
+     * actually run and the encoder settings. Maps are hashed with sorted
+     * keys, so attribute order does not matter.
+     *
+     * @param function Name of the transformation.
+     * @param request Request attributes.
+     * @return Hex SHA-256.
+     */
+    public static String hash(String function, Map<String, Object> request) {
+        Map<String, Object> shaping = new TreeMap<>();
+        for (String name : SHAPING) {
+            Object value = request.get(name);
+            if (value != null) {
+                shaping.put(name, value);
+            }
+        }
+        // The codec in use rather than the one asked for: the same request decodes and
+        // encodes with ImageIO when libjpeg-turbo could not be loaded
+        shaping.put("jpegBackend", TurboJpeg.effective(TurboJpeg.Backend.parse(request.get("jpegCodec"))).name());
+        for (String setting : SETTINGS) {
+            String value = System.getenv(setting);
+            if (value != null) {
+                shaping.put("env:" + setting, value.trim());
+            }
+        }
+        StringBuilder canonical = new StringBuilder(function.toLowerCase(Locale.ROOT)).append(':');
+        append(canonical, shaping);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(canonical.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void append(StringBuilder out, Object value) {
+        if (value instanceof Map<?, ?> map) {
+            Map<String, Object> sorted = new TreeMap<>();
+            map.forEach((name, item) -> sorted.put(String.valueOf(name), item));
+            out.append('{');
+            sorted.forEach((name, item) -> {
+                append(out, name);
+                out.append('=');
+                append(out, item);
+                out.append(',');
+            });
+            out.append('}');
+        } else if (value instanceof List<?> list) {
+            out.append('[');
+            for (Object item : list) {
+                append(out, item);
+                out.append(',');
+            }
+            out.append(']');
+        } else if (value instanceof String text) {
+            out.append('"').append(text.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        } else {
+            out.append(value);
+        }
+    }
+
+    /**
+     * @return The object's headers, or null if there is no such object.
+     */
+    private static HeadObjectResponse head(S3Client s3, String bucket, String key) {
+        try {
+            return s3.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build());
+        } catch (S3Exception e) {
+            if (e.statusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+}
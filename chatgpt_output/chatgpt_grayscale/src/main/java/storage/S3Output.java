@@ -0,0 +1,249 @@
+package storage;
+
+import image.OutputBuffer;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.MetadataDirective;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Uploads an encoded result to S3.
+ *
+ * The request body streams from the {@link OutputBuffer}'s own array
+ * (a ContentStreamProvider opens a new view for each attempt), so no
+ * exact-size copy is made for the upload as RequestBody.fromBytes would.
+ *
+ * Results expected to reach S3_MULTIPART_THRESHOLD bytes (default 16 MB)
+ * are not buffered at all: {@link #upload} encodes into a
+ * {@link MultipartOutput}, which sends parts while encoding continues.
+ *
+ * Uploads can carry a {@link Conditional}: user metadata for the object
+ * and a write condition (If-None-Match or If-Match, sent as headers since
+ * this SDK version has no fields for them on PutObject). When a concurrent
+ * writer got there first S3 answers 412 (or 409 while its write is still
+ * in progress); the upload is then dropped and reported as not stored
+ * rather than failed.
+ *
+ * @author Justin Le
+ */
+public final class S3Output {
+
+    static final long MULTIPART_THRESHOLD = RangedDownload.setting("S3_MULTIPART_THRESHOLD",
+            16L * 1024 * 1024, 1);
+
+    /**
+     * Writes the object, e.g. by encoding an image.
+     */
+    @FunctionalInterface
+    public interface Body {
+        /**
+         * @param out Destination; not to be closed.
+         * @throws IOException If writing fails.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * A stored object.
+     *
+     * @param size Size in bytes.
+     * @param requests 1 for a single PutObject, otherwise the number of parts.
+     * @param stored False if the write condition failed and the object was
+     *               left as another writer stored it.
+     */
+    public record Uploaded(long size, int requests, boolean stored) {
+    }
+
+    /**
+     * Metadata and write condition of an upload.
+     *
+     * @param metadata User metadata stored with the object.
+     * @param ifMatch ETag the existing object must still have, or null if
+     *                no object may exist under the key.
+     */
+    public record Conditional(Map<String, String> metadata, String ifMatch) {
+
+        AwsRequestOverrideConfiguration precondition() {
+            return ifMatch == null
+                    ? AwsRequestOverrideConfiguration.builder().putHeader("If-None-Match", "*").build()
+                    : AwsRequestOverrideConfiguration.builder().putHeader("If-Match", ifMatch).build();
+        }
+    }
+
+    private S3Output() {
+    }
+
+    /**
+     * Write an object, choosing the upload path from its expected size:
+     * below the multipart threshold through a pooled {@link OutputBuffer}
+     * and one PutObject, above it as a multipart upload that overlaps with
+     * writing and never holds the whole object.
+     *
+     * @param s3 Client.
+     * @param bucket Bucket name.
+     * @param key Object key.
+     * @param contentType Content type of the object.
+     * @param expectedSize Estimated size, see {@link OutputBuffer#estimate}.
+     * @param body Writes the object.
+     * @return Size and number of requests.
+     * @throws IOException If writing or uploading fails; a multipart
+     *                     upload is aborted first.
+     */
+    public static Uploaded upload(S3Client s3, String bucket, String key, String contentType, long expectedSize,
+            Body body) throws IOException {
+        return upload(s3, bucket, key, contentType, expectedSize, null, body);
+    }
+
+    /**
+     * {@link #upload(S3Client, String, String, String, long, Body)} with
+     * metadata and a write condition.
+     *
+     * @param s3 Client.
+     * @param bucket Bucket name.
+     * @param key Object key.
+     * @param contentType Content type of the object.
+     * @param expectedSize Estimated size, see {@link OutputBuffer#estimate}.
+     * @param condition Metadata and write condition, or null for neither.
+     * @param body Writes the object.
+     * @return Size, number of requests and whether the object was stored.
+     * @throws IOException If writing or uploading fails; a multipart
+     *                     upload is aborted first.
+     */
+    public static Uploaded upload(S3Client s3, String bucket, String key, String contentType, long expectedSize,
+            Conditional condition, Body body) throws IOException {
+        if (expectedSize < MULTIPART_THRESHOLD) {
+            OutputBuffer data = OutputBuffer.acquire(expectedSize);
+            try {
+                body.writeTo(data);
+            } catch (IOException | RuntimeException e) {
+                data.release();
+                throw e;
+            }
+            long size = data.size();
+            boolean stored = put(s3, bucket, key, contentType, condition, data);
+            return new Uploaded(size, 1, stored);
+        }
+        MultipartOutput out = new MultipartOutput(s3, bucket, key, contentType, condition);
+        try {
+            body.writeTo(out);
+        } catch (IOException | RuntimeException e) {
+            out.abort();
+            throw e;
+        }
+        out.close();
+        return new Uploaded(out.size(), out.requests(), out.stored());
+    }
+
+    /**
+     * Store an unchanged source object under a new key with a server-side
+     * CopyObject; no data passes through the function.
+     *
+     * @param s3 Client.
+     * @param bucket Bucket of both objects.
+     * @param key Source key.
+     * @param destinationKey Key of the copy.
+     */
+    public static void copy(S3Client s3, String bucket, String key, String destinationKey) {
+        copy(s3, bucket, key, destinationKey, null, null);
+    }
+
+    /**
+     * {@link #copy(S3Client, String, String, String)} that replaces the
+     * metadata of the copy. The write condition is not applied: copying
+     * the same source twice stores the same object.
+     *
+     * @param s3 Client.
+     * @param bucket Bucket of both objects.
+     * @param key Source key.
+     * @param destinationKey Key of the copy.
+     * @param contentType Content type of the copy, needed when the metadata is replaced;
+     *                    pass the source's stored one so the copy keeps the same headers.
+     * @param condition Metadata for the copy, or null to keep the source's.
+     */
+    public static void copy(S3Client s3, String bucket, String key, String destinationKey, String contentType,
+            Conditional condition) {
+        CopyObjectRequest.Builder request = CopyObjectRequest.builder()
+                .sourceBucket(bucket)
+                .sourceKey(key)
+                .destinationBucket(bucket)
+                .destinationKey(destinationKey);
+        if (condition != null) {
+            request.metadataDirective(MetadataDirective.REPLACE)
+                    .contentType(contentType)
+                    .metadata(condition.metadata());
+        }
+        s3.copyObject(request.build());
+    }
+
+    /**
+     * Upload the content of a buffer and return the buffer to its pool.
+     *
+     * @param s3 Client.
+     * @param bucket Bucket name.
+     * @param key Object key.
+     * @param contentType Content type of the object.
+     * @param data Encoded object; released even if the upload fails.
+     */
+    public static void put(S3Client s3, String bucket, String key, String contentType, OutputBuffer data) {
+        put(s3, bucket, key, contentType, null, data);
+    }
+
+    /**
+     * Upload the content of a buffer with metadata and a write condition
+     * and return the buffer to its pool.
+     *
+     * @param s3 Client.
+     * @param bucket Bucket name.
+     * @param key Object key.
+     * @param contentType Content type of the object.
+     * @param condition Metadata and write condition, or null for neither.
+     * @param data Encoded object; released even if the upload fails.
+     * @return False if the write condition failed.
+     */
+    public static boolean put(S3Client s3, String bucket, String key, String contentType, Conditional condition,
+            OutputBuffer data) {
+        try {
+            return put(s3, bucket, key, contentType, condition,
+                    RequestBody.fromContentProvider(data::newInputStream, data.size(), contentType));
+        } finally {
+            data.release();
+        }
+    }
+
+    static boolean put(S3Client s3, String bucket, String key, String contentType, Conditional condition,
+            RequestBody body) {
+        PutObjectRequest.Builder request = PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .contentType(contentType);
+        if (condition != null) {
+            request.metadata(condition.metadata())
+                    .overrideConfiguration(condition.precondition());
+        }
+        try {
+            s3.putObject(request.build(), body);
+            return true;
+        } catch (S3Exception e) {
+            if (condition != null && isConditionFailure(e)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param e Error of a conditional write.
+     * @return True if another writer won: 412 Precondition Failed, or 409
+     *         ConditionalRequestConflict while its write was in flight.
+     */
+    static boolean isConditionFailure(S3Exception e) {
+        return e.statusCode() == 412 || e.statusCode() == 409;
+    }
+}
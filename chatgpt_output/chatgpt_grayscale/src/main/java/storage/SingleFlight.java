@@ -0,0 +1,164 @@
+package storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Lets concurrent identical requests in one JVM share a single execution.
+ *
+ * Platforms that send several requests to an instance at once (Cloud Run,
+ * Azure Functions, a local server) often receive the same source and
+ * operation more than once in a burst. Each request would otherwise
+ * download, decode, transform and upload the same result. Requests are
+ * identified by function, bucket, output key and the parameter hash and
+ * source ETag from {@link ResultCache#lookup}, so only requests for the
+ * same source version with the same parameters meet. The first one
+ * ({@link Flight#leader()}) does the work; the others wait in
+ * {@link Flight#await()} and report the output object the leader
+ * published.
+ *
+ * A flight ends when its leader calls {@link Flight#complete}. If the
+ * leader fails instead, {@link Flight#fail} hands its exception to the
+ * waiting requests, which fail with it as the cause; a leader that ends
+ * in {@link Flight#finish()} without either (e.g. on an Error) fails them
+ * with a generic exception rather than leaving them waiting. Later
+ * requests start a new flight; by then the result cache normally finds
+ * the stored output. Requests without a source ETag ("cache": false,
+ * LOCAL input, a source missing from S3) are never coalesced.
+ *
+ * @author Justin Le
+ */
+public final class SingleFlight {
+
+    /**
+     * The output object of a flight.
+     *
+     * @param outputKey Key the result was stored under.
+     * @param outputSize Size of the result in bytes.
+     * @param stored False if a conditional write found another result in place.
+     */
+    public record Outcome(String outputKey, long outputSize, boolean stored) {
+    }
+
+    private static final Map<String, Flight> FLIGHTS = new ConcurrentHashMap<>();
+
+    private SingleFlight() {
+    }
+
+    /**
+     * Join the flight of an identical request in progress, or start one.
+     *
+     * @param function Name of the transformation.
+     * @param bucket Bucket of the output.
+     * @param outputKey Output key.
+     * @param lookup Result of {@link ResultCache#lookup} for the request.
+     * @return The flight; call {@link Flight#fail} if the request fails and
+     *         {@link Flight#finish()} when it ends.
+     */
+    public static Flight join(String function, String bucket, String outputKey, ResultCache.Lookup lookup) {
+        if (lookup.sourceETag() == null) {
+            return new Flight(null, outputKey, true);
+        }
+        String id = function + '\n' + bucket + '/' + outputKey + '\n' + lookup.opHash() + '\n' + lookup.sourceETag();
+        Flight started = new Flight(id, outputKey, true);
+        Flight running = FLIGHTS.putIfAbsent(id, started);
+        return running == null ? started : running.follower();
+    }
+
+    /**
+     * One request's part in a flight.
+     */
+    public static final class Flight {
+        private final String id;
+        private final String outputKey;
+        private final boolean leader;
+        private final CompletableFuture<Outcome> result;
+
+        private Flight(String id, String outputKey, boolean leader) {
+            this(id, outputKey, leader, new CompletableFuture<>());
+        }
+
+        private Flight(String id, String outputKey, boolean leader, CompletableFuture<Outcome> result) {
+            this.id = id;
+            this.outputKey = outputKey;
+            this.leader = leader;
+            this.result = result;
+        }
+
+        private Flight follower() {
+            return new Flight(id, outputKey, false, result);
+        }
+
+        /**
+         * @return True if this request does the work.
+         */
+        public boolean leader() {
+            return leader;
+        }
+
+        /**
+         * Wait for the leader's result.
+         *
+         * @return The output object the leader stored.
+         * @throws IOException If the leader failed or the wait was interrupted.
+         */
+        public Outcome await() throws IOException {
+            try {
+                return result.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Coalesced request for " + outputKey + " failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + outputKey);
+            }
+        }
+
+        /**
+         * Publish the leader's result and release the waiting requests.
+         *
+         * @param outputSize Size of the stored result.
+         * @param stored Whether this request's write landed.
+         */
+        public void complete(long outputSize, boolean stored) {
+            if (leader) {
+                end();
+                result.complete(new Outcome(outputKey, outputSize, stored));
+            }
+        }
+
+        /**
+         * Fail the flight with the leader's exception. Does nothing for
+         * followers or once the flight has ended.
+         *
+         * @param failure Why the leader failed.
+         */
+        public void fail(Throwable failure) {
+            if (leader && !result.isDone()) {
+                end();
+                result.completeExceptionally(failure);
+            }
+        }
+
+        /**
+         * End the leader's part: waiting requests fail unless
+         * {@link #complete} or {@link #fail} was called. Does nothing for
+         * followers.
+         */
+        public void finish() {
+            if (leader && !result.isDone()) {
+                end();
+                result.completeExceptionally(new IOException("Request for " + outputKey + " ended without a result"));
+            }
+        }
+
+        private void end() {
+            if (id != null) {
+                FLIGHTS.remove(id, this);
+            }
+        }
+    }
+}
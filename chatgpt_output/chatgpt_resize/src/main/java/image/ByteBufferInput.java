@@ -0,0 +1,82 @@
+package image;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Seekable ImageIO stream over bytes that are already in memory.
+ *
+ * MemoryCacheImageInputStream over a ByteArrayInputStream copies every byte
+ * once more into its own 8 KB block cache, so a 20 MB PNG costs another
+ * 20 MB of short-lived arrays while it is decoded. This stream reads the
+ * buffer in place with absolute gets: seek, mark and reset only move the
+ * position, and nothing is copied except into the reader's own arrays.
+ * The buffer may be a heap array wrapper, a read-only view or a memory
+ * mapped file.
+ *
+ * @author Justin Le
+ */
+final class ByteBufferInput extends ImageInputStreamImpl {
+
+    private ByteBuffer buffer;
+    private final int length;
+
+    /**
+     * @param buffer Data from its position to its limit; neither is changed.
+     */
+    ByteBufferInput(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+        this.length = this.buffer.limit();
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        return buffer.get((int) streamPos++) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+            throw new IndexOutOfBoundsException("off < 0 || len < 0 || off + len > b.length");
+        }
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        if (streamPos >= length) {
+            return -1;
+        }
+        int n = (int) Math.min(len, length - streamPos);
+        buffer.get((int) streamPos, b, off, n);
+        streamPos += n;
+        return n;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+
+    @Override
+    public boolean isCachedMemory() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        buffer = null;
+    }
+}
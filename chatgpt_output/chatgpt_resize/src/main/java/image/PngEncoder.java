@@ -0,0 +1,528 @@
+package image;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Parallel 8-bit PNG encoder.
+ *
+ * The ImageIO PNG writer filters and deflates the whole image on one
+ * thread, which dominates the write phase of large screenshots and scans.
+ * Here the rows are split into chunks of about 128 KB of filtered data,
+ * and every chunk is filtered and deflated on the {@link Parallel} pool,
+ * pigz style: each chunk is a run of raw deflate blocks ending in a sync
+ * flush (the last one in the final block), so the pieces concatenate into
+ * one valid zlib stream, and the Adler-32 checksums of the pieces are
+ * combined into the stream's. Each chunk primes its deflater with the last
+ * 32 KB of filtered data before it, which it filters again itself, so
+ * matches across chunk boundaries are found as if the stream had been
+ * compressed in one piece and the output is barely larger. Every chunk
+ * becomes one IDAT chunk.
+ *
+ * Each row gets its own filter, chosen the way libpng does: of None, Sub,
+ * Up, Average and Paeth, the one whose output has the smallest sum of
+ * absolute (signed) values. The JDK writer only does this for palette
+ * images and stores every other row unfiltered, which compresses
+ * photographs and scans poorly. Level 0 stores the rows unfiltered, since
+ * filtering cannot help stored blocks.
+ *
+ * Handles the layouts {@link Encoder#prepare} produces: 8-bit gray, gray
+ * with alpha, BGR, packed int RGB and ARGB (not premultiplied) and
+ * 4BYTE_ABGR. {@link #canEncode} is false for anything else (palettes,
+ * 16-bit samples), which is left to ImageIO. Only IHDR, IDAT and IEND are
+ * written, as with the ImageIO writer.
+ *
+ * @author Justin Le
+ */
+public final class PngEncoder {
+
+    /**
+     * Deflate strategy, see {@link Deflater#setStrategy}.
+     */
+    public enum Strategy {
+        /**
+         * Normal LZ77 matching with Huffman coding.
+         */
+        DEFAULT(Deflater.DEFAULT_STRATEGY),
+        /**
+         * Favour Huffman coding over short matches, which suits filtered
+         * image data.
+         */
+        FILTERED(Deflater.FILTERED),
+        /**
+         * Huffman coding only: the fastest, and the largest output.
+         */
+        HUFFMAN_ONLY(Deflater.HUFFMAN_ONLY);
+
+        private final int deflater;
+
+        Strategy(int deflater) {
+            this.deflater = deflater;
+        }
+
+        /**
+         * @param value Strategy name, case insensitive.
+         * @return The matching strategy, DEFAULT if value is null or empty.
+         */
+        public static Strategy parse(Object value) {
+            if (value == null || value.toString().isEmpty()) {
+                return DEFAULT;
+            }
+            return valueOf(value.toString().trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Compression settings.
+     *
+     * @param level Deflate level, 0 (stored) to 9 (smallest).
+     * @param strategy Deflate strategy.
+     */
+    public record Settings(int level, Strategy strategy) {
+
+        /**
+         * IMAGE_PNG_LEVEL (default 4) with the default strategy, what the
+         * ImageIO writer is configured with in {@link Codecs}.
+         */
+        public static final Settings DEFAULT = new Settings(Codecs.PNG_LEVEL, Strategy.DEFAULT);
+
+        public Settings {
+            if (level < 0 || level > 9) {
+                throw new IllegalArgumentException("PNG level must be 0 to 9: " + level);
+            }
+        }
+
+        /**
+         * @param level Deflate level 0 to 9, or null for the default.
+         * @param strategy Strategy name, or null for the default.
+         * @return Settings for a request.
+         */
+        public static Settings parse(Object level, Object strategy) {
+            int deflateLevel = level == null || level.toString().isEmpty()
+                    ? DEFAULT.level()
+                    : (int) Double.parseDouble(level.toString());
+            return new Settings(deflateLevel, Strategy.parse(strategy));
+        }
+    }
+
+    private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+
+    /**
+     * Filtered bytes per chunk (pigz uses the same block size).
+     */
+    private static final int CHUNK_BYTES = 128 * 1024;
+
+    /**
+     * Deflate window, the most history a chunk can refer back to.
+     */
+    private static final int WINDOW = 32 * 1024;
+
+    private static final int COLOR_GRAY = 0;
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_GRAY_ALPHA = 4;
+    private static final int COLOR_RGBA = 6;
+
+    /**
+     * The calling thread's raw deflater and the settings it is configured with.
+     */
+    private static final class DeflaterSlot {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        Settings settings;
+    }
+
+    private static final ThreadLocal<DeflaterSlot> DEFLATERS = ThreadLocal.withInitial(DeflaterSlot::new);
+
+    private PngEncoder() {
+    }
+
+    /**
+     * @param img Image to check.
+     * @return True if {@link #write} can encode the image's layout.
+     */
+    public static boolean canEncode(BufferedImage img) {
+        return colorType(img) >= 0;
+    }
+
+    /**
+     * Encode an image.
+     *
+     * @param img Image in a layout {@link #canEncode} accepts.
+     * @param settings Level and strategy.
+     * @param out Destination, left open.
+     * @throws IOException If writing fails or the layout is not supported.
+     */
+    public static void write(BufferedImage img, Settings settings, OutputStream out) throws IOException {
+        int colorType = colorType(img);
+        if (colorType < 0) {
+            throw new IOException("PNG encoder cannot write layout " + Normalizer.describe(img));
+        }
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int channels = switch (colorType) {
+            case COLOR_GRAY -> 1;
+            case COLOR_GRAY_ALPHA -> 2;
+            case COLOR_RGB -> 3;
+            default -> 4;
+        };
+        int rowBytes = 1 + width * channels;
+        int rowsPerChunk = Math.max(1, CHUNK_BYTES / rowBytes);
+        int chunks = (height + rowsPerChunk - 1) / rowsPerChunk;
+        Rows rows = new Rows(img, channels);
+
+        byte[][] parts = new byte[chunks][];
+        int[] partLengths = new int[chunks];
+        long[] checksums = new long[chunks];
+        Parallel.forEachBand(chunks, 1, (start, end) -> {
+            for (int chunk = start; chunk < end; chunk++) {
+                int first = chunk * rowsPerChunk;
+                int last = Math.min(height, first + rowsPerChunk);
+                compress(rows, rowBytes, first, last, chunk == chunks - 1, settings, chunk, parts, partLengths,
+                        checksums);
+            }
+        });
+
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = (byte) colorType;
+        out.write(SIGNATURE);
+        writeChunk(out, "IHDR", header, 0, header.length, null, null);
+
+        long adler = 1;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int last = Math.min(height, (chunk + 1) * rowsPerChunk);
+            long length = (long) (last - chunk * rowsPerChunk) * rowBytes;
+            adler = combineAdler32(adler, checksums[chunk], length);
+        }
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            byte[] prefix = chunk == 0 ? zlibHeader(settings.level()) : null;
+            byte[] suffix = null;
+            if (chunk == chunks - 1) {
+                suffix = new byte[4];
+                putInt(suffix, 0, (int) adler);
+            }
+            writeChunk(out, "IDAT", parts[chunk], 0, partLengths[chunk], prefix, suffix);
+            parts[chunk] = null;
+        }
+        writeChunk(out, "IEND", new byte[0], 0, 0, null, null);
+    }
+
+    /**
+     * Filter rows [first, last) and deflate them as one piece of the stream.
+     */
+    private static void compress(Rows rows, int rowBytes, int first, int last, boolean finish, Settings settings,
+            int chunk, byte[][] parts, int[] partLengths, long[] checksums) {
+        // Rows before the chunk whose filtered bytes make up the dictionary
+        int primed = Math.max(0, first - (WINDOW + rowBytes - 1) / rowBytes);
+        byte[] filtered = new byte[(last - primed) * rowBytes];
+        byte[] previous = new byte[rowBytes - 1];
+        byte[] current = new byte[rowBytes - 1];
+        boolean hasPrevious = primed > 0;
+        if (hasPrevious) {
+            rows.read(primed - 1, previous);
+        }
+        byte[][] candidates = new byte[5][rowBytes - 1];
+        for (int y = primed; y < last; y++) {
+            rows.read(y, current);
+            filter(current, hasPrevious ? previous : null, rows.channels, settings.level() > 0, candidates,
+                    filtered, (y - primed) * rowBytes);
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+            hasPrevious = true;
+        }
+
+        int offset = (first - primed) * rowBytes;
+        int length = filtered.length - offset;
+        Adler32 adler = new Adler32();
+        adler.update(filtered, offset, length);
+        checksums[chunk] = adler.getValue();
+
+        Deflater deflater = deflater(settings);
+        if (offset > 0) {
+            int dictionary = Math.min(WINDOW, offset);
+            deflater.setDictionary(filtered, offset - dictionary, dictionary);
+        }
+        deflater.setInput(filtered, offset, length);
+        if (finish) {
+            deflater.finish();
+        }
+        byte[] out = new byte[Math.max(256, length / 2)];
+        int count = 0;
+        while (true) {
+            int n = deflater.deflate(out, count, out.length - count, finish ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            count += n;
+            boolean done = finish ? deflater.finished() : count < out.length && deflater.needsInput();
+            if (done) {
+                break;
+            }
+            if (count == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+        }
+        deflater.reset();
+        parts[chunk] = out;
+        partLengths[chunk] = count;
+    }
+
+    /**
+     * The calling thread's deflater, reset and configured for settings. A
+     * level or strategy change only takes effect on the next deflate call,
+     * which then does nothing else; it is made here with no input, so that
+     * it does not land after the dictionary.
+     */
+    private static Deflater deflater(Settings settings) {
+        DeflaterSlot slot = DEFLATERS.get();
+        Deflater deflater = slot.deflater;
+        deflater.reset();
+        if (!settings.equals(slot.settings)) {
+            deflater.setLevel(settings.level());
+            deflater.setStrategy(settings.strategy().deflater);
+            deflater.deflate(new byte[0]);
+            slot.settings = settings;
+        }
+        return deflater;
+    }
+
+    /**
+     * Filter one row into dst at offset: the filter type byte, then the
+     * filtered bytes of the adaptively chosen filter.
+     *
+     * @param row Raw bytes of the row.
+     * @param above Raw bytes of the row above, null for the first row.
+     * @param bpp Bytes per pixel.
+     * @param adaptive False to use filter None.
+     * @param candidates Five scratch rows.
+     */
+    private static void filter(byte[] row, byte[] above, int bpp, boolean adaptive, byte[][] candidates,
+            byte[] dst, int offset) {
+        int n = row.length;
+        if (!adaptive) {
+            dst[offset] = 0;
+            System.arraycopy(row, 0, dst, offset + 1, n);
+            return;
+        }
+        byte[] sub = candidates[1];
+        byte[] up = candidates[2];
+        byte[] average = candidates[3];
+        byte[] paeth = candidates[4];
+        long sumNone = 0;
+        long sumSub = 0;
+        long sumUp = 0;
+        long sumAverage = 0;
+        long sumPaeth = 0;
+        for (int i = 0; i < n; i++) {
+            int x = row[i] & 0xFF;
+            int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            int b = above != null ? above[i] & 0xFF : 0;
+            int c = above != null && i >= bpp ? above[i - bpp] & 0xFF : 0;
+            int p = a + b - c;
+            int pa = Math.abs(p - a);
+            int pb = Math.abs(p - b);
+            int pc = Math.abs(p - c);
+            int predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+
+            byte s = (byte) (x - a);
+            byte u = (byte) (x - b);
+            byte v = (byte) (x - ((a + b) >> 1));
+            byte t = (byte) (x - predictor);
+            sub[i] = s;
+            up[i] = u;
+            average[i] = v;
+            paeth[i] = t;
+            sumNone += Math.abs((byte) x);
+            sumSub += Math.abs(s);
+            sumUp += Math.abs(u);
+            sumAverage += Math.abs(v);
+            sumPaeth += Math.abs(t);
+        }
+        int best = 0;
+        long bestSum = sumNone;
+        long[] sums = {sumNone, sumSub, sumUp, sumAverage, sumPaeth};
+        for (int f = 1; f < 5; f++) {
+            if (sums[f] < bestSum) {
+                bestSum = sums[f];
+                best = f;
+            }
+        }
+        dst[offset] = (byte) best;
+        System.arraycopy(best == 0 ? row : candidates[best], 0, dst, offset + 1, n);
+    }
+
+    /**
+     * Reads rows of an image as PNG samples: gray, gray + alpha, RGB or RGBA.
+     */
+    private static final class Rows {
+        private final BufferedImage img;
+        private final int channels;
+        private final int width;
+        private final byte[] bytes;
+        private final int[] ints;
+
+        Rows(BufferedImage img, int channels) {
+            this.img = img;
+            this.channels = channels;
+            this.width = img.getWidth();
+            boolean packed = Rasters.isPackedInt(img);
+            this.bytes = packed ? null : Rasters.bytes(img);
+            this.ints = packed ? Rasters.ints(img) : null;
+        }
+
+        void read(int y, byte[] dst) {
+            switch (img.getType()) {
+                case BufferedImage.TYPE_3BYTE_BGR -> {
+                    for (int x = 0, s = y * width * 3; x < width * 3; x += 3, s += 3) {
+                        dst[x] = bytes[s + 2];
+                        dst[x + 1] = bytes[s + 1];
+                        dst[x + 2] = bytes[s];
+                    }
+                }
+                case BufferedImage.TYPE_4BYTE_ABGR -> {
+                    for (int x = 0, s = y * width * 4; x < width * 4; x += 4, s += 4) {
+                        dst[x] = bytes[s + 3];
+                        dst[x + 1] = bytes[s + 2];
+                        dst[x + 2] = bytes[s + 1];
+                        dst[x + 3] = bytes[s];
+                    }
+                }
+                case BufferedImage.TYPE_INT_RGB -> {
+                    for (int x = 0, s = y * width; x < width; x++, s++) {
+                        int p = ints[s];
+                        dst[3 * x] = (byte) (p >> 16);
+                        dst[3 * x + 1] = (byte) (p >> 8);
+                        dst[3 * x + 2] = (byte) p;
+                    }
+                }
+                case BufferedImage.TYPE_INT_ARGB -> {
+                    for (int x = 0, s = y * width; x < width; x++, s++) {
+                        int p = ints[s];
+                        dst[4 * x] = (byte) (p >> 16);
+                        dst[4 * x + 1] = (byte) (p >> 8);
+                        dst[4 * x + 2] = (byte) p;
+                        dst[4 * x + 3] = (byte) (p >>> 24);
+                    }
+                }
+                default ->
+                    // Gray, or gray + alpha interleaved: already in PNG order
+                    System.arraycopy(bytes, y * width * channels, dst, 0, width * channels);
+            }
+        }
+    }
+
+    /**
+     * @return PNG color type for the image's layout, -1 if it is not supported.
+     */
+    private static int colorType(BufferedImage img) {
+        if (!Rasters.isCompact(img)) {
+            return -1;
+        }
+        switch (img.getType()) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return COLOR_GRAY;
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_INT_RGB:
+                return COLOR_RGB;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_INT_ARGB:
+                return COLOR_RGBA;
+            case BufferedImage.TYPE_CUSTOM:
+                break;
+            default:
+                return -1;
+        }
+        // Gray + alpha as built by Encoder.toGrayAlpha
+        ColorModel cm = img.getColorModel();
+        Raster raster = img.getRaster();
+        if (cm.getColorSpace().getType() == ColorSpace.TYPE_GRAY && cm.hasAlpha() && !cm.isAlphaPremultiplied()
+                && raster.getTransferType() == DataBuffer.TYPE_BYTE && raster.getNumBands() == 2
+                && raster.getSampleModel() instanceof ComponentSampleModel csm
+                && csm.getPixelStride() == 2 && csm.getBandOffsets()[0] == 0 && csm.getBandOffsets()[1] == 1) {
+            return COLOR_GRAY_ALPHA;
+        }
+        return -1;
+    }
+
+    private static byte[] zlibHeader(int level) {
+        int cmf = 0x78;
+        int flevel = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int flg = flevel << 6;
+        flg += 31 - (cmf * 256 + flg) % 31;
+        return new byte[] {(byte) cmf, (byte) flg};
+    }
+
+    /**
+     * Adler-32 of two pieces of data from the checksums of each (zlib's
+     * adler32_combine).
+     *
+     * @param adler1 Checksum of the first piece.
+     * @param adler2 Checksum of the second piece.
+     * @param length2 Length of the second piece.
+     * @return Checksum of the concatenation.
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = rem * sum1 % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= base << 1) {
+            sum2 -= base << 1;
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void writeChunk(OutputStream out, String type, byte[] data, int offset, int length,
+            byte[] prefix, byte[] suffix) throws IOException {
+        int total = length + (prefix != null ? prefix.length : 0) + (suffix != null ? suffix.length : 0);
+        byte[] head = new byte[8];
+        putInt(head, 0, total);
+        for (int i = 0; i < 4; i++) {
+            head[4 + i] = (byte) type.charAt(i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(head, 4, 4);
+        out.write(head);
+        if (prefix != null) {
+            crc.update(prefix);
+            out.write(prefix);
+        }
+        crc.update(data, offset, length);
+        out.write(data, offset, length);
+        if (suffix != null) {
+            crc.update(suffix);
+            out.write(suffix);
+        }
+        byte[] tail = new byte[4];
+        putInt(tail, 0, (int) crc.getValue());
+        out.write(tail);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
@@ -1,22 +1,28 @@
 package lambda;
 
-import java.awt.Graphics2D;
+import image.Codecs;
+import image.Decoder;
+import image.Encoder;
+import image.Kernels;
+import image.LazyImage;
+import image.OutputBuffer;
+import image.PixelPool;
+import image.PngEncoder;
+import image.Resampler;
+import image.TurboJpeg;
 import java.awt.image.BufferedImage;
-import java.awt.RenderingHints;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.util.HashMap;
-import javax.imageio.ImageIO;
-import software.amazon.awssdk.core.ResponseBytes;
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.S3Client;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.Context;
 import saaf.Inspector;
 import saaf.Response;
+import storage.DiskCache;
+import storage.RasterCache;
+import storage.ResultCache;
+import storage.S3Input;
+import storage.S3Output;
+import storage.SingleFlight;
 
 public class Resize implements RequestHandler<HashMap<String, Object>, HashMap<String, Object>> {
 
@@ -27,66 +33,163 @@ public class Resize implements RequestHandler<HashMap<String, Object>, HashMap<S
         Inspector inspector = new Inspector();
         inspector.inspectAll();
 
+        SingleFlight.Flight flight = null;
         try {
             // Extract parameters
             String bucket = (String) request.get("bucket");
             String key = (String) request.get("key");
+            Resampler.Filter filter = Resampler.Filter.parse(request.get("filter"), Resampler.Filter.LANCZOS3);
 
             inspector.addAttribute("bucket", bucket);
             inspector.addAttribute("key", key);
+            inspector.addAttribute("filter", filter.name());
+            inspector.addAttribute("kernelVariant", Kernels.variant());
             context.getLogger().log("Processing: " + bucket + "/" + key);
 
-            // Download image from S3
-            ResponseBytes<GetObjectResponse> objectBytes = s3Client.getObjectAsBytes(
-                    GetObjectRequest.builder().bucket(bucket).key(key).build());
-            byte[] inputBytes = objectBytes.asByteArray();
-            String contentType = objectBytes.response().contentType();
-            String format = detectFormat(contentType, key);
-
-            // Read image
-            BufferedImage srcImage = ImageIO.read(new ByteArrayInputStream(inputBytes));
-            if (srcImage == null) {
-                throw new RuntimeException("Failed to read image from S3 object");
+            // Read image while it streams in from S3, subsampled while decoding when the
+            // target is much smaller (inputMode "buffer" downloads it first)
+            S3Input.Mode inputMode = S3Input.Mode.parse(request.get("inputMode"));
+            inspector.addAttribute("inputMode", inputMode.name());
+            PngEncoder.Settings png = PngEncoder.Settings.parse(request.get("pngLevel"), request.get("pngStrategy"));
+            inspector.addAttribute("pngLevel", png.level());
+            inspector.addAttribute("pngStrategy", png.strategy().name());
+            TurboJpeg.Backend jpegCodec = TurboJpeg.Backend.parse(request.get("jpegCodec"));
+            inspector.addAttribute("jpegCodec", jpegCodec.name());
+            inspector.addAttribute("jpegBackend", TurboJpeg.effective(jpegCodec).name());
+            inspector.addAttribute("turboJpeg", TurboJpeg.status());
+
+            // Stored result of the same source version and parameters: nothing to do
+            String outKey = "chatgpt_resized/" + key;
+            ResultCache.Lookup cached = ResultCache.lookup(s3Client, bucket, key, outKey, "resize", request);
+            inspector.addAttribute("cache", cached.status().name());
+            if (cached.hit()) {
+                inspector.addAttribute("bucket", bucket);
+                inspector.addAttribute("key", outKey);
+                inspector.addAttribute("outputSize", cached.outputSize());
+                inspector.addAttribute("message", "Result already stored");
+
+                Response response = new Response();
+                response.setValue("Resize completed successfully!");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
+
+            // Identical requests running concurrently wait for the first one
+            flight = SingleFlight.join("resize", bucket, outKey, cached);
+            inspector.addAttribute("coalesced", flight.leader() ? 0 : 1);  // Use 0/1 instead of boolean for faas_runner compatibility
+            if (!flight.leader()) {
+                SingleFlight.Outcome shared = flight.await();
+                inspector.addAttribute("bucket", bucket);
+                inspector.addAttribute("key", outKey);
+                inspector.addAttribute("outputSize", shared.outputSize());
+                inspector.addAttribute("outputStored", shared.stored() ? 1 : 0);  // Use 0/1 instead of boolean for faas_runner compatibility
+                inspector.addAttribute("message", "Coalesced with concurrent request");
+
+                Response response = new Response();
+                response.setValue("Resize completed successfully!");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
             }
 
-            int srcWidth = srcImage.getWidth();
-            int srcHeight = srcImage.getHeight();
+            // Nothing to do for an image at most 800px wide with no operations: the header at the
+            // start of the download decides, and the object is copied within S3 instead
+            Object operations = request.get("operations");
+            S3Input.Fetched fetched = S3Input.read(s3Client, bucket, key, inputMode, 800, jpegCodec,
+                    operations == null ? header -> header.width() <= 800 : null);
+            if (fetched.decoded() == null) {
+                Decoder.Header header = fetched.header();
+                S3Output.copy(s3Client, bucket, key, outKey, cached.sourceContentType(), cached.condition());
+                flight.complete(fetched.size(), true);
+                context.getLogger().log("Image copied unchanged to: " + bucket + "/" + outKey);
+
+                inspector.addAttribute("inputSize", fetched.size());
+                inspector.addAttribute("originalWidth", header.width());
+                inspector.addAttribute("originalHeight", header.height());
+                inspector.addAttribute("format", header.format().formatName());
+                inspector.addAttribute("resized", 0);  // Use 0/1 instead of boolean for faas_runner compatibility
+                inspector.addAttribute("passthrough", 1);
+                inspector.addAttribute("codecSetupTime", Codecs.takeSetupTime());
+                inspector.addAttribute("bucket", bucket);
+                inspector.addAttribute("key", outKey);
+                inspector.addAttribute("message", "Image already fits, copied unchanged");
+
+                Response response = new Response();
+                response.setValue("Resize completed successfully!");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
+            inspector.addAttribute("inputSize", fetched.size());
+            inspector.addAttribute("downloadParts", fetched.parts());
+            Decoder.Decoded decoded = fetched.decoded();
+            BufferedImage srcImage = decoded.image();
+            Codecs.Format format = decoded.format();
+
+            int srcWidth = decoded.sourceWidth();
+            int srcHeight = decoded.sourceHeight();
             inspector.addAttribute("originalWidth", srcWidth);
             inspector.addAttribute("originalHeight", srcHeight);
+            inspector.addAttribute("decodeSubsampling", decoded.subsampling());
+            inspector.addAttribute("inputLayout", decoded.layout());
+            inspector.addAttribute("decoder", decoded.decoder().name());
+            RasterCache.Stats rasters = RasterCache.takeStats();
+            inspector.addAttribute("rasterCacheHits", rasters.hits());
+            inspector.addAttribute("rasterCacheMisses", rasters.misses());
+            inspector.addAttribute("rasterCacheEvictions", rasters.evictions());
+            inspector.addAttribute("rasterCacheBytes", rasters.bytes());
+            DiskCache.Stats disk = DiskCache.takeStats();
+            inspector.addAttribute("diskCacheHits", disk.hits());
+            inspector.addAttribute("diskCacheMisses", disk.misses());
+            inspector.addAttribute("diskCacheEvictions", disk.evictions());
+            inspector.addAttribute("diskCacheBytes", disk.bytes());
+            inspector.addAttribute("format", format.formatName());
 
             // Resize if needed
-            byte[] outputBytes;
-            String outKey = "chatgpt_resized/" + key;
+            LazyImage pending;
 
             if (srcWidth <= 800) {
-                outputBytes = inputBytes;
+                pending = LazyImage.of(srcImage).withOperations(operations);
                 inspector.addAttribute("resized", 0);  // Use 0/1 instead of boolean for faas_runner compatibility
             } else {
                 int newWidth = 800;
                 int newHeight = (int) Math.round((double) srcHeight * ((double) newWidth / (double) srcWidth));
-                BufferedImage dest = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
-                Graphics2D g2 = dest.createGraphics();
-                g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-                g2.drawImage(srcImage, 0, 0, newWidth, newHeight, null);
-                g2.dispose();
-
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ImageIO.write(dest, format, baos);
-                outputBytes = baos.toByteArray();
+                inspector.addAttribute("halvingLevels", Resampler.halvingLevels(srcImage.getWidth(), srcImage.getHeight(),
+                        newWidth, newHeight));
+                pending = LazyImage.of(srcImage)
+                        .resize(newWidth, newHeight, filter)
+                        .withOperations(operations);
 
                 inspector.addAttribute("resized", 1);  // Use 0/1 instead of boolean for faas_runner compatibility
                 inspector.addAttribute("newWidth", newWidth);
                 inspector.addAttribute("newHeight", newHeight);
             }
 
-            // Upload to S3
-            s3Client.putObject(
-                    PutObjectRequest.builder()
-                            .bucket(bucket)
-                            .key(outKey)
-                            .contentType(contentType != null ? contentType : "application/octet-stream")
-                            .build(),
-                    RequestBody.fromBytes(outputBytes));
+            // Encode straight into the S3 upload: a pooled buffer and one PUT, or a
+            // multipart upload that overlaps with encoding for large results
+            inspector.addAttribute("plan", pending.plan());
+            BufferedImage dest = pending.render();
+            boolean gray = pending.isGray();
+            S3Output.Uploaded uploaded = S3Output.upload(s3Client, bucket, outKey, format.mimeType(),
+                    OutputBuffer.estimate(fetched.size(), (long) srcWidth * srcHeight,
+                            (long) dest.getWidth() * dest.getHeight(), gray),
+                    cached.condition(),
+                    out -> Encoder.write(dest, format, gray, png, jpegCodec, out));
+            flight.complete(uploaded.size(), uploaded.stored());
+            inspector.addAttribute("codecSetupTime", Codecs.takeSetupTime());
+            inspector.addAttribute("uploadRequests", uploaded.requests());
+            inspector.addAttribute("outputStored", uploaded.stored() ? 1 : 0);  // Use 0/1 instead of boolean for faas_runner compatibility
+            OutputBuffer.Stats pool = OutputBuffer.takeStats();
+            inspector.addAttribute("outputPoolHits", pool.hits());
+            inspector.addAttribute("outputPoolMisses", pool.misses());
+            inspector.addAttribute("outputBytesCopied", pool.bytesCopied());
+            // Hand the result's pixels back for the next invocation
+            pending.recycle(dest);
+            PixelPool.Stats pixels = PixelPool.takeStats();
+            inspector.addAttribute("pixelPoolHits", pixels.hits());
+            inspector.addAttribute("pixelPoolMisses", pixels.misses());
+            inspector.addAttribute("pixelPoolBytes", pixels.bytes());
 
             context.getLogger().log("Resized image uploaded to: " + bucket + "/" + outKey);
 
@@ -100,32 +203,20 @@ public class Resize implements RequestHandler<HashMap<String, Object>, HashMap<S
             inspector.consumeResponse(response);
 
         } catch (Exception e) {
+            if (flight != null) {
+                flight.fail(e);
+            }
             context.getLogger().log("Error: " + e.getMessage());
             inspector.addAttribute("error", e.getMessage());
             throw new RuntimeException(e);
+        } finally {
+            if (flight != null) {
+                flight.finish();
+            }
         }
 
         // Collect final metrics
         inspector.inspectAllDeltas();
         return inspector.finish();
     }
-
-    private String detectFormat(String contentType, String key) {
-        if (contentType != null) {
-            String ct = contentType.toLowerCase();
-            if (ct.equals("image/jpeg") || ct.equals("image/jpg")) return "jpeg";
-            if (ct.equals("image/png")) return "png";
-            if (ct.equals("image/gif")) return "gif";
-            if (ct.equals("image/bmp")) return "bmp";
-        }
-        if (key != null) {
-            int idx = key.lastIndexOf('.');
-            if (idx >= 0 && idx < key.length() - 1) {
-                String ext = key.substring(idx + 1).toLowerCase();
-                if (ext.equals("jpg")) return "jpeg";
-                return ext;
-            }
-        }
-        return "jpeg";
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,279 @@
+package storage;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Output stream that uploads to S3 in parts while it is being written.
+ *
+ * Bytes are collected in part buffers of S3_UPLOAD_PART_SIZE bytes
+ * (default 8 MB, at least the 5 MB S3 minimum). When the first buffer is
+ * full a multipart upload is started, and every full buffer is sent with
+ * UploadPart on a background thread while the writer fills the next one.
+ * At most S3_UPLOAD_CONCURRENCY parts (default 4) are in flight; a writer
+ * that gets further ahead waits for a buffer to come back, so at most
+ * that many buffers plus one are ever allocated. {@link #close()} sends
+ * the last part and completes the upload; if anything fails the upload is
+ * aborted so no parts are left behind. Output that never fills one buffer
+ * is sent with a single PutObject instead. Metadata is set when the upload
+ * is created and a write condition is checked when it is completed; if
+ * the condition fails the upload is aborted and {@link #stored()} is false.
+ *
+ * @author Justin Le
+ */
+final class MultipartOutput extends OutputStream {
+
+    static final int PART_SIZE = (int) Math.max(5L * 1024 * 1024,
+            RangedDownload.setting("S3_UPLOAD_PART_SIZE", 8L * 1024 * 1024, 1));
+    static final int CONCURRENCY = (int) RangedDownload.setting("S3_UPLOAD_CONCURRENCY", 4, 1);
+
+    private static final ExecutorService UPLOADERS = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "s3-part");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final S3Client s3;
+    private final String bucket;
+    private final String key;
+    private final String contentType;
+    private final S3Output.Conditional condition;
+
+    private final BlockingQueue<byte[]> free = new LinkedBlockingQueue<>();
+    private final List<Future<CompletedPart>> parts = new ArrayList<>();
+    private int allocated;
+    private byte[] current;
+    private int count;
+    private long size;
+    private String uploadId;
+    private volatile Throwable failure;
+    private boolean closed;
+    private boolean stored;
+
+    MultipartOutput(S3Client s3, String bucket, String key, String contentType, S3Output.Conditional condition) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.contentType = contentType;
+        this.condition = condition;
+    }
+
+    /**
+     * @return Bytes written so far.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return Requests used to store the object: parts of the multipart
+     *         upload, or 1 for a single PutObject.
+     */
+    int requests() {
+        return uploadId == null ? 1 : parts.size();
+    }
+
+    /**
+     * @return True once the object was stored, false if it was not (yet) or
+     *         the write condition failed.
+     */
+    boolean stored() {
+        return stored;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Upload already closed");
+        }
+        while (len > 0) {
+            if (current == null) {
+                current = takeBuffer();
+            }
+            int n = Math.min(len, current.length - count);
+            System.arraycopy(b, off, current, count, n);
+            count += n;
+            size += n;
+            off += n;
+            len -= n;
+            if (count == current.length) {
+                sendPart();
+            }
+        }
+    }
+
+    /**
+     * Send what is left and complete the upload, or abort it if a part failed.
+     *
+     * @throws IOException If the object could not be stored.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (uploadId == null) {
+                int length = count;
+                byte[] data = current != null ? current : new byte[0];
+                stored = S3Output.put(s3, bucket, key, contentType, condition,
+                        RequestBody.fromContentProvider(() -> new ByteArrayInputStream(data, 0, length), length,
+                                contentType));
+                return;
+            }
+            if (count > 0) {
+                sendPart();
+            }
+            List<CompletedPart> completed = new ArrayList<>(parts.size());
+            for (Future<CompletedPart> part : parts) {
+                completed.add(part.get());
+            }
+            CompleteMultipartUploadRequest.Builder complete = CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build());
+            if (condition != null) {
+                complete.overrideConfiguration(condition.precondition());
+            }
+            try {
+                s3.completeMultipartUpload(complete.build());
+                stored = true;
+            } catch (S3Exception e) {
+                if (condition == null || !S3Output.isConditionFailure(e)) {
+                    throw e;
+                }
+                abort();
+            }
+        } catch (ExecutionException e) {
+            abort();
+            throw new IOException("Failed to upload " + key, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new InterruptedIOException("Interrupted while uploading " + key);
+        } catch (RuntimeException e) {
+            abort();
+            throw new IOException("Failed to upload " + key, e);
+        } finally {
+            current = null;
+            free.clear();
+        }
+    }
+
+    /**
+     * Discard the upload: stop sending parts and abort the multipart upload
+     * if one was started. Safe to call more than once.
+     */
+    void abort() {
+        closed = true;
+        for (Future<CompletedPart> part : parts) {
+            part.cancel(true);
+        }
+        if (uploadId != null) {
+            String id = uploadId;
+            uploadId = null;
+            try {
+                s3.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .uploadId(id)
+                        .build());
+            } catch (RuntimeException e) {
+                // Best effort; parts that could not be aborted stay until a lifecycle rule removes them
+            }
+        }
+        current = null;
+        free.clear();
+    }
+
+    private byte[] takeBuffer() throws IOException {
+        // A failed part fails the whole upload, so stop encoding at once
+        checkFailure();
+        byte[] buffer = free.poll();
+        if (buffer == null && allocated <= CONCURRENCY) {
+            allocated++;
+            return new byte[PART_SIZE];
+        }
+        try {
+            if (buffer == null) {
+                buffer = free.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading " + key);
+        }
+        checkFailure();
+        return buffer;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Failed to upload part of " + key, failure);
+        }
+    }
+
+    private void sendPart() {
+        if (uploadId == null) {
+            CreateMultipartUploadRequest.Builder create = CreateMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .contentType(contentType);
+            if (condition != null) {
+                create.metadata(condition.metadata());
+            }
+            uploadId = s3.createMultipartUpload(create.build()).uploadId();
+        }
+        byte[] data = current;
+        int length = count;
+        int partNumber = parts.size() + 1;
+        String id = uploadId;
+        current = null;
+        count = 0;
+        parts.add(UPLOADERS.submit(() -> {
+            try {
+                String eTag = s3.uploadPart(UploadPartRequest.builder()
+                                .bucket(bucket)
+                                .key(key)
+                                .uploadId(id)
+                                .partNumber(partNumber)
+                                .contentLength((long) length)
+                                .build(),
+                        RequestBody.fromContentProvider(() -> new ByteArrayInputStream(data, 0, length), length,
+                                contentType)).eTag();
+                return CompletedPart.builder().partNumber(partNumber).eTag(eTag).build();
+            } catch (RuntimeException e) {
+                failure = e;
+                throw e;
+            } finally {
+                free.add(data);
+            }
+        }));
+    }
+}
@@ -0,0 +1,276 @@
+package image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Decoding with ImageReader instead of ImageIO.read, so the header can be
+ * inspected before any pixels are produced.
+ *
+ * When the caller only needs a small image, the reader is asked to skip
+ * rows and columns while decoding (ImageReadParam source subsampling). A
+ * 6000px JPEG needed at 800px is decoded with factor 7 to 858px, which is
+ * about 1/49th of the pixel memory and far less color conversion work; the
+ * final resample to the exact size then happens on the small image.
+ *
+ * Every decoded image is passed through {@link Normalizer}, so callers get
+ * BYTE_GRAY, 3BYTE_BGR or INT_ARGB whatever the file held.
+ *
+ * The reader comes from {@link Codecs}: the format is recognised from the
+ * file signature and the thread's warm reader for it is reused. Only inputs
+ * with an unknown signature go through the ImageIO provider search.
+ *
+ * @author Justin Le
+ */
+public final class Decoder {
+
+    /**
+     * A decoded image together with the size it has in the file.
+     *
+     * @param image Decoded (possibly subsampled) image.
+     * @param sourceWidth Width stored in the file.
+     * @param sourceHeight Height stored in the file.
+     * @param subsampling Subsampling factor used in both directions (1 = none).
+     * @param layout Layout the reader produced before normalisation, see
+     *               {@link Normalizer#describe}.
+     * @param format Format of the file; PNG for formats without a writer,
+     *               so the result can always be encoded losslessly.
+     * @param decoder Codec that produced the pixels.
+     * @param gray True if the file stores 8-bit gray pixels, as in {@link Header#gray()}.
+     */
+    public record Decoded(BufferedImage image, int sourceWidth, int sourceHeight, int subsampling,
+            String layout, Codecs.Format format, TurboJpeg.Backend decoder, boolean gray) {
+
+        /**
+         * @return What {@link #probe} reports for the file.
+         */
+        public Header header() {
+            return new Header(sourceWidth, sourceHeight, format, gray);
+        }
+    }
+
+    /**
+     * What the header of a file says, see {@link #probe}.
+     *
+     * @param width Width stored in the file.
+     * @param height Height stored in the file.
+     * @param format Format of the file, as in {@link Decoded#format()}.
+     * @param gray True if the pixels are 8-bit gray (with or without alpha).
+     */
+    public record Header(int width, int height, Codecs.Format format, boolean gray) {
+    }
+
+    private Decoder() {
+    }
+
+    /**
+     * Largest integer factor that keeps the decoded width at or above the
+     * target width.
+     *
+     * @param sourceWidth Width stored in the file.
+     * @param targetWidth Width the caller will resize to, 0 for no limit.
+     * @return Subsampling factor, at least 1.
+     */
+    public static int subsamplingFactor(int sourceWidth, int targetWidth) {
+        if (targetWidth <= 0 || sourceWidth <= targetWidth) {
+            return 1;
+        }
+        return Math.max(1, sourceWidth / targetWidth);
+    }
+
+    /**
+     * Decode the first image of a stream.
+     *
+     * @param input Stream positioned at the start of the image.
+     * @param targetWidth Width the caller will resize to, 0 to decode at full size.
+     * @param region Source region to decode, or null for the whole image.
+     * @return The decoded image.
+     * @throws IOException If no reader understands the stream or decoding fails.
+     */
+    public static Decoded read(ImageInputStream input, int targetWidth, Rectangle region) throws IOException {
+        Opened opened = open(input);
+        ImageReader reader = opened.reader();
+        try {
+            if (input instanceof StreamingInput streaming
+                    && (opened.format() == Codecs.Format.JPEG || opened.format() == Codecs.Format.PNG)) {
+                streaming.trimWhileDecoding(reader);
+            }
+            reader.setInput(input, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            int regionWidth = width;
+            if (region != null) {
+                param.setSourceRegion(region);
+                regionWidth = region.width;
+            }
+            int factor = subsamplingFactor(regionWidth, targetWidth);
+            if (factor > 1) {
+                param.setSourceSubsampling(factor, factor, 0, 0);
+            }
+            boolean gray = isGray(reader.getRawImageType(0));
+            BufferedImage image = reader.read(0, param);
+            return new Decoded(Normalizer.normalize(image), width, height, factor, Normalizer.describe(image),
+                    opened.format(), TurboJpeg.Backend.IMAGEIO, gray);
+        } finally {
+            opened.release();
+        }
+    }
+
+    /**
+     * Read only the header of the first image: size, format and whether it
+     * is 8-bit gray. No pixels are decoded, and the reader stops as soon as
+     * it has the header, so a short prefix of the file is usually enough.
+     *
+     * @param input Stream positioned at the start of the image.
+     * @return The header.
+     * @throws IOException If no reader understands the stream or the header
+     *                     is incomplete.
+     */
+    public static Header probe(ImageInputStream input) throws IOException {
+        Opened opened = open(input);
+        ImageReader reader = opened.reader();
+        try {
+            reader.setInput(input, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            return new Header(width, height, opened.format(), isGray(reader.getRawImageType(0)));
+        } finally {
+            opened.release();
+        }
+    }
+
+    /**
+     * @param type Raw image type of a reader, null if it has none.
+     * @return True for 8-bit gray, with or without alpha.
+     */
+    private static boolean isGray(ImageTypeSpecifier type) {
+        return type != null
+                && !(type.getColorModel() instanceof IndexColorModel)
+                && type.getColorModel().getNumColorComponents() == 1
+                && type.getSampleModel().getSampleSize(0) == 8;
+    }
+
+    /**
+     * The calling thread's reader for the format of input, or a new one
+     * from the ImageIO provider search if the signature is not known.
+     */
+    private static Opened open(ImageInputStream input) throws IOException {
+        Codecs.Format format = Codecs.sniff(input);
+        ImageReader reader = format == null ? null : Codecs.reader(format);
+        if (reader != null) {
+            return new Opened(reader, format, true);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("Failed to read image: unsupported format");
+        }
+        reader = readers.next();
+        format = Codecs.Format.parse(reader.getFormatName());
+        return new Opened(reader, format != null ? format : Codecs.Format.PNG, false);
+    }
+
+    /**
+     * A reader ready for use, and whether it belongs to {@link Codecs}.
+     */
+    private record Opened(ImageReader reader, Codecs.Format format, boolean shared) {
+        void release() {
+            if (shared) {
+                reader.reset();
+            } else {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decode the first image of a stream while it is still arriving, e.g.
+     * an S3 response. JPEG and PNG bytes the decoder is done with are
+     * released as it goes, so the compressed file is never held whole.
+     *
+     * @param in Stream positioned at the start of the image; not closed.
+     * @param targetWidth Width the caller will resize to, 0 to decode at full size.
+     * @param region Source region to decode, or null for the whole image.
+     * @return The decoded image.
+     * @throws IOException If no reader understands the stream, or reading or decoding fails.
+     */
+    public static Decoded read(InputStream in, int targetWidth, Rectangle region) throws IOException {
+        try (ImageInputStream input = Codecs.input(in)) {
+            return read(input, targetWidth, region);
+        }
+    }
+
+    /**
+     * Decode the first image of a buffer, read in place.
+     *
+     * @param data Encoded image from its position to its limit.
+     * @param targetWidth Width the caller will resize to, 0 to decode at full size.
+     * @param region Source region to decode, or null for the whole image.
+     * @return The decoded image.
+     * @throws IOException If no reader understands the data or decoding fails.
+     */
+    public static Decoded read(ByteBuffer data, int targetWidth, Rectangle region) throws IOException {
+        try (ImageInputStream input = Codecs.input(data)) {
+            return read(input, targetWidth, region);
+        }
+    }
+
+    /**
+     * Decode the first image of a buffer with the given JPEG backend.
+     *
+     * TURBOJPEG decodes whole JPEGs natively, DCT scaled by 1/2, 1/4 or 1/8
+     * instead of subsampled when the target width allows it. Everything
+     * else (other formats, regions, CMYK files, files the library rejects,
+     * or no usable library) is decoded by ImageIO as in
+     * {@link #read(ByteBuffer, int, Rectangle)}.
+     *
+     * @param data Encoded image from its position to its limit.
+     * @param targetWidth Width the caller will resize to, 0 to decode at full size.
+     * @param region Source region to decode, or null for the whole image.
+     * @param backend Requested JPEG backend.
+     * @return The decoded image; {@link Decoded#decoder()} tells which backend ran.
+     * @throws IOException If no reader understands the data or decoding fails.
+     */
+    public static Decoded read(ByteBuffer data, int targetWidth, Rectangle region, TurboJpeg.Backend backend)
+            throws IOException {
+        if (region == null && TurboJpeg.effective(backend) == TurboJpeg.Backend.TURBOJPEG
+                && data.remaining() > 2
+                && data.get(data.position()) == (byte) 0xFF && data.get(data.position() + 1) == (byte) 0xD8) {
+            try {
+                Decoded decoded = TurboJpeg.decode(data, targetWidth);
+                if (decoded != null) {
+                    return decoded;
+                }
+            } catch (IOException e) {
+                // e.g. a truncated file, which the ImageIO reader tolerates
+            }
+        }
+        return read(data, targetWidth, region);
+    }
+
+    /**
+     * Decode the first image of an encoded byte array.
+     *
+     * @param data Encoded image.
+     * @param targetWidth Width the caller will resize to, 0 to decode at full size.
+     * @param region Source region to decode, or null for the whole image.
+     * @return The decoded image.
+     * @throws IOException If no reader understands the data or decoding fails.
+     */
+    public static Decoded read(byte[] data, int targetWidth, Rectangle region) throws IOException {
+        try (ImageInputStream input = Codecs.input(data)) {
+            return read(input, targetWidth, region);
+        }
+    }
+}
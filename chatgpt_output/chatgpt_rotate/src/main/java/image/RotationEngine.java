@@ -0,0 +1,242 @@
+package image;
+
+import java.awt.image.BufferedImage;
+import java.util.Locale;
+
+/**
+ * Lossless right-angle rotations and flips done as a cache-blocked transpose
+ * of the raster arrays.
+ *
+ * Every orientation is expressed as a linear mapping of source pixel (x, y)
+ * to destination index origin + x * stepX + y * stepY. The source is walked
+ * in square tiles so that both the reads and the strided writes stay in
+ * cache, and tile rows are processed in parallel.
+ *
+ * @author Justin Le
+ */
+public final class RotationEngine {
+
+    private static final int TILE = 64;
+
+    /**
+     * The eight EXIF style orientations.
+     */
+    public enum Orientation {
+        NONE(false, "left unchanged"),
+        ROTATE_90(true, "rotated 90 degrees clockwise"),
+        ROTATE_180(false, "rotated 180 degrees"),
+        ROTATE_270(true, "rotated 270 degrees clockwise"),
+        FLIP_HORIZONTAL(false, "flipped horizontally"),
+        FLIP_VERTICAL(false, "flipped vertically"),
+        TRANSPOSE(true, "transposed"),
+        TRANSVERSE(true, "transversed");
+
+        private final boolean swapsAxes;
+        private final String description;
+
+        Orientation(boolean swapsAxes, String description) {
+            this.swapsAxes = swapsAxes;
+            this.description = description;
+        }
+
+        /**
+         * @return True if the output width is the input height.
+         */
+        public boolean swapsAxes() {
+            return swapsAxes;
+        }
+
+        /**
+         * @return Human readable description for response messages.
+         */
+        public String describe() {
+            return description;
+        }
+
+        /**
+         * Parse an orientation from a request parameter.
+         *
+         * @param value Name (rotate_90, flip_horizontal, transpose, ...), a
+         *              clockwise angle in degrees (90, 180, 270, -90), or null.
+         * @param defaultValue Returned when value is null or empty.
+         * @return The matching orientation.
+         */
+        public static Orientation parse(Object value, Orientation defaultValue) {
+            if (value == null || value.toString().isEmpty()) {
+                return defaultValue;
+            }
+            if (value instanceof Number number) {
+                return fromDegrees(number.doubleValue());
+            }
+            String name = value.toString().trim().toUpperCase(Locale.ROOT);
+            switch (name) {
+                case "CW":
+                    return ROTATE_90;
+                case "CCW":
+                    return ROTATE_270;
+                case "FLIPH":
+                case "HORIZONTAL":
+                    return FLIP_HORIZONTAL;
+                case "FLIPV":
+                case "VERTICAL":
+                    return FLIP_VERTICAL;
+                default:
+                    break;
+            }
+            try {
+                return fromDegrees(Double.parseDouble(name));
+            } catch (NumberFormatException e) {
+                return valueOf(name);
+            }
+        }
+
+        /**
+         * @param degrees Angle in degrees.
+         * @return True if the angle is a multiple of 90 degrees.
+         */
+        public static boolean isRightAngle(double degrees) {
+            return degrees % 90 == 0;
+        }
+
+        /**
+         * @param degrees Clockwise angle.
+         * @return The rotation for a multiple of 90 degrees.
+         * @throws IllegalArgumentException If the angle is not a right angle.
+         */
+        public static Orientation fromDegrees(double degrees) {
+            double normalized = ((degrees % 360) + 360) % 360;
+            if (normalized == 0) {
+                return NONE;
+            } else if (normalized == 90) {
+                return ROTATE_90;
+            } else if (normalized == 180) {
+                return ROTATE_180;
+            } else if (normalized == 270) {
+                return ROTATE_270;
+            }
+            throw new IllegalArgumentException("Not a right angle: " + degrees);
+        }
+    }
+
+    private RotationEngine() {
+    }
+
+    /**
+     * Rotate or flip an image. Compact byte and packed int images keep their
+     * type; anything else is converted to INT_ARGB / INT_RGB first.
+     *
+     * @param src Source image.
+     * @param orientation Orientation to apply.
+     * @return New image (src itself for NONE).
+     */
+    public static BufferedImage apply(BufferedImage src, Orientation orientation) {
+        if (orientation == Orientation.NONE) {
+            return src;
+        }
+        src = Normalizer.normalize(src);
+
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+        int dstWidth = orientation.swapsAxes() ? height : width;
+        int dstHeight = orientation.swapsAxes() ? width : height;
+        BufferedImage dst = PixelPool.image(dstWidth, dstHeight, src.getType());
+
+        // Destination pixel index of source (x, y) = origin + x * stepX + y * stepY.
+        final int origin;
+        final int stepX;
+        final int stepY;
+        switch (orientation) {
+            case ROTATE_90:
+                origin = height - 1;
+                stepX = height;
+                stepY = -1;
+                break;
+            case ROTATE_180:
+                origin = height * width - 1;
+                stepX = -1;
+                stepY = -width;
+                break;
+            case ROTATE_270:
+                origin = (width - 1) * height;
+                stepX = -height;
+                stepY = 1;
+                break;
+            case FLIP_HORIZONTAL:
+                origin = width - 1;
+                stepX = -1;
+                stepY = width;
+                break;
+            case FLIP_VERTICAL:
+                origin = (height - 1) * width;
+                stepX = 1;
+                stepY = -width;
+                break;
+            case TRANSPOSE:
+                origin = 0;
+                stepX = height;
+                stepY = 1;
+                break;
+            case TRANSVERSE:
+                origin = width * height - 1;
+                stepX = -height;
+                stepY = -1;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported orientation " + orientation);
+        }
+
+        int tileRows = (height + TILE - 1) / TILE;
+        int n = Rasters.byteChannels(src);
+        if (n > 0) {
+            byte[] in = Rasters.bytes(src);
+            byte[] out = Rasters.bytes(dst);
+            Parallel.forEachBand(tileRows, 1, (start, end) ->
+                    transposeBytes(in, out, n, width, start * TILE, Math.min(height, end * TILE),
+                            origin, stepX, stepY));
+        } else {
+            int[] in = Rasters.ints(src);
+            int[] out = Rasters.ints(dst);
+            Parallel.forEachBand(tileRows, 1, (start, end) ->
+                    transposeInts(in, out, width, start * TILE, Math.min(height, end * TILE),
+                            origin, stepX, stepY));
+        }
+        return dst;
+    }
+
+    private static void transposeInts(int[] in, int[] out, int width, int y0, int y1,
+            int origin, int stepX, int stepY) {
+        for (int ty = y0; ty < y1; ty += TILE) {
+            int tyEnd = Math.min(y1, ty + TILE);
+            for (int tx = 0; tx < width; tx += TILE) {
+                int txEnd = Math.min(width, tx + TILE);
+                for (int y = ty; y < tyEnd; y++) {
+                    int s = y * width + tx;
+                    int d = origin + tx * stepX + y * stepY;
+                    for (int x = tx; x < txEnd; x++, s++, d += stepX) {
+                        out[d] = in[s];
+                    }
+                }
+            }
+        }
+    }
+
+    private static void transposeBytes(byte[] in, byte[] out, int n, int width, int y0, int y1,
+            int origin, int stepX, int stepY) {
+        int dStep = stepX * n;
+        for (int ty = y0; ty < y1; ty += TILE) {
+            int tyEnd = Math.min(y1, ty + TILE);
+            for (int tx = 0; tx < width; tx += TILE) {
+                int txEnd = Math.min(width, tx + TILE);
+                for (int y = ty; y < tyEnd; y++) {
+                    int s = (y * width + tx) * n;
+                    int d = (origin + tx * stepX + y * stepY) * n;
+                    for (int x = tx; x < txEnd; x++, s += n, d += dStep) {
+                        for (int c = 0; c < n; c++) {
+                            out[d + c] = in[s + c];
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package image;
+
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Memory cached ImageIO output stream that passes data on to the
+ * destination while the writer is still encoding.
+ *
+ * MemoryCacheImageOutputStream only hands bytes to its OutputStream when
+ * the writer calls flushBefore or the stream is closed. The PNG writer
+ * flushes after every chunk, but the JPEG and GIF writers never do, so
+ * their whole output would sit in the cache until the end. Both only write
+ * forward once past their headers (the JFIF writer seeks back within a
+ * marker segment at most), so for them this stream flushes everything
+ * more than {@link #LAG} bytes behind the write position. BMP and TIFF
+ * seek back to the file header at the end and are left cached.
+ *
+ * @author Justin Le
+ */
+final class StreamingOutput extends MemoryCacheImageOutputStream {
+
+    private static final int LAG = 64 * 1024;
+    private static final int BLOCK = 64 * 1024;
+
+    private final boolean forwardOnly;
+
+    /**
+     * @param out Destination, left open.
+     * @param forwardOnly True if the writer never seeks back more than LAG bytes.
+     */
+    StreamingOutput(OutputStream out, boolean forwardOnly) {
+        super(out);
+        this.forwardOnly = forwardOnly;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        super.write(b);
+        trim();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        trim();
+    }
+
+    private void trim() throws IOException {
+        if (forwardOnly) {
+            long keep = getStreamPosition() - LAG;
+            if (keep - getFlushedPosition() >= BLOCK) {
+                flushBefore(keep);
+            }
+        }
+    }
+}
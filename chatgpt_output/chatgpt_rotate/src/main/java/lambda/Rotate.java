@@ -1,22 +1,29 @@
 package lambda;
 
-import java.awt.Graphics2D;
-import java.awt.geom.AffineTransform;
+import image.AffineWarp;
+import image.Codecs;
+import image.Decoder;
+import image.Encoder;
+import image.JpegTransform;
+import image.LazyImage;
+import image.OutputBuffer;
+import image.PixelPool;
+import image.PngEncoder;
+import image.RotationEngine.Orientation;
+import image.TurboJpeg;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.util.HashMap;
-import javax.imageio.ImageIO;
-import software.amazon.awssdk.core.ResponseBytes;
-import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.Context;
 import saaf.Inspector;
 import saaf.Response;
+import storage.DiskCache;
+import storage.RasterCache;
+import storage.ResultCache;
+import storage.S3Input;
+import storage.S3Output;
+import storage.SingleFlight;
 
 public class Rotate implements RequestHandler<HashMap<String, Object>, HashMap<String, Object>> {
 
@@ -26,91 +33,243 @@ public class Rotate implements RequestHandler<HashMap<String, Object>, HashMap<S
         Inspector inspector = new Inspector();
         inspector.inspectAll();
 
+        SingleFlight.Flight flight = null;
         try {
             String bucket = (String) request.get("bucket");
             String key = (String) request.get("key");
+            Object angle = request.get("angle");
+            Object matrix = request.get("matrix");
+            boolean warp = matrix != null
+                    || (angle != null && !Orientation.isRightAngle(Double.parseDouble(angle.toString())));
+            Orientation orientation = angle != null && !warp
+                    ? Orientation.parse(angle, Orientation.ROTATE_90)
+                    : Orientation.parse(request.get("orientation"), Orientation.ROTATE_90);
 
             inspector.addAttribute("bucket", bucket);
             inspector.addAttribute("key", key);
+            if (!warp) {
+                inspector.addAttribute("orientation", orientation.name());
+            }
             context.getLogger().log("Processing: " + bucket + "/" + key);
 
-            ResponseBytes<GetObjectResponse> objectBytes = s3Client.getObjectAsBytes(
-                    GetObjectRequest.builder().bucket(bucket).key(key).build());
-            byte[] inputBytes = objectBytes.asByteArray();
-            String contentType = objectBytes.response().contentType();
-            String format = detectFormat(contentType, key);
+            // Decode while the object streams in (inputMode "buffer" downloads it first)
+            S3Input.Mode inputMode = S3Input.Mode.parse(request.get("inputMode"));
+            inspector.addAttribute("inputMode", inputMode.name());
+            PngEncoder.Settings png = PngEncoder.Settings.parse(request.get("pngLevel"), request.get("pngStrategy"));
+            inspector.addAttribute("pngLevel", png.level());
+            inspector.addAttribute("pngStrategy", png.strategy().name());
+            TurboJpeg.Backend jpegCodec = TurboJpeg.Backend.parse(request.get("jpegCodec"));
+            inspector.addAttribute("jpegCodec", jpegCodec.name());
+            inspector.addAttribute("jpegBackend", TurboJpeg.effective(jpegCodec).name());
+            inspector.addAttribute("turboJpeg", TurboJpeg.status());
+
+            // Stored result of the same source version and parameters: nothing to do
+            String outKey = "chatgpt_rotated/" + key;
+            ResultCache.Lookup cached = ResultCache.lookup(s3Client, bucket, key, outKey, "rotate", request);
+            inspector.addAttribute("cache", cached.status().name());
+            if (cached.hit()) {
+                inspector.addAttribute("bucket", bucket);
+                inspector.addAttribute("key", outKey);
+                inspector.addAttribute("outputSize", cached.outputSize());
+                inspector.addAttribute("message", "Result already stored");
+
+                Response response = new Response();
+                response.setValue("Rotate completed successfully!");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
+
+            // Identical requests running concurrently wait for the first one
+            flight = SingleFlight.join("rotate", bucket, outKey, cached);
+            inspector.addAttribute("coalesced", flight.leader() ? 0 : 1);  // Use 0/1 instead of boolean for faas_runner compatibility
+            if (!flight.leader()) {
+                SingleFlight.Outcome shared = flight.await();
+                inspector.addAttribute("bucket", bucket);
+                inspector.addAttribute("key", outKey);
+                inspector.addAttribute("outputSize", shared.outputSize());
+                inspector.addAttribute("outputStored", shared.stored() ? 1 : 0);  // Use 0/1 instead of boolean for faas_runner compatibility
+                inspector.addAttribute("message", "Coalesced with concurrent request");
+
+                Response response = new Response();
+                response.setValue("Rotate completed successfully!");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
+
+            // Rotation by 0 with no operations: read the header and copy the object within S3
+            if (!warp && orientation == Orientation.NONE && request.get("operations") == null) {
+                S3Input.Probe probe = S3Input.probe(s3Client, bucket, key, inputMode);
+                Decoder.Header header = probe.header();
+                S3Output.copy(s3Client, bucket, key, outKey, cached.sourceContentType(), cached.condition());
+                flight.complete(probe.size(), true);
+                context.getLogger().log("Image copied unchanged to: " + bucket + "/" + outKey);
+
+                inspector.addAttribute("inputSize", probe.size());
+                inspector.addAttribute("originalWidth", header.width());
+                inspector.addAttribute("originalHeight", header.height());
+                inspector.addAttribute("format", header.format().formatName());
+                inspector.addAttribute("passthrough", 1);  // Use 0/1 instead of boolean for faas_runner compatibility
+                inspector.addAttribute("codecSetupTime", Codecs.takeSetupTime());
+                inspector.addAttribute("bucket", bucket);
+                inspector.addAttribute("key", outKey);
+                inspector.addAttribute("rotatedWidth", header.width());
+                inspector.addAttribute("rotatedHeight", header.height());
+                inspector.addAttribute("message", "Image " + orientation.describe());
+
+                Response response = new Response();
+                response.setValue("Rotate completed successfully!");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
+            // Right angles and flips of a JPEG with no operations: rearrange the DCT blocks
+            // losslessly instead of decoding and re-encoding
+            S3Input.Fetched fetched;
+            boolean lossless = !warp && orientation != Orientation.NONE && request.get("operations") == null
+                    && !"false".equalsIgnoreCase(String.valueOf(request.get("lossless")));
+            if (lossless) {
+                // Only a JPEG is kept undecoded; other formats are decoded as they stream in
+                fetched = S3Input.readOrLoad(s3Client, bucket, key, inputMode, 0, jpegCodec,
+                        header -> header.format() == Codecs.Format.JPEG);
+                JpegTransform jpeg = fetched.decoded() == null ? JpegTransform.parse(fetched.data()) : null;
+                JpegTransform.Edges edges = JpegTransform.Edges.parse(request.get("jpegEdges"));
+                if (jpeg != null && jpeg.supports(orientation, edges)) {
+                    int[] rotatedSize = jpeg.outputSize(orientation, edges);
+                    S3Output.Uploaded uploaded = S3Output.upload(s3Client, bucket, outKey,
+                            Codecs.Format.JPEG.mimeType(), fetched.size(), cached.condition(),
+                            out -> jpeg.transform(orientation, edges, out));
+                    flight.complete(uploaded.size(), uploaded.stored());
+                    context.getLogger().log("Losslessly rotated image uploaded to: " + bucket + "/" + outKey);
+
+                    inspector.addAttribute("inputSize", fetched.size());
+                    inspector.addAttribute("downloadParts", fetched.parts());
+                    DiskCache.Stats disk = DiskCache.takeStats();
+                    inspector.addAttribute("diskCacheHits", disk.hits());
+                    inspector.addAttribute("diskCacheMisses", disk.misses());
+                    inspector.addAttribute("diskCacheEvictions", disk.evictions());
+                    inspector.addAttribute("diskCacheBytes", disk.bytes());
+                    inspector.addAttribute("originalWidth", jpeg.width());
+                    inspector.addAttribute("originalHeight", jpeg.height());
+                    inspector.addAttribute("format", Codecs.Format.JPEG.formatName());
+                    inspector.addAttribute("lossless", 1);  // Use 0/1 instead of boolean for faas_runner compatibility
+                    inspector.addAttribute("jpegEdges", edges.name());
+                    inspector.addAttribute("uploadRequests", uploaded.requests());
+                    inspector.addAttribute("outputStored", uploaded.stored() ? 1 : 0);  // Use 0/1 instead of boolean for faas_runner compatibility
+                    inspector.addAttribute("bucket", bucket);
+                    inspector.addAttribute("key", outKey);
+                    inspector.addAttribute("rotatedWidth", rotatedSize[0]);
+                    inspector.addAttribute("rotatedHeight", rotatedSize[1]);
+                    inspector.addAttribute("message", "Image " + orientation.describe() + " losslessly");
 
-            BufferedImage src = ImageIO.read(new ByteArrayInputStream(inputBytes));
-            if (src == null) {
-                throw new RuntimeException("Failed to read image from S3 object");
+                    Response response = new Response();
+                    response.setValue("Rotate completed successfully!");
+                    inspector.consumeResponse(response);
+                    inspector.inspectAllDeltas();
+                    return inspector.finish();
+                }
+                if (fetched.decoded() == null) {
+                    fetched = S3Input.decode(bucket, key, fetched, 0, jpegCodec);
+                }
+            } else {
+                fetched = S3Input.read(s3Client, bucket, key, inputMode, 0, jpegCodec);
             }
+            inspector.addAttribute("lossless", 0);  // Use 0/1 instead of boolean for faas_runner compatibility
+            inspector.addAttribute("inputSize", fetched.size());
+            inspector.addAttribute("downloadParts", fetched.parts());
+            Decoder.Decoded decoded = fetched.decoded();
+            BufferedImage src = decoded.image();
+            Codecs.Format format = decoded.format();
 
             int w = src.getWidth();
             int h = src.getHeight();
             inspector.addAttribute("originalWidth", w);
             inspector.addAttribute("originalHeight", h);
+            inspector.addAttribute("inputLayout", decoded.layout());
+            inspector.addAttribute("decoder", decoded.decoder().name());
+            RasterCache.Stats rasters = RasterCache.takeStats();
+            inspector.addAttribute("rasterCacheHits", rasters.hits());
+            inspector.addAttribute("rasterCacheMisses", rasters.misses());
+            inspector.addAttribute("rasterCacheEvictions", rasters.evictions());
+            inspector.addAttribute("rasterCacheBytes", rasters.bytes());
+            DiskCache.Stats disk = DiskCache.takeStats();
+            inspector.addAttribute("diskCacheHits", disk.hits());
+            inspector.addAttribute("diskCacheMisses", disk.misses());
+            inspector.addAttribute("diskCacheEvictions", disk.evictions());
+            inspector.addAttribute("diskCacheBytes", disk.bytes());
+            inspector.addAttribute("format", format.formatName());
 
-            BufferedImage dst = new BufferedImage(h, w, src.getType() == 0 ? BufferedImage.TYPE_INT_ARGB : src.getType());
-            Graphics2D g2 = dst.createGraphics();
-            AffineTransform at = new AffineTransform();
-            at.translate(h, 0);
-            at.rotate(Math.toRadians(90));
-            g2.drawImage(src, at, null);
-            g2.dispose();
-
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(dst, format, baos);
-            byte[] outputBytes = baos.toByteArray();
+            LazyImage pending = LazyImage.of(src);
+            String description;
+            if (warp) {
+                AffineWarp.Interpolation interpolation = AffineWarp.Interpolation.parse(request.get("interpolation"));
+                AffineWarp.Canvas canvas = AffineWarp.Canvas.parse(request.get("canvas"));
+                if (matrix != null) {
+                    pending = pending.transform(AffineWarp.parseMatrix(matrix), interpolation, canvas);
+                    description = "warped";
+                } else {
+                    double degrees = Double.parseDouble(angle.toString());
+                    pending = pending.rotate(degrees, interpolation, canvas);
+                    description = "rotated " + degrees + " degrees clockwise";
+                }
+            } else {
+                pending = pending.orient(orientation);
+                description = orientation.describe();
+            }
+            pending = pending.withOperations(request.get("operations"));
+            inspector.addAttribute("plan", pending.plan());
+            BufferedImage dst = pending.render();
 
-            String outKey = "chatgpt_rotated/" + key;
-            s3Client.putObject(
-                    PutObjectRequest.builder()
-                            .bucket(bucket)
-                            .key(outKey)
-                            .contentType(contentType != null ? contentType : "application/octet-stream")
-                            .build(),
-                    RequestBody.fromBytes(outputBytes));
+            // Encode straight into the S3 upload: a pooled buffer and one PUT, or a
+            // multipart upload that overlaps with encoding for large results
+            boolean gray = pending.isGray();
+            S3Output.Uploaded uploaded = S3Output.upload(s3Client, bucket, outKey, format.mimeType(),
+                    OutputBuffer.estimate(fetched.size(), (long) w * h, (long) dst.getWidth() * dst.getHeight(), gray),
+                    cached.condition(),
+                    out -> Encoder.write(dst, format, gray, png, jpegCodec, out));
+            flight.complete(uploaded.size(), uploaded.stored());
+            inspector.addAttribute("codecSetupTime", Codecs.takeSetupTime());
+            inspector.addAttribute("uploadRequests", uploaded.requests());
+            inspector.addAttribute("outputStored", uploaded.stored() ? 1 : 0);  // Use 0/1 instead of boolean for faas_runner compatibility
+            OutputBuffer.Stats pool = OutputBuffer.takeStats();
+            inspector.addAttribute("outputPoolHits", pool.hits());
+            inspector.addAttribute("outputPoolMisses", pool.misses());
+            inspector.addAttribute("outputBytesCopied", pool.bytesCopied());
+            // Hand the result's pixels back for the next invocation
+            pending.recycle(dst);
+            PixelPool.Stats pixels = PixelPool.takeStats();
+            inspector.addAttribute("pixelPoolHits", pixels.hits());
+            inspector.addAttribute("pixelPoolMisses", pixels.misses());
+            inspector.addAttribute("pixelPoolBytes", pixels.bytes());
 
             context.getLogger().log("Rotated image uploaded to: " + bucket + "/" + outKey);
 
             // Set bucket and key to OUTPUT values for pipeline chaining
             inspector.addAttribute("bucket", bucket);
             inspector.addAttribute("key", outKey);
-            inspector.addAttribute("rotatedWidth", h);
-            inspector.addAttribute("rotatedHeight", w);
-            inspector.addAttribute("message", "Image rotated 90 degrees clockwise");
+            inspector.addAttribute("rotatedWidth", dst.getWidth());
+            inspector.addAttribute("rotatedHeight", dst.getHeight());
+            inspector.addAttribute("message", "Image " + description);
 
             Response response = new Response();
             response.setValue("Rotate completed successfully!");
             inspector.consumeResponse(response);
 
         } catch (Exception e) {
+            if (flight != null) {
+                flight.fail(e);
+            }
             context.getLogger().log("Error: " + e.getMessage());
             inspector.addAttribute("error", e.getMessage());
             throw new RuntimeException(e);
+        } finally {
+            if (flight != null) {
+                flight.finish();
+            }
         }
 
         inspector.inspectAllDeltas();
         return inspector.finish();
     }
-
-    private String detectFormat(String contentType, String key) {
-        if (contentType != null) {
-            String ct = contentType.toLowerCase();
-            if (ct.equals("image/jpeg") || ct.equals("image/jpg")) return "jpeg";
-            if (ct.equals("image/png")) return "png";
-            if (ct.equals("image/gif")) return "gif";
-            if (ct.equals("image/bmp")) return "bmp";
-        }
-        if (key != null) {
-            int idx = key.lastIndexOf('.');
-            if (idx >= 0 && idx < key.length() - 1) {
-                String ext = key.substring(idx + 1).toLowerCase();
-                if (ext.equals("jpg")) return "jpeg";
-                return ext;
-            }
-        }
-        return "jpeg";
-    }
 }
-
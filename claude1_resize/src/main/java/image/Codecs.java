@@ -0,0 +1,402 @@
+package image;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Codec registry built once per container.
+ *
+ * ImageIO.read and ImageIO.write look up the service registry on every call,
+ * let every registered reader probe the stream with canDecodeInput, create a
+ * new reader or writer and, by default, back their streams with temporary
+ * files. Here the reader and writer providers of the formats the JDK ships
+ * are resolved once at class load, the format of an input is taken from its
+ * first bytes, and each thread keeps one warm reader and writer per format
+ * (reset, not disposed, between uses). Writers share preset parameters:
+ * JPEG quality from IMAGE_JPEG_QUALITY (0 to 1, default 0.75) and the PNG
+ * deflate level from IMAGE_PNG_LEVEL (0 to 9, default 4), both the ImageIO
+ * defaults. The ImageIO disk cache is turned off; everything stays in memory.
+ *
+ * The time spent on this setup (registry build, sniffing, getting a reader
+ * or writer ready) is added up per thread and reported by
+ * {@link #takeSetupTime()} for the SAAF output.
+ *
+ * @author Justin Le
+ */
+public final class Codecs {
+
+    /**
+     * Image formats with a reader and writer in the JDK.
+     */
+    public enum Format {
+        JPEG("jpeg", "image/jpeg"),
+        PNG("png", "image/png"),
+        GIF("gif", "image/gif"),
+        BMP("bmp", "image/bmp"),
+        TIFF("tiff", "image/tiff");
+
+        private final String formatName;
+        private final String mimeType;
+
+        Format(String formatName, String mimeType) {
+            this.formatName = formatName;
+            this.mimeType = mimeType;
+        }
+
+        /**
+         * @return ImageIO format name.
+         */
+        public String formatName() {
+            return formatName;
+        }
+
+        /**
+         * @return Content type for uploads.
+         */
+        public String mimeType() {
+            return mimeType;
+        }
+
+        /**
+         * Parse a format name, file extension or content type.
+         *
+         * @param value Value such as "jpg", "JPEG" or "image/png".
+         * @return The matching format, or null if value is null or not one
+         *         of the formats.
+         */
+        public static Format parse(Object value) {
+            if (value == null) {
+                return null;
+            }
+            String name = value.toString().trim().toLowerCase(Locale.ROOT);
+            if (name.startsWith("image/")) {
+                name = name.substring(6);
+            }
+            switch (name) {
+                case "jpeg":
+                case "jpg":
+                    return JPEG;
+                case "png":
+                    return PNG;
+                case "gif":
+                    return GIF;
+                case "bmp":
+                    return BMP;
+                case "tif":
+                case "tiff":
+                    return TIFF;
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Recognise a format from the first bytes of a file.
+         *
+         * @param head Leading bytes.
+         * @param length Number of valid bytes in head.
+         * @return The format, or null if the signature is not known.
+         */
+        public static Format sniff(byte[] head, int length) {
+            if (startsWith(head, length, 0xFF, 0xD8, 0xFF)) {
+                return JPEG;
+            }
+            if (startsWith(head, length, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+                return PNG;
+            }
+            if (startsWith(head, length, 'G', 'I', 'F', '8')) {
+                return GIF;
+            }
+            if (startsWith(head, length, 'B', 'M')) {
+                return BMP;
+            }
+            if (startsWith(head, length, 'I', 'I', 42, 0) || startsWith(head, length, 'M', 'M', 0, 42)) {
+                return TIFF;
+            }
+            return null;
+        }
+
+        private static boolean startsWith(byte[] head, int length, int... signature) {
+            if (length < signature.length) {
+                return false;
+            }
+            for (int i = 0; i < signature.length; i++) {
+                if ((head[i] & 0xFF) != signature[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final int SNIFF_BYTES = 8;
+
+    static final float JPEG_QUALITY = setting("IMAGE_JPEG_QUALITY", 0.75f, 0f, 1f);
+    static final int PNG_LEVEL = (int) setting("IMAGE_PNG_LEVEL", 4, 0, 9);
+
+    private static final Map<Format, ImageReaderSpi> READERS = new EnumMap<>(Format.class);
+    private static final Map<Format, ImageWriterSpi> WRITERS = new EnumMap<>(Format.class);
+
+    /**
+     * Registry build time not yet reported by any thread.
+     */
+    private static final AtomicLong UNREPORTED_SETUP = new AtomicLong();
+
+    private static final ThreadLocal<Map<Format, ImageReader>> THREAD_READERS =
+            ThreadLocal.withInitial(() -> new EnumMap<>(Format.class));
+    private static final ThreadLocal<Map<Format, WriterSlot>> THREAD_WRITERS =
+            ThreadLocal.withInitial(() -> new EnumMap<>(Format.class));
+    private static final ThreadLocal<long[]> SETUP_NANOS = ThreadLocal.withInitial(() -> new long[1]);
+
+    static {
+        long start = System.nanoTime();
+        ImageIO.setUseCache(false);
+        for (Format format : Format.values()) {
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(format.formatName);
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                READERS.put(format, reader.getOriginatingProvider());
+                reader.dispose();
+            }
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format.formatName);
+            if (writers.hasNext()) {
+                ImageWriter writer = writers.next();
+                WRITERS.put(format, writer.getOriginatingProvider());
+                writer.dispose();
+            }
+        }
+        UNREPORTED_SETUP.set(System.nanoTime() - start);
+    }
+
+    /**
+     * A warm writer and the preset parameters made for it.
+     */
+    private record WriterSlot(ImageWriter writer, ImageWriteParam param) {
+    }
+
+    private Codecs() {
+    }
+
+    /**
+     * Wrap bytes already in memory as an ImageIO stream, without the
+     * provider lookup of ImageIO.createImageInputStream and without copying
+     * them into a stream cache.
+     *
+     * @param data Encoded image.
+     * @return Stream over data.
+     */
+    public static ImageInputStream input(byte[] data) {
+        return new ByteBufferInput(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Wrap a buffer as an ImageIO stream that reads it in place.
+     *
+     * @param data Encoded image from its position to its limit; neither is changed.
+     * @return Stream over data.
+     */
+    public static ImageInputStream input(ByteBuffer data) {
+        return new ByteBufferInput(data);
+    }
+
+    /**
+     * Map a local file read-only and wrap it as an ImageIO stream. Pages
+     * are read by the kernel as the decoder touches them and never copied
+     * onto the heap.
+     *
+     * @param file Encoded image.
+     * @return Stream over the mapped file.
+     * @throws IOException If the file cannot be opened or is over 2 GB.
+     */
+    public static ImageInputStream input(Path file) throws IOException {
+        return new ByteBufferInput(map(file));
+    }
+
+    /**
+     * Map a local file read-only.
+     *
+     * @param file File to map.
+     * @return Read-only buffer over the whole file.
+     * @throws IOException If the file cannot be opened or is over 2 GB.
+     */
+    public static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + file);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Wrap a stream that is still being received, such as an S3 response,
+     * as an ImageIO stream that {@link Decoder} can trim while decoding.
+     *
+     * @param in Source stream; closing the result does not close it.
+     * @return Memory cached stream over in.
+     */
+    public static ImageInputStream input(InputStream in) {
+        return new StreamingInput(in);
+    }
+
+    /**
+     * Recognise the format of a stream from its first bytes. The stream
+     * position is left unchanged.
+     *
+     * @param input Stream positioned at the start of an image.
+     * @return The format, or null if the signature is not known.
+     * @throws IOException If reading fails.
+     */
+    public static Format sniff(ImageInputStream input) throws IOException {
+        long start = System.nanoTime();
+        byte[] head = new byte[SNIFF_BYTES];
+        input.mark();
+        int length = 0;
+        try {
+            int read;
+            while (length < head.length && (read = input.read(head, length, head.length - length)) > 0) {
+                length += read;
+            }
+        } finally {
+            input.reset();
+        }
+        Format format = Format.sniff(head, length);
+        addSetup(start);
+        return format;
+    }
+
+    /**
+     * The calling thread's reader for a format. Hand it back with
+     * {@link ImageReader#reset()}, not dispose, so it can be used again.
+     *
+     * @param format Image format.
+     * @return A reader with no input set, or null if the JDK has none.
+     */
+    public static ImageReader reader(Format format) {
+        long start = System.nanoTime();
+        ImageReader reader = THREAD_READERS.get().get(format);
+        if (reader == null) {
+            ImageReaderSpi spi = READERS.get(format);
+            if (spi == null) {
+                return null;
+            }
+            try {
+                reader = spi.createReaderInstance();
+            } catch (IOException e) {
+                return null;
+            }
+            THREAD_READERS.get().put(format, reader);
+        }
+        addSetup(start);
+        return reader;
+    }
+
+    /**
+     * @param format Image format.
+     * @param img Image to encode.
+     * @return True if the format has a writer that can store the image's layout.
+     */
+    public static boolean canWrite(Format format, RenderedImage img) {
+        ImageWriterSpi spi = WRITERS.get(format);
+        return spi != null && spi.canEncodeImage(img);
+    }
+
+    /**
+     * Encode an image with the calling thread's writer and the preset
+     * parameters.
+     *
+     * @param img Image to encode.
+     * @param format Image format.
+     * @param out Destination stream, left open. An {@link OutputBuffer} is
+     *            written directly, without an ImageIO stream cache; other
+     *            streams receive JPEG, GIF and PNG output while it is being
+     *            encoded (see {@link StreamingOutput}).
+     * @throws IOException If the format cannot store the image or writing fails.
+     */
+    public static void write(RenderedImage img, Format format, OutputStream out) throws IOException {
+        if (!canWrite(format, img)) {
+            throw new IOException("No image writer for format " + format.formatName + " and this image");
+        }
+        WriterSlot slot = writer(format);
+        ImageWriter writer = slot.writer();
+        try (ImageOutputStream output = out instanceof OutputBuffer buffer
+                ? new OutputBufferImage(buffer)
+                : new StreamingOutput(out, format == Format.JPEG || format == Format.GIF)) {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(img, null, null), slot.param());
+        } finally {
+            writer.reset();
+        }
+    }
+
+    /**
+     * Codec setup time of the calling thread since the last call, including
+     * the registry build if no thread has reported it yet.
+     *
+     * @return Milliseconds.
+     */
+    public static double takeSetupTime() {
+        long[] nanos = SETUP_NANOS.get();
+        long total = nanos[0] + UNREPORTED_SETUP.getAndSet(0);
+        nanos[0] = 0;
+        return total / 1e6;
+    }
+
+    private static WriterSlot writer(Format format) throws IOException {
+        long start = System.nanoTime();
+        WriterSlot slot = THREAD_WRITERS.get().get(format);
+        if (slot == null) {
+            ImageWriter writer = WRITERS.get(format).createWriterInstance();
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format == Format.JPEG) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+            } else if (format == Format.PNG && param.canWriteCompressed()) {
+                // The PNG writer uses deflate level 9 - round(9 * quality).
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality((9 - PNG_LEVEL) / 9f);
+            }
+            slot = new WriterSlot(writer, param);
+            THREAD_WRITERS.get().put(format, slot);
+        }
+        addSetup(start);
+        return slot;
+    }
+
+    private static void addSetup(long start) {
+        SETUP_NANOS.get()[0] += System.nanoTime() - start;
+    }
+
+    private static float setting(String name, float fallback, float min, float max) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return fallback;
+        }
+        try {
+            return Math.max(min, Math.min(max, Float.parseFloat(value.trim())));
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
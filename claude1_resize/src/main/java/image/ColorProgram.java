@@ -0,0 +1,298 @@
+package image;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * A chain of per pixel color operations folded into one pass.
+ *
+ * Any sequence of lookup tables and grayscale conversions reduces to three
+ * steps: a per channel table, an optional luma, and a per channel table on
+ * the luma. Consecutive tables are composed into one, and a second grayscale
+ * after the first only remaps the luma, so it becomes a table as well.
+ * {@link #apply} then touches every pixel exactly once, however many
+ * operations were recorded. Alpha is never changed.
+ *
+ * Instances are immutable; tables are indexed by channel as red, green, blue
+ * and never modified after construction.
+ *
+ * @author Justin Le
+ */
+final class ColorProgram {
+
+    static final ColorProgram IDENTITY = new ColorProgram(null, null, null);
+
+    private static final int MIN_BAND_ROWS = 64;
+
+    private final byte[][] pre;
+    private final GrayscaleEngine.Formula gray;
+    private final byte[][] post;
+
+    private ColorProgram(byte[][] pre, GrayscaleEngine.Formula gray, byte[][] post) {
+        this.pre = pre;
+        this.gray = gray;
+        this.post = post;
+    }
+
+    /**
+     * @return True if applying the program would not change any pixel.
+     */
+    boolean isIdentity() {
+        return pre == null && gray == null && post == null;
+    }
+
+    /**
+     * @return True if the program ends in a grayscale conversion whose
+     *         channels are not remapped apart again.
+     */
+    boolean isGray() {
+        return gray != null && isUniform(post);
+    }
+
+    /**
+     * @return True if a gray input stays gray, i.e. no table treats the
+     *         channels differently.
+     */
+    boolean keepsGray() {
+        return isUniform(pre) && isUniform(post);
+    }
+
+    /**
+     * @return True if black stays black, so the program commutes with the
+     *         empty border a warp leaves around the image.
+     */
+    boolean preservesBlack() {
+        return mapsZero(pre) && mapsZero(post);
+    }
+
+    /**
+     * Append a lookup table per channel.
+     *
+     * @param red 256 entries for red.
+     * @param green 256 entries for green.
+     * @param blue 256 entries for blue.
+     * @return The extended program.
+     */
+    ColorProgram lut(byte[] red, byte[] green, byte[] blue) {
+        byte[][] tables = {red.clone(), green.clone(), blue.clone()};
+        for (byte[] t : tables) {
+            if (t.length != 256) {
+                throw new IllegalArgumentException("Lookup tables need 256 entries");
+            }
+        }
+        if (gray == null) {
+            return new ColorProgram(compose(pre, tables), null, null);
+        }
+        return new ColorProgram(pre, gray, compose(post, tables));
+    }
+
+    /**
+     * Append a grayscale conversion.
+     *
+     * @param formula Luma formula.
+     * @return The extended program.
+     */
+    ColorProgram gray(GrayscaleEngine.Formula formula) {
+        if (gray == null) {
+            return new ColorProgram(pre, formula, null);
+        }
+        // The channels already hold a function of the first luma; fold the
+        // new luma of that into a single table.
+        byte[] table = new byte[256];
+        for (int l = 0; l < 256; l++) {
+            table[l] = (byte) formula.luma(entry(post, 0, l), entry(post, 1, l), entry(post, 2, l));
+        }
+        return new ColorProgram(pre, gray, new byte[][] {table, table, table});
+    }
+
+    /**
+     * Short description for logs and SAAF output, e.g. "lut>gray(BT601)".
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (pre != null) {
+            sb.append("lut");
+        }
+        if (gray != null) {
+            sb.append(sb.length() > 0 ? ">" : "").append("gray(").append(gray.name()).append(')');
+        }
+        if (post != null) {
+            sb.append(">lut");
+        }
+        return sb.length() > 0 ? sb.toString() : "identity";
+    }
+
+    /**
+     * Run the program over an image in one parallel pass. A gray result of
+     * an image without alpha comes back as TYPE_BYTE_GRAY, everything else
+     * keeps the (normalised) source type.
+     *
+     * @param src Source image, not modified.
+     * @return New image.
+     */
+    BufferedImage apply(BufferedImage src) {
+        src = Normalizer.normalize(src);
+        int n = Rasters.byteChannels(src);
+        if (n == 1 && !keepsGray()) {
+            src = Normalizer.grayToBgr(src);
+            n = 3;
+        }
+        int width = src.getWidth();
+        int height = src.getHeight();
+        boolean toGray = n == 1 || (isGray() && !src.getColorModel().hasAlpha());
+        BufferedImage dst = PixelPool.image(width, height,
+                toGray ? BufferedImage.TYPE_BYTE_GRAY : src.getType());
+
+        if (n == 1) {
+            // Luma of a gray pixel is the pixel itself, so only the tables remain.
+            byte[][] tables = compose(pre, post);
+            byte[] table = tables == null ? null : tables[0];
+            byte[] in = Rasters.bytes(src);
+            byte[] out = Rasters.bytes(dst);
+            Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+                for (int i = start * width; i < end * width; i++) {
+                    out[i] = table == null ? in[i] : table[in[i] & 0xFF];
+                }
+            });
+            return dst;
+        }
+
+        final int channels = n;
+        final boolean intBgr = src.getType() == BufferedImage.TYPE_INT_BGR;
+        final Object in = n > 0 ? Rasters.bytes(src) : Rasters.ints(src);
+        final Object out = n > 0 || toGray ? Rasters.bytes(dst) : Rasters.ints(dst);
+        final int pixel = Math.max(n, 1);
+        Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+            Object scratch = null;
+            byte[] luma = null;
+            if (gray != null) {
+                scratch = pre == null ? null : (channels > 0 ? new byte[width * channels] : new int[width]);
+                luma = toGray ? null : new byte[width];
+            }
+            for (int y = start; y < end; y++) {
+                int off = y * width * pixel;
+                if (gray == null) {
+                    mapRow(pre, in, off, out, off, width, channels, intBgr);
+                    continue;
+                }
+                Object row = in;
+                int rowOff = off;
+                if (scratch != null) {
+                    mapRow(pre, in, off, scratch, 0, width, channels, intBgr);
+                    row = scratch;
+                    rowOff = 0;
+                }
+                if (toGray) {
+                    byte[] g = (byte[]) out;
+                    GrayscaleEngine.lumaRow(row, rowOff, channels, intBgr, g, y * width, width, gray);
+                    if (post != null) {
+                        byte[] table = post[0];
+                        for (int x = y * width; x < (y + 1) * width; x++) {
+                            g[x] = table[g[x] & 0xFF];
+                        }
+                    }
+                } else {
+                    GrayscaleEngine.lumaRow(row, rowOff, channels, intBgr, luma, 0, width, gray);
+                    expandRow(luma, in, out, off, width, channels, intBgr);
+                }
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * Map the color channels of width pixels through tables (null copies),
+     * keeping alpha.
+     */
+    private static void mapRow(byte[][] t, Object in, int inOff, Object out, int outOff,
+            int width, int n, boolean intBgr) {
+        if (t == null) {
+            System.arraycopy(in, inOff, out, outOff, width * Math.max(n, 1));
+            return;
+        }
+        if (n > 0) {
+            byte[] src = (byte[]) in;
+            byte[] dst = (byte[]) out;
+            // B, G, R (after a leading alpha for n = 4).
+            int a = n - 3;
+            for (int x = 0, i = inOff, o = outOff; x < width; x++, i += n, o += n) {
+                if (a > 0) {
+                    dst[o] = src[i];
+                }
+                dst[o + a] = t[2][src[i + a] & 0xFF];
+                dst[o + a + 1] = t[1][src[i + a + 1] & 0xFF];
+                dst[o + a + 2] = t[0][src[i + a + 2] & 0xFF];
+            }
+        } else {
+            int[] src = (int[]) in;
+            int[] dst = (int[]) out;
+            byte[] high = intBgr ? t[2] : t[0];
+            byte[] low = intBgr ? t[0] : t[2];
+            for (int x = 0; x < width; x++) {
+                int p = src[inOff + x];
+                dst[outOff + x] = (p & 0xFF000000) | ((high[(p >> 16) & 0xFF] & 0xFF) << 16)
+                        | ((t[1][(p >> 8) & 0xFF] & 0xFF) << 8) | (low[p & 0xFF] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Write gray levels (through the post tables, if any) into every color
+     * channel of a color row, keeping the source alpha.
+     */
+    private void expandRow(byte[] luma, Object in, Object out, int off, int width, int n, boolean intBgr) {
+        if (n > 0) {
+            byte[] src = (byte[]) in;
+            byte[] dst = (byte[]) out;
+            int a = n - 3;
+            for (int x = 0, o = off; x < width; x++, o += n) {
+                int l = luma[x] & 0xFF;
+                if (a > 0) {
+                    dst[o] = src[o];
+                }
+                dst[o + a] = (byte) entry(post, 2, l);
+                dst[o + a + 1] = (byte) entry(post, 1, l);
+                dst[o + a + 2] = (byte) entry(post, 0, l);
+            }
+        } else {
+            int[] src = (int[]) in;
+            int[] dst = (int[]) out;
+            int high = intBgr ? 2 : 0;
+            int low = intBgr ? 0 : 2;
+            for (int x = 0; x < width; x++) {
+                int l = luma[x] & 0xFF;
+                dst[off + x] = (src[off + x] & 0xFF000000) | (entry(post, high, l) << 16)
+                        | (entry(post, 1, l) << 8) | entry(post, low, l);
+            }
+        }
+    }
+
+    private static int entry(byte[][] tables, int channel, int value) {
+        return tables == null ? value : tables[channel][value] & 0xFF;
+    }
+
+    private static byte[][] compose(byte[][] first, byte[][] second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        byte[][] result = new byte[3][256];
+        for (int c = 0; c < 3; c++) {
+            for (int i = 0; i < 256; i++) {
+                result[c][i] = second[c][first[c][i] & 0xFF];
+            }
+        }
+        return result;
+    }
+
+    private static boolean isUniform(byte[][] tables) {
+        return tables == null || (Arrays.equals(tables[0], tables[1]) && Arrays.equals(tables[1], tables[2]));
+    }
+
+    private static boolean mapsZero(byte[][] tables) {
+        return tables == null || (tables[0][0] == 0 && tables[1][0] == 0 && tables[2][0] == 0);
+    }
+}
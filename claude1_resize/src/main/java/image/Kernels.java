@@ -0,0 +1,267 @@
+package image;
+
+/**
+ * Per row pixel kernels shared by the engines, with a vectorized variant.
+ *
+ * At class load the kernels check whether the jdk.incubator.vector module
+ * was added to the JVM (JAVA_TOOL_OPTIONS=--add-modules=jdk.incubator.vector
+ * on Lambda) and whether the preferred vector species is at least 256 bits
+ * (AVX2, AVX-512, SVE). If so the loops run through {@link SimdKernels},
+ * otherwise, or when IMAGE_KERNELS=scalar is set, the scalar loops below are
+ * used. Both variants produce identical output; {@link #variant()} reports
+ * which one ran so it can be added to the SAAF output.
+ *
+ * @author Justin Le
+ */
+public final class Kernels {
+
+    private static final boolean SIMD;
+    private static final String VARIANT;
+
+    static {
+        boolean simd = false;
+        String variant = "scalar";
+        String forced = System.getenv("IMAGE_KERNELS");
+        if (!"scalar".equalsIgnoreCase(forced)
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                int bits = SimdKernels.bitSize();
+                if (bits >= 256) {
+                    simd = true;
+                    variant = "vector" + bits;
+                }
+            } catch (LinkageError e) {
+                // Module present but unusable on this JVM; stay scalar.
+            }
+        }
+        SIMD = simd;
+        VARIANT = variant;
+    }
+
+    private Kernels() {
+    }
+
+    /**
+     * @return "scalar" or "vector" followed by the vector bit size, e.g. "vector512".
+     */
+    public static String variant() {
+        return VARIANT;
+    }
+
+    /**
+     * Luma of packed int pixels with the channels at the given shifts.
+     *
+     * @param src Packed pixels.
+     * @param sOff First source pixel.
+     * @param dst Gray output.
+     * @param dOff First output byte.
+     * @param len Number of pixels.
+     * @param shiftR Bit position of red (16 for ARGB, 0 for INT_BGR).
+     * @param shiftG Bit position of green.
+     * @param shiftB Bit position of blue.
+     * @param wr Red weight, scaled by 2^16.
+     * @param wg Green weight, scaled by 2^16.
+     * @param wb Blue weight, scaled by 2^16.
+     */
+    public static void lumaPacked(int[] src, int sOff, byte[] dst, int dOff, int len,
+            int shiftR, int shiftG, int shiftB, int wr, int wg, int wb) {
+        int i = SIMD ? SimdKernels.lumaPacked(src, sOff, dst, dOff, len, shiftR, shiftG, shiftB, wr, wg, wb) : 0;
+        for (; i < len; i++) {
+            int p = src[sOff + i];
+            dst[dOff + i] = (byte) ((wr * ((p >>> shiftR) & 0xFF) + wg * ((p >>> shiftG) & 0xFF)
+                    + wb * ((p >>> shiftB) & 0xFF) + 32768) >>> 16);
+        }
+    }
+
+    /**
+     * Luma of interleaved B, G, R (n = 3) or A, B, G, R (n = 4) bytes.
+     *
+     * @param src Interleaved pixels.
+     * @param sOff First source byte.
+     * @param n Bytes per pixel, 3 or 4.
+     * @param dst Gray output.
+     * @param dOff First output byte.
+     * @param len Number of pixels.
+     * @param wr Red weight, scaled by 2^16.
+     * @param wg Green weight, scaled by 2^16.
+     * @param wb Blue weight, scaled by 2^16.
+     */
+    public static void lumaBytes(byte[] src, int sOff, int n, byte[] dst, int dOff, int len,
+            int wr, int wg, int wb) {
+        int i = 0;
+        if (SIMD) {
+            i = n == 3
+                    ? SimdKernels.lumaBgr(src, sOff, dst, dOff, len, wr, wg, wb)
+                    : SimdKernels.lumaAbgr(src, sOff, dst, dOff, len, wr, wg, wb);
+        }
+        for (int s = sOff + i * n + (n - 3); i < len; i++, s += n) {
+            dst[dOff + i] = (byte) ((wb * (src[s] & 0xFF) + wg * (src[s + 1] & 0xFF)
+                    + wr * (src[s + 2] & 0xFF) + 32768) >>> 16);
+        }
+    }
+
+    /**
+     * Unpack B, G, R bytes into opaque 0xAARRGGBB ints.
+     *
+     * @param src BGR bytes.
+     * @param sOff First source byte.
+     * @param dst Packed output.
+     * @param dOff First output pixel.
+     * @param len Number of pixels.
+     */
+    public static void unpackBgr(byte[] src, int sOff, int[] dst, int dOff, int len) {
+        int i = SIMD ? SimdKernels.unpackBgr(src, sOff, dst, dOff, len) : 0;
+        for (int s = sOff + 3 * i; i < len; i++, s += 3) {
+            dst[dOff + i] = 0xFF000000 | ((src[s + 2] & 0xFF) << 16) | ((src[s + 1] & 0xFF) << 8) | (src[s] & 0xFF);
+        }
+    }
+
+    /**
+     * Pack 0xAARRGGBB ints into B, G, R bytes, dropping alpha.
+     *
+     * @param src Packed pixels.
+     * @param sOff First source pixel.
+     * @param dst BGR output.
+     * @param dOff First output byte.
+     * @param len Number of pixels.
+     */
+    public static void packBgr(int[] src, int sOff, byte[] dst, int dOff, int len) {
+        int i = SIMD ? SimdKernels.packBgr(src, sOff, dst, dOff, len) : 0;
+        for (int d = dOff + 3 * i; i < len; i++, d += 3) {
+            int p = src[sOff + i];
+            dst[d] = (byte) p;
+            dst[d + 1] = (byte) (p >> 8);
+            dst[d + 2] = (byte) (p >> 16);
+        }
+    }
+
+    /**
+     * One output row of a 2x2 box reduction of interleaved bytes. Rows are
+     * averaged first (rounding up), then neighbouring pixels (rounding down),
+     * which keeps the result unbiased and lets the vector variant work on
+     * bytes without widening.
+     *
+     * @param in Source bytes.
+     * @param top Offset of the upper source row.
+     * @param bottom Offset of the lower source row.
+     * @param out Destination bytes.
+     * @param o Offset of the output row.
+     * @param len Output row length in bytes (width * n).
+     * @param n Bytes per pixel.
+     */
+    public static void halveBytes(byte[] in, int top, int bottom, byte[] out, int o, int len, int n) {
+        int i = SIMD ? SimdKernels.halveBytes(in, top, bottom, out, o, len, n) : 0;
+        for (; i < len; i++) {
+            int s = 2 * n * (i / n) + i % n;
+            int left = ((in[top + s] & 0xFF) + (in[bottom + s] & 0xFF) + 1) >> 1;
+            int right = ((in[top + s + n] & 0xFF) + (in[bottom + s + n] & 0xFF) + 1) >> 1;
+            out[o + i] = (byte) ((left + right) >> 1);
+        }
+    }
+
+    /**
+     * One output row of a 2x2 box reduction of packed ints, rounding as in
+     * {@link #halveBytes}.
+     *
+     * @param in Source pixels.
+     * @param top Offset of the upper source row.
+     * @param bottom Offset of the lower source row.
+     * @param out Destination pixels.
+     * @param o Offset of the output row.
+     * @param len Output row length in pixels.
+     */
+    public static void halveInts(int[] in, int top, int bottom, int[] out, int o, int len) {
+        int i = SIMD ? SimdKernels.halveInts(in, top, bottom, out, o, len) : 0;
+        for (; i < len; i++) {
+            int a = in[top + 2 * i];
+            int b = in[top + 2 * i + 1];
+            int c = in[bottom + 2 * i];
+            int d = in[bottom + 2 * i + 1];
+            int p = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                int left = (((a >>> shift) & 0xFF) + ((c >>> shift) & 0xFF) + 1) >> 1;
+                int right = (((b >>> shift) & 0xFF) + ((d >>> shift) & 0xFF) + 1) >> 1;
+                p |= ((left + right) >> 1) << shift;
+            }
+            out[o + i] = p;
+        }
+    }
+
+    /**
+     * acc[i] += weight * src[off + i] for one row of unsigned bytes.
+     *
+     * @param acc Accumulator, len entries.
+     * @param src Source bytes.
+     * @param off First source byte.
+     * @param len Number of bytes.
+     * @param weight Fixed point weight.
+     */
+    public static void accumulateBytes(int[] acc, byte[] src, int off, int len, int weight) {
+        int i = SIMD ? SimdKernels.accumulateBytes(acc, src, off, len, weight) : 0;
+        for (; i < len; i++) {
+            acc[i] += weight * (src[off + i] & 0xFF);
+        }
+    }
+
+    /**
+     * Per channel accumulation of packed ints: acc[4 * x + k] += weight *
+     * byte k (lowest first) of src[off + x].
+     *
+     * @param acc Accumulator, 4 * pixels entries.
+     * @param src Source pixels.
+     * @param off First source pixel.
+     * @param pixels Number of pixels.
+     * @param weight Fixed point weight.
+     */
+    public static void accumulateInts(int[] acc, int[] src, int off, int pixels, int weight) {
+        int x = SIMD ? SimdKernels.accumulateInts(acc, src, off, pixels, weight) : 0;
+        for (; x < pixels; x++) {
+            int p = src[off + x];
+            int a = 4 * x;
+            acc[a] += weight * (p & 0xFF);
+            acc[a + 1] += weight * ((p >>> 8) & 0xFF);
+            acc[a + 2] += weight * ((p >>> 16) & 0xFF);
+            acc[a + 3] += weight * (p >>> 24);
+        }
+    }
+
+    private static int clamp(int value, int precision) {
+        value = (value + (1 << (precision - 1))) >> precision;
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    /**
+     * Round, shift and clamp an accumulator row back into bytes.
+     *
+     * @param acc Accumulator.
+     * @param dst Output bytes.
+     * @param off First output byte.
+     * @param len Number of bytes.
+     * @param precision Fixed point precision of the weights.
+     */
+    public static void storeBytes(int[] acc, byte[] dst, int off, int len, int precision) {
+        int i = SIMD ? SimdKernels.storeBytes(acc, dst, off, len, precision) : 0;
+        for (; i < len; i++) {
+            dst[off + i] = (byte) clamp(acc[i], precision);
+        }
+    }
+
+    /**
+     * Round, shift and clamp an accumulator written by
+     * {@link #accumulateInts} back into packed ints.
+     *
+     * @param acc Accumulator.
+     * @param dst Output pixels.
+     * @param off First output pixel.
+     * @param pixels Number of pixels.
+     * @param precision Fixed point precision of the weights.
+     */
+    public static void storeInts(int[] acc, int[] dst, int off, int pixels, int precision) {
+        int x = SIMD ? SimdKernels.storeInts(acc, dst, off, pixels, precision) : 0;
+        for (; x < pixels; x++) {
+            int a = 4 * x;
+            dst[off + x] = clamp(acc[a], precision) | (clamp(acc[a + 1], precision) << 8)
+                    | (clamp(acc[a + 2], precision) << 16) | (clamp(acc[a + 3], precision) << 24);
+        }
+    }
+}
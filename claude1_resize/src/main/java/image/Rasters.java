@@ -0,0 +1,166 @@
+package image;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Helpers for reaching the primitive arrays behind a BufferedImage.
+ *
+ * The engines only work on images whose pixels start at offset 0 of a single
+ * bank and whose rows are packed back to back (no sub-images, no padding).
+ * Everything ImageIO decodes and every image created with
+ * {@code new BufferedImage(w, h, type)} satisfies this.
+ *
+ * @author Justin Le
+ */
+public final class Rasters {
+
+    private Rasters() {
+    }
+
+    /**
+     * @param img Image to check.
+     * @return True if the pixels are one contiguous, unpadded array.
+     */
+    public static boolean isCompact(BufferedImage img) {
+        Raster raster = img.getRaster();
+        if (raster.getParent() != null
+                || raster.getSampleModelTranslateX() != 0
+                || raster.getSampleModelTranslateY() != 0) {
+            return false;
+        }
+        DataBuffer buffer = raster.getDataBuffer();
+        if (buffer.getNumBanks() != 1 || buffer.getOffset() != 0) {
+            return false;
+        }
+        SampleModel sm = raster.getSampleModel();
+        if (sm instanceof ComponentSampleModel csm) {
+            return csm.getScanlineStride() == csm.getPixelStride() * img.getWidth();
+        }
+        if (sm instanceof SinglePixelPackedSampleModel spp) {
+            return spp.getScanlineStride() == img.getWidth();
+        }
+        return false;
+    }
+
+    /**
+     * Number of bytes per pixel for the interleaved byte layouts, or 0 if the
+     * image is not one of them.
+     *
+     * @param img Image to check.
+     * @return 1 (gray), 3 (BGR), 4 (ABGR) or 0.
+     */
+    public static int byteChannels(BufferedImage img) {
+        switch (img.getType()) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return 1;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return 3;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @param img Image to check.
+     * @return True if each pixel is one packed int (INT_RGB, INT_ARGB, INT_BGR).
+     */
+    public static boolean isPackedInt(BufferedImage img) {
+        switch (img.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_INT_BGR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param img Image backed by a DataBufferByte.
+     * @return The backing array (not a copy).
+     */
+    public static byte[] bytes(BufferedImage img) {
+        return ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * @param img Image backed by a DataBufferInt.
+     * @return The backing array (not a copy).
+     */
+    public static int[] ints(BufferedImage img) {
+        return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * @param img Image to check.
+     * @return True if the engines can work on the image arrays directly.
+     */
+    public static boolean isFastLayout(BufferedImage img) {
+        return isCompact(img) && (byteChannels(img) > 0 || isPackedInt(img));
+    }
+
+    /**
+     * Copy a region into a new compact image of the same type. Unlike
+     * getSubimage the result is compact, so the engines can use it directly.
+     *
+     * @param src Compact byte or packed int image.
+     * @param region Region inside src.
+     * @return New image holding the region.
+     */
+    public static BufferedImage crop(BufferedImage src, Rectangle region) {
+        int width = src.getWidth();
+        BufferedImage dst = PixelPool.image(region.width, region.height, src.getType());
+        int n = byteChannels(src);
+        Object in = n > 0 ? bytes(src) : ints(src);
+        Object out = n > 0 ? bytes(dst) : ints(dst);
+        int pixel = Math.max(n, 1);
+        int rowLength = region.width * pixel;
+        Parallel.forEachBand(region.height, 64, (start, end) -> {
+            for (int y = start; y < end; y++) {
+                System.arraycopy(in, ((region.y + y) * width + region.x) * pixel, out, y * rowLength, rowLength);
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * Wrap the first width * height pixels of an existing array as an image
+     * with the same layout as like. Used by the engines to reuse a buffer
+     * that is larger than the image it now holds.
+     *
+     * @param like Compact byte or packed int image providing the layout.
+     * @param array byte[] or int[] with room for width * height pixels.
+     * @param width Image width.
+     * @param height Image height.
+     * @return New image sharing the array.
+     */
+    public static BufferedImage view(BufferedImage like, Object array, int width, int height) {
+        ColorModel cm = like.getColorModel();
+        SampleModel sm = like.getRaster().getSampleModel();
+        WritableRaster raster;
+        if (sm instanceof ComponentSampleModel csm) {
+            int n = csm.getPixelStride();
+            raster = Raster.createInterleavedRaster(new DataBufferByte((byte[]) array, width * height * n),
+                    width, height, width * n, n, csm.getBandOffsets(), null);
+        } else {
+            int[] masks = ((SinglePixelPackedSampleModel) sm).getBitMasks();
+            raster = Raster.createPackedRaster(new DataBufferInt((int[]) array, width * height),
+                    width, height, width, masks, null);
+        }
+        return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+    }
+}
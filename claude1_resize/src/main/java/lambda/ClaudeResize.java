@@ -2,21 +2,27 @@ package lambda;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import image.Codecs;
+import image.Decoder;
+import image.Encoder;
+import image.Kernels;
+import image.LazyImage;
+import image.OutputBuffer;
+import image.PixelPool;
+import image.PngEncoder;
+import image.Resampler;
+import image.TurboJpeg;
 import saaf.Inspector;
 import saaf.Response;
-import software.amazon.awssdk.core.ResponseBytes;
-import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import storage.DiskCache;
+import storage.RasterCache;
+import storage.ResultCache;
+import storage.S3Input;
+import storage.S3Output;
+import storage.SingleFlight;
 
-import javax.imageio.ImageIO;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.util.HashMap;
 
 /**
@@ -34,7 +40,12 @@ public class ClaudeResize implements RequestHandler<HashMap<String, Object>, Has
     /**
      * Lambda Function Handler
      * 
-     * @param request Hashmap containing request JSON attributes.
+     * @param request Hashmap containing request JSON attributes (bucket, key,
+     *                optional filter: lanczos3, mitchell, catmull_rom, bilinear;
+     *                optional operations list, see LazyImage.withOperations;
+     *                pngLevel 0 to 9 and pngStrategy for PNG output, see
+     *                PngEncoder; jpegCodec, IMAGEIO or TURBOJPEG, see
+     *                TurboJpeg; cache, default true, see ResultCache).
      * @param context
      * @return HashMap that Lambda will automatically convert into JSON.
      */
@@ -46,72 +57,169 @@ public class ClaudeResize implements RequestHandler<HashMap<String, Object>, Has
 
         // ****************START FUNCTION IMPLEMENTATION*************************
 
+        SingleFlight.Flight flight = null;
         try {
             // Extract parameters from request
             String bucket = (String) request.get("bucket");
             String key = (String) request.get("key");
+            Resampler.Filter filter = Resampler.Filter.parse(request.get("filter"), Resampler.Filter.LANCZOS3);
 
             inspector.addAttribute("bucket", bucket);
             inspector.addAttribute("key", key);
+            inspector.addAttribute("filter", filter.name());
+            inspector.addAttribute("kernelVariant", Kernels.variant());
             context.getLogger().log("Processing: " + bucket + "/" + key);
 
-            // Download image from S3
-            ResponseBytes<GetObjectResponse> objectBytes = s3Client.getObjectAsBytes(
-                    GetObjectRequest.builder()
-                            .bucket(bucket)
-                            .key(key)
-                            .build());
+            // Stream the image from S3, skipping rows and columns the 800px output cannot use
+            S3Input.Mode inputMode = S3Input.Mode.parse(request.get("inputMode"));
+            inspector.addAttribute("inputMode", inputMode.name());
 
-            byte[] imageBytes = objectBytes.asByteArray();
-            String contentType = objectBytes.response().contentType();
+            // Deflate level and strategy for PNG output (parallel encoder)
+            PngEncoder.Settings png = PngEncoder.Settings.parse(request.get("pngLevel"), request.get("pngStrategy"));
+            inspector.addAttribute("pngLevel", png.level());
+            inspector.addAttribute("pngStrategy", png.strategy().name());
 
-            // Read the image
-            BufferedImage originalImage = ImageIO.read(new ByteArrayInputStream(imageBytes));
-            if (originalImage == null) {
-                throw new RuntimeException("Failed to read image");
+            // JPEG codec: ImageIO, or libjpeg-turbo when it could be loaded (ImageIO otherwise)
+            TurboJpeg.Backend jpegCodec = TurboJpeg.Backend.parse(request.get("jpegCodec"));
+            inspector.addAttribute("jpegCodec", jpegCodec.name());
+            inspector.addAttribute("jpegBackend", TurboJpeg.effective(jpegCodec).name());
+            inspector.addAttribute("turboJpeg", TurboJpeg.status());
+
+            // A repeated request whose result is already stored (same source ETag and
+            // parameter hash in the output's metadata) ends after two concurrent HEADs
+            String outputKey = "claude_resized/" + key;
+            ResultCache.Lookup cached = ResultCache.lookup(s3Client, bucket, key, outputKey, "resize", request);
+            inspector.addAttribute("cache", cached.status().name());
+            if (cached.hit()) {
+                inspector.addAttribute("outputBucket", bucket);
+                inspector.addAttribute("outputKey", outputKey);
+                inspector.addAttribute("outputSize", cached.outputSize());
+                inspector.addAttribute("message", "Result already stored for this source and parameters");
+
+                Response response = new Response();
+                response.setValue("Image processed successfully!");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
+
+            // Concurrent identical requests (same source version and parameters) share one execution
+            flight = SingleFlight.join("resize", bucket, outputKey, cached);
+            inspector.addAttribute("coalesced", !flight.leader());
+            if (!flight.leader()) {
+                SingleFlight.Outcome shared = flight.await();
+                inspector.addAttribute("outputBucket", bucket);
+                inspector.addAttribute("outputKey", outputKey);
+                inspector.addAttribute("outputSize", shared.outputSize());
+                inspector.addAttribute("outputStored", shared.stored());
+                inspector.addAttribute("message", "Coalesced with a concurrent identical request");
+
+                Response response = new Response();
+                response.setValue("Image processed successfully!");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
             }
 
-            int originalWidth = originalImage.getWidth();
-            int originalHeight = originalImage.getHeight();
+            // Without follow-up operations, an image already at most 800px wide is left as it is:
+            // the header at the start of the download decides, and the object is copied within S3
+            S3Input.Fetched fetched = S3Input.read(s3Client, bucket, key, inputMode, 800, jpegCodec,
+                    request.get("operations") == null ? header -> header.width() <= 800 : null);
+            if (fetched.decoded() == null) {
+                Decoder.Header header = fetched.header();
+                S3Output.copy(s3Client, bucket, key, outputKey, cached.sourceContentType(), cached.condition());
+                flight.complete(fetched.size(), true);
+                context.getLogger().log("Image copied unchanged to: " + bucket + "/" + outputKey);
+
+                inspector.addAttribute("originalWidth", header.width());
+                inspector.addAttribute("originalHeight", header.height());
+                inspector.addAttribute("inputSize", fetched.size());
+                inspector.addAttribute("imageFormat", header.format().formatName());
+                inspector.addAttribute("resized", false);
+                inspector.addAttribute("passthrough", true);
+                inspector.addAttribute("codecSetupTime", Codecs.takeSetupTime());
+                inspector.addAttribute("outputBucket", bucket);
+                inspector.addAttribute("outputKey", outputKey);
+                inspector.addAttribute("message", "Image already fits, copied unchanged");
+
+                Response response = new Response();
+                response.setValue("Image processed successfully!");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
+            Decoder.Decoded decoded = fetched.decoded();
+            BufferedImage originalImage = decoded.image();
+            Codecs.Format format = decoded.format();
+
+            int originalWidth = decoded.sourceWidth();
+            int originalHeight = decoded.sourceHeight();
 
             inspector.addAttribute("originalWidth", originalWidth);
             inspector.addAttribute("originalHeight", originalHeight);
+            inspector.addAttribute("inputSize", fetched.size());
+            inspector.addAttribute("downloadParts", fetched.parts());
+            inspector.addAttribute("decodeSubsampling", decoded.subsampling());
+            inspector.addAttribute("inputLayout", decoded.layout());
+            inspector.addAttribute("decoder", decoded.decoder().name());
+            RasterCache.Stats rasters = RasterCache.takeStats();
+            inspector.addAttribute("rasterCacheHits", rasters.hits());
+            inspector.addAttribute("rasterCacheMisses", rasters.misses());
+            inspector.addAttribute("rasterCacheEvictions", rasters.evictions());
+            inspector.addAttribute("rasterCacheBytes", rasters.bytes());
+            DiskCache.Stats disk = DiskCache.takeStats();
+            inspector.addAttribute("diskCacheHits", disk.hits());
+            inspector.addAttribute("diskCacheMisses", disk.misses());
+            inspector.addAttribute("diskCacheEvictions", disk.evictions());
+            inspector.addAttribute("diskCacheBytes", disk.bytes());
+            inspector.addAttribute("imageFormat", format.formatName());
 
             // Resize image if needed
-            BufferedImage resizedImage;
+            LazyImage pending = LazyImage.of(originalImage);
             if (originalWidth <= 800) {
-                resizedImage = originalImage;
                 inspector.addAttribute("resized", false);
             } else {
                 int newWidth = 800;
                 int newHeight = (int) ((double) originalHeight * newWidth / originalWidth);
 
-                resizedImage = new BufferedImage(newWidth, newHeight, originalImage.getType());
-                Graphics2D g = resizedImage.createGraphics();
-                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-                g.drawImage(originalImage, 0, 0, newWidth, newHeight, null);
-                g.dispose();
+                // Large reductions halve with a box filter before the final pass
+                int halvingLevels = Resampler.halvingLevels(originalImage.getWidth(), originalImage.getHeight(),
+                        newWidth, newHeight);
+                inspector.addAttribute("halvingLevels", halvingLevels);
+                pending = pending.resize(newWidth, newHeight, filter);
 
                 inspector.addAttribute("resized", true);
                 inspector.addAttribute("newWidth", newWidth);
                 inspector.addAttribute("newHeight", newHeight);
             }
 
-            // Convert image to bytes
-            String formatName = getFormatName(key);
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            ImageIO.write(resizedImage, formatName, outputStream);
-            byte[] resizedBytes = outputStream.toByteArray();
-
-            // Upload to S3
-            String outputKey = "claude_resized/" + key;
-            s3Client.putObject(
-                    PutObjectRequest.builder()
-                            .bucket(bucket)
-                            .key(outputKey)
-                            .contentType(contentType)
-                            .build(),
-                    RequestBody.fromBytes(resizedBytes));
+            // Optional follow-up operations, fused with the resize when rendered
+            pending = pending.withOperations(request.get("operations"));
+            inspector.addAttribute("plan", pending.plan());
+            BufferedImage resizedImage = pending.render();
+
+            // Encode in the format the input was sniffed as, straight into the S3 upload:
+            // a pooled buffer and one PUT, or a multipart upload that overlaps for large results
+            boolean gray = pending.isGray();
+            S3Output.Uploaded uploaded = S3Output.upload(s3Client, bucket, outputKey, format.mimeType(),
+                    OutputBuffer.estimate(fetched.size(), (long) originalWidth * originalHeight,
+                            (long) resizedImage.getWidth() * resizedImage.getHeight(), gray),
+                    cached.condition(),
+                    out -> Encoder.write(resizedImage, format, gray, png, jpegCodec, out));
+            flight.complete(uploaded.size(), uploaded.stored());
+            inspector.addAttribute("codecSetupTime", Codecs.takeSetupTime());
+            inspector.addAttribute("uploadRequests", uploaded.requests());
+            inspector.addAttribute("outputStored", uploaded.stored());
+            OutputBuffer.Stats pool = OutputBuffer.takeStats();
+            inspector.addAttribute("outputPoolHits", pool.hits());
+            inspector.addAttribute("outputPoolMisses", pool.misses());
+            inspector.addAttribute("outputBytesCopied", pool.bytesCopied());
+            // Hand the result's pixels back for the next invocation
+            pending.recycle(resizedImage);
+            PixelPool.Stats pixels = PixelPool.takeStats();
+            inspector.addAttribute("pixelPoolHits", pixels.hits());
+            inspector.addAttribute("pixelPoolMisses", pixels.misses());
+            inspector.addAttribute("pixelPoolBytes", pixels.bytes());
 
             context.getLogger().log("Resized image uploaded to: " + bucket + "/" + outputKey);
 
@@ -126,9 +234,16 @@ public class ClaudeResize implements RequestHandler<HashMap<String, Object>, Has
             inspector.consumeResponse(response);
 
         } catch (Exception e) {
+            if (flight != null) {
+                flight.fail(e);
+            }
             context.getLogger().log("Error: " + e.getMessage());
             inspector.addAttribute("error", e.getMessage());
             throw new RuntimeException(e);
+        } finally {
+            if (flight != null) {
+                flight.finish();
+            }
         }
 
         // ****************END FUNCTION IMPLEMENTATION***************************
@@ -137,23 +252,4 @@ public class ClaudeResize implements RequestHandler<HashMap<String, Object>, Has
         inspector.inspectAllDeltas();
         return inspector.finish();
     }
-
-    /**
-     * Determines the image format based on the file extension.
-     * Supports PNG, GIF, and BMP formats, defaulting to JPG for unrecognized
-     * extensions.
-     * 
-     * @param key The S3 object key or filename containing the file extension
-     * @return The image format name as a string ("png", "gif", "bmp", or "jpg")
-     */
-    private String getFormatName(String key) {
-        String lowerKey = key.toLowerCase();
-        if (lowerKey.endsWith(".png"))
-            return "png";
-        if (lowerKey.endsWith(".gif"))
-            return "gif";
-        if (lowerKey.endsWith(".bmp"))
-            return "bmp";
-        return "jpg";
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,189 @@
+package storage;
+
+import image.Decoder;
+import image.TurboJpeg;
+
+import java.awt.image.DataBuffer;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded source images kept across warm invocations of a container.
+ *
+ * A container that gets the same source again (another output size, a
+ * retry) would otherwise download and decode it again. {@link S3Input}
+ * keeps each decoded, normalised image here under its bucket, key and
+ * decode parameters together with the object's ETag, and on the next
+ * request asks S3 for the object only if its ETag changed
+ * (If-None-Match): a 304 answer means the cached image is current, and
+ * neither download nor decode happens.
+ *
+ * Entries are weighed by their pixel bytes and the least recently used
+ * are dropped once the total passes IMAGE_RASTER_CACHE_FRACTION of the
+ * maximum heap (default 0.25, 0 turns the cache off). They are held by
+ * soft references, so the collector can also clear them under memory
+ * pressure instead of failing an allocation. Cached images are shared
+ * and must not be written to, which holds for {@link image.LazyImage}.
+ *
+ * Hits, misses and evictions since the last {@link #takeStats()} are
+ * reported for the SAAF output.
+ *
+ * @author Justin Le
+ */
+public final class RasterCache {
+
+    /**
+     * Counters since the last {@link #takeStats()}, and the current content.
+     *
+     * @param hits Requests served from the cache.
+     * @param misses Requests that decoded the source.
+     * @param evictions Entries dropped for space or cleared by the collector.
+     * @param bytes Pixel bytes held now.
+     * @param entries Entries held now.
+     */
+    public record Stats(long hits, long misses, long evictions, long bytes, int entries) {
+    }
+
+    /**
+     * A cached source image.
+     *
+     * @param eTag ETag of the object it was decoded from.
+     * @param size Size of the object in bytes.
+     * @param decoded Decoder result.
+     */
+    record Entry(String eTag, long size, Decoder.Decoded decoded) {
+    }
+
+    static final long CAPACITY = capacity();
+
+    private static final Map<String, Ref> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+    private static final ReferenceQueue<Entry> CLEARED = new ReferenceQueue<>();
+    private static long bytes;
+    private static long hits;
+    private static long misses;
+    private static long evictions;
+
+    private RasterCache() {
+    }
+
+    /**
+     * @return Counters since the last call, which resets them.
+     */
+    public static synchronized Stats takeStats() {
+        purge();
+        Stats stats = new Stats(hits, misses, evictions, bytes, ENTRIES.size());
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        return stats;
+    }
+
+    /**
+     * @return Cache key of an object decoded for the given width and backend.
+     */
+    static String key(String bucket, String key, int targetWidth, TurboJpeg.Backend backend) {
+        return bucket + '/' + key + '#' + targetWidth + '#' + TurboJpeg.effective(backend);
+    }
+
+    /**
+     * @param key Cache key.
+     * @return The entry, or null if there is none or it was cleared. Not
+     *         counted as a hit until the caller has checked its ETag.
+     */
+    static synchronized Entry get(String key) {
+        if (CAPACITY == 0) {
+            return null;
+        }
+        purge();
+        Ref ref = ENTRIES.get(key);
+        return ref != null ? ref.get() : null;
+    }
+
+    /**
+     * Store a decoded object, replacing an older version. Images larger
+     * than the whole cache are not stored.
+     *
+     * @param key Cache key.
+     * @param entry Decoded object.
+     */
+    static synchronized void put(String key, Entry entry) {
+        long weight = weight(entry.decoded());
+        if (weight > CAPACITY) {
+            return;
+        }
+        purge();
+        Ref old = ENTRIES.remove(key);
+        if (old != null) {
+            bytes -= old.weight;
+            old.clear();
+        }
+        ENTRIES.put(key, new Ref(key, weight, entry));
+        bytes += weight;
+        Iterator<Ref> eldest = ENTRIES.values().iterator();
+        while (bytes > CAPACITY && eldest.hasNext()) {
+            Ref ref = eldest.next();
+            eldest.remove();
+            bytes -= ref.weight;
+            ref.clear();
+            evictions++;
+        }
+    }
+
+    static synchronized void recordHit() {
+        hits++;
+    }
+
+    static synchronized void recordMiss() {
+        misses++;
+    }
+
+    /**
+     * Drop the entries whose images the collector cleared.
+     */
+    private static void purge() {
+        for (Object cleared = CLEARED.poll(); cleared != null; cleared = CLEARED.poll()) {
+            Ref ref = (Ref) cleared;
+            if (ENTRIES.get(ref.key) == ref) {
+                ENTRIES.remove(ref.key);
+                bytes -= ref.weight;
+                evictions++;
+            }
+        }
+    }
+
+    private static long weight(Decoder.Decoded decoded) {
+        DataBuffer buffer = decoded.image().getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    private static long capacity() {
+        double fraction = 0.25;
+        String value = System.getenv("IMAGE_RASTER_CACHE_FRACTION");
+        if (value != null && !value.isBlank()) {
+            try {
+                fraction = Math.max(0, Math.min(0.9, Double.parseDouble(value.trim())));
+            } catch (NumberFormatException e) {
+                // Keep the default.
+            }
+        }
+        return (long) (Runtime.getRuntime().maxMemory() * fraction);
+    }
+
+    /**
+     * Soft reference that remembers its key and weight, so a cleared entry
+     * can be removed and its bytes released.
+     */
+    private static final class Ref extends SoftReference<Entry> {
+        final String key;
+        final long weight;
+
+        Ref(String key, long weight, Entry entry) {
+            super(entry, CLEARED);
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+}
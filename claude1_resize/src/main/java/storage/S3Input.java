@@ -0,0 +1,590 @@
+package storage;
+
+import image.Codecs;
+import image.Decoder;
+import image.TurboJpeg;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import javax.imageio.stream.ImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * Reads and decodes a source image from S3.
+ *
+ * In STREAM mode (the default) the GetObject response stream is handed to
+ * the decoder directly, so decoding starts with the first bytes and JPEG
+ * entropy decoding overlaps the network transfer; the compressed object is
+ * never buffered whole (see {@link Decoder#read(java.io.InputStream, int,
+ * java.awt.Rectangle)}). BUFFER mode downloads the object into a byte array
+ * first, as the handlers originally did, for callers that need the bytes
+ * or for comparison; the array is decoded in place, not copied again into
+ * a stream cache. LOCAL mode is for benchmarking without the download: the
+ * object is read from a local copy at {@code <IMAGE_LOCAL_DIR>/<bucket>/<key>}
+ * (IMAGE_LOCAL_DIR defaults to /tmp), memory mapped read-only and decoded
+ * from the mapping. Results are still written to the bucket.
+ *
+ * In STREAM and BUFFER mode, objects of at least S3_RANGE_THRESHOLD bytes
+ * are instead downloaded with concurrent ranged GETs (see
+ * {@link RangedDownload}) and decoded from the buffer. The large inputs
+ * are typically TIFF and PNG scans, which the JDK readers cannot decode
+ * before the end of the file has arrived anyway.
+ *
+ * {@link #read} keeps what it decoded in the {@link RasterCache}, and
+ * every downloaded object is also written to the {@link DiskCache} under
+ * /tmp. When the same object is read again, the GET carries the cached
+ * ETag in If-None-Match; a 304 answer returns the cached image for the
+ * same target width, or decodes the mapped file from disk (in LOCAL mode
+ * the file's modification time and size stand in for the ETag).
+ *
+ * Callers that may not need the pixels at all (an image that already has
+ * the requested size or colour) pass {@link #read} a test on the header.
+ * It is checked against the first bytes of the same GET, or against what
+ * is cached, before anything is decoded. If it holds, the response is
+ * dropped and only the header is returned, so the common case that does
+ * need the pixels costs no extra request.
+ *
+ * Callers that work on the encoded bytes of one format rather than pixels
+ * (the lossless JPEG rotation) use {@link #readOrLoad}: it applies a test
+ * to the header the same way, but when it holds it keeps the whole object
+ * undecoded instead of dropping it. Objects it does not hold for are
+ * decoded and cached as {@link #read} does, and
+ * {@link #decode(String, String, Fetched, int, TurboJpeg.Backend)} decodes
+ * and caches a kept object the caller could not use after all.
+ *
+ * @author Justin Le
+ */
+public final class S3Input {
+
+    /**
+     * How the object is read.
+     */
+    public enum Mode {
+        STREAM,
+        BUFFER,
+        LOCAL;
+
+        /**
+         * @param value Mode name, case insensitive.
+         * @return The matching mode, STREAM if value is null or empty.
+         */
+        public static Mode parse(Object value) {
+            if (value == null || value.toString().isEmpty()) {
+                return STREAM;
+            }
+            return valueOf(value.toString().trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * A decoded source image.
+     *
+     * @param decoded Decoder result, null if the caller's header test held
+     *                and nothing was decoded.
+     * @param size Size of the stored object in bytes.
+     * @param data Read-only view of the object when it was buffered,
+     *             null when it was streamed.
+     * @param parts Number of GET requests the object was read with, 0 in LOCAL mode.
+     * @param header Header of the object when decoded is null, otherwise null.
+     * @param eTag ETag of the object (in LOCAL mode the file's modification
+     *             time and size), null if unknown.
+     */
+    public record Fetched(Decoder.Decoded decoded, long size, ByteBuffer data, int parts, Decoder.Header header,
+            String eTag) {
+    }
+
+    /**
+     * An object read into memory without decoding it.
+     *
+     * @param data Read-only view of the object.
+     * @param size Size of the stored object in bytes.
+     * @param parts Number of GET requests the object was read with, 0 in LOCAL mode.
+     * @param eTag ETag of the object (in LOCAL mode the file's modification
+     *             time and size), null if unknown.
+     */
+    public record Loaded(ByteBuffer data, long size, int parts, String eTag) {
+    }
+
+    /**
+     * Header of a source image, read without downloading it.
+     *
+     * @param header Size, format and gray flag from the file header.
+     * @param size Size of the stored object in bytes.
+     */
+    public record Probe(Decoder.Header header, long size) {
+    }
+
+    /**
+     * Bytes requested for a header probe; enough for the headers of nearly
+     * all JPEG (including EXIF thumbnails) and PNG files.
+     */
+    private static final int PROBE_BYTES = 64 * 1024;
+
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private static final Path LOCAL_DIR = Path.of(
+            System.getenv().getOrDefault("IMAGE_LOCAL_DIR", "/tmp"));
+
+    private S3Input() {
+    }
+
+    /**
+     * Fetch and decode an object.
+     *
+     * @param s3 Client.
+     * @param bucket Bucket name.
+     * @param key Object key.
+     * @param mode STREAM, BUFFER or LOCAL.
+     * @param targetWidth Width the caller will resize to, 0 to decode at full size.
+     * @return The decoded image and the object size.
+     * @throws IOException If the object (or local file) is not a readable image.
+     */
+    public static Fetched read(S3Client s3, String bucket, String key, Mode mode, int targetWidth)
+            throws IOException {
+        return read(s3, bucket, key, mode, targetWidth, TurboJpeg.Backend.IMAGEIO);
+    }
+
+    /**
+     * Fetch and decode an object with the given JPEG backend. libjpeg-turbo
+     * decodes from memory, so when it is used STREAM mode buffers the
+     * object as BUFFER mode does.
+     *
+     * @param s3 Client.
+     * @param bucket Bucket name.
+     * @param key Object key.
+     * @param mode STREAM, BUFFER or LOCAL.
+     * @param targetWidth Width the caller will resize to, 0 to decode at full size.
+     * @param backend Requested JPEG backend.
+     * @return The decoded image and the object size.
+     * @throws IOException If the object (or local file) is not a readable image.
+     */
+    public static Fetched read(S3Client s3, String bucket, String key, Mode mode, int targetWidth,
+            TurboJpeg.Backend backend) throws IOException {
+        return read(s3, bucket, key, mode, targetWidth, backend, null);
+    }
+
+    /**
+     * Fetch and decode an object unless its header shows the caller needs
+     * no pixels. The test sees the header read from the start of the
+     * response (or from what is cached); when it holds, the rest of the
+     * response is dropped and only the header is returned. Objects whose
+     * header does not end within the first {@link #PROBE_BYTES} bytes are
+     * buffered whole first.
+     *
+     * @param s3 Client.
+     * @param bucket Bucket name.
+     * @param key Object key.
+     * @param mode STREAM, BUFFER or LOCAL.
+     * @param targetWidth Width the caller will resize to, 0 to decode at full size.
+     * @param backend Requested JPEG backend.
+     * @param unchanged True for a header whose image needs no work, or null to always decode.
+     * @return The decoded image and the object size, or the header and size
+     *         if unchanged held.
+     * @throws IOException If the object (or local file) is not a readable image.
+     */
+    public static Fetched read(S3Client s3, String bucket, String key, Mode mode, int targetWidth,
+            TurboJpeg.Backend backend, Predicate<Decoder.Header> unchanged) throws IOException {
+        return fetch(s3, bucket, key, mode, targetWidth, backend, unchanged, false);
+    }
+
+    /**
+     * Fetch an object into memory without decoding it if its header passes
+     * a test, and decode it as {@link #read} does otherwise. The test sees
+     * the header read from the start of the response (or from what is
+     * cached), so an object that fails it is still streamed and cached as
+     * usual and no extra request is made either way.
+     *
+     * @param s3 Client.
+     * @param bucket Bucket name.
+     * @param key Object key.
+     * @param mode STREAM, BUFFER or LOCAL.
+     * @param targetWidth Width the caller will resize to, 0 to decode at full size.
+     * @param backend Requested JPEG backend.
+     * @param encoded True for a header whose bytes the caller works on.
+     * @return The decoded image and the object size, or if encoded held the
+     *         header, the object (data) and its size with decoded null.
+     * @throws IOException If the object (or local file) is not a readable image.
+     */
+    public static Fetched readOrLoad(S3Client s3, String bucket, String key, Mode mode, int targetWidth,
+            TurboJpeg.Backend backend, Predicate<Decoder.Header> encoded) throws IOException {
+        return fetch(s3, bucket, key, mode, targetWidth, backend, encoded, true);
+    }
+
+    /**
+     * @param test Header test, or null to always decode.
+     * @param keep When test holds, return the whole object instead of dropping it.
+     */
+    private static Fetched fetch(S3Client s3, String bucket, String key, Mode mode, int targetWidth,
+            TurboJpeg.Backend backend, Predicate<Decoder.Header> test, boolean keep) throws IOException {
+        String cacheKey = RasterCache.key(bucket, key, targetWidth, backend);
+        RasterCache.Entry cached = RasterCache.get(cacheKey);
+        if (mode == Mode.LOCAL) {
+            String version = version(LOCAL_DIR.resolve(bucket).resolve(key));
+            if (cached != null && cached.eTag().equals(version)) {
+                Decoder.Header header = cached.decoded().header();
+                if (holds(test, header)) {
+                    return passed(header, cached.size(), 0, version, keep ? load(s3, bucket, key, mode) : null);
+                }
+                RasterCache.recordHit();
+                return new Fetched(cached.decoded(), cached.size(), null, 0, null, version);
+            }
+            Loaded local = load(s3, bucket, key, mode);
+            Fetched passed = pass(local, test, keep);
+            return passed != null ? passed : remember(cacheKey, decode(local, targetWidth, backend));
+        }
+        // Validate whatever is cached with one conditional GET: the file on disk if there is
+        // one (it also serves other target widths), otherwise the decoded image
+        DiskCache.Entry stored = DiskCache.get(bucket, key);
+        String known = stored != null ? stored.eTag : cached != null ? cached.eTag() : null;
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build();
+        ResponseInputStream<GetObjectResponse> response = getUnlessMatch(s3, request, known);
+        if (response == null) {
+            // Unchanged since it was cached: no body was sent
+            if (cached != null && cached.eTag().equals(known)) {
+                Decoder.Header header = cached.decoded().header();
+                if (holds(test, header)) {
+                    Loaded kept = null;
+                    if (keep) {
+                        // The bytes come from the disk copy if there is one, otherwise from a new GET
+                        ByteBuffer data = stored != null ? DiskCache.map(bucket, key, stored) : null;
+                        kept = data != null ? new Loaded(data, stored.size, 1, known) : load(s3, bucket, key, mode);
+                    }
+                    return passed(header, cached.size(), 1, known, kept);
+                }
+                RasterCache.recordHit();
+                return new Fetched(cached.decoded(), cached.size(), null, 1, null, known);
+            }
+            ByteBuffer data = DiskCache.map(bucket, key, stored);
+            if (data == null) {
+                return fetch(s3, bucket, key, mode, targetWidth, backend, test, keep);
+            }
+            Loaded disk = new Loaded(data, stored.size, 1, known);
+            Fetched passed = pass(disk, test, keep);
+            return passed != null ? passed : remember(cacheKey, decode(disk, targetWidth, backend));
+        }
+        try (ResponseInputStream<GetObjectResponse> in = response) {
+            Long length = in.response().contentLength();
+            long size = length != null ? length : -1;
+            String eTag = in.response().eTag();
+            byte[] head = NO_BYTES;
+            Loaded loaded = null;
+            if (test != null) {
+                // Decide on the first bytes of this response; the decoder reads them again below
+                head = in.readNBytes(size >= 0 ? (int) Math.min(PROBE_BYTES, size) : PROBE_BYTES);
+                Decoder.Header header = header(ByteBuffer.wrap(head),
+                        size >= 0 ? head.length >= size : head.length < PROBE_BYTES);
+                if (header == null) {
+                    // The header goes on past the first bytes (e.g. a TIFF directory at the end)
+                    loaded = buffer(s3, request, in, size, head);
+                    header = header(loaded.data(), true);
+                }
+                if (test.test(header)) {
+                    if (keep) {
+                        return passed(header, size, 1, eTag,
+                                loaded != null ? loaded : buffer(s3, request, in, size, head));
+                    }
+                    in.abort();
+                    return passed(header, size, loaded != null ? loaded.parts() : 1, eTag, null);
+                }
+            }
+            InputStream body = head.length == 0 ? in : new SequenceInputStream(new ByteArrayInputStream(head), in);
+            Fetched fetched;
+            DiskCache.Fill fill;
+            if (loaded != null) {
+                fetched = decode(loaded, targetWidth, backend);
+            } else if (size >= RangedDownload.THRESHOLD || mode == Mode.BUFFER
+                    || TurboJpeg.effective(backend) == TurboJpeg.Backend.TURBOJPEG) {
+                fetched = decode(buffer(s3, request, in, size, head), targetWidth, backend);
+            } else if ((fill = DiskCache.fill(bucket, key, eTag, size)) != null) {
+                // Write the object to disk as the decoder reads it, then copy what it left
+                Decoder.Decoded decoded;
+                try {
+                    decoded = Decoder.read(fill.tee(body), targetWidth, null);
+                } catch (IOException | RuntimeException e) {
+                    fill.abort();
+                    throw e;
+                }
+                fill.finish(body);
+                fetched = new Fetched(decoded, size, null, 1, null, eTag);
+            } else {
+                fetched = new Fetched(Decoder.read(body, targetWidth, null), size, null, 1, null, eTag);
+            }
+            return remember(cacheKey, fetched);
+        }
+    }
+
+    /**
+     * Fetch an object into memory without decoding it; large objects are
+     * downloaded with ranged GETs as in {@link #read}.
+     *
+     * @param s3 Client.
+     * @param bucket Bucket name.
+     * @param key Object key.
+     * @param mode LOCAL maps the local copy, any other mode reads S3.
+     * @return The object.
+     * @throws IOException If the object (or local file) cannot be read.
+     */
+    public static Loaded load(S3Client s3, String bucket, String key, Mode mode) throws IOException {
+        if (mode == Mode.LOCAL) {
+            Path path = LOCAL_DIR.resolve(bucket).resolve(key);
+            String version = version(path);
+            ByteBuffer data = Codecs.map(path);
+            return new Loaded(data, data.remaining(), 0, version);
+        }
+        DiskCache.Entry stored = DiskCache.get(bucket, key);
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build();
+        ResponseInputStream<GetObjectResponse> response = getUnlessMatch(s3, request,
+                stored != null ? stored.eTag : null);
+        if (response == null) {
+            ByteBuffer data = DiskCache.map(bucket, key, stored);
+            return data != null ? new Loaded(data, stored.size, 1, stored.eTag) : load(s3, bucket, key, mode);
+        }
+        try (ResponseInputStream<GetObjectResponse> in = response) {
+            Long length = in.response().contentLength();
+            return buffer(s3, request, in, length != null ? length : -1, NO_BYTES);
+        }
+    }
+
+    /**
+     * Decode an object that was loaded with {@link #load}.
+     *
+     * @param loaded The object.
+     * @param targetWidth Width the caller will resize to, 0 to decode at full size.
+     * @return The decoded image and the object size.
+     * @throws IOException If the object is not a readable image.
+     */
+    public static Fetched decode(Loaded loaded, int targetWidth) throws IOException {
+        return decode(loaded, targetWidth, TurboJpeg.Backend.IMAGEIO);
+    }
+
+    /**
+     * Decode an object that was loaded with {@link #load}, see
+     * {@link Decoder#read(ByteBuffer, int, java.awt.Rectangle, TurboJpeg.Backend)}.
+     *
+     * @param loaded The object.
+     * @param targetWidth Width the caller will resize to, 0 to decode at full size.
+     * @param backend Requested JPEG backend.
+     * @return The decoded image and the object size.
+     * @throws IOException If the object is not a readable image.
+     */
+    public static Fetched decode(Loaded loaded, int targetWidth, TurboJpeg.Backend backend) throws IOException {
+        return new Fetched(Decoder.read(loaded.data(), targetWidth, null, backend), loaded.size(), loaded.data(),
+                loaded.parts(), null, loaded.eTag());
+    }
+
+    /**
+     * Decode an object that {@link #readOrLoad} kept undecoded, and keep
+     * the image in the {@link RasterCache} as {@link #read} would have.
+     *
+     * @param bucket Bucket name.
+     * @param key Object key.
+     * @param loaded Result of readOrLoad with decoded null.
+     * @param targetWidth Width the caller will resize to, 0 to decode at full size.
+     * @param backend Requested JPEG backend.
+     * @return The decoded image and the object size.
+     * @throws IOException If the object is not a readable image.
+     */
+    public static Fetched decode(String bucket, String key, Fetched loaded, int targetWidth,
+            TurboJpeg.Backend backend) throws IOException {
+        Fetched fetched = decode(new Loaded(loaded.data(), loaded.size(), loaded.parts(), loaded.eTag()),
+                targetWidth, backend);
+        return remember(RasterCache.key(bucket, key, targetWidth, backend), fetched);
+    }
+
+    private static boolean holds(Predicate<Decoder.Header> test, Decoder.Header header) {
+        return test != null && test.test(header);
+    }
+
+    /**
+     * The result for an object in memory whose header passes the test, or
+     * null if it has to be decoded.
+     */
+    private static Fetched pass(Loaded loaded, Predicate<Decoder.Header> test, boolean keep) throws IOException {
+        if (test == null) {
+            return null;
+        }
+        Decoder.Header header = header(loaded.data(), true);
+        return test.test(header) ? passed(header, loaded.size(), loaded.parts(), loaded.eTag(), keep ? loaded : null)
+                : null;
+    }
+
+    /**
+     * @param kept The whole object if the caller keeps it, otherwise null.
+     */
+    private static Fetched passed(Decoder.Header header, long size, int parts, String eTag, Loaded kept) {
+        return kept != null
+                ? new Fetched(null, kept.size(), kept.data(), kept.parts(), header, kept.eTag())
+                : new Fetched(null, size, null, parts, header, eTag);
+    }
+
+    private static String version(Path path) throws IOException {
+        return Files.getLastModifiedTime(path).toMillis() + "-" + Files.size(path);
+    }
+
+    /**
+     * Read the header of an image from the start of its bytes.
+     *
+     * @param data The bytes read so far.
+     * @param complete True if data holds the whole object.
+     * @return The header, or null if it goes on past the end of data and
+     *         more of the object follows.
+     * @throws IOException If the object is not a readable image.
+     */
+    private static Decoder.Header header(ByteBuffer data, boolean complete) throws IOException {
+        try (ImageInputStream input = Codecs.input(data)) {
+            return Decoder.probe(input);
+        } catch (IOException e) {
+            if (complete) {
+                throw e;
+            }
+            return null;
+        }
+    }
+
+    private static Fetched remember(String cacheKey, Fetched fetched) {
+        RasterCache.recordMiss();
+        if (fetched.eTag() != null) {
+            RasterCache.put(cacheKey, new RasterCache.Entry(fetched.eTag(), fetched.size(), fetched.decoded()));
+        }
+        return fetched;
+    }
+
+    /**
+     * GET an object, or only check that it still has the given ETag.
+     *
+     * @return The response, or null if the object still has eTag (304).
+     */
+    private static ResponseInputStream<GetObjectResponse> getUnlessMatch(S3Client s3, GetObjectRequest request,
+            String eTag) {
+        if (eTag == null) {
+            return s3.getObject(request);
+        }
+        try {
+            return s3.getObject(request.toBuilder().ifNoneMatch(eTag).build());
+        } catch (S3Exception e) {
+            if (e.statusCode() == 304) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Read a whole response into memory and keep a copy in the {@link DiskCache}.
+     *
+     * @param head Bytes already read from the start of in.
+     */
+    private static Loaded buffer(S3Client s3, GetObjectRequest request, ResponseInputStream<GetObjectResponse> in,
+            long size, byte[] head) throws IOException {
+        Loaded loaded;
+        if (size >= RangedDownload.THRESHOLD) {
+            ByteBuffer data = ByteBuffer.wrap(RangedDownload.fetch(s3, request, in, size, head)).asReadOnlyBuffer();
+            loaded = new Loaded(data, size, RangedDownload.parts(size), in.response().eTag());
+        } else {
+            ByteBuffer data = ByteBuffer.wrap(readAll(in, size, head)).asReadOnlyBuffer();
+            loaded = new Loaded(data, data.remaining(), 1, in.response().eTag());
+        }
+        DiskCache.store(request.bucket(), request.key(), loaded.eTag(), loaded.data());
+        return loaded;
+    }
+
+    /**
+     * Read only the header of an object. A ranged GET fetches the first
+     * {@link #PROBE_BYTES} bytes; only if the header does not end within
+     * them (a TIFF with its directory at the end, a JPEG with very large
+     * metadata) is the object streamed until the reader has the header,
+     * and the rest of the response is dropped.
+     *
+     * @param s3 Client.
+     * @param bucket Bucket name.
+     * @param key Object key.
+     * @param mode LOCAL reads the local copy, any other mode reads S3.
+     * @return The header and the object size.
+     * @throws IOException If the object (or local file) is not a readable image.
+     */
+    public static Probe probe(S3Client s3, String bucket, String key, Mode mode) throws IOException {
+        if (mode == Mode.LOCAL) {
+            ByteBuffer data = Codecs.map(LOCAL_DIR.resolve(bucket).resolve(key));
+            try (ImageInputStream input = Codecs.input(data)) {
+                return new Probe(Decoder.probe(input), data.remaining());
+            }
+        }
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build();
+        byte[] head;
+        long size;
+        try (ResponseInputStream<GetObjectResponse> in = s3.getObject(request.toBuilder()
+                .range("bytes=0-" + (PROBE_BYTES - 1))
+                .build())) {
+            head = in.readAllBytes();
+            size = totalSize(in.response().contentRange(), head.length);
+        }
+        Decoder.Header header = header(ByteBuffer.wrap(head), head.length >= size);
+        if (header != null) {
+            return new Probe(header, size);
+        }
+        ResponseInputStream<GetObjectResponse> in = s3.getObject(request);
+        try (ImageInputStream input = Codecs.input(in)) {
+            return new Probe(Decoder.probe(input), size);
+        } finally {
+            in.abort();
+            in.close();
+        }
+    }
+
+    /**
+     * @param contentRange Content-Range of a ranged response, "bytes 0-65535/1234567".
+     * @param fallback Size to assume if the header is missing.
+     * @return The total object size.
+     */
+    private static long totalSize(String contentRange, long fallback) {
+        if (contentRange != null) {
+            int slash = contentRange.lastIndexOf('/');
+            if (slash >= 0) {
+                try {
+                    return Long.parseLong(contentRange.substring(slash + 1).trim());
+                } catch (NumberFormatException e) {
+                    // "*" when the size is unknown
+                }
+            }
+        }
+        return fallback;
+    }
+
+    private static byte[] readAll(InputStream in, long size, byte[] head) throws IOException {
+        if (size < 0 || size > Integer.MAX_VALUE - 8) {
+            byte[] rest = in.readAllBytes();
+            byte[] data = Arrays.copyOf(head, head.length + rest.length);
+            System.arraycopy(rest, 0, data, head.length, rest.length);
+            return data;
+        }
+        byte[] data = new byte[(int) size];
+        System.arraycopy(head, 0, data, 0, head.length);
+        int rest = data.length - head.length;
+        if (in.readNBytes(data, head.length, rest) != rest) {
+            throw new EOFException("Object ended early");
+        }
+        return data;
+    }
+}
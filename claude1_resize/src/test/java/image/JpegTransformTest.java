@@ -0,0 +1,196 @@
+package image;
+
+import image.RotationEngine.Orientation;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trips of {@link JpegTransform} through ImageIO: the transformed
+ * file must decode to the decoded source oriented in pixels, within the
+ * rounding of the decoder's IDCT and chroma upsampling.
+ */
+class JpegTransformTest {
+
+    /**
+     * Largest difference in any channel between the lossless result and
+     * the source oriented after decoding.
+     */
+    private static final int TOLERANCE = 3;
+
+    @Test
+    void everyOrientationMatchesPixelRotation() throws IOException {
+        for (int type : new int[]{BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_BYTE_GRAY}) {
+            byte[] jpeg = encode(image(96, 64, type), false);
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+            JpegTransform transform = JpegTransform.parse(ByteBuffer.wrap(jpeg));
+            assertNotNull(transform);
+            assertEquals(96, transform.width());
+            assertEquals(64, transform.height());
+            for (Orientation orientation : Orientation.values()) {
+                if (orientation == Orientation.NONE) {
+                    continue;
+                }
+                assertTrue(transform.supports(orientation, JpegTransform.Edges.PIXELS), orientation.name());
+                BufferedImage expected = RotationEngine.apply(decoded, orientation);
+                BufferedImage actual = transform(transform, orientation, JpegTransform.Edges.PIXELS);
+                assertArrayEquals(new int[]{expected.getWidth(), expected.getHeight()},
+                        transform.outputSize(orientation, JpegTransform.Edges.PIXELS), orientation.name());
+                assertEquals(expected.getWidth(), actual.getWidth(), orientation.name());
+                assertEquals(expected.getHeight(), actual.getHeight(), orientation.name());
+                int difference = maxDifference(expected, actual, 0);
+                assertTrue(difference <= TOLERANCE, orientation + " differs by " + difference);
+            }
+        }
+    }
+
+    @Test
+    void sameInputGivesSameBytes() throws IOException {
+        byte[] jpeg = encode(image(96, 64, BufferedImage.TYPE_3BYTE_BGR), false);
+        JpegTransform transform = JpegTransform.parse(ByteBuffer.wrap(jpeg));
+        assertNotNull(transform);
+        assertArrayEquals(bytes(transform, Orientation.ROTATE_90, JpegTransform.Edges.PIXELS),
+                bytes(transform, Orientation.ROTATE_90, JpegTransform.Edges.PIXELS));
+    }
+
+    @Test
+    void partialEdgeBlocksNeedTrim() throws IOException {
+        // 4:2:0 chroma makes the iMCU 16 pixels; 100x70 leaves 4 and 6 pixels over
+        byte[] jpeg = encode(image(100, 70, BufferedImage.TYPE_3BYTE_BGR), false);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+        JpegTransform transform = JpegTransform.parse(ByteBuffer.wrap(jpeg));
+        assertNotNull(transform);
+
+        // Transposing mirrors no axis, so it works at any size
+        assertTrue(transform.supports(Orientation.TRANSPOSE, JpegTransform.Edges.PIXELS));
+        assertFalse(transform.supports(Orientation.FLIP_HORIZONTAL, JpegTransform.Edges.PIXELS));
+        assertFalse(transform.supports(Orientation.ROTATE_90, JpegTransform.Edges.PIXELS));
+
+        // Trimming drops the partial column: what is left is the left part, mirrored
+        assertTrue(transform.supports(Orientation.FLIP_HORIZONTAL, JpegTransform.Edges.TRIM));
+        assertArrayEquals(new int[]{96, 70}, transform.outputSize(Orientation.FLIP_HORIZONTAL,
+                JpegTransform.Edges.TRIM));
+        BufferedImage actual = transform(transform, Orientation.FLIP_HORIZONTAL, JpegTransform.Edges.TRIM);
+        BufferedImage expected = RotationEngine.apply(decoded.getSubimage(0, 0, 96, 70),
+                Orientation.FLIP_HORIZONTAL);
+        assertEquals(96, actual.getWidth());
+        assertEquals(70, actual.getHeight());
+        // The first iMCU column now holds the cut edge, where the chroma was upsampled differently
+        int difference = maxDifference(expected, actual, 16);
+        assertTrue(difference <= TOLERANCE, "trimmed flip differs by " + difference);
+    }
+
+    @Test
+    void fourQuarterTurnsGiveBackTheSource() throws IOException {
+        byte[] jpeg = encode(image(96, 64, BufferedImage.TYPE_3BYTE_BGR), false);
+        byte[] turned = jpeg;
+        for (int i = 0; i < 4; i++) {
+            JpegTransform transform = JpegTransform.parse(ByteBuffer.wrap(turned));
+            assertNotNull(transform);
+            turned = bytes(transform, Orientation.ROTATE_90, JpegTransform.Edges.PIXELS);
+        }
+        // The coefficients are moved, never requantised, so the pixels are exactly the same
+        assertEquals(0, maxDifference(ImageIO.read(new ByteArrayInputStream(jpeg)),
+                ImageIO.read(new ByteArrayInputStream(turned)), 0));
+    }
+
+    @Test
+    void progressiveIsNotHandled() throws IOException {
+        byte[] jpeg = encode(image(96, 64, BufferedImage.TYPE_3BYTE_BGR), true);
+        assertNull(JpegTransform.parse(ByteBuffer.wrap(jpeg)));
+    }
+
+    @Test
+    void otherFormatsAreNotHandled() throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image(32, 32, BufferedImage.TYPE_3BYTE_BGR), "png", png);
+        assertNull(JpegTransform.parse(ByteBuffer.wrap(png.toByteArray())));
+    }
+
+    private static BufferedImage transform(JpegTransform transform, Orientation orientation,
+            JpegTransform.Edges edges) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(bytes(transform, orientation, edges)));
+    }
+
+    private static byte[] bytes(JpegTransform transform, Orientation orientation, JpegTransform.Edges edges)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transform.transform(orientation, edges, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * A smooth gradient with some noise, so blocks have both low and high
+     * frequencies and no two orientations look alike.
+     */
+    private static BufferedImage image(int width, int height, int type) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Random random = new Random(width * 31L + height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = x * 255 / width;
+                int g = y * 255 / height;
+                int b = Math.min(255, (x + 2 * y) % 128 + random.nextInt(64));
+                img.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+        return img;
+    }
+
+    private static byte[] encode(BufferedImage img, boolean progressive) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.9f);
+        if (progressive) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Compares samples rather than getRGB, which maps gray through a gamma
+     * curve and turns a step of 1 in the dark into more than 10.
+     *
+     * @param fromX First column compared.
+     */
+    private static int maxDifference(BufferedImage expected, BufferedImage actual, int fromX) {
+        Raster a = expected.getRaster();
+        Raster b = actual.getRaster();
+        assertEquals(a.getNumBands(), b.getNumBands());
+        int max = 0;
+        for (int y = 0; y < b.getHeight(); y++) {
+            for (int x = fromX; x < b.getWidth(); x++) {
+                for (int band = 0; band < b.getNumBands(); band++) {
+                    max = Math.max(max, Math.abs(a.getSample(x, y, band) - b.getSample(x, y, band)));
+                }
+            }
+        }
+        return max;
+    }
+}
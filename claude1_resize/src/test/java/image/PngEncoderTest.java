@@ -0,0 +1,135 @@
+package image;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trips of {@link PngEncoder} through the ImageIO PNG reader: every
+ * layout and setting must decode to exactly the samples that were written.
+ */
+class PngEncoderTest {
+
+    private static final PngEncoder.Settings[] SETTINGS = {
+            new PngEncoder.Settings(0, PngEncoder.Strategy.DEFAULT),
+            new PngEncoder.Settings(1, PngEncoder.Strategy.DEFAULT),
+            new PngEncoder.Settings(4, PngEncoder.Strategy.FILTERED),
+            new PngEncoder.Settings(9, PngEncoder.Strategy.HUFFMAN_ONLY)
+    };
+
+    @Test
+    void everyLayoutRoundTrips() throws IOException {
+        int[] types = {BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB,
+                BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR};
+        for (int type : types) {
+            BufferedImage img = image(97, 61, type);
+            for (PngEncoder.Settings settings : SETTINGS) {
+                assertRoundTrip(img, settings, "type " + type + " " + settings);
+            }
+        }
+    }
+
+    @Test
+    void grayWithAlphaRoundTrips() throws IOException {
+        BufferedImage img = Encoder.prepare(image(97, 61, BufferedImage.TYPE_INT_ARGB), "png", true);
+        assertEquals(2, img.getRaster().getNumBands());
+        for (PngEncoder.Settings settings : SETTINGS) {
+            assertRoundTrip(img, settings, "gray alpha " + settings);
+        }
+    }
+
+    @Test
+    void manyChunksFormOneStream() throws IOException {
+        // About 1.2 MB of filtered rows: ten chunks deflated in parallel and joined
+        BufferedImage img = image(1000, 400, BufferedImage.TYPE_3BYTE_BGR);
+        assertRoundTrip(img, PngEncoder.Settings.DEFAULT, "many chunks");
+        assertRoundTrip(img, new PngEncoder.Settings(0, PngEncoder.Strategy.DEFAULT), "many chunks stored");
+    }
+
+    @Test
+    void tinyImagesRoundTrip() throws IOException {
+        assertRoundTrip(image(1, 1, BufferedImage.TYPE_INT_RGB), PngEncoder.Settings.DEFAULT, "1x1");
+        assertRoundTrip(image(1, 300, BufferedImage.TYPE_BYTE_GRAY), PngEncoder.Settings.DEFAULT, "1x300");
+        assertRoundTrip(image(300, 1, BufferedImage.TYPE_4BYTE_ABGR), PngEncoder.Settings.DEFAULT, "300x1");
+    }
+
+    @Test
+    void otherLayoutsAreLeftToImageIO() {
+        assertFalse(PngEncoder.canEncode(new BufferedImage(8, 8, BufferedImage.TYPE_BYTE_INDEXED)));
+        assertFalse(PngEncoder.canEncode(new BufferedImage(8, 8, BufferedImage.TYPE_USHORT_GRAY)));
+        assertFalse(PngEncoder.canEncode(new BufferedImage(8, 8, BufferedImage.TYPE_INT_ARGB_PRE)));
+    }
+
+    @Test
+    void combinedChecksumMatchesAdler32() {
+        byte[] data = new byte[200_000];
+        new Random(1).nextBytes(data);
+        for (int split : new int[]{0, 1, 65521, 100_000, data.length}) {
+            Adler32 first = new Adler32();
+            first.update(data, 0, split);
+            Adler32 second = new Adler32();
+            second.update(data, split, data.length - split);
+            Adler32 whole = new Adler32();
+            whole.update(data);
+            assertEquals(whole.getValue(),
+                    PngEncoder.combineAdler32(first.getValue(), second.getValue(), data.length - split),
+                    "split at " + split);
+        }
+    }
+
+    private static void assertRoundTrip(BufferedImage img, PngEncoder.Settings settings, String what)
+            throws IOException {
+        assertTrue(PngEncoder.canEncode(img), what);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngEncoder.write(img, settings, out);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(decoded, what);
+        assertEquals(img.getWidth(), decoded.getWidth(), what);
+        assertEquals(img.getHeight(), decoded.getHeight(), what);
+
+        // Bands are in R, G, B, A (or gray, alpha) order for every layout, whatever the storage order
+        Raster expected = img.getRaster();
+        Raster actual = decoded.getRaster();
+        assertEquals(expected.getNumBands(), actual.getNumBands(), what);
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                for (int band = 0; band < expected.getNumBands(); band++) {
+                    if (expected.getSample(x, y, band) != actual.getSample(x, y, band)) {
+                        throw new AssertionError(what + ": band " + band + " differs at " + x + "," + y);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gradients with noise and a varying alpha, so every row filter gets
+     * chosen somewhere and the deflater finds both runs and literals.
+     */
+    private static BufferedImage image(int width, int height, int type) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Random random = new Random(width * 31L + height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int a = 255 - (x * 255 / width) / 2;
+                int r = x * 255 / width;
+                int g = y * 255 / Math.max(1, height);
+                int b = (x / 8 + y / 8) % 2 == 0 ? random.nextInt(256) : 128;
+                img.setRGB(x, y, a << 24 | r << 16 | g << 8 | b);
+            }
+        }
+        return img;
+    }
+}
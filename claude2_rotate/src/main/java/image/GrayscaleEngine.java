@@ -0,0 +1,238 @@
+package image;
+
+import java.awt.image.BufferedImage;
+import java.util.Locale;
+
+/**
+ * Grayscale conversion working directly on the raster arrays.
+ *
+ * Replaces {@code ColorConvertOp(CS_GRAY)}, which routes every pixel through
+ * the color management module. Luma is computed with 16 bit fixed point
+ * weights and the image is split into row bands on the shared pool. Nothing
+ * is allocated per pixel; the generic fallback allocates one row buffer per
+ * band.
+ *
+ * @author Justin Le
+ */
+public final class GrayscaleEngine {
+
+    private static final int MIN_BAND_ROWS = 64;
+
+    /**
+     * Luma formulas the caller can pick from. Weights are scaled by 2^16 and
+     * sum to exactly 65536 so white stays white.
+     */
+    public enum Formula {
+        BT601(19595, 38470, 7471),
+        BT709(13933, 46871, 4732),
+        AVERAGE(21846, 21845, 21845),
+        LIGHTNESS(0, 0, 0);
+
+        final int wr;
+        final int wg;
+        final int wb;
+
+        Formula(int wr, int wg, int wb) {
+            this.wr = wr;
+            this.wg = wg;
+            this.wb = wb;
+        }
+
+        /**
+         * Luma of one pixel.
+         *
+         * @param r Red 0-255.
+         * @param g Green 0-255.
+         * @param b Blue 0-255.
+         * @return Gray level 0-255.
+         */
+        public int luma(int r, int g, int b) {
+            if (this == LIGHTNESS) {
+                return (Math.max(r, Math.max(g, b)) + Math.min(r, Math.min(g, b)) + 1) >> 1;
+            }
+            return (wr * r + wg * g + wb * b + 32768) >>> 16;
+        }
+
+        /**
+         * Parse a formula from a request parameter.
+         *
+         * @param value Formula name (bt601, bt709, average, lightness) or null.
+         * @return The matching formula, BT601 if value is null or empty.
+         */
+        public static Formula parse(Object value) {
+            if (value == null || value.toString().isEmpty()) {
+                return BT601;
+            }
+            String name = value.toString().trim().toUpperCase(Locale.ROOT).replace(".", "");
+            switch (name) {
+                case "601":
+                case "REC601":
+                    return BT601;
+                case "709":
+                case "REC709":
+                    return BT709;
+                case "AVG":
+                    return AVERAGE;
+                default:
+                    return valueOf(name);
+            }
+        }
+    }
+
+    private GrayscaleEngine() {
+    }
+
+    /**
+     * Convert an image to an 8 bit TYPE_BYTE_GRAY image.
+     *
+     * @param src Source image of any type.
+     * @param formula Luma formula.
+     * @return New grayscale image.
+     */
+    public static BufferedImage toGray(BufferedImage src, Formula formula) {
+        return filter(src, null, formula);
+    }
+
+    /**
+     * Convert src to grayscale, writing into dst. When dst is null a
+     * TYPE_BYTE_GRAY image is created. A color dst receives the gray level in
+     * every color channel, alpha is carried over from src.
+     *
+     * @param src Source image.
+     * @param dst Destination of the same size, or null.
+     * @param formula Luma formula.
+     * @return The destination image.
+     */
+    public static BufferedImage filter(BufferedImage src, BufferedImage dst, Formula formula) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        if (dst == null) {
+            dst = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        } else if (dst.getWidth() != width || dst.getHeight() != height) {
+            throw new IllegalArgumentException("Destination size does not match source");
+        }
+
+        final BufferedImage out = dst;
+        boolean fastSrc = Rasters.isFastLayout(src);
+
+        if (fastSrc && out.getType() == BufferedImage.TYPE_BYTE_GRAY && Rasters.isCompact(out)) {
+            byte[] gray = Rasters.bytes(out);
+            Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+                for (int y = start; y < end; y++) {
+                    lumaRow(src, y, gray, y * width, formula);
+                }
+            });
+        } else if (fastSrc && out.getType() == src.getType() && Rasters.isCompact(out)) {
+            Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+                byte[] row = new byte[width];
+                for (int y = start; y < end; y++) {
+                    lumaRow(src, y, row, 0, formula);
+                    expandRow(src, out, y, row);
+                }
+            });
+        } else {
+            Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) -> {
+                int[] row = new int[width];
+                for (int y = start; y < end; y++) {
+                    src.getRGB(0, y, width, 1, row, 0, width);
+                    for (int x = 0; x < width; x++) {
+                        int p = row[x];
+                        int l = formula.luma((p >> 16) & 0xFF, (p >> 8) & 0xFF, p & 0xFF);
+                        row[x] = (p & 0xFF000000) | (l << 16) | (l << 8) | l;
+                    }
+                    out.setRGB(0, y, width, 1, row, 0, width);
+                }
+            });
+        }
+        return out;
+    }
+
+    /**
+     * Compute the luma of row y of a compact byte or packed int image.
+     */
+    private static void lumaRow(BufferedImage src, int y, byte[] dst, int dstOff, Formula f) {
+        int width = src.getWidth();
+        int n = Rasters.byteChannels(src);
+        Object row = n > 0 ? Rasters.bytes(src) : Rasters.ints(src);
+        lumaRow(row, y * width * Math.max(n, 1), n, src.getType() == BufferedImage.TYPE_INT_BGR,
+                dst, dstOff, width, f);
+    }
+
+    /**
+     * Compute the luma of width pixels of an interleaved byte or packed int
+     * array. The weighted formulas go through {@link Kernels}; LIGHTNESS
+     * needs min and max per pixel and stays a plain loop.
+     *
+     * @param row byte[] (n = 1, 3 or 4) or int[] (n = 0) pixels.
+     * @param off Offset of the first pixel in row.
+     * @param n Bytes per pixel, 0 for packed ints.
+     * @param intBgr True if the packed ints are INT_BGR.
+     * @param dst Gray output.
+     * @param dstOff First output byte.
+     * @param width Number of pixels.
+     * @param f Luma formula.
+     */
+    static void lumaRow(Object row, int off, int n, boolean intBgr, byte[] dst, int dstOff, int width, Formula f) {
+        if (n == 1) {
+            System.arraycopy(row, off, dst, dstOff, width);
+        } else if (n > 0) {
+            byte[] in = (byte[]) row;
+            if (f != Formula.LIGHTNESS) {
+                Kernels.lumaBytes(in, off, n, dst, dstOff, width, f.wr, f.wg, f.wb);
+                return;
+            }
+            // BGR and ABGR both end with B, G, R.
+            int i = off + (n - 3);
+            for (int x = 0; x < width; x++, i += n) {
+                dst[dstOff + x] = (byte) f.luma(in[i + 2] & 0xFF, in[i + 1] & 0xFF, in[i] & 0xFF);
+            }
+        } else {
+            int[] in = (int[]) row;
+            if (f != Formula.LIGHTNESS) {
+                Kernels.lumaPacked(in, off, dst, dstOff, width,
+                        intBgr ? 0 : 16, 8, intBgr ? 16 : 0, f.wr, f.wg, f.wb);
+                return;
+            }
+            for (int x = 0, i = off; x < width; x++, i++) {
+                int p = in[i];
+                int r = (p >> 16) & 0xFF;
+                int b = p & 0xFF;
+                dst[dstOff + x] = (byte) (intBgr
+                        ? f.luma(b, (p >> 8) & 0xFF, r)
+                        : f.luma(r, (p >> 8) & 0xFF, b));
+            }
+        }
+    }
+
+    /**
+     * Write a row of gray levels into a color destination of the same type
+     * as src, keeping the source alpha.
+     */
+    private static void expandRow(BufferedImage src, BufferedImage dst, int y, byte[] row) {
+        int width = src.getWidth();
+        int n = Rasters.byteChannels(dst);
+        if (n > 0) {
+            byte[] in = Rasters.bytes(src);
+            byte[] out = Rasters.bytes(dst);
+            int i = y * width * n;
+            for (int x = 0; x < width; x++, i += n) {
+                byte l = row[x];
+                if (n == 4) {
+                    out[i] = in[i];
+                }
+                out[i + n - 3] = l;
+                out[i + n - 2] = l;
+                out[i + n - 1] = l;
+            }
+        } else {
+            int[] in = Rasters.ints(src);
+            int[] out = Rasters.ints(dst);
+            int alphaMask = dst.getColorModel().hasAlpha() ? 0xFF000000 : 0;
+            int i = y * width;
+            for (int x = 0; x < width; x++, i++) {
+                int l = row[x] & 0xFF;
+                out[i] = (in[i] & alphaMask) | (l << 16) | (l << 8) | l;
+            }
+        }
+    }
+}
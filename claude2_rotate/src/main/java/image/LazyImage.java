@@ -0,0 +1,740 @@
+package image;
+
+import image.AffineWarp.Canvas;
+import image.AffineWarp.Interpolation;
+import image.RotationEngine.Orientation;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An image with a list of pending operations that only produces pixels when
+ * {@link #render()} is called, typically right before encoding.
+ *
+ * Recording an operation does no pixel work. Geometric operations (crop,
+ * resize, right angle rotations and flips, arbitrary rotations and affine
+ * transforms) are folded into one transform from source to output
+ * coordinates, and color operations (grayscale, lookup tables) into one
+ * {@link ColorProgram}. Rendering then picks the cheapest way to evaluate
+ * those two stages:
+ * <ul>
+ * <li>An axis aligned transform becomes crop, resample and a right angle
+ * {@link RotationEngine} pass, with the rotation done on whichever side of
+ * the resample has fewer pixels.</li>
+ * <li>Anything else is a single {@link AffineWarp} of the part of the source
+ * the output can see, after a {@link Resampler#downscale} when the warp
+ * shrinks the image by more than 2x so it does not alias.</li>
+ * <li>The color pass runs before or after the geometry, whichever a simple
+ * cost model says is cheaper. A lookup table after an 8x downscale only
+ * maps 1/64th of the pixels; a grayscale before it lets the resampler carry
+ * one channel instead of three.</li>
+ * </ul>
+ * Color operations are treated as commuting with geometry. That is exact for
+ * crops and right angle rotations and for grayscale (a weighted sum), and a
+ * close approximation for lookup tables after resampling.
+ *
+ * Instances are immutable, every operation returns a new LazyImage, and the
+ * source image is never written to.
+ *
+ * @author Justin Le
+ */
+public final class LazyImage {
+
+    private static final double EPSILON = 1e-9;
+
+    private final BufferedImage source;
+    private final AffineTransform geometry;
+    private final int width;
+    private final int height;
+    private final Resampler.Filter filter;
+    private final Interpolation interpolation;
+    private final ColorProgram color;
+    private final List<String> operations;
+
+    private LazyImage(BufferedImage source, AffineTransform geometry, int width, int height,
+            Resampler.Filter filter, Interpolation interpolation, ColorProgram color, List<String> operations) {
+        this.source = source;
+        this.geometry = geometry;
+        this.width = width;
+        this.height = height;
+        this.filter = filter;
+        this.interpolation = interpolation;
+        this.color = color;
+        this.operations = operations;
+    }
+
+    /**
+     * @param source Decoded image. It is read, never modified; an image that
+     *               is not in a {@link Normalizer} layout is converted first.
+     * @return A lazy image with no operations.
+     */
+    public static LazyImage of(BufferedImage source) {
+        source = Normalizer.normalize(source);
+        return new LazyImage(source, new AffineTransform(), source.getWidth(), source.getHeight(),
+                null, null, ColorProgram.IDENTITY, Collections.emptyList());
+    }
+
+    /**
+     * @return Width the rendered image will have.
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * @return Height the rendered image will have.
+     */
+    public int height() {
+        return height;
+    }
+
+    /**
+     * @return True if the rendered image will be gray (equal red, green and
+     *         blue), either through a grayscale operation or because the
+     *         source is TYPE_BYTE_GRAY and no lookup table colors it.
+     */
+    public boolean isGray() {
+        return color.isGray() || (Rasters.byteChannels(source) == 1 && color.keepsGray());
+    }
+
+    /**
+     * @return The recorded operations, in order, e.g. ["resize(800x533)", "grayscale(BT601)"].
+     */
+    public List<String> operations() {
+        return operations;
+    }
+
+    private LazyImage withGeometry(AffineTransform step, int newWidth, int newHeight, Resampler.Filter newFilter,
+            Interpolation newInterpolation, String operation) {
+        if (newWidth <= 0 || newHeight <= 0) {
+            throw new IllegalArgumentException(operation + " leaves no pixels");
+        }
+        AffineTransform t = new AffineTransform(geometry);
+        t.preConcatenate(step);
+        return new LazyImage(source, t, newWidth, newHeight, newFilter, newInterpolation, color,
+                append(operation));
+    }
+
+    private LazyImage withColor(ColorProgram program, String operation) {
+        return new LazyImage(source, geometry, width, height, filter, interpolation, program, append(operation));
+    }
+
+    private List<String> append(String operation) {
+        List<String> list = new ArrayList<>(operations);
+        list.add(operation);
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Keep only a rectangle of the current image. The rectangle is clipped
+     * to the image.
+     *
+     * @param x Left edge.
+     * @param y Top edge.
+     * @param w Width.
+     * @param h Height.
+     * @return The cropped image.
+     */
+    public LazyImage crop(int x, int y, int w, int h) {
+        Rectangle r = new Rectangle(x, y, w, h).intersection(new Rectangle(width, height));
+        String op = "crop(" + x + "," + y + "," + w + "x" + h + ")";
+        if (r.isEmpty()) {
+            throw new IllegalArgumentException(op + " is outside the " + width + "x" + height + " image");
+        }
+        return withGeometry(AffineTransform.getTranslateInstance(-r.x, -r.y), r.width, r.height,
+                filter, interpolation, op);
+    }
+
+    /**
+     * Scale the current image to an exact size.
+     *
+     * @param w Target width.
+     * @param h Target height.
+     * @param resizeFilter Reconstruction filter.
+     * @return The resized image.
+     */
+    public LazyImage resize(int w, int h, Resampler.Filter resizeFilter) {
+        return withGeometry(AffineTransform.getScaleInstance((double) w / width, (double) h / height), w, h,
+                resizeFilter, interpolation, "resize(" + w + "x" + h + "," + resizeFilter.name() + ")");
+    }
+
+    /**
+     * Apply a right angle rotation or flip.
+     *
+     * @param orientation Orientation.
+     * @return The reoriented image.
+     */
+    public LazyImage orient(Orientation orientation) {
+        double w = width;
+        double h = height;
+        AffineTransform t;
+        switch (orientation) {
+            case ROTATE_90:
+                t = new AffineTransform(0, 1, -1, 0, h, 0);
+                break;
+            case ROTATE_180:
+                t = new AffineTransform(-1, 0, 0, -1, w, h);
+                break;
+            case ROTATE_270:
+                t = new AffineTransform(0, -1, 1, 0, 0, w);
+                break;
+            case FLIP_HORIZONTAL:
+                t = new AffineTransform(-1, 0, 0, 1, w, 0);
+                break;
+            case FLIP_VERTICAL:
+                t = new AffineTransform(1, 0, 0, -1, 0, h);
+                break;
+            case TRANSPOSE:
+                t = new AffineTransform(0, 1, 1, 0, 0, 0);
+                break;
+            case TRANSVERSE:
+                t = new AffineTransform(0, -1, -1, 0, h, w);
+                break;
+            default:
+                return this;
+        }
+        boolean swap = orientation.swapsAxes();
+        return withGeometry(t, swap ? height : width, swap ? width : height, filter, interpolation,
+                orientation.name().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Rotate clockwise about the image center. Multiples of 90 degrees with
+     * an expanding canvas are recorded as {@link #orient}.
+     *
+     * @param degrees Clockwise angle.
+     * @param sampling Sampling for non right angles.
+     * @param canvas Canvas mode.
+     * @return The rotated image.
+     */
+    public LazyImage rotate(double degrees, Interpolation sampling, Canvas canvas) {
+        if (Orientation.isRightAngle(degrees) && (canvas == Canvas.EXPAND || width == height)) {
+            return orient(Orientation.fromDegrees(degrees));
+        }
+        return transform(AffineTransform.getRotateInstance(Math.toRadians(degrees), width / 2.0, height / 2.0),
+                sampling, canvas);
+    }
+
+    /**
+     * Apply an affine transform to the current image.
+     *
+     * @param forward Transform from current to new coordinates.
+     * @param sampling Sampling used if the transform is evaluated as a warp.
+     * @param canvas EXPAND to fit the whole result, CROP to keep the current size.
+     * @return The transformed image.
+     */
+    public LazyImage transform(AffineTransform forward, Interpolation sampling, Canvas canvas) {
+        AffineTransform t = new AffineTransform(forward);
+        int w = width;
+        int h = height;
+        if (canvas == Canvas.EXPAND) {
+            Rectangle bounds = AffineWarp.bounds(t, width, height);
+            t.preConcatenate(AffineTransform.getTranslateInstance(-bounds.x, -bounds.y));
+            w = bounds.width;
+            h = bounds.height;
+        }
+        Interpolation best = interpolation == null || sampling.compareTo(interpolation) > 0 ? sampling : interpolation;
+        return withGeometry(t, w, h, filter, best, "transform(" + sampling.name() + "," + canvas.name() + ")");
+    }
+
+    /**
+     * Convert to grayscale.
+     *
+     * @param formula Luma formula.
+     * @return The gray image.
+     */
+    public LazyImage grayscale(GrayscaleEngine.Formula formula) {
+        return withColor(color.gray(formula), "grayscale(" + formula.name() + ")");
+    }
+
+    /**
+     * Map every color channel through the same table.
+     *
+     * @param table 256 entries.
+     * @return The mapped image.
+     */
+    public LazyImage lut(byte[] table) {
+        return lut(table, table, table);
+    }
+
+    /**
+     * Map each color channel through its own table. Alpha is not changed.
+     *
+     * @param red 256 entries for red.
+     * @param green 256 entries for green.
+     * @param blue 256 entries for blue.
+     * @return The mapped image.
+     */
+    public LazyImage lut(byte[] red, byte[] green, byte[] blue) {
+        return withColor(color.lut(red, green, blue), "lut");
+    }
+
+    /**
+     * @param gamma Gamma exponent; values above 1 brighten.
+     * @return A lookup table applying the gamma curve.
+     */
+    public static byte[] gammaTable(double gamma) {
+        if (!(gamma > 0)) {
+            throw new IllegalArgumentException("gamma must be positive");
+        }
+        byte[] table = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            table[i] = (byte) Math.round(255 * Math.pow(i / 255.0, 1 / gamma));
+        }
+        return table;
+    }
+
+    /**
+     * @return A lookup table inverting every channel.
+     */
+    public static byte[] invertTable() {
+        byte[] table = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            table[i] = (byte) (255 - i);
+        }
+        return table;
+    }
+
+    /**
+     * Record operations given as request parameters, e.g.
+     * [{"op": "crop", "x": 0, "y": 0, "width": 400, "height": 400},
+     * {"op": "grayscale", "formula": "bt709"}].
+     *
+     * Supported ops: crop (x, y, width, height), resize (width and/or
+     * height, filter), rotate (angle or orientation, interpolation, canvas),
+     * flip (direction: horizontal or vertical), transform (matrix,
+     * interpolation, canvas), grayscale (formula), gamma (value), invert and
+     * lut (table, or red, green and blue).
+     *
+     * @param value List of operation maps, or null.
+     * @return The image with the operations appended.
+     */
+    public LazyImage withOperations(Object value) {
+        if (value == null) {
+            return this;
+        }
+        if (!(value instanceof List<?> list)) {
+            throw new IllegalArgumentException("operations must be a list");
+        }
+        LazyImage img = this;
+        for (Object item : list) {
+            if (!(item instanceof Map<?, ?> op)) {
+                throw new IllegalArgumentException("Each operation must be an object with an \"op\" field");
+            }
+            String name = String.valueOf(op.get("op")).trim().toLowerCase(Locale.ROOT);
+            switch (name) {
+                case "crop":
+                    img = img.crop(intParam(op, "x", 0), intParam(op, "y", 0),
+                            intParam(op, "width", img.width), intParam(op, "height", img.height));
+                    break;
+                case "resize": {
+                    int w = intParam(op, "width", 0);
+                    int h = intParam(op, "height", 0);
+                    if (w <= 0 && h <= 0) {
+                        throw new IllegalArgumentException("resize needs a width or a height");
+                    }
+                    if (w <= 0) {
+                        w = (int) Math.max(1, Math.round((double) img.width * h / img.height));
+                    } else if (h <= 0) {
+                        h = (int) Math.max(1, Math.round((double) img.height * w / img.width));
+                    }
+                    img = img.resize(w, h, Resampler.Filter.parse(op.get("filter"), Resampler.Filter.LANCZOS3));
+                    break;
+                }
+                case "rotate":
+                    if (op.get("orientation") != null) {
+                        img = img.orient(Orientation.parse(op.get("orientation"), Orientation.NONE));
+                    } else {
+                        img = img.rotate(doubleParam(op, "angle", 0), Interpolation.parse(op.get("interpolation")),
+                                Canvas.parse(op.get("canvas")));
+                    }
+                    break;
+                case "flip":
+                    img = img.orient("vertical".equalsIgnoreCase(String.valueOf(op.get("direction")))
+                            ? Orientation.FLIP_VERTICAL : Orientation.FLIP_HORIZONTAL);
+                    break;
+                case "transform":
+                    img = img.transform(AffineWarp.parseMatrix(op.get("matrix")),
+                            Interpolation.parse(op.get("interpolation")), Canvas.parse(op.get("canvas")));
+                    break;
+                case "grayscale":
+                    img = img.grayscale(GrayscaleEngine.Formula.parse(op.get("formula")));
+                    break;
+                case "gamma":
+                    img = img.lut(gammaTable(doubleParam(op, "value", 1)));
+                    break;
+                case "invert":
+                    img = img.lut(invertTable());
+                    break;
+                case "lut":
+                    if (op.get("table") != null) {
+                        img = img.lut(tableParam(op.get("table")));
+                    } else {
+                        img = img.lut(tableParam(op.get("red")), tableParam(op.get("green")),
+                                tableParam(op.get("blue")));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation: " + name);
+            }
+        }
+        return img;
+    }
+
+    private static double doubleParam(Map<?, ?> op, String name, double defaultValue) {
+        Object value = op.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value.toString());
+    }
+
+    private static int intParam(Map<?, ?> op, String name, int defaultValue) {
+        return (int) Math.round(doubleParam(op, name, defaultValue));
+    }
+
+    private static byte[] tableParam(Object value) {
+        if (!(value instanceof List<?> list) || list.size() != 256) {
+            throw new IllegalArgumentException("lut tables must be lists of 256 numbers");
+        }
+        byte[] table = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            table[i] = (byte) Math.max(0, Math.min(255, (int) Double.parseDouble(list.get(i).toString())));
+        }
+        return table;
+    }
+
+    /**
+     * How {@link #render()} will evaluate the recorded operations, e.g.
+     * "crop>resize(800x533,LANCZOS3)>gray(BT601)". Useful as a SAAF
+     * attribute next to the timings.
+     *
+     * @return Description of the evaluation order.
+     */
+    public String plan() {
+        return String.join(">", evaluate(false).steps);
+    }
+
+    /**
+     * Produce the pixels.
+     *
+     * @return The rendered image, the source itself if nothing was recorded.
+     */
+    public BufferedImage render() {
+        return evaluate(true).image;
+    }
+
+    /**
+     * Give the pixels of a rendered image back to the {@link PixelPool}
+     * once it has been encoded. Nothing happens if it is the source.
+     *
+     * @param rendered Result of {@link #render()}, not used afterwards.
+     */
+    public void recycle(BufferedImage rendered) {
+        if (rendered != source) {
+            PixelPool.release(rendered);
+        }
+    }
+
+    private record Result(BufferedImage image, List<String> steps) {
+    }
+
+    /**
+     * Work out (and, if execute is set, run) the cheapest evaluation. The
+     * dry run tracks only the sizes, so {@link #plan()} costs nothing.
+     */
+    private Result evaluate(boolean execute) {
+        List<String> steps = new ArrayList<>();
+        Stage stage = new Stage(execute ? source : null, source.getWidth(), source.getHeight(),
+                Rasters.byteChannels(source) == 1 ? 1 : (Rasters.byteChannels(source) == 3 ? 3 : 4), steps);
+
+        double m00 = geometry.getScaleX();
+        double m10 = geometry.getShearY();
+        double m01 = geometry.getShearX();
+        double m11 = geometry.getScaleY();
+        boolean straight = Math.abs(m01) < EPSILON && Math.abs(m10) < EPSILON;
+        boolean swapped = Math.abs(m00) < EPSILON && Math.abs(m11) < EPSILON;
+        boolean identity = geometry.isIdentity() && width == source.getWidth() && height == source.getHeight();
+
+        if (identity) {
+            stage.color(color);
+        } else if ((straight || swapped) && !(interpolation == Interpolation.NEAREST && isScaled(straight))) {
+            axisAligned(stage, straight);
+        } else {
+            warp(stage);
+        }
+        if (steps.isEmpty()) {
+            steps.add("none");
+        }
+        return new Result(stage.image, steps);
+    }
+
+    private boolean isScaled(boolean straight) {
+        double sx = straight ? geometry.getScaleX() : geometry.getShearY();
+        double sy = straight ? geometry.getScaleY() : geometry.getShearX();
+        return Math.abs(Math.abs(sx) - 1) > EPSILON || Math.abs(Math.abs(sy) - 1) > EPSILON;
+    }
+
+    /**
+     * Crop, resample and reorient, with the color pass on the cheaper side.
+     */
+    private void axisAligned(Stage stage, boolean straight) {
+        Orientation orientation;
+        if (straight) {
+            boolean flipX = geometry.getScaleX() < 0;
+            boolean flipY = geometry.getScaleY() < 0;
+            orientation = flipX
+                    ? (flipY ? Orientation.ROTATE_180 : Orientation.FLIP_HORIZONTAL)
+                    : (flipY ? Orientation.FLIP_VERTICAL : Orientation.NONE);
+        } else {
+            // x' follows source y (shearX), y' follows source x (shearY).
+            boolean negX = geometry.getShearX() < 0;
+            boolean negY = geometry.getShearY() < 0;
+            orientation = negX
+                    ? (negY ? Orientation.TRANSVERSE : Orientation.ROTATE_90)
+                    : (negY ? Orientation.ROTATE_270 : Orientation.TRANSPOSE);
+        }
+        // Output size in the source orientation.
+        int targetWidth = straight ? width : height;
+        int targetHeight = straight ? height : width;
+
+        Rectangle region = sourceRegion(0);
+        long inPixels = (long) region.width * region.height;
+        long outPixels = (long) width * height;
+        boolean colorFirst = colorFirst(stage.channels, inPixels, outPixels, true);
+
+        stage.crop(region);
+        if (colorFirst) {
+            stage.color(color);
+        }
+        boolean scaled = targetWidth != region.width || targetHeight != region.height;
+        if (scaled && (long) targetWidth * targetHeight > inPixels) {
+            // Upscale: rotate while the image is still small.
+            stage.orient(orientation);
+            stage.resize(width, height, resizeFilter());
+        } else {
+            if (scaled) {
+                stage.resize(targetWidth, targetHeight, resizeFilter());
+            }
+            stage.orient(orientation);
+        }
+        if (!colorFirst) {
+            stage.color(color);
+        }
+    }
+
+    /**
+     * One warp of the visible part of the source, pre-reduced if the warp
+     * shrinks it by more than 2x.
+     */
+    private void warp(Stage stage) {
+        AffineTransform t = new AffineTransform(geometry);
+        Rectangle region = sourceRegion(2);
+        stage.crop(region);
+        t.concatenate(AffineTransform.getTranslateInstance(region.x, region.y));
+
+        // How much the transform shrinks each source axis.
+        double sx = Math.hypot(t.getScaleX(), t.getShearY());
+        double sy = Math.hypot(t.getShearX(), t.getScaleY());
+        int w = region.width;
+        int h = region.height;
+        int pw = w;
+        int ph = h;
+        if ((sx < 0.5 || sy < 0.5) && interpolation != Interpolation.NEAREST) {
+            pw = (int) Math.max(1, Math.round(w * Math.min(1, sx)));
+            ph = (int) Math.max(1, Math.round(h * Math.min(1, sy)));
+        }
+        if (pw != w || ph != h) {
+            stage.resize(pw, ph, resizeFilter());
+        }
+        boolean colorFirst = colorFirst(stage.channels, (long) pw * ph, (long) width * height,
+                color.preservesBlack());
+        if (colorFirst) {
+            stage.color(color);
+        }
+        t.concatenate(AffineTransform.getScaleInstance((double) w / pw, (double) h / ph));
+        stage.warp(t, interpolation == null ? Interpolation.BILINEAR : interpolation, width, height);
+        if (!colorFirst) {
+            stage.color(color);
+        }
+    }
+
+    /**
+     * Cost model for placing the color pass. The color pass reads and writes
+     * every pixel it sees once; the geometry (halving, resampling, rotating)
+     * costs about twice as much per channel and pixel, on its input and on
+     * its output. So going gray first usually pays off, since the geometry
+     * then carries one channel instead of three, while a lookup table is
+     * cheapest on whichever side of the geometry has fewer pixels.
+     *
+     * @param channels Channels of the source.
+     * @param inPixels Pixels entering the geometry.
+     * @param outPixels Pixels leaving the geometry.
+     * @param mayGoLast False if the color pass has to run first, e.g. because
+     *                  it would tint the empty border of a warp.
+     * @return True if the color pass should run before the geometry.
+     */
+    private boolean colorFirst(int channels, long inPixels, long outPixels, boolean mayGoLast) {
+        if (color.isIdentity()) {
+            return false;
+        }
+        if (!mayGoLast) {
+            return true;
+        }
+        int colorChannels = color.isGray() && channels != 4 ? 1 : channels;
+        long pass = channels + colorChannels;
+        long before = inPixels * pass + 4 * colorChannels * (inPixels + outPixels);
+        long after = 4 * channels * (inPixels + outPixels) + outPixels * pass;
+        return before < after;
+    }
+
+    /**
+     * Source pixels the output depends on, grown by margin pixels for filter
+     * taps and clipped to the source.
+     */
+    private Rectangle sourceRegion(int margin) {
+        AffineTransform inverse;
+        try {
+            inverse = geometry.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            throw new IllegalArgumentException("Transform is not invertible", e);
+        }
+        double[] corners = {0, 0, width, 0, 0, height, width, height};
+        inverse.transform(corners, 0, corners, 0, 4);
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < 8; i += 2) {
+            minX = Math.min(minX, corners[i]);
+            maxX = Math.max(maxX, corners[i]);
+            minY = Math.min(minY, corners[i + 1]);
+            maxY = Math.max(maxY, corners[i + 1]);
+        }
+        int x0;
+        int y0;
+        int x1;
+        int y1;
+        if (margin == 0) {
+            // Snap to whole source pixels.
+            x0 = (int) Math.round(minX);
+            y0 = (int) Math.round(minY);
+            x1 = Math.max(x0 + 1, (int) Math.round(maxX));
+            y1 = Math.max(y0 + 1, (int) Math.round(maxY));
+        } else {
+            x0 = (int) Math.floor(minX) - margin;
+            y0 = (int) Math.floor(minY) - margin;
+            x1 = (int) Math.ceil(maxX) + margin;
+            y1 = (int) Math.ceil(maxY) + margin;
+        }
+        Rectangle region = new Rectangle(x0, y0, x1 - x0, y1 - y0)
+                .intersection(new Rectangle(source.getWidth(), source.getHeight()));
+        if (region.isEmpty()) {
+            // The output lies entirely outside the source; keep one pixel to warp from.
+            region = new Rectangle(0, 0, 1, 1);
+        }
+        return region;
+    }
+
+    private Resampler.Filter resizeFilter() {
+        if (filter != null) {
+            return filter;
+        }
+        return interpolation == Interpolation.BICUBIC ? Resampler.Filter.CATMULL_ROM : Resampler.Filter.BILINEAR;
+    }
+
+    /**
+     * The image between evaluation steps. In a dry run image stays null and
+     * only the size is tracked. Each intermediate goes back to the
+     * {@link PixelPool} as soon as the next step has read it; the source
+     * never does.
+     */
+    private static final class Stage {
+
+        final BufferedImage source;
+        BufferedImage image;
+        int width;
+        int height;
+        int channels;
+        final List<String> steps;
+
+        Stage(BufferedImage image, int width, int height, int channels, List<String> steps) {
+            this.source = image;
+            this.image = image;
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+            this.steps = steps;
+        }
+
+        private void replace(BufferedImage next) {
+            if (image != next && image != source) {
+                PixelPool.release(image);
+            }
+            image = next;
+        }
+
+        void crop(Rectangle region) {
+            if (region.x == 0 && region.y == 0 && region.width == width && region.height == height) {
+                return;
+            }
+            if (image != null) {
+                replace(Normalizer.normalize(image));
+                replace(Rasters.crop(image, region));
+            }
+            width = region.width;
+            height = region.height;
+            steps.add("crop(" + region.x + "," + region.y + "," + width + "x" + height + ")");
+        }
+
+        void resize(int w, int h, Resampler.Filter filter) {
+            if (image != null) {
+                replace(Resampler.downscale(image, w, h, filter));
+            }
+            width = w;
+            height = h;
+            steps.add("resize(" + w + "x" + h + "," + filter.name() + ")");
+        }
+
+        void orient(Orientation orientation) {
+            if (orientation == Orientation.NONE) {
+                return;
+            }
+            if (image != null) {
+                replace(RotationEngine.apply(image, orientation));
+            }
+            if (orientation.swapsAxes()) {
+                int w = width;
+                width = height;
+                height = w;
+            }
+            steps.add(orientation.name().toLowerCase(Locale.ROOT));
+        }
+
+        void warp(AffineTransform t, Interpolation interpolation, int w, int h) {
+            if (image != null) {
+                replace(AffineWarp.warp(image, t, interpolation, w, h));
+            }
+            width = w;
+            height = h;
+            steps.add("warp(" + w + "x" + h + "," + interpolation.name() + ")");
+        }
+
+        void color(ColorProgram program) {
+            if (program.isIdentity()) {
+                return;
+            }
+            if (image != null) {
+                replace(program.apply(image));
+            }
+            if (program.isGray() && channels != 4) {
+                channels = 1;
+            }
+            steps.add(program.toString());
+        }
+    }
+}
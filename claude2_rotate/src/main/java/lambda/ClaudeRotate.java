@@ -2,21 +2,29 @@ package lambda;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import image.AffineWarp;
+import image.Codecs;
+import image.Decoder;
+import image.Encoder;
+import image.JpegTransform;
+import image.LazyImage;
+import image.OutputBuffer;
+import image.PixelPool;
+import image.PngEncoder;
+import image.RotationEngine.Orientation;
+import image.TurboJpeg;
 import saaf.Inspector;
 import saaf.Response;
-import software.amazon.awssdk.core.ResponseInputStream;
-import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import storage.DiskCache;
+import storage.RasterCache;
+import storage.ResultCache;
+import storage.S3Input;
+import storage.S3Output;
+import storage.SingleFlight;
 
-import javax.imageio.ImageIO;
-import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.util.HashMap;
 
 /**
@@ -32,7 +40,15 @@ public class ClaudeRotate implements RequestHandler<HashMap<String, Object>, Has
     /**
      * Lambda Function Handler
      * 
-     * @param request Hashmap containing request JSON attributes (bucket, key).
+     * @param request Hashmap containing request JSON attributes (bucket, key,
+     *                optional orientation, angle or matrix, defaults to 90
+     *                degrees clockwise; interpolation and canvas for warps;
+     *                optional operations list, see LazyImage.withOperations;
+     *                lossless, default true, and jpegEdges, PIXELS or TRIM,
+     *                for right-angle JPEG rotations, see JpegTransform;
+     *                pngLevel 0 to 9 and pngStrategy for PNG output, see
+     *                PngEncoder; jpegCodec, IMAGEIO or TURBOJPEG, see
+     *                TurboJpeg; cache, default true, see ResultCache).
      * @param context
      * @return HashMap that Lambda will automatically convert into JSON.
      */
@@ -44,84 +60,258 @@ public class ClaudeRotate implements RequestHandler<HashMap<String, Object>, Has
 
         // ****************START FUNCTION IMPLEMENTATION*************************
 
+        SingleFlight.Flight flight = null;
         try {
             // Extract S3 bucket and key from request
             String bucket = (String) request.get("bucket");
             String key = (String) request.get("key");
+            Object angle = request.get("angle");
+            Object matrix = request.get("matrix");
+            boolean warp = matrix != null
+                    || (angle != null && !Orientation.isRightAngle(Double.parseDouble(angle.toString())));
+            Orientation orientation = angle != null && !warp
+                    ? Orientation.parse(angle, Orientation.ROTATE_90)
+                    : Orientation.parse(request.get("orientation"), Orientation.ROTATE_90);
 
             // Add input parameters to SAAF output
             inspector.addAttribute("inputBucket", bucket);
             inspector.addAttribute("inputKey", key);
+            if (!warp) {
+                inspector.addAttribute("orientation", orientation.name());
+            }
 
             // Create S3 client
             S3Client s3Client = S3Client.builder().build();
 
-            // Get the image from S3
-            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                    .bucket(bucket)
-                    .key(key)
-                    .build();
+            // Get the image from S3, decoding while it streams in
+            S3Input.Mode inputMode = S3Input.Mode.parse(request.get("inputMode"));
+            inspector.addAttribute("inputMode", inputMode.name());
 
-            ResponseInputStream<GetObjectResponse> s3Object = s3Client.getObject(getObjectRequest);
+            // Deflate level and strategy for PNG output (parallel encoder)
+            PngEncoder.Settings png = PngEncoder.Settings.parse(request.get("pngLevel"), request.get("pngStrategy"));
+            inspector.addAttribute("pngLevel", png.level());
+            inspector.addAttribute("pngStrategy", png.strategy().name());
 
-            // Read and rotate the image
-            byte[] imageBytes = s3Object.readAllBytes();
-            BufferedImage originalImage = ImageIO.read(new ByteArrayInputStream(imageBytes));
+            // JPEG codec: ImageIO, or libjpeg-turbo when it could be loaded (ImageIO otherwise)
+            TurboJpeg.Backend jpegCodec = TurboJpeg.Backend.parse(request.get("jpegCodec"));
+            inspector.addAttribute("jpegCodec", jpegCodec.name());
+            inspector.addAttribute("jpegBackend", TurboJpeg.effective(jpegCodec).name());
+            inspector.addAttribute("turboJpeg", TurboJpeg.status());
+
+            // A repeated request whose result is already stored (same source ETag and
+            // parameter hash in the output's metadata) ends after two concurrent HEADs
+            String outputKey = "claude_rotated/" + key;
+            ResultCache.Lookup cached = ResultCache.lookup(s3Client, bucket, key, outputKey, "rotate", request);
+            inspector.addAttribute("cache", cached.status().name());
+            if (cached.hit()) {
+                inspector.addAttribute("outputBucket", bucket);
+                inspector.addAttribute("outputKey", outputKey);
+                inspector.addAttribute("outputSize", cached.outputSize());
+                inspector.addAttribute("message", "Result already stored for this source and parameters");
+
+                Response response = new Response();
+                response.setValue("Image already rotated, result stored");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
+
+            // Concurrent identical requests (same source version and parameters) share one execution
+            flight = SingleFlight.join("rotate", bucket, outputKey, cached);
+            inspector.addAttribute("coalesced", !flight.leader());
+            if (!flight.leader()) {
+                SingleFlight.Outcome shared = flight.await();
+                inspector.addAttribute("outputBucket", bucket);
+                inspector.addAttribute("outputKey", outputKey);
+                inspector.addAttribute("outputSize", shared.outputSize());
+                inspector.addAttribute("outputStored", shared.stored());
+                inspector.addAttribute("message", "Coalesced with a concurrent identical request");
+
+                Response response = new Response();
+                response.setValue("Image already rotated, result stored");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
+
+            // Rotation by 0 without follow-up operations: check the header and copy within S3
+            if (!warp && orientation == Orientation.NONE && request.get("operations") == null) {
+                S3Input.Probe probe = S3Input.probe(s3Client, bucket, key, inputMode);
+                Decoder.Header header = probe.header();
+                S3Output.copy(s3Client, bucket, key, outputKey, cached.sourceContentType(), cached.condition());
+                flight.complete(probe.size(), true);
+
+                inspector.addAttribute("originalWidth", header.width());
+                inspector.addAttribute("originalHeight", header.height());
+                inspector.addAttribute("inputSize", probe.size());
+                inspector.addAttribute("passthrough", true);
+                inspector.addAttribute("codecSetupTime", Codecs.takeSetupTime());
+                inspector.addAttribute("outputBucket", bucket);
+                inspector.addAttribute("outputKey", outputKey);
+                inspector.addAttribute("rotatedWidth", header.width());
+                inspector.addAttribute("rotatedHeight", header.height());
+                inspector.addAttribute("imageFormat", header.format().formatName());
+
+                Response response = new Response();
+                response.setValue("Image successfully " + orientation.describe());
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
+            // Right angles and flips of a JPEG without follow-up operations: move the DCT
+            // coefficient blocks instead of decoding, so nothing is requantised
+            S3Input.Fetched fetched;
+            boolean lossless = !warp && orientation != Orientation.NONE && request.get("operations") == null
+                    && !"false".equalsIgnoreCase(String.valueOf(request.get("lossless")));
+            if (lossless) {
+                // Only a JPEG is kept undecoded; other formats are decoded as they stream in
+                fetched = S3Input.readOrLoad(s3Client, bucket, key, inputMode, 0, jpegCodec,
+                        header -> header.format() == Codecs.Format.JPEG);
+                JpegTransform jpeg = fetched.decoded() == null ? JpegTransform.parse(fetched.data()) : null;
+                JpegTransform.Edges edges = JpegTransform.Edges.parse(request.get("jpegEdges"));
+                if (jpeg != null && jpeg.supports(orientation, edges)) {
+                    int[] rotatedSize = jpeg.outputSize(orientation, edges);
+                    S3Output.Uploaded uploaded = S3Output.upload(s3Client, bucket, outputKey,
+                            Codecs.Format.JPEG.mimeType(), fetched.size(), cached.condition(),
+                            out -> jpeg.transform(orientation, edges, out));
+                    flight.complete(uploaded.size(), uploaded.stored());
+
+                    inspector.addAttribute("originalWidth", jpeg.width());
+                    inspector.addAttribute("originalHeight", jpeg.height());
+                    inspector.addAttribute("inputSize", fetched.size());
+                    inspector.addAttribute("downloadParts", fetched.parts());
+                    DiskCache.Stats disk = DiskCache.takeStats();
+                    inspector.addAttribute("diskCacheHits", disk.hits());
+                    inspector.addAttribute("diskCacheMisses", disk.misses());
+                    inspector.addAttribute("diskCacheEvictions", disk.evictions());
+                    inspector.addAttribute("diskCacheBytes", disk.bytes());
+                    inspector.addAttribute("lossless", true);
+                    inspector.addAttribute("jpegEdges", edges.name());
+                    inspector.addAttribute("uploadRequests", uploaded.requests());
+                    inspector.addAttribute("outputStored", uploaded.stored());
+                    inspector.addAttribute("outputBucket", bucket);
+                    inspector.addAttribute("outputKey", outputKey);
+                    inspector.addAttribute("rotatedWidth", rotatedSize[0]);
+                    inspector.addAttribute("rotatedHeight", rotatedSize[1]);
+                    inspector.addAttribute("imageFormat", Codecs.Format.JPEG.formatName());
+
+                    Response response = new Response();
+                    response.setValue("Image successfully " + orientation.describe() + " losslessly");
+                    inspector.consumeResponse(response);
+                    inspector.inspectAllDeltas();
+                    return inspector.finish();
+                }
+                if (fetched.decoded() == null) {
+                    // Not a baseline JPEG, or partial edge blocks that may not be trimmed
+                    fetched = S3Input.decode(bucket, key, fetched, 0, jpegCodec);
+                }
+            } else {
+                fetched = S3Input.read(s3Client, bucket, key, inputMode, 0, jpegCodec);
+            }
+            inspector.addAttribute("lossless", false);
+            Decoder.Decoded decoded = fetched.decoded();
+            BufferedImage originalImage = decoded.image();
+            Codecs.Format format = decoded.format();
 
             int width = originalImage.getWidth();
             int height = originalImage.getHeight();
 
             inspector.addAttribute("originalWidth", width);
             inspector.addAttribute("originalHeight", height);
+            inspector.addAttribute("inputSize", fetched.size());
+            inspector.addAttribute("downloadParts", fetched.parts());
+            inspector.addAttribute("inputLayout", decoded.layout());
+            inspector.addAttribute("decoder", decoded.decoder().name());
+            RasterCache.Stats rasters = RasterCache.takeStats();
+            inspector.addAttribute("rasterCacheHits", rasters.hits());
+            inspector.addAttribute("rasterCacheMisses", rasters.misses());
+            inspector.addAttribute("rasterCacheEvictions", rasters.evictions());
+            inspector.addAttribute("rasterCacheBytes", rasters.bytes());
+            DiskCache.Stats disk = DiskCache.takeStats();
+            inspector.addAttribute("diskCacheHits", disk.hits());
+            inspector.addAttribute("diskCacheMisses", disk.misses());
+            inspector.addAttribute("diskCacheEvictions", disk.evictions());
+            inspector.addAttribute("diskCacheBytes", disk.bytes());
 
-            // Create rotated image (90 degrees clockwise)
-            BufferedImage rotatedImage = new BufferedImage(height, width, originalImage.getType());
-
-            Graphics2D g2d = rotatedImage.createGraphics();
-            AffineTransform transform = new AffineTransform();
-            transform.translate(height / 2.0, width / 2.0);
-            transform.rotate(Math.PI / 2);
-            transform.translate(-width / 2.0, -height / 2.0);
-            g2d.setTransform(transform);
-            g2d.drawImage(originalImage, 0, 0, null);
-            g2d.dispose();
-
-            // Convert rotated image to bytes
-            String format = key.substring(key.lastIndexOf('.') + 1);
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            ImageIO.write(rotatedImage, format, outputStream);
-            byte[] rotatedBytes = outputStream.toByteArray();
-
-            // Upload rotated image to S3
-            String outputKey = "claude_rotated/" + key;
+            LazyImage pending = LazyImage.of(originalImage);
+            String description;
+            if (warp) {
+                // Arbitrary angle or matrix: inverse mapped affine warp
+                AffineWarp.Interpolation interpolation = AffineWarp.Interpolation.parse(request.get("interpolation"));
+                AffineWarp.Canvas canvas = AffineWarp.Canvas.parse(request.get("canvas"));
+                inspector.addAttribute("interpolation", interpolation.name());
+                inspector.addAttribute("canvas", canvas.name());
+                if (matrix != null) {
+                    AffineTransform transform = AffineWarp.parseMatrix(matrix);
+                    pending = pending.transform(transform, interpolation, canvas);
+                    description = "warped";
+                } else {
+                    double degrees = Double.parseDouble(angle.toString());
+                    inspector.addAttribute("angle", degrees);
+                    pending = pending.rotate(degrees, interpolation, canvas);
+                    description = "rotated " + degrees + " degrees clockwise";
+                }
+            } else {
+                // Right angles and flips: tiled transpose of the raster arrays
+                pending = pending.orient(orientation);
+                description = orientation.describe();
+            }
 
-            PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                    .bucket(bucket)
-                    .key(outputKey)
-                    .build();
+            // Optional follow-up operations, fused with the rotation when rendered
+            pending = pending.withOperations(request.get("operations"));
+            inspector.addAttribute("plan", pending.plan());
+            BufferedImage rotatedImage = pending.render();
 
-            s3Client.putObject(putObjectRequest, RequestBody.fromBytes(rotatedBytes));
+            // Encode in the format the input was sniffed as, straight into the S3 upload:
+            // a pooled buffer and one PUT, or a multipart upload that overlaps for large results
+            boolean gray = pending.isGray();
+            S3Output.Uploaded uploaded = S3Output.upload(s3Client, bucket, outputKey, format.mimeType(),
+                    OutputBuffer.estimate(fetched.size(), (long) width * height,
+                            (long) rotatedImage.getWidth() * rotatedImage.getHeight(), gray),
+                    cached.condition(),
+                    out -> Encoder.write(rotatedImage, format, gray, png, jpegCodec, out));
+            flight.complete(uploaded.size(), uploaded.stored());
+            inspector.addAttribute("codecSetupTime", Codecs.takeSetupTime());
+            inspector.addAttribute("uploadRequests", uploaded.requests());
+            inspector.addAttribute("outputStored", uploaded.stored());
+            OutputBuffer.Stats pool = OutputBuffer.takeStats();
+            inspector.addAttribute("outputPoolHits", pool.hits());
+            inspector.addAttribute("outputPoolMisses", pool.misses());
+            inspector.addAttribute("outputBytesCopied", pool.bytesCopied());
+            // Hand the result's pixels back for the next invocation
+            pending.recycle(rotatedImage);
+            PixelPool.Stats pixels = PixelPool.takeStats();
+            inspector.addAttribute("pixelPoolHits", pixels.hits());
+            inspector.addAttribute("pixelPoolMisses", pixels.misses());
+            inspector.addAttribute("pixelPoolBytes", pixels.bytes());
 
             // Add output information to SAAF
             inspector.addAttribute("outputBucket", bucket);
             inspector.addAttribute("outputKey", outputKey);
-            inspector.addAttribute("rotatedWidth", height);
-            inspector.addAttribute("rotatedHeight", width);
-            inspector.addAttribute("imageFormat", format);
+            inspector.addAttribute("rotatedWidth", rotatedImage.getWidth());
+            inspector.addAttribute("rotatedHeight", rotatedImage.getHeight());
+            inspector.addAttribute("imageFormat", format.formatName());
 
             // Create response object
             Response response = new Response();
-            response.setValue("Image successfully rotated 90 degrees clockwise");
+            response.setValue("Image successfully " + description);
 
             inspector.consumeResponse(response);
 
         } catch (Exception e) {
+            if (flight != null) {
+                flight.fail(e);
+            }
             inspector.addAttribute("error", e.getMessage());
             inspector.addAttribute("errorType", e.getClass().getName());
 
             Response response = new Response();
             response.setValue("Error rotating image: " + e.getMessage());
             inspector.consumeResponse(response);
+        } finally {
+            if (flight != null) {
+                flight.finish();
+            }
         }
 
         // ****************END FUNCTION IMPLEMENTATION***************************
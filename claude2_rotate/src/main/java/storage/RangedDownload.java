@@ -0,0 +1,178 @@
+package storage;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent byte-range download of one object into a single array.
+ *
+ * One GET stream is limited to well under what a large Lambda can pull,
+ * so objects of at least S3_RANGE_THRESHOLD bytes (default 32 MB) are
+ * split into parts of S3_RANGE_PART_SIZE bytes (default 8 MB) fetched by
+ * up to S3_RANGE_CONCURRENCY requests at a time (default 16, at least 2).
+ * The GET that was already opened to learn the size is not thrown away:
+ * the calling thread reads the first part from it and then takes further
+ * parts alongside the workers. Parts other than the first are fetched with
+ * ranged GETs pinned to its ETag, so a part never comes from a newer
+ * version of the object. A failed part is requested again up to
+ * S3_RANGE_RETRIES times (default 3) before the download fails; a part
+ * refused with 412 because the object changed is not retried.
+ *
+ * @author Justin Le
+ */
+final class RangedDownload {
+
+    static final long THRESHOLD = setting("S3_RANGE_THRESHOLD", 32L * 1024 * 1024, 1);
+    static final int PART_SIZE = (int) setting("S3_RANGE_PART_SIZE", 8L * 1024 * 1024, 64 * 1024);
+    static final int CONCURRENCY = (int) setting("S3_RANGE_CONCURRENCY", 16, 2);
+    static final int RETRIES = (int) setting("S3_RANGE_RETRIES", 3, 0);
+
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "s3-range");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private RangedDownload() {
+    }
+
+    /**
+     * @param length Object size in bytes.
+     * @return Number of parts the object is split into.
+     */
+    static int parts(long length) {
+        return (int) ((length + PART_SIZE - 1) / PART_SIZE);
+    }
+
+    /**
+     * Download a whole object.
+     *
+     * @param s3 Client.
+     * @param request GET request for the whole object.
+     * @param first Open response to request; the first part is read from it
+     *              and it is aborted afterwards.
+     * @param length Object size from the response.
+     * @param head Bytes already read from first, at most one part.
+     * @return The object.
+     * @throws IOException If a part still fails after its retries, or the
+     *                     object changed while it was being downloaded.
+     */
+    static byte[] fetch(S3Client s3, GetObjectRequest request, ResponseInputStream<GetObjectResponse> first,
+            long length, byte[] head) throws IOException {
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Object too large to buffer: " + length + " bytes");
+        }
+        byte[] data = new byte[(int) length];
+        int parts = parts(length);
+        String eTag = first.response().eTag();
+
+        AtomicInteger next = new AtomicInteger(1);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(CONCURRENCY - 1, parts - 1); i++) {
+            workers.add(WORKERS.submit(() -> {
+                for (int part = next.getAndIncrement(); part < parts; part = next.getAndIncrement()) {
+                    fetchPart(s3, request, eTag, data, part);
+                }
+                return null;
+            }));
+        }
+
+        try {
+            try {
+                System.arraycopy(head, 0, data, 0, head.length);
+                readFully(first, data, head.length, partLength(length, 0) - head.length);
+            } catch (IOException | SdkException e) {
+                fetchPart(s3, request, eTag, data, 0);
+            } finally {
+                first.abort();
+            }
+            for (int part = next.getAndIncrement(); part < parts; part = next.getAndIncrement()) {
+                fetchPart(s3, request, eTag, data, part);
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + request.key());
+        } finally {
+            // Stop handing out parts if anything failed
+            next.set(parts);
+            for (Future<?> worker : workers) {
+                worker.cancel(true);
+            }
+        }
+        return data;
+    }
+
+    private static void fetchPart(S3Client s3, GetObjectRequest request, String eTag, byte[] data, int part)
+            throws IOException {
+        long start = (long) part * PART_SIZE;
+        int length = partLength(data.length, part);
+        GetObjectRequest ranged = request.toBuilder()
+                .range("bytes=" + start + "-" + (start + length - 1))
+                .ifMatch(eTag)
+                .build();
+        Exception failure = null;
+        for (int attempt = 0; attempt <= RETRIES; attempt++) {
+            try (ResponseInputStream<GetObjectResponse> in = s3.getObject(ranged)) {
+                readFully(in, data, (int) start, length);
+                return;
+            } catch (S3Exception e) {
+                if (e.statusCode() == 412) {
+                    throw new IOException(request.key() + " changed while it was being downloaded", e);
+                }
+                failure = e;
+            } catch (IOException | SdkException e) {
+                failure = e;
+            }
+        }
+        throw new IOException("Failed to download part " + part + " of " + request.key(), failure);
+    }
+
+    private static int partLength(long length, int part) {
+        return (int) Math.min(PART_SIZE, length - (long) part * PART_SIZE);
+    }
+
+    private static void readFully(ResponseInputStream<GetObjectResponse> in, byte[] data, int offset, int length)
+            throws IOException {
+        if (in.readNBytes(data, offset, length) != length) {
+            throw new EOFException("Object ended early");
+        }
+    }
+
+    /**
+     * @param name Environment variable.
+     * @param fallback Value if it is unset or not a number.
+     * @param min Smallest value accepted.
+     * @return The setting.
+     */
+    static long setting(String name, long fallback, long min) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return fallback;
+        }
+        try {
+            return Math.max(min, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package image;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Growable, pooled byte buffer for encoded output.
+ *
+ * Encoding into a ByteArrayOutputStream copies the data on every doubling,
+ * once more for toByteArray() and again in RequestBody.fromBytes, so a few
+ * times the output size is live on the heap at the end of an invocation.
+ * An OutputBuffer is presized from an estimate of the output, {@link Codecs}
+ * encodes straight into it (no MemoryCacheImageOutputStream in between) and
+ * the upload reads it through {@link #newInputStream()}, which shares the
+ * array. Each thread keeps the last released array for its next
+ * invocation, unless it is larger than {@link #MAX_POOLED}.
+ *
+ * Pool hits (a kept array was large enough), misses (a new array was
+ * allocated) and the bytes copied while growing are counted per thread and
+ * reported by {@link #takeStats()}.
+ *
+ * @author Justin Le
+ */
+public final class OutputBuffer extends OutputStream {
+
+    /**
+     * Largest array kept between invocations.
+     */
+    public static final int MAX_POOLED = 64 * 1024 * 1024;
+
+    private static final int MIN_CAPACITY = 64 * 1024;
+
+    /**
+     * Pool counters since the last {@link #takeStats()}.
+     *
+     * @param hits Acquires served by a kept array.
+     * @param misses Acquires that allocated a new array.
+     * @param bytesCopied Bytes copied while growing arrays.
+     */
+    public record Stats(long hits, long misses, long bytesCopied) {
+    }
+
+    private static final ThreadLocal<byte[]> POOLED = new ThreadLocal<>();
+    private static final ThreadLocal<long[]> COUNTERS = ThreadLocal.withInitial(() -> new long[3]);
+
+    private byte[] buf;
+    private int count;
+
+    private OutputBuffer(byte[] buf) {
+        this.buf = buf;
+    }
+
+    /**
+     * Take the calling thread's kept array if it holds expectedSize bytes,
+     * otherwise allocate one of that size.
+     *
+     * @param expectedSize Estimated output size in bytes.
+     * @return An empty buffer; give it back with {@link #release()}.
+     */
+    public static OutputBuffer acquire(long expectedSize) {
+        int capacity = (int) Math.max(MIN_CAPACITY, Math.min(expectedSize, Integer.MAX_VALUE - 8));
+        long[] counters = COUNTERS.get();
+        byte[] pooled = POOLED.get();
+        if (pooled != null && pooled.length >= capacity) {
+            POOLED.remove();
+            counters[0]++;
+            return new OutputBuffer(pooled);
+        }
+        counters[1]++;
+        return new OutputBuffer(new byte[capacity]);
+    }
+
+    /**
+     * Estimate the encoded size of an operation's result from its input,
+     * assuming the same format and a similar compression ratio.
+     *
+     * @param inputSize Encoded input size in bytes, negative if unknown.
+     * @param inputPixels Pixel count of the source image.
+     * @param outputPixels Pixel count of the result.
+     * @param gray True if the result is stored with one channel.
+     * @return Suggested buffer size, with 1/8 headroom.
+     */
+    public static long estimate(long inputSize, long inputPixels, long outputPixels, boolean gray) {
+        if (inputSize < 0 || inputPixels <= 0) {
+            return outputPixels * (gray ? 1 : 3) / 4;
+        }
+        double size = (double) inputSize * outputPixels / inputPixels;
+        if (gray) {
+            size /= 2;
+        }
+        return (long) (size * 1.125);
+    }
+
+    /**
+     * Pool counters of the calling thread since the last call.
+     *
+     * @return Hits, misses and bytes copied.
+     */
+    public static Stats takeStats() {
+        long[] counters = COUNTERS.get();
+        Stats stats = new Stats(counters[0], counters[1], counters[2]);
+        Arrays.fill(counters, 0);
+        return stats;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        put(count, b, off, len);
+    }
+
+    /**
+     * Write at an offset, extending the content if it ends past {@link #size()}.
+     * Bytes between the old end and pos are zero.
+     *
+     * @param pos Offset from the start of the buffer.
+     * @param b Source array.
+     * @param off Start in b.
+     * @param len Number of bytes.
+     */
+    void put(long pos, byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        long end = pos + len;
+        if (end > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError("Output larger than 2 GB");
+        }
+        ensureCapacity((int) end);
+        if (pos > count) {
+            Arrays.fill(buf, count, (int) pos, (byte) 0);
+        }
+        System.arraycopy(b, off, buf, (int) pos, len);
+        count = Math.max(count, (int) end);
+    }
+
+    /**
+     * Read at an offset.
+     *
+     * @param pos Offset from the start of the buffer.
+     * @param b Destination array.
+     * @param off Start in b.
+     * @param len Maximum number of bytes.
+     * @return Bytes read, -1 if pos is at or past the end.
+     */
+    int get(long pos, byte[] b, int off, int len) {
+        if (pos >= count) {
+            return -1;
+        }
+        int n = (int) Math.min(len, count - pos);
+        System.arraycopy(buf, (int) pos, b, off, n);
+        return n;
+    }
+
+    /**
+     * @return Number of bytes written.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * A stream over the content that shares the array; it must not be
+     * used after {@link #release()}.
+     *
+     * @return New stream positioned at the start.
+     */
+    public InputStream newInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+
+    /**
+     * Copy of the content, for callers that need an array of exact length.
+     *
+     * @return New array.
+     */
+    public byte[] toByteArray() {
+        COUNTERS.get()[2] += count;
+        return Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * Hand the array back to the calling thread's pool. The buffer is
+     * empty and unusable afterwards.
+     */
+    public void release() {
+        if (buf != null && buf.length <= MAX_POOLED) {
+            byte[] pooled = POOLED.get();
+            if (pooled == null || pooled.length < buf.length) {
+                POOLED.set(buf);
+            }
+        }
+        buf = null;
+        count = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buf.length) {
+            int grown = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(capacity, (long) buf.length * 2));
+            COUNTERS.get()[2] += count;
+            buf = Arrays.copyOf(buf, grown);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package image;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.IOException;
+
+/**
+ * ImageIO output stream that writes straight into an {@link OutputBuffer}.
+ *
+ * Writers seek back to patch lengths (the PNG writer rewrites each IDAT
+ * chunk length), which is why ImageIO normally puts a
+ * MemoryCacheImageOutputStream in front of an OutputStream and copies its
+ * cache out at the end. The buffer is random access already, so positions
+ * map onto it directly, relative to where it ended when this stream was
+ * opened.
+ *
+ * @author Justin Le
+ */
+final class OutputBufferImage extends ImageOutputStreamImpl {
+
+    private final OutputBuffer buffer;
+    private final int origin;
+
+    OutputBufferImage(OutputBuffer buffer) {
+        this.buffer = buffer;
+        this.origin = buffer.size();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        int n = buffer.get(origin + streamPos, b, off, len);
+        if (n > 0) {
+            streamPos += n;
+        }
+        return n;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        flushBits();
+        buffer.put(origin + streamPos, b, off, len);
+        streamPos += len;
+    }
+
+    @Override
+    public long length() {
+        return buffer.size() - origin;
+    }
+
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+
+    @Override
+    public boolean isCachedMemory() {
+        return true;
+    }
+}
@@ -0,0 +1,525 @@
+package image;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Separable two pass resampler working on the raster arrays.
+ *
+ * The image is first resampled horizontally into an intermediate of the
+ * target width, then vertically into the destination. Filter weights are
+ * computed once per (source size, target size, filter) in 14 bit fixed point
+ * and kept in a static cache, so warm containers resizing to the same
+ * dimensions again skip the setup. When downscaling the filter is widened by
+ * the scale factor, which is what removes the aliasing of a plain bilinear
+ * drawImage. Both passes run in row bands on the shared pool.
+ *
+ * For large reductions {@link #downscale} first halves the image with a 2x2
+ * box average until it is within 2x of the target, so the expensive filter
+ * only ever sees a small image.
+ *
+ * INT_ARGB images with translucent pixels are filtered premultiplied: the
+ * colour of a transparent pixel (usually black) would otherwise bleed into
+ * its opaque neighbours as a dark fringe. The source is premultiplied into
+ * a pooled copy and the destination divided back in place. Opaque images
+ * skip both steps, premultiplying would not change them.
+ *
+ * @author Justin Le
+ */
+public final class Resampler {
+
+    private static final int PRECISION = 14;
+    private static final int MAX_CACHED_TABLES = 64;
+    private static final int MIN_BAND_ROWS = 16;
+
+    /**
+     * Downscale ratio from which {@link #downscale} switches to progressive
+     * halving.
+     */
+    public static final double HALVING_THRESHOLD = 3.0;
+
+    private static final Map<TableKey, Weights> TABLES = new ConcurrentHashMap<>();
+
+    /**
+     * Reconstruction filters.
+     */
+    public enum Filter {
+        BILINEAR(1.0),
+        CATMULL_ROM(2.0),
+        MITCHELL(2.0),
+        LANCZOS3(3.0);
+
+        final double support;
+
+        Filter(double support) {
+            this.support = support;
+        }
+
+        double weight(double x) {
+            x = Math.abs(x);
+            switch (this) {
+                case BILINEAR:
+                    return x < 1 ? 1 - x : 0;
+                case CATMULL_ROM:
+                    return cubic(x, 0, 0.5);
+                case MITCHELL:
+                    return cubic(x, 1.0 / 3, 1.0 / 3);
+                default:
+                    return x < 3 ? sinc(x) * sinc(x / 3) : 0;
+            }
+        }
+
+        private static double cubic(double x, double b, double c) {
+            if (x < 1) {
+                return ((12 - 9 * b - 6 * c) * x * x * x + (-18 + 12 * b + 6 * c) * x * x + (6 - 2 * b)) / 6;
+            } else if (x < 2) {
+                return ((-b - 6 * c) * x * x * x + (6 * b + 30 * c) * x * x
+                        + (-12 * b - 48 * c) * x + (8 * b + 24 * c)) / 6;
+            }
+            return 0;
+        }
+
+        private static double sinc(double x) {
+            if (x == 0) {
+                return 1;
+            }
+            x *= Math.PI;
+            return Math.sin(x) / x;
+        }
+
+        /**
+         * @param value Filter name (bilinear, catmull_rom, mitchell, lanczos3) or null.
+         * @param defaultValue Returned when value is null or empty.
+         * @return The matching filter.
+         */
+        public static Filter parse(Object value, Filter defaultValue) {
+            if (value == null || value.toString().isEmpty()) {
+                return defaultValue;
+            }
+            String name = value.toString().trim().toUpperCase(Locale.ROOT).replace('-', '_');
+            if (name.equals("LANCZOS")) {
+                return LANCZOS3;
+            }
+            return valueOf(name);
+        }
+    }
+
+    private record TableKey(int srcSize, int dstSize, Filter filter) {
+    }
+
+    /**
+     * Fixed point contributions of the source pixels to every output pixel.
+     * Output i reads source pixels start[i] .. start[i] + count[i] - 1 with
+     * weights[i * stride ...].
+     */
+    static final class Weights {
+
+        final int[] start;
+        final int[] count;
+        final int[] weights;
+        final int stride;
+
+        Weights(int[] start, int[] count, int[] weights, int stride) {
+            this.start = start;
+            this.count = count;
+            this.weights = weights;
+            this.stride = stride;
+        }
+    }
+
+    private Resampler() {
+    }
+
+    /**
+     * Resize an image.
+     *
+     * @param src Source image.
+     * @param width Target width.
+     * @param height Target height.
+     * @param filter Reconstruction filter.
+     * @return New image. Compact byte and packed int sources keep their type,
+     *         other layouts come back as INT_ARGB / INT_RGB.
+     */
+    public static BufferedImage resize(BufferedImage src, int width, int height, Filter filter) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid target size " + width + "x" + height);
+        }
+        src = Normalizer.normalize(src);
+        int[] premultiplied = premultiply(src);
+        if (premultiplied == null) {
+            return resample(src, width, height, filter);
+        }
+        BufferedImage dst = resample(Rasters.view(src, premultiplied, src.getWidth(), src.getHeight()),
+                width, height, filter);
+        PixelPool.release(premultiplied);
+        unpremultiply(dst);
+        return dst;
+    }
+
+    private static BufferedImage resample(BufferedImage src, int width, int height, Filter filter) {
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+        BufferedImage dst = PixelPool.image(width, height, src.getType());
+        Weights horizontal = weights(srcWidth, width, filter);
+        Weights vertical = weights(srcHeight, height, filter);
+
+        int n = Rasters.byteChannels(src);
+        if (n > 0) {
+            byte[] in = Rasters.bytes(src);
+            byte[] out = Rasters.bytes(dst);
+            byte[] tmp = srcWidth == width ? in : PixelPool.bytes(width * srcHeight * n);
+            if (tmp != in) {
+                Parallel.forEachBand(srcHeight, MIN_BAND_ROWS, (start, end) ->
+                        horizontalBytes(in, srcWidth, tmp, width, n, horizontal, start, end));
+            }
+            Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) ->
+                    verticalBytes(tmp, out, width * n, vertical, start, end));
+            if (tmp != in) {
+                PixelPool.release(tmp);
+            }
+        } else {
+            int[] in = Rasters.ints(src);
+            int[] out = Rasters.ints(dst);
+            int[] tmp = srcWidth == width ? in : PixelPool.ints(width * srcHeight);
+            if (tmp != in) {
+                Parallel.forEachBand(srcHeight, MIN_BAND_ROWS, (start, end) ->
+                        horizontalInts(in, srcWidth, tmp, width, horizontal, start, end));
+            }
+            Parallel.forEachBand(height, MIN_BAND_ROWS, (start, end) ->
+                    verticalInts(tmp, out, width, vertical, start, end));
+            if (tmp != in) {
+                PixelPool.release(tmp);
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Number of 2x2 halvings {@link #downscale} performs before its final
+     * pass, 0 if the ratio is below {@link #HALVING_THRESHOLD}.
+     *
+     * @param srcWidth Source width.
+     * @param srcHeight Source height.
+     * @param width Target width.
+     * @param height Target height.
+     * @return Number of halving levels.
+     */
+    public static int halvingLevels(int srcWidth, int srcHeight, int width, int height) {
+        double ratio = Math.min((double) srcWidth / width, (double) srcHeight / height);
+        if (ratio < HALVING_THRESHOLD) {
+            return 0;
+        }
+        int levels = 0;
+        while (srcWidth >= 2 * width && srcHeight >= 2 * height) {
+            srcWidth /= 2;
+            srcHeight /= 2;
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * Resize an image, using progressive halving for large reductions.
+     *
+     * Below {@link #HALVING_THRESHOLD} this is {@link #resize}. Above it the
+     * image is repeatedly reduced by a 2x2 box average until it is within 2x
+     * of the target and then finished with a single bilinear (for BILINEAR)
+     * or bicubic pass. Each halving level does a quarter of the pixel work of
+     * the previous one. The levels ping-pong between a scratch array a
+     * quarter of the source size and one a sixteenth of it, so src itself is
+     * only read. Both come from and go back to the {@link PixelPool}.
+     *
+     * @param src Source image.
+     * @param width Target width.
+     * @param height Target height.
+     * @param filter Filter for the direct path; selects bilinear or bicubic
+     *               for the final pass after halving.
+     * @return New image.
+     */
+    public static BufferedImage downscale(BufferedImage src, int width, int height, Filter filter) {
+        int levels = halvingLevels(src.getWidth(), src.getHeight(), width, height);
+        if (levels == 0) {
+            return resize(src, width, height, filter);
+        }
+        src = Normalizer.normalize(src);
+        int n = Rasters.byteChannels(src);
+        int w = src.getWidth();
+        int h = src.getHeight();
+        int[] premultiplied = premultiply(src);
+        Object source = n > 0 ? Rasters.bytes(src) : (premultiplied != null ? premultiplied : Rasters.ints(src));
+        Object[] scratch = new Object[2];
+        for (int level = 0; level < levels; level++) {
+            int halfWidth = w / 2;
+            int halfHeight = h / 2;
+            if (scratch[level & 1] == null) {
+                scratch[level & 1] = n > 0 ? PixelPool.bytes(halfWidth * halfHeight * n)
+                        : PixelPool.ints(halfWidth * halfHeight);
+            }
+            final Object in = source;
+            final Object out = scratch[level & 1];
+            final int inWidth = w;
+            Parallel.forEachBand(halfHeight, MIN_BAND_ROWS, (start, end) -> {
+                if (n > 0) {
+                    halveBytes((byte[]) in, inWidth, (byte[]) out, halfWidth, n, start, end);
+                } else {
+                    halveInts((int[]) in, inWidth, (int[]) out, halfWidth, start, end);
+                }
+            });
+            source = out;
+            w = halfWidth;
+            h = halfHeight;
+        }
+        BufferedImage reduced = Rasters.view(src, source, w, h);
+        BufferedImage dst = resample(reduced, width, height,
+                filter == Filter.BILINEAR ? Filter.BILINEAR : Filter.CATMULL_ROM);
+        for (Object array : scratch) {
+            if (array != null) {
+                PixelPool.release(array);
+            }
+        }
+        if (premultiplied != null) {
+            PixelPool.release(premultiplied);
+            unpremultiply(dst);
+        }
+        return dst;
+    }
+
+    /**
+     * Premultiplied copy of an INT_ARGB image's pixels.
+     *
+     * @return Pooled array, or null if the image is not INT_ARGB or has no
+     *         translucent pixel.
+     */
+    private static int[] premultiply(BufferedImage src) {
+        if (src.getType() != BufferedImage.TYPE_INT_ARGB) {
+            return null;
+        }
+        int[] in = Rasters.ints(src);
+        int length = src.getWidth() * src.getHeight();
+        int i = 0;
+        while (i < length && (in[i] >>> 24) == 0xFF) {
+            i++;
+        }
+        if (i == length) {
+            return null;
+        }
+        int width = src.getWidth();
+        int[] out = PixelPool.ints(length);
+        Parallel.forEachBand(src.getHeight(), MIN_BAND_ROWS, (start, end) -> {
+            for (int p = start * width; p < end * width; p++) {
+                int argb = in[p];
+                int a = argb >>> 24;
+                if (a == 0xFF) {
+                    out[p] = argb;
+                } else {
+                    int r = (((argb >> 16) & 0xFF) * a + 127) / 255;
+                    int g = (((argb >> 8) & 0xFF) * a + 127) / 255;
+                    int b = ((argb & 0xFF) * a + 127) / 255;
+                    out[p] = (a << 24) | (r << 16) | (g << 8) | b;
+                }
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Turn the premultiplied pixels of an INT_ARGB image back into straight
+     * alpha, in place. Fully transparent pixels become 0.
+     */
+    private static void unpremultiply(BufferedImage img) {
+        int[] pixels = Rasters.ints(img);
+        int width = img.getWidth();
+        Parallel.forEachBand(img.getHeight(), MIN_BAND_ROWS, (start, end) -> {
+            for (int p = start * width; p < end * width; p++) {
+                int argb = pixels[p];
+                int a = argb >>> 24;
+                if (a == 0) {
+                    pixels[p] = 0;
+                } else if (a != 0xFF) {
+                    // Overshooting filter lobes can leave a channel above alpha.
+                    int r = Math.min(255, (((argb >> 16) & 0xFF) * 255 + a / 2) / a);
+                    int g = Math.min(255, (((argb >> 8) & 0xFF) * 255 + a / 2) / a);
+                    int b = Math.min(255, ((argb & 0xFF) * 255 + a / 2) / a);
+                    pixels[p] = (argb & 0xFF000000) | (r << 16) | (g << 8) | b;
+                }
+            }
+        });
+    }
+
+    private static void halveBytes(byte[] in, int inWidth, byte[] out, int width, int n, int y0, int y1) {
+        int rowLength = inWidth * n;
+        for (int y = y0; y < y1; y++) {
+            int top = 2 * y * rowLength;
+            Kernels.halveBytes(in, top, top + rowLength, out, y * width * n, width * n, n);
+        }
+    }
+
+    private static void halveInts(int[] in, int inWidth, int[] out, int width, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int top = 2 * y * inWidth;
+            Kernels.halveInts(in, top, top + inWidth, out, y * width, width);
+        }
+    }
+
+    /**
+     * Get (or build and cache) the weight table for one axis.
+     */
+    static Weights weights(int srcSize, int dstSize, Filter filter) {
+        TableKey key = new TableKey(srcSize, dstSize, filter);
+        Weights cached = TABLES.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        Weights built = buildWeights(srcSize, dstSize, filter);
+        if (TABLES.size() >= MAX_CACHED_TABLES) {
+            TABLES.clear();
+        }
+        TABLES.put(key, built);
+        return built;
+    }
+
+    private static Weights buildWeights(int srcSize, int dstSize, Filter filter) {
+        double scale = (double) srcSize / dstSize;
+        double filterScale = Math.max(1.0, scale);
+        double support = filter.support * filterScale;
+        int stride = (int) Math.ceil(support) * 2 + 1;
+
+        int[] start = new int[dstSize];
+        int[] count = new int[dstSize];
+        int[] weights = new int[dstSize * stride];
+        double[] w = new double[stride];
+        for (int i = 0; i < dstSize; i++) {
+            double center = (i + 0.5) * scale;
+            int min = Math.max(0, (int) Math.floor(center - support + 0.5));
+            int max = Math.min(srcSize, (int) Math.floor(center + support + 0.5));
+            max = Math.min(max, min + stride);
+            double total = 0;
+            for (int x = min; x < max; x++) {
+                w[x - min] = filter.weight((x - center + 0.5) / filterScale);
+                total += w[x - min];
+            }
+            if (total == 0) {
+                // Degenerate window, fall back to the nearest pixel.
+                min = Math.min(srcSize - 1, (int) center);
+                max = min + 1;
+                w[0] = 1;
+                total = 1;
+            }
+            // Quantize, and give the rounding error to the largest tap so the
+            // weights always sum to exactly 1.0 in fixed point.
+            int sum = 0;
+            int largest = 0;
+            for (int x = 0; x < max - min; x++) {
+                int q = (int) Math.round(w[x] / total * (1 << PRECISION));
+                weights[i * stride + x] = q;
+                sum += q;
+                if (q > weights[i * stride + largest]) {
+                    largest = x;
+                }
+            }
+            weights[i * stride + largest] += (1 << PRECISION) - sum;
+            start[i] = min;
+            count[i] = max - min;
+        }
+        return new Weights(start, count, weights, stride);
+    }
+
+    private static int clamp(int value) {
+        value = (value + (1 << (PRECISION - 1))) >> PRECISION;
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static void horizontalBytes(byte[] in, int srcWidth, byte[] out, int width, int n,
+            Weights w, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int row = y * srcWidth * n;
+            int o = y * width * n;
+            for (int x = 0; x < width; x++) {
+                int s = row + w.start[x] * n;
+                int k = x * w.stride;
+                int count = w.count[x];
+                if (n == 1) {
+                    int c0 = 0;
+                    for (int t = 0; t < count; t++) {
+                        c0 += w.weights[k + t] * (in[s + t] & 0xFF);
+                    }
+                    out[o++] = (byte) clamp(c0);
+                } else {
+                    // BGR, or ABGR with the leading alpha in c3.
+                    int c0 = 0;
+                    int c1 = 0;
+                    int c2 = 0;
+                    int c3 = 0;
+                    int last = n - 3;
+                    for (int t = 0; t < count; t++, s += n) {
+                        int weight = w.weights[k + t];
+                        c0 += weight * (in[s + last] & 0xFF);
+                        c1 += weight * (in[s + last + 1] & 0xFF);
+                        c2 += weight * (in[s + last + 2] & 0xFF);
+                        if (last > 0) {
+                            c3 += weight * (in[s] & 0xFF);
+                        }
+                    }
+                    if (last > 0) {
+                        out[o++] = (byte) clamp(c3);
+                    }
+                    out[o++] = (byte) clamp(c0);
+                    out[o++] = (byte) clamp(c1);
+                    out[o++] = (byte) clamp(c2);
+                }
+            }
+        }
+    }
+
+    private static void verticalBytes(byte[] in, byte[] out, int rowLength, Weights w, int y0, int y1) {
+        int[] acc = new int[rowLength];
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(acc, 0);
+            int k = y * w.stride;
+            for (int t = 0; t < w.count[y]; t++) {
+                Kernels.accumulateBytes(acc, in, (w.start[y] + t) * rowLength, rowLength, w.weights[k + t]);
+            }
+            Kernels.storeBytes(acc, out, y * rowLength, rowLength, PRECISION);
+        }
+    }
+
+    private static void horizontalInts(int[] in, int srcWidth, int[] out, int width,
+            Weights w, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int row = y * srcWidth;
+            int o = y * width;
+            for (int x = 0; x < width; x++) {
+                int s = row + w.start[x];
+                int k = x * w.stride;
+                int a = 0;
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int t = 0; t < w.count[x]; t++) {
+                    int weight = w.weights[k + t];
+                    int p = in[s + t];
+                    a += weight * (p >>> 24);
+                    r += weight * ((p >> 16) & 0xFF);
+                    g += weight * ((p >> 8) & 0xFF);
+                    b += weight * (p & 0xFF);
+                }
+                out[o + x] = (clamp(a) << 24) | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+            }
+        }
+    }
+
+    private static void verticalInts(int[] in, int[] out, int width, Weights w, int y0, int y1) {
+        int[] acc = new int[width * 4];
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(acc, 0);
+            int k = y * w.stride;
+            for (int t = 0; t < w.count[y]; t++) {
+                Kernels.accumulateInts(acc, in, (w.start[y] + t) * width, width, w.weights[k + t]);
+            }
+            Kernels.storeInts(acc, out, y * width, width, PRECISION);
+        }
+    }
+}
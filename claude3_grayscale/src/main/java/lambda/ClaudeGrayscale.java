@@ -2,19 +2,27 @@ package lambda;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import image.Codecs;
+import image.Decoder;
+import image.Encoder;
+import image.GrayscaleEngine;
+import image.Kernels;
+import image.LazyImage;
+import image.OutputBuffer;
+import image.PixelPool;
+import image.PngEncoder;
+import image.TurboJpeg;
 import saaf.Inspector;
 import saaf.Response;
-import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import storage.DiskCache;
+import storage.RasterCache;
+import storage.ResultCache;
+import storage.S3Input;
+import storage.S3Output;
+import storage.SingleFlight;
 
-import javax.imageio.ImageIO;
-import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorConvertOp;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.util.HashMap;
 
 /**
@@ -32,7 +40,12 @@ public class ClaudeGrayscale implements RequestHandler<HashMap<String, Object>,
     /**
      * Lambda Function Handler
      * 
-     * @param request Hashmap containing request JSON attributes (bucket, key).
+     * @param request Hashmap containing request JSON attributes (bucket, key,
+     *                optional formula: bt601, bt709, average, lightness;
+     *                optional operations list, see LazyImage.withOperations;
+     *                pngLevel 0 to 9 and pngStrategy for PNG output, see
+     *                PngEncoder; jpegCodec, IMAGEIO or TURBOJPEG, see
+     *                TurboJpeg; cache, default true, see ResultCache).
      * @param context
      * @return HashMap that Lambda will automatically convert into JSON.
      */
@@ -44,25 +57,102 @@ public class ClaudeGrayscale implements RequestHandler<HashMap<String, Object>,
 
         // ****************START FUNCTION IMPLEMENTATION*************************
 
+        SingleFlight.Flight flight = null;
         try {
             // Extract S3 bucket and key from request
             String bucket = (String) request.get("bucket");
             String key = (String) request.get("key");
+            GrayscaleEngine.Formula formula = GrayscaleEngine.Formula.parse(request.get("formula"));
 
             // Add input parameters to SAAF output
             inspector.addAttribute("inputBucket", bucket);
             inspector.addAttribute("inputKey", key);
-
-            // Get the image from S3
-            GetObjectRequest getRequest = GetObjectRequest.builder()
-                    .bucket(bucket)
-                    .key(key)
-                    .build();
-
-            byte[] imageBytes = s3Client.getObject(getRequest).readAllBytes();
-
-            // Read the input image
-            BufferedImage inputImage = ImageIO.read(new ByteArrayInputStream(imageBytes));
+            inspector.addAttribute("formula", formula.name());
+            inspector.addAttribute("kernelVariant", Kernels.variant());
+
+            // Get the image from S3, decoding while it streams in
+            S3Input.Mode inputMode = S3Input.Mode.parse(request.get("inputMode"));
+            inspector.addAttribute("inputMode", inputMode.name());
+
+            // Deflate level and strategy for PNG output (parallel encoder)
+            PngEncoder.Settings png = PngEncoder.Settings.parse(request.get("pngLevel"), request.get("pngStrategy"));
+            inspector.addAttribute("pngLevel", png.level());
+            inspector.addAttribute("pngStrategy", png.strategy().name());
+
+            // JPEG codec: ImageIO, or libjpeg-turbo when it could be loaded (ImageIO otherwise)
+            TurboJpeg.Backend jpegCodec = TurboJpeg.Backend.parse(request.get("jpegCodec"));
+            inspector.addAttribute("jpegCodec", jpegCodec.name());
+            inspector.addAttribute("jpegBackend", TurboJpeg.effective(jpegCodec).name());
+            inspector.addAttribute("turboJpeg", TurboJpeg.status());
+
+            // A repeated request whose result is already stored (same source ETag and
+            // parameter hash in the output's metadata) ends after two concurrent HEADs
+            String outputKey = "claude_grayscale/" + key;
+            ResultCache.Lookup cached = ResultCache.lookup(s3Client, bucket, key, outputKey, "grayscale", request);
+            inspector.addAttribute("cache", cached.status().name());
+            if (cached.hit()) {
+                inspector.addAttribute("outputBucket", bucket);
+                inspector.addAttribute("outputKey", outputKey);
+                inspector.addAttribute("outputSize", cached.outputSize());
+                inspector.addAttribute("message", "Result already stored for this source and parameters");
+                inspector.addAttribute("status", "success");
+
+                Response response = new Response();
+                response.setValue("Image successfully converted to grayscale");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
+
+            // Concurrent identical requests (same source version and parameters) share one execution
+            flight = SingleFlight.join("grayscale", bucket, outputKey, cached);
+            inspector.addAttribute("coalesced", !flight.leader());
+            if (!flight.leader()) {
+                SingleFlight.Outcome shared = flight.await();
+                inspector.addAttribute("outputBucket", bucket);
+                inspector.addAttribute("outputKey", outputKey);
+                inspector.addAttribute("outputSize", shared.outputSize());
+                inspector.addAttribute("outputStored", shared.stored());
+                inspector.addAttribute("message", "Coalesced with a concurrent identical request");
+                inspector.addAttribute("status", "success");
+
+                Response response = new Response();
+                response.setValue("Image successfully converted to grayscale");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
+
+            // An image that is already 8-bit gray comes out the same under every formula: without
+            // follow-up operations the header at the start of the download decides, and the
+            // object is copied within S3
+            S3Input.Fetched fetched = S3Input.read(s3Client, bucket, key, inputMode, 0, jpegCodec,
+                    request.get("operations") == null ? Decoder.Header::gray : null);
+            if (fetched.decoded() == null) {
+                Decoder.Header header = fetched.header();
+                S3Output.copy(s3Client, bucket, key, outputKey, cached.sourceContentType(), cached.condition());
+                flight.complete(fetched.size(), true);
+
+                inspector.addAttribute("imageWidth", header.width());
+                inspector.addAttribute("imageHeight", header.height());
+                inspector.addAttribute("imageFormat", header.format().formatName());
+                inspector.addAttribute("passthrough", true);
+                inspector.addAttribute("codecSetupTime", Codecs.takeSetupTime());
+                inspector.addAttribute("inputSize", fetched.size());
+                inspector.addAttribute("outputSize", fetched.size());
+                inspector.addAttribute("outputBucket", bucket);
+                inspector.addAttribute("outputKey", outputKey);
+                inspector.addAttribute("status", "success");
+
+                Response response = new Response();
+                response.setValue("Image already grayscale, copied unchanged");
+                inspector.consumeResponse(response);
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            }
+            Decoder.Decoded decoded = fetched.decoded();
+            BufferedImage inputImage = decoded.image();
+            Codecs.Format format = decoded.format();
 
             int width = inputImage.getWidth();
             int height = inputImage.getHeight();
@@ -70,34 +160,57 @@ public class ClaudeGrayscale implements RequestHandler<HashMap<String, Object>,
             inspector.addAttribute("imageWidth", width);
             inspector.addAttribute("imageHeight", height);
             inspector.addAttribute("originalColorModel", inputImage.getColorModel().toString());
-
-            // Determine image format
-            String formatName = getImageFormat(key);
-            inspector.addAttribute("imageFormat", formatName);
-
-            // Convert to grayscale
-            ColorSpace grayColorSpace = ColorSpace.getInstance(ColorSpace.CS_GRAY);
-            ColorConvertOp colorConvertOp = new ColorConvertOp(grayColorSpace, null);
-            BufferedImage grayscaleImage = colorConvertOp.filter(inputImage, null);
+            inspector.addAttribute("inputLayout", decoded.layout());
+            inspector.addAttribute("decoder", decoded.decoder().name());
+            RasterCache.Stats rasters = RasterCache.takeStats();
+            inspector.addAttribute("rasterCacheHits", rasters.hits());
+            inspector.addAttribute("rasterCacheMisses", rasters.misses());
+            inspector.addAttribute("rasterCacheEvictions", rasters.evictions());
+            inspector.addAttribute("rasterCacheBytes", rasters.bytes());
+            DiskCache.Stats disk = DiskCache.takeStats();
+            inspector.addAttribute("diskCacheHits", disk.hits());
+            inspector.addAttribute("diskCacheMisses", disk.misses());
+            inspector.addAttribute("diskCacheEvictions", disk.evictions());
+            inspector.addAttribute("diskCacheBytes", disk.bytes());
+
+            // Image format, from the file signature
+            inspector.addAttribute("imageFormat", format.formatName());
+
+            // Convert to grayscale, together with any follow-up operations
+            LazyImage pending = LazyImage.of(inputImage)
+                    .grayscale(formula)
+                    .withOperations(request.get("operations"));
+            inspector.addAttribute("plan", pending.plan());
+            BufferedImage grayscaleImage = pending.render();
 
             inspector.addAttribute("grayscaleColorModel", grayscaleImage.getColorModel().toString());
 
-            // Write grayscale image to byte array
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            ImageIO.write(grayscaleImage, formatName, outputStream);
-            byte[] outputBytes = outputStream.toByteArray();
-
-            inspector.addAttribute("inputSize", imageBytes.length);
-            inspector.addAttribute("outputSize", outputBytes.length);
-
-            // Upload grayscale image to S3
-            String outputKey = "claude_grayscale/" + key;
-            PutObjectRequest putRequest = PutObjectRequest.builder()
-                    .bucket(bucket)
-                    .key(outputKey)
-                    .build();
-
-            s3Client.putObject(putRequest, RequestBody.fromBytes(outputBytes));
+            // Write grayscale image, one channel (plus alpha for PNG), straight into the S3 upload:
+            // a pooled buffer and one PUT, or a multipart upload that overlaps for large results
+            boolean gray = pending.isGray();
+            S3Output.Uploaded uploaded = S3Output.upload(s3Client, bucket, outputKey, format.mimeType(),
+                    OutputBuffer.estimate(fetched.size(), (long) width * height,
+                            (long) grayscaleImage.getWidth() * grayscaleImage.getHeight(), gray),
+                    cached.condition(),
+                    out -> Encoder.write(grayscaleImage, format, gray, png, jpegCodec, out));
+            flight.complete(uploaded.size(), uploaded.stored());
+            inspector.addAttribute("codecSetupTime", Codecs.takeSetupTime());
+
+            inspector.addAttribute("inputSize", fetched.size());
+            inspector.addAttribute("downloadParts", fetched.parts());
+            inspector.addAttribute("outputSize", uploaded.size());
+            inspector.addAttribute("uploadRequests", uploaded.requests());
+            inspector.addAttribute("outputStored", uploaded.stored());
+            OutputBuffer.Stats pool = OutputBuffer.takeStats();
+            inspector.addAttribute("outputPoolHits", pool.hits());
+            inspector.addAttribute("outputPoolMisses", pool.misses());
+            inspector.addAttribute("outputBytesCopied", pool.bytesCopied());
+            // Hand the result's pixels back for the next invocation
+            pending.recycle(grayscaleImage);
+            PixelPool.Stats pixels = PixelPool.takeStats();
+            inspector.addAttribute("pixelPoolHits", pixels.hits());
+            inspector.addAttribute("pixelPoolMisses", pixels.misses());
+            inspector.addAttribute("pixelPoolBytes", pixels.bytes());
 
             // Add output information to SAAF
             inspector.addAttribute("outputBucket", bucket);
@@ -111,6 +224,9 @@ public class ClaudeGrayscale implements RequestHandler<HashMap<String, Object>,
             inspector.consumeResponse(response);
 
         } catch (Exception e) {
+            if (flight != null) {
+                flight.fail(e);
+            }
             inspector.addAttribute("error", e.getMessage());
             inspector.addAttribute("errorType", e.getClass().getName());
             inspector.addAttribute("status", "failure");
@@ -118,6 +234,10 @@ public class ClaudeGrayscale implements RequestHandler<HashMap<String, Object>,
             Response response = new Response();
             response.setValue("Error converting image to grayscale: " + e.getMessage());
             inspector.consumeResponse(response);
+        } finally {
+            if (flight != null) {
+                flight.finish();
+            }
         }
 
         // ****************END FUNCTION IMPLEMENTATION***************************
@@ -126,18 +246,4 @@ public class ClaudeGrayscale implements RequestHandler<HashMap<String, Object>,
         inspector.inspectAllDeltas();
         return inspector.finish();
     }
-
-    /**
-     * Helper method to extract image format from file key
-     * 
-     * @param key S3 object key
-     * @return Image format string
-     */
-    private String getImageFormat(String key) {
-        int lastDot = key.lastIndexOf('.');
-        if (lastDot > 0) {
-            return key.substring(lastDot + 1).toLowerCase();
-        }
-        return "png";
-    }
-}
\ No newline at end of file
+}
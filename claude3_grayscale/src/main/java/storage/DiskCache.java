@@ -0,0 +1,408 @@
+package storage;
+
+import image.Codecs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Source objects kept on the ephemeral disk across warm invocations.
+ *
+ * /tmp (up to 10 GB on Lambda) lives as long as the container, so an
+ * object downloaded once can be read from there later. {@link S3Input}
+ * sends the stored ETag in If-None-Match; a 304 answer means the file is
+ * current and it is memory mapped and decoded like a LOCAL mode input,
+ * with nothing transferred. Otherwise the object that comes back is
+ * written to the cache while it is read: streamed responses through
+ * {@link Fill#tee}, so decoding still overlaps the download, buffered
+ * ones from the buffer.
+ *
+ * Files are written under a temporary name and renamed into place once
+ * complete (and only if the byte count matches the object size), so a
+ * cached file is never partial. The index is in memory: per object its
+ * ETag, size and last access, in least recently used order. Before a new
+ * object is written, old ones are deleted until it fits under
+ * IMAGE_DISK_CACHE_BYTES (default 256 MB, 0 turns the cache off) in
+ * IMAGE_DISK_CACHE_DIR (default /tmp/source-cache). Files left by an
+ * earlier JVM in the same container are removed at class load, since the
+ * index did not survive. Disk errors never fail a request; the object is
+ * just not cached.
+ *
+ * @author Justin Le
+ */
+public final class DiskCache {
+
+    /**
+     * Counters since the last {@link #takeStats()}, and the current content.
+     *
+     * @param hits Objects read from disk after a 304.
+     * @param misses Objects downloaded while the cache was on.
+     * @param evictions Files deleted to make room.
+     * @param bytes Bytes stored now.
+     * @param entries Files stored now.
+     */
+    public record Stats(long hits, long misses, long evictions, long bytes, int entries) {
+    }
+
+    /**
+     * A stored object.
+     */
+    static final class Entry {
+        final String eTag;
+        final long size;
+        final Path file;
+        long lastAccess;
+
+        Entry(String eTag, long size, Path file) {
+            this.eTag = eTag;
+            this.size = size;
+            this.file = file;
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    static final long CAPACITY = RangedDownload.setting("IMAGE_DISK_CACHE_BYTES", 256L * 1024 * 1024, 0);
+    static final Path DIR = Path.of(System.getenv().getOrDefault("IMAGE_DISK_CACHE_DIR", "/tmp/source-cache"));
+
+    private static final boolean ENABLED = prepare();
+    private static final Map<String, Entry> INDEX = new LinkedHashMap<>(16, 0.75f, true);
+    private static long bytes;
+    private static long reserved;
+    private static long hits;
+    private static long misses;
+    private static long evictions;
+
+    private DiskCache() {
+    }
+
+    /**
+     * @return Counters since the last call, which resets them.
+     */
+    public static synchronized Stats takeStats() {
+        Stats stats = new Stats(hits, misses, evictions, bytes, INDEX.size());
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        return stats;
+    }
+
+    /**
+     * @return The stored object, or null.
+     */
+    static synchronized Entry get(String bucket, String key) {
+        if (!ENABLED) {
+            return null;
+        }
+        Entry entry = INDEX.get(bucket + '/' + key);
+        if (entry != null) {
+            entry.lastAccess = System.currentTimeMillis();
+        }
+        return entry;
+    }
+
+    /**
+     * Map a stored object, counting a hit. If the file is gone it is
+     * dropped from the index and null is returned.
+     *
+     * @param bucket Bucket name.
+     * @param key Object key.
+     * @param entry Entry from {@link #get}.
+     * @return Read-only mapping of the object, or null.
+     */
+    static ByteBuffer map(String bucket, String key, Entry entry) {
+        try {
+            ByteBuffer data = Codecs.map(entry.file);
+            synchronized (DiskCache.class) {
+                hits++;
+            }
+            return data;
+        } catch (IOException e) {
+            remove(bucket, key);
+            return null;
+        }
+    }
+
+    /**
+     * Store a buffered object.
+     *
+     * @param bucket Bucket name.
+     * @param key Object key.
+     * @param eTag ETag of the object; nothing is stored without one.
+     * @param data Object from its position to its limit; not changed.
+     */
+    static void store(String bucket, String key, String eTag, ByteBuffer data) {
+        Fill fill = fill(bucket, key, eTag, data.remaining());
+        if (fill == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(fill.temp, StandardOpenOption.WRITE)) {
+            ByteBuffer view = data.duplicate();
+            while (view.hasRemaining()) {
+                fill.written += channel.write(view);
+            }
+        } catch (IOException e) {
+            fill.failed = true;
+        }
+        fill.commit();
+    }
+
+    /**
+     * Start writing an object that is about to be downloaded.
+     *
+     * @param bucket Bucket name.
+     * @param key Object key.
+     * @param eTag ETag of the object.
+     * @param size Size of the object.
+     * @return The writer, or null if the cache is off or the object has no
+     *         ETag, no known size or does not fit.
+     */
+    static Fill fill(String bucket, String key, String eTag, long size) {
+        if (!ENABLED) {
+            return null;
+        }
+        synchronized (DiskCache.class) {
+            misses++;
+        }
+        if (eTag == null || size < 0 || size > CAPACITY || !reserve(size)) {
+            return null;
+        }
+        try {
+            Path file = DIR.resolve(name(bucket + '/' + key));
+            Path temp = Files.createTempFile(DIR, file.getFileName().toString(), ".tmp");
+            return new Fill(bucket + '/' + key, eTag, size, file, temp);
+        } catch (IOException e) {
+            release(size);
+            return null;
+        }
+    }
+
+    /**
+     * Forget an object and delete its file.
+     */
+    static synchronized void remove(String bucket, String key) {
+        Entry entry = INDEX.remove(bucket + '/' + key);
+        if (entry != null) {
+            bytes -= entry.size;
+            delete(entry.file);
+        }
+    }
+
+    /**
+     * Delete least recently used files until size more bytes fit, and
+     * hold that room until the write is committed or given up.
+     */
+    private static synchronized boolean reserve(long size) {
+        Iterator<Entry> eldest = INDEX.values().iterator();
+        while (bytes + reserved + size > CAPACITY && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            bytes -= entry.size;
+            delete(entry.file);
+            evictions++;
+        }
+        if (bytes + reserved + size > CAPACITY) {
+            return false;
+        }
+        reserved += size;
+        return true;
+    }
+
+    private static synchronized void release(long size) {
+        reserved -= size;
+    }
+
+    private static synchronized void publish(String indexKey, Entry entry) {
+        reserved -= entry.size;
+        Entry old = INDEX.put(indexKey, entry);
+        if (old != null) {
+            // Same file name: the rename already replaced it
+            bytes -= old.size;
+        }
+        bytes += entry.size;
+    }
+
+    private static String name(String indexKey) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(indexKey.getBytes(StandardCharsets.UTF_8))) + ".obj";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Left behind; removed with the directory at the next class load.
+        }
+    }
+
+    private static boolean prepare() {
+        if (CAPACITY <= 0) {
+            return false;
+        }
+        try {
+            Files.createDirectories(DIR);
+            try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(DIR)) {
+                for (Path file : leftovers) {
+                    delete(file);
+                }
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * An object being written to the cache. It becomes visible only
+     * through {@link #commit()}, after a complete write.
+     */
+    static final class Fill {
+        private final String indexKey;
+        private final String eTag;
+        private final long size;
+        private final Path file;
+        private final Path temp;
+        private OutputStream out;
+        private long written;
+        private boolean failed;
+
+        private Fill(String indexKey, String eTag, long size, Path file, Path temp) {
+            this.indexKey = indexKey;
+            this.eTag = eTag;
+            this.size = size;
+            this.file = file;
+            this.temp = temp;
+        }
+
+        /**
+         * @param in Response stream.
+         * @return A stream that reads in and writes everything it reads
+         *         (skipped bytes included) to the cache file.
+         */
+        InputStream tee(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = in.read();
+                    if (b >= 0) {
+                        copy(new byte[] {(byte) b}, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = in.read(b, off, len);
+                    if (n > 0) {
+                        copy(b, off, n);
+                    }
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    byte[] buffer = new byte[(int) Math.min(n, 8192)];
+                    long skipped = 0;
+                    while (skipped < n) {
+                        int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                        if (r < 0) {
+                            break;
+                        }
+                        skipped += r;
+                    }
+                    return skipped;
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+
+                @Override
+                public void close() {
+                    // The caller closes the response.
+                }
+            };
+        }
+
+        /**
+         * Copy what the decoder left unread from in, then commit.
+         *
+         * @param in Response stream the tee was reading.
+         */
+        void finish(InputStream in) {
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                for (int n = in.read(buffer); n >= 0 && !failed; n = in.read(buffer)) {
+                    copy(buffer, 0, n);
+                }
+            } catch (IOException e) {
+                failed = true;
+            }
+            commit();
+        }
+
+        /**
+         * Give up: delete the temporary file and release the room.
+         */
+        void abort() {
+            failed = true;
+            commit();
+        }
+
+        private void copy(byte[] b, int off, int len) {
+            if (failed) {
+                return;
+            }
+            try {
+                if (out == null) {
+                    out = Files.newOutputStream(temp, StandardOpenOption.WRITE);
+                }
+                out.write(b, off, len);
+                written += len;
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+
+        private void commit() {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                failed = true;
+            }
+            if (!failed && written == size) {
+                try {
+                    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    publish(indexKey, new Entry(eTag, size, file));
+                    return;
+                } catch (IOException e) {
+                    // Fall through and clean up.
+                }
+            }
+            delete(temp);
+            release(size);
+        }
+    }
+}